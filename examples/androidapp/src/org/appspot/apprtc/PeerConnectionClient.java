@@ -36,7 +36,6 @@ import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
-import org.appspot.apprtc.RecordedAudioToFileController;
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
 import org.webrtc.CameraVideoCapturer;
@@ -173,9 +172,9 @@ public class PeerConnectionClient {
   // Enable RtcEventLog.
   @Nullable
   private RtcEventLog rtcEventLog;
-  // Implements the WebRtcAudioRecordSamplesReadyCallback interface and writes
-  // recorded audio samples to an output file.
-  @Nullable private RecordedAudioToFileController saveRecordedAudioToFile;
+  // Drains the recorded audio samples from a ring buffer and writes them to an
+  // output file.
+  @Nullable private WavAudioRecorder saveRecordedAudioToFile;
 
   /**
    * Peer connection parameters.
@@ -404,15 +403,15 @@ public class PeerConnectionClient {
     preferIsac = peerConnectionParameters.audioCodec != null
         && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
 
-    // It is possible to save a copy in raw PCM format on a file by checking
-    // the "Save input audio to file" checkbox in the Settings UI. A callback
-    // interface is set when this flag is enabled. As a result, a copy of recorded
+    // It is possible to save a copy in WAV format on a file by checking
+    // the "Save input audio to file" checkbox in the Settings UI. Ring buffers
+    // are set when this flag is enabled. As a result, a copy of recorded
     // audio samples are provided to this client directly from the native audio
     // layer in Java.
     if (peerConnectionParameters.saveInputAudioToFile) {
       if (!peerConnectionParameters.useOpenSLES) {
         Log.d(TAG, "Enable recording of microphone input audio to file");
-        saveRecordedAudioToFile = new RecordedAudioToFileController(executor);
+        saveRecordedAudioToFile = new WavAudioRecorder(/* mixPlayoutAudio= */ false);
       } else {
         // TODO(henrika): ensure that the UI reflects that if OpenSL ES is selected,
         // then the "Save inut audio to file" option shall be grayed out.
@@ -500,8 +499,12 @@ public class PeerConnectionClient {
       }
     };
 
-    return JavaAudioDeviceModule.builder(appContext)
-        .setSamplesReadyCallback(saveRecordedAudioToFile)
+    JavaAudioDeviceModule.Builder builder = JavaAudioDeviceModule.builder(appContext);
+    if (saveRecordedAudioToFile != null) {
+      builder.setRecordedAudioRingBuffer(saveRecordedAudioToFile.getRecordedAudioRingBuffer())
+          .setPlayoutAudioRingBuffer(saveRecordedAudioToFile.getPlayoutAudioRingBuffer());
+    }
+    return builder
         .setUseHardwareAcousticEchoCanceler(!peerConnectionParameters.disableBuiltInAEC)
         .setUseHardwareNoiseSuppressor(!peerConnectionParameters.disableBuiltInNS)
         .setAudioRecordErrorCallback(audioRecordErrorCallback)
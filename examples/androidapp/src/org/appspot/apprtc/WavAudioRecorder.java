@@ -0,0 +1,407 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.media.AudioFormat;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.audio.AudioRingBuffer;
+
+/**
+ * Records the microphone input audio, optionally mixed with the played out audio, to WAV files.
+ * The audio threads only copy the samples into lock-free ring buffers, see
+ * JavaAudioDeviceModule.Builder.setRecordedAudioRingBuffer() and setPlayoutAudioRingBuffer().
+ * A background thread drains them periodically and writes the samples in large batches. The WAV
+ * header is patched with the final sizes when a file is closed, and a new file is started when
+ * the current one reaches the size limit or the recorded audio format changes.
+ */
+public class WavAudioRecorder {
+  private static final String TAG = "WavAudioRecorder";
+  // Set a limit on max file size. 58348800 bytes corresponds to approximately 10 minutes of
+  // recording in mono at 48kHz.
+  private static final long MAX_FILE_SIZE_IN_BYTES = 58348800L;
+  // When a file is full, recording continues in the next file. The file names cycle through this
+  // many indices, so older files are overwritten.
+  private static final int MAX_FILE_COUNT = 3;
+  private static final int DRAIN_INTERVAL_MS = 100;
+  // Holds about one second of 48kHz stereo audio, so that a late drain does not drop samples.
+  private static final int RING_BUFFER_CAPACITY_BYTES = 256 * 1024;
+  // Samples are written to file once this many bytes have been collected. Visible for testing.
+  static final int WRITE_BUFFER_SIZE_BYTES = 64 * 1024;
+  // Visible for testing.
+  static final int WAV_HEADER_SIZE_BYTES = 44;
+  private static final int BITS_PER_SAMPLE = 16;
+
+  /** Write statistics, see getStats(). */
+  public static class Stats {
+    public final long bytesWritten;
+    public final long writeCount;
+    public final long writeTimeMs;
+    // Chunks dropped by the audio threads because the ring buffers were full. Played out audio
+    // that is not mixed in is discarded on every drain, so it is not counted as dropped.
+    public final long droppedRecordedChunks;
+    public final long droppedPlayoutChunks;
+    public final int fileCount;
+
+    Stats(long bytesWritten, long writeCount, long writeTimeMs, long droppedRecordedChunks,
+        long droppedPlayoutChunks, int fileCount) {
+      this.bytesWritten = bytesWritten;
+      this.writeCount = writeCount;
+      this.writeTimeMs = writeTimeMs;
+      this.droppedRecordedChunks = droppedRecordedChunks;
+      this.droppedPlayoutChunks = droppedPlayoutChunks;
+      this.fileCount = fileCount;
+    }
+
+    @Override
+    public String toString() {
+      final long throughputKbps = (writeTimeMs == 0) ? 0 : bytesWritten * 8 / writeTimeMs;
+      return "Stats{bytesWritten=" + bytesWritten + ", writeCount=" + writeCount
+          + ", writeTimeMs=" + writeTimeMs + ", throughputKbps=" + throughputKbps
+          + ", droppedRecordedChunks=" + droppedRecordedChunks
+          + ", droppedPlayoutChunks=" + droppedPlayoutChunks + ", fileCount=" + fileCount + "}";
+    }
+  }
+
+  private final AudioRingBuffer recordedAudioRingBuffer;
+  @Nullable private final AudioRingBuffer playoutAudioRingBuffer;
+  // Directory the files are written to, or null for the external storage directory.
+  @Nullable private final File outputDirectory;
+  private final long maxFileSizeInBytes;
+  @Nullable private ScheduledExecutorService executor;
+
+  // Only accessed on |executor|.
+  private final ByteBuffer writeBuffer =
+      ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private final byte[] recordedChunk = new byte[WRITE_BUFFER_SIZE_BYTES];
+  private final byte[] playoutChunk = new byte[WRITE_BUFFER_SIZE_BYTES];
+  @Nullable private RandomAccessFile file;
+  @Nullable private FileChannel fileChannel;
+  private int sampleRate;
+  private int channelCount;
+  private long fileSizeInBytes;
+  private boolean isPlayoutMixed;
+
+  // Written on |executor|, read by getStats().
+  private volatile long bytesWritten;
+  private volatile long writeCount;
+  private volatile long writeTimeMs;
+  private volatile int fileCount;
+  // Overflow counts of the ring buffers when recording started.
+  private volatile long initialRecordedOverflowCount;
+  private volatile long initialPlayoutOverflowCount;
+
+  /**
+   * Creates a recorder of the microphone input audio. If |mixPlayoutAudio| is true, the played
+   * out audio is mixed in, as long as it has the same sample rate and channel count.
+   */
+  public WavAudioRecorder(boolean mixPlayoutAudio) {
+    this(new AudioRingBuffer(RING_BUFFER_CAPACITY_BYTES),
+        mixPlayoutAudio ? new AudioRingBuffer(RING_BUFFER_CAPACITY_BYTES) : null,
+        /* outputDirectory= */ null, MAX_FILE_SIZE_IN_BYTES);
+  }
+
+  // Visible for testing.
+  WavAudioRecorder(AudioRingBuffer recordedAudioRingBuffer,
+      @Nullable AudioRingBuffer playoutAudioRingBuffer, @Nullable File outputDirectory,
+      long maxFileSizeInBytes) {
+    Log.d(TAG, "ctor");
+    this.recordedAudioRingBuffer = recordedAudioRingBuffer;
+    this.playoutAudioRingBuffer = playoutAudioRingBuffer;
+    this.outputDirectory = outputDirectory;
+    this.maxFileSizeInBytes = maxFileSizeInBytes;
+  }
+
+  /** Should be passed to JavaAudioDeviceModule.Builder.setRecordedAudioRingBuffer(). */
+  public AudioRingBuffer getRecordedAudioRingBuffer() {
+    return recordedAudioRingBuffer;
+  }
+
+  /**
+   * Should be passed to JavaAudioDeviceModule.Builder.setPlayoutAudioRingBuffer(). Returns null if
+   * the played out audio is not mixed in.
+   */
+  @Nullable
+  public AudioRingBuffer getPlayoutAudioRingBuffer() {
+    return playoutAudioRingBuffer;
+  }
+
+  /** Starts writing the audio to file. Should be called on the same thread as stop(). */
+  public boolean start() {
+    Log.d(TAG, "start");
+    if (!isExternalStorageWritable()) {
+      Log.e(TAG, "Writing to external media is not possible");
+      return false;
+    }
+    if (executor != null) {
+      Log.e(TAG, "Already started");
+      return false;
+    }
+    // Chunks dropped while nobody was draining the ring buffers are not counted.
+    initialRecordedOverflowCount = recordedAudioRingBuffer.getOverflowCount();
+    initialPlayoutOverflowCount =
+        (playoutAudioRingBuffer == null) ? 0 : playoutAudioRingBuffer.getOverflowCount();
+    executor = Executors.newSingleThreadScheduledExecutor();
+    // The audio threads keep filling the ring buffers while nothing is recorded. That audio is
+    // stale and must not end up at the start of the new file.
+    executor.execute(this::discardStaleAudio);
+    @SuppressWarnings("unused") // Prevent downstream linter warnings.
+    Future<?> possiblyIgnoredError = executor.scheduleAtFixedRate(
+        this::drain, DRAIN_INTERVAL_MS, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    return true;
+  }
+
+  /**
+   * Writes the remaining audio and closes the file. Blocks until the file is closed. Should be
+   * called on the same thread as start().
+   */
+  public void stop() {
+    Log.d(TAG, "stop");
+    if (executor == null) {
+      return;
+    }
+    executor.execute(this::drainAndClose);
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        Log.e(TAG, "Timed out waiting for the audio file to be closed");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    executor = null;
+    Log.d(TAG, "Recording stopped: " + getStats());
+  }
+
+  /** Returns the write statistics. Can be called on any thread. */
+  public Stats getStats() {
+    final long droppedPlayoutChunks = (playoutAudioRingBuffer == null)
+        ? 0
+        : playoutAudioRingBuffer.getOverflowCount() - initialPlayoutOverflowCount;
+    return new Stats(bytesWritten, writeCount, writeTimeMs,
+        recordedAudioRingBuffer.getOverflowCount() - initialRecordedOverflowCount,
+        droppedPlayoutChunks, fileCount);
+  }
+
+  // Checks if external storage is available for read and write.
+  private boolean isExternalStorageWritable() {
+    String state = Environment.getExternalStorageState();
+    if (Environment.MEDIA_MOUNTED.equals(state)) {
+      return true;
+    }
+    return false;
+  }
+
+  // Drops the samples currently in the ring buffers. Runs on |executor|. Visible for testing.
+  void discardStaleAudio() {
+    discard(recordedAudioRingBuffer, recordedChunk);
+    if (playoutAudioRingBuffer != null) {
+      discard(playoutAudioRingBuffer, playoutChunk);
+    }
+  }
+
+  private static void discard(AudioRingBuffer ringBuffer, byte[] chunk) {
+    while (ringBuffer.available() > 0) {
+      ringBuffer.read(chunk, 0, chunk.length);
+    }
+  }
+
+  // Writes the remaining audio and closes the file. Runs on |executor|. Visible for testing.
+  void drainAndClose() {
+    drain();
+    flushWriteBuffer();
+    closeFile();
+  }
+
+  // Moves the samples collected by the audio threads to the write buffer, and writes it to file
+  // whenever it is full. Played out audio that is not mixed in is dropped, so that its ring buffer
+  // does not overflow. Runs on |executor|. Visible for testing.
+  void drain() {
+    drainRecordedAudio();
+    if (playoutAudioRingBuffer != null && !isPlayoutMixed) {
+      discard(playoutAudioRingBuffer, playoutChunk);
+    }
+  }
+
+  private void drainRecordedAudio() {
+    if (recordedAudioRingBuffer.getSampleRate() == 0) {
+      // Recording has not started yet.
+      return;
+    }
+    if (recordedAudioRingBuffer.getAudioFormat() != AudioFormat.ENCODING_PCM_16BIT) {
+      Log.e(TAG, "Invalid audio format");
+      return;
+    }
+    if (fileChannel != null
+        && (recordedAudioRingBuffer.getSampleRate() != sampleRate
+            || recordedAudioRingBuffer.getChannelCount() != channelCount)) {
+      // A new audio session with another format has started. The header of a WAV file describes a
+      // single format, so the samples go to a new file.
+      Log.d(TAG, "Audio format changed, starting a new file");
+      flushWriteBuffer();
+      closeFile();
+    }
+    final int frameSize = recordedAudioRingBuffer.getChannelCount() * BITS_PER_SAMPLE / 8;
+    while (true) {
+      int size = Math.min(recordedAudioRingBuffer.available(), writeBuffer.remaining());
+      size -= size % frameSize;
+      if (size == 0) {
+        break;
+      }
+      // Files are opened once there are samples for them, also after a full file was closed.
+      if (fileChannel == null && !openFile()) {
+        return;
+      }
+      recordedAudioRingBuffer.read(recordedChunk, 0, size);
+      if (isPlayoutMixed) {
+        // Playout that has not produced enough samples yet is treated as silence.
+        final int playoutSize = playoutAudioRingBuffer.read(playoutChunk, 0, size);
+        mix(recordedChunk, playoutChunk, playoutSize);
+      }
+      writeBuffer.put(recordedChunk, 0, size);
+      if (!writeBuffer.hasRemaining()) {
+        flushWriteBuffer();
+      }
+    }
+  }
+
+  // Adds the first |size| bytes of |playout| to |recorded|, as 16-bit little endian samples. Sums
+  // that do not fit are saturated. Visible for testing.
+  static void mix(byte[] recorded, byte[] playout, int size) {
+    for (int i = 0; i + 1 < size; i += 2) {
+      final int sum = (short) ((recorded[i] & 0xFF) | (recorded[i + 1] << 8))
+          + (short) ((playout[i] & 0xFF) | (playout[i + 1] << 8));
+      final int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sum));
+      recorded[i] = (byte) sample;
+      recorded[i + 1] = (byte) (sample >> 8);
+    }
+  }
+
+  private void flushWriteBuffer() {
+    if (fileChannel == null || writeBuffer.position() == 0) {
+      writeBuffer.clear();
+      return;
+    }
+    writeBuffer.flip();
+    final long startTimeMs = SystemClock.elapsedRealtime();
+    try {
+      while (writeBuffer.hasRemaining()) {
+        fileSizeInBytes += fileChannel.write(writeBuffer);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write audio to file: " + e.getMessage());
+    }
+    writeTimeMs += SystemClock.elapsedRealtime() - startTimeMs;
+    bytesWritten += writeBuffer.limit();
+    writeCount++;
+    writeBuffer.clear();
+    if (fileSizeInBytes >= maxFileSizeInBytes) {
+      closeFile();
+    }
+  }
+
+  // Utilizes audio parameters to create a file name which contains sufficient information to
+  // identify the recording, e.g. /sdcard/recorded_audio_16bits_48000Hz_mono.wav. Files after the
+  // first get an index suffix.
+  private boolean openFile() {
+    sampleRate = recordedAudioRingBuffer.getSampleRate();
+    channelCount = recordedAudioRingBuffer.getChannelCount();
+    isPlayoutMixed = playoutAudioRingBuffer != null
+        && playoutAudioRingBuffer.getSampleRate() == sampleRate
+        && playoutAudioRingBuffer.getChannelCount() == channelCount;
+    if (playoutAudioRingBuffer != null && !isPlayoutMixed) {
+      Log.w(TAG, "Playout audio is not mixed in since its format does not match");
+    }
+    final int fileIndex = fileCount % MAX_FILE_COUNT;
+    final File directory =
+        (outputDirectory != null) ? outputDirectory : Environment.getExternalStorageDirectory();
+    final String fileName = directory.getPath() + File.separator
+        + getFileName(sampleRate, channelCount, fileIndex);
+    try {
+      file = new RandomAccessFile(fileName, "rw");
+      file.setLength(0);
+      fileChannel = file.getChannel();
+      // The sizes in the header are patched when the file is closed. The samples follow it.
+      writeHeader(/* dataSize= */ 0);
+      fileChannel.position(WAV_HEADER_SIZE_BYTES);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to open audio output file: " + e.getMessage());
+      closeFile();
+      return false;
+    }
+    fileSizeInBytes = WAV_HEADER_SIZE_BYTES;
+    fileCount++;
+    Log.d(TAG, "Opened file for recording: " + fileName);
+    return true;
+  }
+
+  private static String getFileName(int sampleRate, int channelCount, int fileIndex) {
+    return "recorded_audio_16bits_" + sampleRate + "Hz"
+        + ((channelCount == 1) ? "_mono" : "_stereo") + ((fileIndex == 0) ? "" : "_" + fileIndex)
+        + ".wav";
+  }
+
+  private void closeFile() {
+    if (fileChannel != null) {
+      try {
+        writeHeader(fileSizeInBytes - WAV_HEADER_SIZE_BYTES);
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to write WAV header: " + e.getMessage());
+      }
+    }
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close file with saved input audio: " + e);
+      }
+    }
+    file = null;
+    fileChannel = null;
+  }
+
+  // Writes a canonical 44 byte WAV header at the start of the file, without changing the position
+  // of the file channel.
+  private void writeHeader(long dataSize) throws IOException {
+    final int blockAlign = channelCount * BITS_PER_SAMPLE / 8;
+    final ByteBuffer header =
+        ByteBuffer.allocate(WAV_HEADER_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(new byte[] {'R', 'I', 'F', 'F'});
+    header.putInt((int) (36 + dataSize));
+    header.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+    header.putInt(16); // Size of the fmt chunk.
+    header.putShort((short) 1); // PCM.
+    header.putShort((short) channelCount);
+    header.putInt(sampleRate);
+    header.putInt(sampleRate * blockAlign); // Byte rate.
+    header.putShort((short) blockAlign);
+    header.putShort((short) BITS_PER_SAMPLE);
+    header.put(new byte[] {'d', 'a', 't', 'a'});
+    header.putInt((int) dataSize);
+    header.flip();
+    long position = 0;
+    while (header.hasRemaining()) {
+      position += fileChannel.write(header, position);
+    }
+  }
+}
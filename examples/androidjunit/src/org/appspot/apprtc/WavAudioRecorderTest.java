@@ -0,0 +1,260 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import org.chromium.testing.local.LocalRobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+import org.webrtc.audio.AudioRingBuffer;
+
+@RunWith(LocalRobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class WavAudioRecorderTest {
+  private static final int RING_BUFFER_CAPACITY_BYTES = 256 * 1024;
+  // Size of the chunks written by the fake audio thread.
+  private static final int CHUNK_SIZE_BYTES = 4096;
+  private static final int HEADER_SIZE = WavAudioRecorder.WAV_HEADER_SIZE_BYTES;
+
+  // Ring buffer whose format is set by the test instead of by an audio thread.
+  private static class TestRingBuffer extends AudioRingBuffer {
+    private volatile int sampleRate;
+    private volatile int channelCount;
+
+    TestRingBuffer() {
+      super(RING_BUFFER_CAPACITY_BYTES);
+    }
+
+    void setTestFormat(int sampleRate, int channelCount) {
+      this.sampleRate = sampleRate;
+      this.channelCount = channelCount;
+    }
+
+    @Override
+    public int getAudioFormat() {
+      return (sampleRate == 0) ? 0 : AudioFormat.ENCODING_PCM_16BIT;
+    }
+
+    @Override
+    public int getChannelCount() {
+      return channelCount;
+    }
+
+    @Override
+    public int getSampleRate() {
+      return sampleRate;
+    }
+  }
+
+  @Rule public TemporaryFolder outputFolder = new TemporaryFolder();
+
+  private TestRingBuffer ringBuffer;
+
+  @Before
+  public void setUp() {
+    ringBuffer = new TestRingBuffer();
+  }
+
+  private WavAudioRecorder createRecorder(long maxFileSizeInBytes) {
+    return new WavAudioRecorder(ringBuffer, /* playoutAudioRingBuffer= */ null,
+        outputFolder.getRoot(), maxFileSizeInBytes);
+  }
+
+  // Writes |sampleCount| 16-bit samples with the given value to the recorded ring buffer, in chunks
+  // like an audio thread.
+  private void writeSamples(int sampleCount, short value) {
+    writeSamples(ringBuffer, sampleCount, value);
+  }
+
+  private static void writeSamples(TestRingBuffer ringBuffer, int sampleCount, short value) {
+    final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    int remaining = sampleCount;
+    while (remaining > 0) {
+      final int chunkSamples = Math.min(remaining, CHUNK_SIZE_BYTES / 2);
+      chunk.clear();
+      for (int i = 0; i < chunkSamples; ++i) {
+        chunk.putShort(value);
+      }
+      chunk.rewind();
+      assertTrue(ringBuffer.write(chunk, chunkSamples * 2));
+      remaining -= chunkSamples;
+    }
+  }
+
+  private File getOutputFile(String name) {
+    return new File(outputFolder.getRoot(), name);
+  }
+
+  private static ByteBuffer readFile(File file) throws IOException {
+    return ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static void assertTag(String expected, ByteBuffer data, int offset) {
+    final byte[] tag = new byte[4];
+    data.position(offset);
+    data.get(tag);
+    assertEquals(expected, new String(tag));
+  }
+
+  // Asserts that |file| has a canonical WAV header for its size and the given format.
+  private static void assertHeader(File file, int sampleRate, int channelCount) throws IOException {
+    final ByteBuffer data = readFile(file);
+    final int dataSize = data.capacity() - HEADER_SIZE;
+    final int blockAlign = channelCount * 2;
+    assertTag("RIFF", data, 0);
+    assertEquals(36 + dataSize, data.getInt(4));
+    assertTag("WAVE", data, 8);
+    assertTag("fmt ", data, 12);
+    assertEquals(16, data.getInt(16));
+    assertEquals(1, data.getShort(20));
+    assertEquals(channelCount, data.getShort(22));
+    assertEquals(sampleRate, data.getInt(24));
+    assertEquals(sampleRate * blockAlign, data.getInt(28));
+    assertEquals(blockAlign, data.getShort(32));
+    assertEquals(16, data.getShort(34));
+    assertTag("data", data, 36);
+    assertEquals(dataSize, data.getInt(40));
+  }
+
+  // Asserts that all samples after the header of |file| have the value |expected|.
+  private static void assertSamples(File file, short expected) throws IOException {
+    final ByteBuffer data = readFile(file);
+    for (int offset = HEADER_SIZE; offset < data.capacity(); offset += 2) {
+      assertEquals(expected, data.getShort(offset));
+    }
+  }
+
+  @Test
+  public void testHeaderIsPatchedOnClose() throws IOException {
+    final WavAudioRecorder recorder = createRecorder(/* maxFileSizeInBytes= */ 1 << 20);
+    ringBuffer.setTestFormat(/* sampleRate= */ 16000, /* channelCount= */ 1);
+    writeSamples(/* sampleCount= */ 1000, (short) 1234);
+    recorder.drain();
+    recorder.drainAndClose();
+
+    final File file = getOutputFile("recorded_audio_16bits_16000Hz_mono.wav");
+    assertEquals(HEADER_SIZE + 2000, file.length());
+    assertHeader(file, /* sampleRate= */ 16000, /* channelCount= */ 1);
+    assertSamples(file, (short) 1234);
+    assertEquals(1, recorder.getStats().fileCount);
+  }
+
+  @Test
+  public void testFileIsRotatedAtMaxSize() throws IOException {
+    // Each write of a full write buffer fills a file.
+    final int writeSize = WavAudioRecorder.WRITE_BUFFER_SIZE_BYTES;
+    final WavAudioRecorder recorder = createRecorder(HEADER_SIZE + writeSize);
+    ringBuffer.setTestFormat(/* sampleRate= */ 48000, /* channelCount= */ 2);
+    writeSamples(/* sampleCount= */ (2 * writeSize + 1000) / 2, (short) -42);
+    recorder.drain();
+    recorder.drainAndClose();
+
+    assertEquals(3, recorder.getStats().fileCount);
+    final File[] files = {getOutputFile("recorded_audio_16bits_48000Hz_stereo.wav"),
+        getOutputFile("recorded_audio_16bits_48000Hz_stereo_1.wav"),
+        getOutputFile("recorded_audio_16bits_48000Hz_stereo_2.wav")};
+    final long[] expectedSizes = {HEADER_SIZE + writeSize, HEADER_SIZE + writeSize,
+        HEADER_SIZE + 1000};
+    for (int i = 0; i < files.length; ++i) {
+      assertEquals(expectedSizes[i], files[i].length());
+      assertHeader(files[i], /* sampleRate= */ 48000, /* channelCount= */ 2);
+      assertSamples(files[i], (short) -42);
+    }
+  }
+
+  @Test
+  public void testFileIsRotatedOnFormatChange() throws IOException {
+    final WavAudioRecorder recorder = createRecorder(/* maxFileSizeInBytes= */ 1 << 20);
+    ringBuffer.setTestFormat(/* sampleRate= */ 16000, /* channelCount= */ 1);
+    writeSamples(/* sampleCount= */ 1000, (short) 1);
+    recorder.drain();
+    ringBuffer.setTestFormat(/* sampleRate= */ 48000, /* channelCount= */ 2);
+    writeSamples(/* sampleCount= */ 3000, (short) 2);
+    recorder.drainAndClose();
+
+    assertEquals(2, recorder.getStats().fileCount);
+    final File monoFile = getOutputFile("recorded_audio_16bits_16000Hz_mono.wav");
+    assertEquals(HEADER_SIZE + 2000, monoFile.length());
+    assertHeader(monoFile, /* sampleRate= */ 16000, /* channelCount= */ 1);
+    assertSamples(monoFile, (short) 1);
+    final File stereoFile = getOutputFile("recorded_audio_16bits_48000Hz_stereo_1.wav");
+    assertEquals(HEADER_SIZE + 6000, stereoFile.length());
+    assertHeader(stereoFile, /* sampleRate= */ 48000, /* channelCount= */ 2);
+    assertSamples(stereoFile, (short) 2);
+  }
+
+  @Test
+  public void testStaleAudioIsDiscarded() throws IOException {
+    final WavAudioRecorder recorder = createRecorder(/* maxFileSizeInBytes= */ 1 << 20);
+    ringBuffer.setTestFormat(/* sampleRate= */ 16000, /* channelCount= */ 1);
+    // Recorded before start().
+    writeSamples(/* sampleCount= */ 5000, (short) 1);
+    recorder.discardStaleAudio();
+    writeSamples(/* sampleCount= */ 1000, (short) 2);
+    recorder.drainAndClose();
+
+    final File file = getOutputFile("recorded_audio_16bits_16000Hz_mono.wav");
+    assertEquals(HEADER_SIZE + 2000, file.length());
+    assertSamples(file, (short) 2);
+  }
+
+  @Test
+  public void testUnmixedPlayoutIsDiscarded() throws IOException {
+    final TestRingBuffer playoutRingBuffer = new TestRingBuffer();
+    final WavAudioRecorder recorder = new WavAudioRecorder(ringBuffer, playoutRingBuffer,
+        outputFolder.getRoot(), /* maxFileSizeInBytes= */ 1 << 20);
+    ringBuffer.setTestFormat(/* sampleRate= */ 16000, /* channelCount= */ 1);
+    // The playout format differs, so the played out audio is not mixed in.
+    playoutRingBuffer.setTestFormat(/* sampleRate= */ 48000, /* channelCount= */ 2);
+    for (int i = 0; i < 3; ++i) {
+      writeSamples(/* sampleCount= */ 1000, (short) 1);
+      // Fills most of the playout ring buffer, which overflows unless every drain empties it.
+      writeSamples(playoutRingBuffer, /* sampleCount= */ 100000, (short) 2);
+      recorder.drain();
+    }
+    recorder.drainAndClose();
+
+    assertEquals(0, recorder.getStats().droppedPlayoutChunks);
+    final File file = getOutputFile("recorded_audio_16bits_16000Hz_mono.wav");
+    assertEquals(HEADER_SIZE + 6000, file.length());
+    assertSamples(file, (short) 1);
+  }
+
+  @Test
+  public void testMixSaturates() {
+    final short[] recordedSamples = {30000, -30000, 100, Short.MAX_VALUE};
+    final short[] playoutSamples = {10000, -10000, -50, Short.MIN_VALUE};
+    final short[] expectedSamples = {Short.MAX_VALUE, Short.MIN_VALUE, 50, -1};
+    final ByteBuffer recorded = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    final ByteBuffer playout = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < recordedSamples.length; ++i) {
+      recorded.putShort(recordedSamples[i]);
+      playout.putShort(playoutSamples[i]);
+    }
+
+    WavAudioRecorder.mix(recorded.array(), playout.array(), /* size= */ 8);
+    for (int i = 0; i < expectedSamples.length; ++i) {
+      assertEquals(expectedSamples[i], recorded.getShort(2 * i));
+    }
+  }
+}
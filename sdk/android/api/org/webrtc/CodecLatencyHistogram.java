@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+/**
+ * Histogram of the time frames spend inside a MediaCodec, from queueing the input buffer to
+ * receiving the matching output buffer. Given to HardwareVideoEncoderFactory and
+ * HardwareVideoDecoderFactory through their options, it collects one sample per frame of every
+ * codec they create. Buckets are exponentially sized, bucket i holds samples in
+ * [2^(i-1), 2^i) ms and the last bucket holds everything larger. This class is thread safe.
+ */
+public class CodecLatencyHistogram {
+  private static final int BUCKET_COUNT = 12;
+
+  private final long[] bucketCounts = new long[BUCKET_COUNT];
+  private long sampleCount;
+  private long sampleSumMs;
+  private long maxSampleMs;
+
+  /** Returns the number of buckets. */
+  public static int getBucketCount() {
+    return BUCKET_COUNT;
+  }
+
+  /** Returns the exclusive upper bound of bucket |index|, or Long.MAX_VALUE for the last one. */
+  public static long getBucketUpperBoundMs(int index) {
+    if (index < 0 || index >= BUCKET_COUNT) {
+      throw new IllegalArgumentException("Invalid bucket index: " + index);
+    }
+    return (index == BUCKET_COUNT - 1) ? Long.MAX_VALUE : 1L << index;
+  }
+
+  /** Returns a copy of the sample count of each bucket. */
+  public synchronized long[] getBucketCounts() {
+    return bucketCounts.clone();
+  }
+
+  public synchronized long getSampleCount() {
+    return sampleCount;
+  }
+
+  /** Returns the average latency, or 0 if there are no samples. */
+  public synchronized long getAverageMs() {
+    return sampleCount == 0 ? 0 : sampleSumMs / sampleCount;
+  }
+
+  public synchronized long getMaxMs() {
+    return maxSampleMs;
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding the |percentile|th sample, e.g. 95 for the 95th
+   * percentile, or 0 if there are no samples.
+   */
+  public synchronized long getPercentileUpperBoundMs(int percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("Invalid percentile: " + percentile);
+    }
+    if (sampleCount == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (sampleCount * percentile + 99) / 100);
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      count += bucketCounts[i];
+      if (count >= rank) {
+        return Math.min(getBucketUpperBoundMs(i), maxSampleMs + 1);
+      }
+    }
+    return maxSampleMs + 1;
+  }
+
+  public synchronized void reset() {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      bucketCounts[i] = 0;
+    }
+    sampleCount = 0;
+    sampleSumMs = 0;
+    maxSampleMs = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "samples: " + sampleCount + ", average: " + getAverageMs() + " ms, p50 < "
+        + getPercentileUpperBoundMs(50) + " ms, p95 < " + getPercentileUpperBoundMs(95)
+        + " ms, max: " + maxSampleMs + " ms";
+  }
+
+  synchronized void addSample(long latencyMs) {
+    final long sampleMs = Math.max(0, latencyMs);
+    int index = 0;
+    while (index < BUCKET_COUNT - 1 && sampleMs >= getBucketUpperBoundMs(index)) {
+      ++index;
+    }
+    ++bucketCounts[index];
+    ++sampleCount;
+    sampleSumMs += sampleMs;
+    maxSampleMs = Math.max(maxSampleMs, sampleMs);
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+/**
+ * Counts how MediaCodec decoders handle changes of the stream resolution. Codecs configured for
+ * adaptive playback continue on the same instance, all other changes reinitialize the codec,
+ * which stalls decoding. Given to HardwareVideoDecoderFactory through its options, it collects
+ * the changes of every decoder the factory creates. This class is thread safe.
+ */
+public class DecoderResolutionChangeStats {
+  private long adaptiveChangeCount;
+  private long reinitCount;
+  private long reinitStallSumMs;
+  private long reinitStallMaxMs;
+
+  /** Returns the number of resolution changes that continued on the same codec instance. */
+  public synchronized long getAdaptiveChangeCount() {
+    return adaptiveChangeCount;
+  }
+
+  /** Returns the number of resolution changes that reinitialized the codec. */
+  public synchronized long getReinitCount() {
+    return reinitCount;
+  }
+
+  /** Returns the average time decoding stalled per reinitialization, or 0 if there was none. */
+  public synchronized long getAverageReinitStallMs() {
+    return reinitCount == 0 ? 0 : reinitStallSumMs / reinitCount;
+  }
+
+  public synchronized long getMaxReinitStallMs() {
+    return reinitStallMaxMs;
+  }
+
+  public synchronized void reset() {
+    adaptiveChangeCount = 0;
+    reinitCount = 0;
+    reinitStallSumMs = 0;
+    reinitStallMaxMs = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "adaptive: " + adaptiveChangeCount + ", reinit: " + reinitCount
+        + ", average reinit stall: " + getAverageReinitStallMs()
+        + " ms, max reinit stall: " + reinitStallMaxMs + " ms";
+  }
+
+  synchronized void addAdaptiveChange() {
+    ++adaptiveChangeCount;
+  }
+
+  synchronized void addReinit(long stallMs) {
+    ++reinitCount;
+    reinitStallSumMs += stallMs;
+    reinitStallMaxMs = Math.max(reinitStallMaxMs, stallMs);
+  }
+}
@@ -19,9 +19,11 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.support.annotation.Nullable;
+import android.view.Choreographer;
 import android.view.Surface;
 import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.concurrent.CountDownLatch;
@@ -34,22 +36,80 @@ import java.util.concurrent.TimeUnit;
 public class EglRenderer implements VideoSink {
   private static final String TAG = "EglRenderer";
   private static final long LOG_INTERVAL_SEC = 4;
+  // Assumed display refresh period until it has been measured from vsync callbacks.
+  private static final long DEFAULT_VSYNC_PERIOD_NS = TimeUnit.SECONDS.toNanos(1) / 60;
+
+  // Maximum number of bitmaps given back with returnBitmap() that are kept for reuse.
+  private static final int MAX_POOLED_BITMAPS = 3;
+  // Interval at which the render thread checks for completed frame listener readbacks.
+  private static final long READBACK_POLL_INTERVAL_MS = 2;
 
   public interface FrameListener { void onFrame(Bitmap frame); }
 
+  /** Snapshot of the render counters of an EglRenderer, since it was initialized. */
+  public static class RenderStats {
+    /** Number of frames received in onFrame(). */
+    public final long framesReceived;
+    /** Number of frames replaced by a newer frame before they were rendered. */
+    public final long framesDropped;
+    /** Number of frames drawn on the surface. */
+    public final long framesRendered;
+    /** Number of frames rendered with vsync pacing that were not done before the next vsync. */
+    public final long framesLate;
+    /** Average time spent rendering a frame on the render thread, including swapBuffers(). */
+    public final double averageRenderTimeMs;
+    /** Average time spent in swapBuffers() per rendered frame. */
+    public final double averageSwapBufferTimeMs;
+
+    RenderStats(long framesReceived, long framesDropped, long framesRendered, long framesLate,
+        double averageRenderTimeMs, double averageSwapBufferTimeMs) {
+      this.framesReceived = framesReceived;
+      this.framesDropped = framesDropped;
+      this.framesRendered = framesRendered;
+      this.framesLate = framesLate;
+      this.averageRenderTimeMs = averageRenderTimeMs;
+      this.averageSwapBufferTimeMs = averageSwapBufferTimeMs;
+    }
+
+    @Override
+    public String toString() {
+      return "frames received: " + framesReceived + ", frames dropped: " + framesDropped
+          + ", frames rendered: " + framesRendered + ", frames late: " + framesLate
+          + ", average render time ms: " + averageRenderTimeMs
+          + ", average swapBuffer time ms: " + averageSwapBufferTimeMs;
+    }
+  }
+
+  /**
+   * Frame listener that receives the pixels of a frame without a Bitmap being created. |rgbaBuffer|
+   * holds |width| * |height| RGBA pixels, top row first and without row padding. The buffer is
+   * reused for later frames and is only valid during the call.
+   */
+  public interface ByteBufferFrameListener {
+    void onFrame(ByteBuffer rgbaBuffer, int width, int height);
+  }
+
   private static class FrameListenerAndParams {
-    public final FrameListener listener;
+    // Exactly one of |listener| and |byteBufferListener| is set.
+    @Nullable public final FrameListener listener;
+    @Nullable public final ByteBufferFrameListener byteBufferListener;
     public final float scale;
     public final RendererCommon.GlDrawer drawer;
     public final boolean applyFpsReduction;
 
-    public FrameListenerAndParams(FrameListener listener, float scale,
+    public FrameListenerAndParams(@Nullable FrameListener listener,
+        @Nullable ByteBufferFrameListener byteBufferListener, float scale,
         RendererCommon.GlDrawer drawer, boolean applyFpsReduction) {
       this.listener = listener;
+      this.byteBufferListener = byteBufferListener;
       this.scale = scale;
       this.drawer = drawer;
       this.applyFpsReduction = applyFpsReduction;
     }
+
+    Object getListener() {
+      return (listener != null) ? listener : byteBufferListener;
+    }
   }
 
   private class EglSurfaceCreation implements Runnable {
@@ -109,6 +169,9 @@ public class EglRenderer implements VideoSink {
   // on |handlerLock|.
   private final Object handlerLock = new Object();
   @Nullable private Handler renderThreadHandler;
+  // Set when rendering on a render thread shared with other renderers. Synchronized on
+  // |handlerLock|.
+  @Nullable private SharedEglRenderThread sharedRenderThread;
 
   private final ArrayList<FrameListenerAndParams> frameListeners = new ArrayList<>();
 
@@ -131,6 +194,17 @@ public class EglRenderer implements VideoSink {
   // Pending frame to render. Serves as a queue with size 1. Synchronized on |frameLock|.
   private final Object frameLock = new Object();
   @Nullable private VideoFrame pendingFrame;
+  // If true, |pendingFrame| is rendered on the next display vsync instead of right away.
+  // Synchronized on |frameLock|, like |isVsyncRequested|.
+  private boolean vsyncPacingEnabled;
+  private boolean isVsyncRequested;
+
+  // Vsync state, only accessed on the render thread.
+  @Nullable private Choreographer choreographer;
+  private final Choreographer.FrameCallback vsyncCallback = this::onVsyncOnRenderThread;
+  private long lastVsyncTimeNs;
+  // Shortest interval seen between two vsync callbacks, or 0 if not measured yet.
+  private long measuredVsyncPeriodNs;
 
   // These variables are synchronized on |layoutLock|.
   private final Object layoutLock = new Object();
@@ -155,10 +229,25 @@ public class EglRenderer implements VideoSink {
   private long renderTimeNs;
   // Time in ns spent by the render thread in the swapBuffers() function.
   private long renderSwapBufferTimeNs;
+  // Number of frames rendered with vsync pacing that were not done before the next vsync.
+  private int framesLate;
+  // Totals for getRenderStats(), only reset in init().
+  private long totalFramesReceived;
+  private long totalFramesDropped;
+  private long totalFramesRendered;
+  private long totalFramesLate;
+  private long totalRenderTimeNs;
+  private long totalSwapBufferTimeNs;
 
   // Used for bitmap capturing.
   private final GlTextureFrameBuffer bitmapTextureFramebuffer =
       new GlTextureFrameBuffer(GLES20.GL_RGBA);
+  // Reads back the frames for the frame listeners. Only accessed on the render thread.
+  private final PixelReadback pixelReadback = new PixelReadback();
+  // Bitmaps handed back by frame listeners, reused for later frames. Synchronized on itself.
+  private final ArrayDeque<Bitmap> bitmapPool = new ArrayDeque<>();
+
+  private final Runnable pollReadbacksRunnable = this::pollReadbacksOnRenderThread;
 
   private final Runnable logStatisticsRunnable = new Runnable() {
     @Override
@@ -236,6 +325,36 @@ public class EglRenderer implements VideoSink {
       renderThreadHandler.post(eglSurfaceCreationRunnable);
       final long currentTimeNs = System.nanoTime();
       resetStatistics(currentTimeNs);
+      resetTotals();
+      renderThreadHandler.postDelayed(
+          logStatisticsRunnable, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+    }
+  }
+
+  /**
+   * Initialize this class to render on |sharedRenderThread| instead of on a render thread of its
+   * own. The EGL context is created in the share group of |sharedRenderThread|, with its config
+   * attributes. Frames are drawn in the render passes of the shared thread, together with the
+   * frames of the other renderers using it. This class is responsible for calling release() on
+   * |drawer|. release() must be called before |sharedRenderThread| is released.
+   */
+  public void init(final SharedEglRenderThread sharedRenderThread, RendererCommon.GlDrawer drawer,
+      boolean usePresentationTimeStamp) {
+    synchronized (handlerLock) {
+      if (renderThreadHandler != null) {
+        throw new IllegalStateException(name + "Already initialized");
+      }
+      logD("Initializing EglRenderer on shared render thread");
+      this.drawer = drawer;
+      this.usePresentationTimeStamp = usePresentationTimeStamp;
+      this.sharedRenderThread = sharedRenderThread;
+      renderThreadHandler = sharedRenderThread.getHandler();
+      ThreadUtils.invokeAtFrontUninterruptibly(
+          renderThreadHandler, () -> { eglBase = sharedRenderThread.addRenderer(); });
+      renderThreadHandler.post(eglSurfaceCreationRunnable);
+      final long currentTimeNs = System.nanoTime();
+      resetStatistics(currentTimeNs);
+      resetTotals();
       renderThreadHandler.postDelayed(
           logStatisticsRunnable, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
     }
@@ -279,8 +398,21 @@ public class EglRenderer implements VideoSink {
         return;
       }
       renderThreadHandler.removeCallbacks(logStatisticsRunnable);
+      renderThreadHandler.removeCallbacks(pollReadbacksRunnable);
+      final SharedEglRenderThread releasedSharedRenderThread = sharedRenderThread;
       // Release EGL and GL resources on render thread.
       renderThreadHandler.postAtFrontOfQueue(() -> {
+        // On a shared render thread, the context is only current while this renderer draws.
+        if (releasedSharedRenderThread != null && eglBase != null && eglBase.hasSurface()) {
+          eglBase.makeCurrent();
+        }
+        if (choreographer != null) {
+          choreographer.removeFrameCallback(vsyncCallback);
+          choreographer = null;
+        }
+        synchronized (frameLock) {
+          isVsyncRequested = false;
+        }
         // Detach current shader program.
         GLES20.glUseProgram(/* program= */ 0);
         if (drawer != null) {
@@ -289,6 +421,13 @@ public class EglRenderer implements VideoSink {
         }
         frameDrawer.release();
         bitmapTextureFramebuffer.release();
+        pixelReadback.release();
+        if (releasedSharedRenderThread != null) {
+          releasedSharedRenderThread.removeRenderer(this);
+          synchronized (handlerLock) {
+            sharedRenderThread = null;
+          }
+        }
         if (eglBase != null) {
           logD("eglBase detach and release.");
           eglBase.detachCurrent();
@@ -298,13 +437,16 @@ public class EglRenderer implements VideoSink {
         frameListeners.clear();
         eglCleanupBarrier.countDown();
       });
-      final Looper renderLooper = renderThreadHandler.getLooper();
-      // TODO(magjed): Replace this post() with renderLooper.quitSafely() when API support >= 18.
-      renderThreadHandler.post(() -> {
-        logD("Quitting render thread.");
-        renderLooper.quit();
-      });
-      // Don't accept any more frames or messages to the render thread.
+      if (releasedSharedRenderThread == null) {
+        final Looper renderLooper = renderThreadHandler.getLooper();
+        // TODO(magjed): Replace this post() with renderLooper.quitSafely() when API support >= 18.
+        renderThreadHandler.post(() -> {
+          logD("Quitting render thread.");
+          renderLooper.quit();
+        });
+      }
+      // Don't accept any more frames or messages to the render thread. |sharedRenderThread| is
+      // cleared by the cleanup task, since a render pass might still be drawing this renderer.
       renderThreadHandler = null;
     }
     // Make sure the EGL/GL cleanup posted above is executed.
@@ -329,6 +471,30 @@ public class EglRenderer implements VideoSink {
       framesRendered = 0;
       renderTimeNs = 0;
       renderSwapBufferTimeNs = 0;
+      framesLate = 0;
+    }
+  }
+
+  private void resetTotals() {
+    synchronized (statisticsLock) {
+      totalFramesReceived = 0;
+      totalFramesDropped = 0;
+      totalFramesRendered = 0;
+      totalFramesLate = 0;
+      totalRenderTimeNs = 0;
+      totalSwapBufferTimeNs = 0;
+    }
+  }
+
+  /**
+   * Returns the render counters since the last init(). Unlike the logged statistics, these are
+   * never reset while the renderer is in use. Can be called on any thread.
+   */
+  public RenderStats getRenderStats() {
+    synchronized (statisticsLock) {
+      return new RenderStats(totalFramesReceived, totalFramesDropped, totalFramesRendered,
+          totalFramesLate, averageTimeMs(totalRenderTimeNs, totalFramesRendered),
+          averageTimeMs(totalSwapBufferTimeNs, totalFramesRendered));
     }
   }
 
@@ -409,6 +575,21 @@ public class EglRenderer implements VideoSink {
     setFpsReduction(0 /* fps */);
   }
 
+  /**
+   * Enables rendering paced by the display vsync. Instead of drawing every frame as soon as it
+   * arrives, the newest pending frame is latched on each Choreographer vsync, so that there is at
+   * most one draw per display refresh. Frames replaced before the vsync are counted as dropped, and
+   * frames whose draw is not done before the next vsync as late. FPS reduction then skips whole
+   * vsyncs. Has no effect for renderers on a SharedEglRenderThread, which paces its render passes
+   * itself. Disabled by default.
+   */
+  public void setVsyncPacingEnabled(boolean enabled) {
+    logD("setVsyncPacingEnabled: " + enabled);
+    synchronized (frameLock) {
+      vsyncPacingEnabled = enabled;
+    }
+  }
+
   /**
    * Register a callback to be invoked when a new video frame has been received. This version uses
    * the drawer of the EglRenderer that was passed in init.
@@ -451,11 +632,45 @@ public class EglRenderer implements VideoSink {
       @Nullable final RendererCommon.GlDrawer drawerParam, final boolean applyFpsReduction) {
     postToRenderThread(() -> {
       final RendererCommon.GlDrawer listenerDrawer = drawerParam == null ? drawer : drawerParam;
-      frameListeners.add(
-          new FrameListenerAndParams(listener, scale, listenerDrawer, applyFpsReduction));
+      frameListeners.add(new FrameListenerAndParams(
+          listener, /* byteBufferListener= */ null, scale, listenerDrawer, applyFpsReduction));
+    });
+  }
+
+  /**
+   * Same as addFrameListener(), but the callback receives the RGBA pixels of the frame in a buffer
+   * that is reused between frames instead of a new Bitmap. The pixels are read back asynchronously,
+   * so the callback is invoked on the render thread shortly after the frame has been rendered.
+   * A |scale| of 0 is not supported.
+   */
+  public void addByteBufferFrameListener(final ByteBufferFrameListener listener,
+      final float scale, @Nullable final RendererCommon.GlDrawer drawerParam,
+      final boolean applyFpsReduction) {
+    if (scale <= 0) {
+      throw new IllegalArgumentException("Invalid scale: " + scale);
+    }
+    postToRenderThread(() -> {
+      final RendererCommon.GlDrawer listenerDrawer = drawerParam == null ? drawer : drawerParam;
+      frameListeners.add(new FrameListenerAndParams(
+          /* listener= */ null, listener, scale, listenerDrawer, applyFpsReduction));
     });
   }
 
+  /**
+   * Gives a Bitmap received by a FrameListener back to the renderer once the application is done
+   * with it, so that it can be reused for later frames instead of allocating a new one. The Bitmap
+   * must not be used afterwards. Optional; Bitmaps that are not returned are garbage collected as
+   * usual. Can be called on any thread.
+   */
+  public void returnBitmap(Bitmap bitmap) {
+    synchronized (bitmapPool) {
+      if (bitmapPool.size() >= MAX_POOLED_BITMAPS) {
+        bitmapPool.pollFirst().recycle();
+      }
+      bitmapPool.addLast(bitmap);
+    }
+  }
+
   /**
    * Remove any pending callback that was added with addFrameListener. If the callback is not in
    * the queue, nothing happens. It is ensured that callback won't be called after this method
@@ -464,6 +679,15 @@ public class EglRenderer implements VideoSink {
    * @param runnable The callback to remove.
    */
   public void removeFrameListener(final FrameListener listener) {
+    removeFrameListenerInternal(listener);
+  }
+
+  /** Same as removeFrameListener(), for listeners added with addByteBufferFrameListener(). */
+  public void removeByteBufferFrameListener(final ByteBufferFrameListener listener) {
+    removeFrameListenerInternal(listener);
+  }
+
+  private void removeFrameListenerInternal(final Object listener) {
     final CountDownLatch latch = new CountDownLatch(1);
     synchronized (handlerLock) {
       if (renderThreadHandler == null) {
@@ -476,10 +700,15 @@ public class EglRenderer implements VideoSink {
         latch.countDown();
         final Iterator<FrameListenerAndParams> iter = frameListeners.iterator();
         while (iter.hasNext()) {
-          if (iter.next().listener == listener) {
+          if (iter.next().getListener() == listener) {
             iter.remove();
           }
         }
+        // Readbacks are only pending while there is a surface, see releaseEglSurface().
+        if (eglBase != null && eglBase.hasSurface()) {
+          makeCurrentOnRenderThread();
+          pixelReadback.cancel(listener);
+        }
       });
     }
     ThreadUtils.awaitUninterruptibly(latch);
@@ -490,6 +719,7 @@ public class EglRenderer implements VideoSink {
   public void onFrame(VideoFrame frame) {
     synchronized (statisticsLock) {
       ++framesReceived;
+      ++totalFramesReceived;
     }
     final boolean dropOldFrame;
     synchronized (handlerLock) {
@@ -504,12 +734,22 @@ public class EglRenderer implements VideoSink {
         }
         pendingFrame = frame;
         pendingFrame.retain();
-        renderThreadHandler.post(this ::renderFrameOnRenderThread);
+        if (sharedRenderThread != null) {
+          sharedRenderThread.scheduleRender(this);
+        } else if (vsyncPacingEnabled) {
+          if (!isVsyncRequested) {
+            isVsyncRequested = true;
+            renderThreadHandler.post(this ::requestVsyncOnRenderThread);
+          }
+        } else {
+          renderThreadHandler.post(this ::renderFrameOnRenderThread);
+        }
       }
     }
     if (dropOldFrame) {
       synchronized (statisticsLock) {
         ++framesDropped;
+        ++totalFramesDropped;
       }
     }
   }
@@ -526,6 +766,11 @@ public class EglRenderer implements VideoSink {
         renderThreadHandler.removeCallbacks(eglSurfaceCreationRunnable);
         renderThreadHandler.postAtFrontOfQueue(() -> {
           if (eglBase != null) {
+            if (eglBase.hasSurface()) {
+              // Frame listener readbacks need the context, which is detached below.
+              makeCurrentOnRenderThread();
+              pixelReadback.flush();
+            }
             eglBase.detachCurrent();
             eglBase.releaseSurface();
           }
@@ -537,6 +782,18 @@ public class EglRenderer implements VideoSink {
     completionCallback.run();
   }
 
+  // Runs |runnable| on the render thread and waits for it to finish. Visible for testing.
+  void invokeOnRenderThreadForTesting(Runnable runnable) {
+    final Handler handler;
+    synchronized (handlerLock) {
+      handler = renderThreadHandler;
+    }
+    if (handler == null) {
+      throw new IllegalStateException(name + "Not initialized");
+    }
+    ThreadUtils.invokeAtFrontUninterruptibly(handler, runnable);
+  }
+
   /**
    * Private helper function to post tasks safely.
    */
@@ -548,9 +805,30 @@ public class EglRenderer implements VideoSink {
     }
   }
 
+  // Makes the EGL context current when rendering on a shared render thread, where each renderer has
+  // a context of its own. Dedicated render threads keep their context current.
+  private void makeCurrentOnRenderThread() {
+    if (getSharedRenderThread() != null) {
+      eglBase.makeCurrent();
+    }
+  }
+
+  @Nullable
+  private SharedEglRenderThread getSharedRenderThread() {
+    synchronized (handlerLock) {
+      return sharedRenderThread;
+    }
+  }
+
+  private VideoFrameDrawer getFrameDrawerOnRenderThread() {
+    final SharedEglRenderThread sharedThread = getSharedRenderThread();
+    return (sharedThread == null) ? frameDrawer : sharedThread.getFrameDrawer();
+  }
+
   private void clearSurfaceOnRenderThread(float r, float g, float b, float a) {
     if (eglBase != null && eglBase.hasSurface()) {
       logD("clearSurface");
+      makeCurrentOnRenderThread();
       GLES20.glClearColor(r, g, b, a);
       GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
       eglBase.swapBuffers();
@@ -576,10 +854,45 @@ public class EglRenderer implements VideoSink {
     }
   }
 
+  private void requestVsyncOnRenderThread() {
+    if (choreographer == null) {
+      // Choreographer instances are per thread, so this has to run on the render thread.
+      choreographer = Choreographer.getInstance();
+    }
+    choreographer.postFrameCallback(vsyncCallback);
+  }
+
+  private void onVsyncOnRenderThread(long frameTimeNs) {
+    synchronized (frameLock) {
+      isVsyncRequested = false;
+    }
+    final long intervalNs = frameTimeNs - lastVsyncTimeNs;
+    // Callbacks are only requested when a frame is pending, so consecutive callbacks can be several
+    // vsyncs apart. The shortest interval is the refresh period.
+    if (lastVsyncTimeNs != 0 && intervalNs > 0
+        && (measuredVsyncPeriodNs == 0 || intervalNs < measuredVsyncPeriodNs)) {
+      measuredVsyncPeriodNs = intervalNs;
+    }
+    lastVsyncTimeNs = frameTimeNs;
+    renderFrameOnRenderThread(frameTimeNs);
+  }
+
+  private long getVsyncPeriodNs() {
+    return measuredVsyncPeriodNs != 0 ? measuredVsyncPeriodNs : DEFAULT_VSYNC_PERIOD_NS;
+  }
+
+  /**
+   * Renders and releases |pendingFrame|. Called by SharedEglRenderThread in shared mode.
+   */
+  void renderFrameOnRenderThread() {
+    renderFrameOnRenderThread(/* vsyncTimeNs= */ 0);
+  }
+
   /**
-   * Renders and releases |pendingFrame|.
+   * Same as above. |vsyncTimeNs| is the time of the vsync the frame is rendered for with vsync
+   * pacing, or 0 otherwise.
    */
-  private void renderFrameOnRenderThread() {
+  private void renderFrameOnRenderThread(long vsyncTimeNs) {
     // Fetch and render |pendingFrame|.
     final VideoFrame frame;
     synchronized (frameLock) {
@@ -594,6 +907,8 @@ public class EglRenderer implements VideoSink {
       frame.release();
       return;
     }
+    makeCurrentOnRenderThread();
+    final VideoFrameDrawer frameDrawer = getFrameDrawerOnRenderThread();
     // Check if fps reduction is active.
     final boolean shouldRenderFrame;
     synchronized (fpsReductionLock) {
@@ -605,13 +920,18 @@ public class EglRenderer implements VideoSink {
         shouldRenderFrame = true;
       } else {
         final long currentTimeNs = System.nanoTime();
-        if (currentTimeNs < nextFrameTimeNs) {
+        // With vsync pacing, whole vsyncs are skipped. Half a refresh period of tolerance keeps the
+        // render cadence locked to the display despite callback jitter.
+        final long frameTimeNs =
+            (vsyncTimeNs != 0) ? vsyncTimeNs + getVsyncPeriodNs() / 2 : currentTimeNs;
+        if (frameTimeNs < nextFrameTimeNs) {
           logD("Skipping frame rendering - fps reduction is active.");
           shouldRenderFrame = false;
         } else {
           nextFrameTimeNs += minRenderPeriodNs;
           // The time for the next frame should always be in the future.
-          nextFrameTimeNs = Math.max(nextFrameTimeNs, currentTimeNs);
+          nextFrameTimeNs =
+              Math.max(nextFrameTimeNs, (vsyncTimeNs != 0) ? vsyncTimeNs : currentTimeNs);
           shouldRenderFrame = true;
         }
       }
@@ -660,14 +980,22 @@ public class EglRenderer implements VideoSink {
         ++framesRendered;
         renderTimeNs += (currentTimeNs - startTimeNs);
         renderSwapBufferTimeNs += (currentTimeNs - swapBuffersStartTimeNs);
+        ++totalFramesRendered;
+        totalRenderTimeNs += (currentTimeNs - startTimeNs);
+        totalSwapBufferTimeNs += (currentTimeNs - swapBuffersStartTimeNs);
+        if (vsyncTimeNs != 0 && currentTimeNs - vsyncTimeNs > getVsyncPeriodNs()) {
+          ++framesLate;
+          ++totalFramesLate;
+        }
       }
     }
 
-    notifyCallbacks(frame, shouldRenderFrame);
+    notifyCallbacks(frame, frameDrawer, shouldRenderFrame);
     frame.release();
   }
 
-  private void notifyCallbacks(VideoFrame frame, boolean wasRendered) {
+  private void notifyCallbacks(
+      VideoFrame frame, VideoFrameDrawer frameDrawer, boolean wasRendered) {
     if (frameListeners.isEmpty())
       return;
 
@@ -677,6 +1005,7 @@ public class EglRenderer implements VideoSink {
     drawMatrix.preScale(1f, -1f); // We want the output to be upside down for Bitmap.
     drawMatrix.preTranslate(-0.5f, -0.5f);
 
+    boolean isReadbackStarted = false;
     Iterator<FrameListenerAndParams> it = frameListeners.iterator();
     while (it.hasNext()) {
       FrameListenerAndParams listenerAndParams = it.next();
@@ -689,7 +1018,9 @@ public class EglRenderer implements VideoSink {
       final int scaledHeight = (int) (listenerAndParams.scale * frame.getRotatedHeight());
 
       if (scaledWidth == 0 || scaledHeight == 0) {
-        listenerAndParams.listener.onFrame(null);
+        if (listenerAndParams.listener != null) {
+          listenerAndParams.listener.onFrame(null);
+        }
         continue;
       }
 
@@ -704,24 +1035,76 @@ public class EglRenderer implements VideoSink {
       frameDrawer.drawFrame(frame, listenerAndParams.drawer, drawMatrix, 0 /* viewportX */,
           0 /* viewportY */, scaledWidth, scaledHeight);
 
-      final ByteBuffer bitmapBuffer = ByteBuffer.allocateDirect(scaledWidth * scaledHeight * 4);
       GLES20.glViewport(0, 0, scaledWidth, scaledHeight);
-      GLES20.glReadPixels(
-          0, 0, scaledWidth, scaledHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, bitmapBuffer);
+      // The pixels are copied on the GPU and delivered from pollReadbacksOnRenderThread(), so that
+      // the render thread does not wait for the GPU to finish drawing.
+      pixelReadback.readPixels(listenerAndParams.getListener(), scaledWidth, scaledHeight,
+          (rgbaBuffer, width, height)
+              -> deliverPixels(listenerAndParams, rgbaBuffer, width, height));
+      isReadbackStarted = true;
 
       GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
       GlUtil.checkNoGLES2Error("EglRenderer.notifyCallbacks");
+    }
+    if (isReadbackStarted) {
+      schedulePollReadbacks();
+    }
+  }
+
+  private void schedulePollReadbacks() {
+    synchronized (handlerLock) {
+      if (renderThreadHandler != null) {
+        renderThreadHandler.removeCallbacks(pollReadbacksRunnable);
+        renderThreadHandler.postDelayed(pollReadbacksRunnable, READBACK_POLL_INTERVAL_MS);
+      }
+    }
+  }
+
+  private void pollReadbacksOnRenderThread() {
+    if (eglBase == null || !eglBase.hasSurface()) {
+      return;
+    }
+    makeCurrentOnRenderThread();
+    if (pixelReadback.poll()) {
+      schedulePollReadbacks();
+    }
+  }
 
-      final Bitmap bitmap = Bitmap.createBitmap(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
-      bitmap.copyPixelsFromBuffer(bitmapBuffer);
-      listenerAndParams.listener.onFrame(bitmap);
+  private void deliverPixels(
+      FrameListenerAndParams listenerAndParams, ByteBuffer rgbaBuffer, int width, int height) {
+    if (listenerAndParams.byteBufferListener != null) {
+      listenerAndParams.byteBufferListener.onFrame(rgbaBuffer, width, height);
+      return;
+    }
+    final Bitmap bitmap = obtainBitmap(width, height);
+    bitmap.copyPixelsFromBuffer(rgbaBuffer);
+    listenerAndParams.listener.onFrame(bitmap);
+  }
+
+  // Returns a pooled Bitmap of the given size, or a new one if there is none.
+  private Bitmap obtainBitmap(int width, int height) {
+    synchronized (bitmapPool) {
+      final Iterator<Bitmap> it = bitmapPool.iterator();
+      while (it.hasNext()) {
+        final Bitmap bitmap = it.next();
+        if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.isMutable()
+            && !bitmap.isRecycled() && bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+          it.remove();
+          return bitmap;
+        }
+      }
     }
+    return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
   }
 
   private String averageTimeAsString(long sumTimeNs, int count) {
     return (count <= 0) ? "NA" : TimeUnit.NANOSECONDS.toMicros(sumTimeNs / count) + " us";
   }
 
+  private static double averageTimeMs(long sumTimeNs, long count) {
+    return (count <= 0) ? 0 : sumTimeNs / (double) count / 1e6;
+  }
+
   private void logStatistics() {
     final DecimalFormat fpsFormat = new DecimalFormat("#.0");
     final long currentTimeNs = System.nanoTime();
@@ -738,7 +1121,8 @@ public class EglRenderer implements VideoSink {
           + " Render fps: " + fpsFormat.format(renderFps) + "."
           + " Average render time: " + averageTimeAsString(renderTimeNs, framesRendered) + "."
           + " Average swapBuffer time: "
-          + averageTimeAsString(renderSwapBufferTimeNs, framesRendered) + ".");
+          + averageTimeAsString(renderSwapBufferTimeNs, framesRendered) + "."
+          + " Late: " + framesLate + ".");
       resetStatistics(currentTimeNs);
     }
   }
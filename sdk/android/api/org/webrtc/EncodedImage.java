@@ -10,14 +10,19 @@
 
 package org.webrtc;
 
+import android.support.annotation.Nullable;
 import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
 
 /**
  * An encoded frame from a video stream. Used as an input for decoders and as an output for
  * encoders.
+ *
+ * <p>The buffer may be owned by a pool of the producer. Consumers that keep a reference to the
+ * buffer after the callback that delivered the image returns must call retain(), and release()
+ * once they are done with it.
  */
-public class EncodedImage {
+public class EncodedImage implements RefCounted {
   // Must be kept in sync with common_types.h FrameType.
   public enum FrameType {
     EmptyFrame(0),
@@ -54,10 +59,18 @@ public class EncodedImage {
   public final int rotation;
   public final boolean completeFrame;
   public final Integer qp;
+  private final RefCountDelegate refCountDelegate;
 
   @CalledByNative
   private EncodedImage(ByteBuffer buffer, int encodedWidth, int encodedHeight, long captureTimeNs,
       FrameType frameType, int rotation, boolean completeFrame, Integer qp) {
+    this(buffer, /* releaseCallback= */ null, encodedWidth, encodedHeight, captureTimeNs,
+        frameType, rotation, completeFrame, qp);
+  }
+
+  private EncodedImage(ByteBuffer buffer, @Nullable Runnable releaseCallback, int encodedWidth,
+      int encodedHeight, long captureTimeNs, FrameType frameType, int rotation,
+      boolean completeFrame, Integer qp) {
     this.buffer = buffer;
     this.encodedWidth = encodedWidth;
     this.encodedHeight = encodedHeight;
@@ -67,6 +80,17 @@ public class EncodedImage {
     this.rotation = rotation;
     this.completeFrame = completeFrame;
     this.qp = qp;
+    this.refCountDelegate = new RefCountDelegate(releaseCallback);
+  }
+
+  @Override
+  public void retain() {
+    refCountDelegate.retain();
+  }
+
+  @Override
+  public void release() {
+    refCountDelegate.release();
   }
 
   public static Builder builder() {
@@ -75,6 +99,7 @@ public class EncodedImage {
 
   public static class Builder {
     private ByteBuffer buffer;
+    private @Nullable Runnable releaseCallback;
     private int encodedWidth;
     private int encodedHeight;
     private long captureTimeNs;
@@ -86,7 +111,16 @@ public class EncodedImage {
     private Builder() {}
 
     public Builder setBuffer(ByteBuffer buffer) {
+      return setBuffer(buffer, /* releaseCallback= */ null);
+    }
+
+    /**
+     * Sets the buffer together with a callback that is run once the ref count of the image
+     * reaches zero, e.g. to return the buffer to a pool.
+     */
+    public Builder setBuffer(ByteBuffer buffer, @Nullable Runnable releaseCallback) {
       this.buffer = buffer;
+      this.releaseCallback = releaseCallback;
       return this;
     }
 
@@ -132,8 +166,8 @@ public class EncodedImage {
     }
 
     public EncodedImage createEncodedImage() {
-      return new EncodedImage(buffer, encodedWidth, encodedHeight, captureTimeNs, frameType,
-          rotation, completeFrame, qp);
+      return new EncodedImage(buffer, releaseCallback, encodedWidth, encodedHeight, captureTimeNs,
+          frameType, rotation, completeFrame, qp);
     }
   }
 }
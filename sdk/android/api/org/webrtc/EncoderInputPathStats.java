@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+/**
+ * Counts how byte buffer frames are written into the input buffers of MediaCodec encoders. NV12
+ * and NV21 frames are written in a single pass, all other buffers are converted through an
+ * intermediate I420 buffer. Given to HardwareVideoEncoderFactory through its options, it counts
+ * the frames of every encoder the factory creates. Frames encoded in surface mode are not
+ * counted. This class is thread safe.
+ */
+public class EncoderInputPathStats {
+  private long nv12DirectFrameCount;
+  private long nv21DirectFrameCount;
+  private long i420ConversionFrameCount;
+
+  /** Returns the number of NV12 frames copied into the codec input buffer without conversion. */
+  public synchronized long getNV12DirectFrameCount() {
+    return nv12DirectFrameCount;
+  }
+
+  /** Returns the number of NV21 frames written into the codec input buffer in a single pass. */
+  public synchronized long getNV21DirectFrameCount() {
+    return nv21DirectFrameCount;
+  }
+
+  /** Returns the number of frames that were converted to I420 before being written. */
+  public synchronized long getI420ConversionFrameCount() {
+    return i420ConversionFrameCount;
+  }
+
+  public synchronized void reset() {
+    nv12DirectFrameCount = 0;
+    nv21DirectFrameCount = 0;
+    i420ConversionFrameCount = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "NV12 direct: " + nv12DirectFrameCount + ", NV21 direct: " + nv21DirectFrameCount
+        + ", I420 conversion: " + i420ConversionFrameCount;
+  }
+
+  synchronized void addNV12DirectFrame() {
+    ++nv12DirectFrameCount;
+  }
+
+  synchronized void addNV21DirectFrame() {
+    ++nv21DirectFrameCount;
+  }
+
+  synchronized void addI420ConversionFrame() {
+    ++i420ConversionFrameCount;
+  }
+}
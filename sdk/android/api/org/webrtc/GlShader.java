@@ -10,8 +10,10 @@
 
 package org.webrtc;
 
+import android.annotation.TargetApi;
 import android.opengl.GLES20;
-
+import android.opengl.GLES30;
+import android.support.annotation.Nullable;
 import java.nio.FloatBuffer;
 
 // Helper class for handling OpenGL shaders and shader programs.
@@ -36,17 +38,24 @@ public class GlShader {
     return shader;
   }
 
-  private int program;
-
-  public GlShader(String vertexSource, String fragmentSource) {
+  /**
+   * Compiles and links a program from source. If |retrievableBinary| is true, which requires
+   * OpenGL ES 3, the driver is asked to keep the program binary for glGetProgramBinary().
+   */
+  @TargetApi(18)
+  static int createProgram(String vertexSource, String fragmentSource, boolean retrievableBinary) {
     final int vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, vertexSource);
     final int fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-    program = GLES20.glCreateProgram();
+    final int program = GLES20.glCreateProgram();
     if (program == 0) {
       throw new RuntimeException("glCreateProgram() failed. GLES20 error: " + GLES20.glGetError());
     }
     GLES20.glAttachShader(program, vertexShader);
     GLES20.glAttachShader(program, fragmentShader);
+    if (retrievableBinary) {
+      GLES30.glProgramParameteri(
+          program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+    }
     GLES20.glLinkProgram(program);
     int[] linkStatus = new int[] {GLES20.GL_FALSE};
     GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
@@ -64,6 +73,21 @@ public class GlShader {
     GLES20.glDeleteShader(vertexShader);
     GLES20.glDeleteShader(fragmentShader);
     GlUtil.checkNoGLES2Error("Creating GlShader");
+    return program;
+  }
+
+  private int program;
+  // Run instead of deleting the program if the program is owned by GlShaderCache.
+  @Nullable private final Runnable releaseCallback;
+
+  public GlShader(String vertexSource, String fragmentSource) {
+    this(createProgram(vertexSource, fragmentSource, /* retrievableBinary= */ false),
+        /* releaseCallback= */ null);
+  }
+
+  GlShader(int program, @Nullable Runnable releaseCallback) {
+    this.program = program;
+    this.releaseCallback = releaseCallback;
   }
 
   public int getAttribLocation(String label) {
@@ -122,7 +146,11 @@ public class GlShader {
     Logging.d(TAG, "Deleting shader.");
     // Delete program, automatically detaching any shaders from it.
     if (program != -1) {
-      GLES20.glDeleteProgram(program);
+      if (releaseCallback != null) {
+        releaseCallback.run();
+      } else {
+        GLES20.glDeleteProgram(program);
+      }
       program = -1;
     }
   }
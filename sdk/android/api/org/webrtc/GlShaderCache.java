@@ -0,0 +1,499 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.annotation.TargetApi;
+import android.opengl.EGL14;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process wide cache of the shader programs used by GlGenericDrawer, and thus by GlRectDrawer and
+ * YuvConverter, so that new drawers do not compile and link their shaders from source.
+ *
+ * <p>Drawers on the same thread whose EGL contexts were created by EglBase in the same share group
+ * use the same linked program while any of them holds it. In addition, on OpenGL ES 3 the binary of
+ * every linked program is kept and loaded with glProgramBinary() the next time the same shaders
+ * are needed. The binaries can optionally be persisted to a directory, in which case later
+ * processes reuse them as long as the GL driver is unchanged. Persisted binaries are written on a
+ * background thread. This class is thread safe; programs are compiled and linked without holding
+ * its lock, so drawers on different threads do not wait for each other.
+ */
+public class GlShaderCache {
+  private static final String TAG = "GlShaderCache";
+
+  // Increase when the file format changes, so that old files are ignored.
+  private static final int FILE_FORMAT_VERSION = 1;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String FILE_SUFFIX = ".glbin";
+
+  /** Snapshot of the cache counters. */
+  public static class Stats {
+    /** Number of programs served by a program already linked in the same share group. */
+    public final long linkedProgramHits;
+    /** Number of programs loaded from a binary kept in memory. */
+    public final long binaryHits;
+    /** Number of programs loaded from a persisted binary. */
+    public final long persistedBinaryHits;
+    /** Number of programs compiled and linked from source. */
+    public final long compileCount;
+
+    Stats(long linkedProgramHits, long binaryHits, long persistedBinaryHits, long compileCount) {
+      this.linkedProgramHits = linkedProgramHits;
+      this.binaryHits = binaryHits;
+      this.persistedBinaryHits = persistedBinaryHits;
+      this.compileCount = compileCount;
+    }
+
+    @Override
+    public String toString() {
+      return "linked program hits: " + linkedProgramHits + ", binary hits: " + binaryHits
+          + ", persisted binary hits: " + persistedBinaryHits + ", compiled: " + compileCount;
+    }
+  }
+
+  // Contexts created by EglBase that share their objects with each other.
+  private static class ShareGroup {
+    int contextCount;
+  }
+
+  // A program linked in one share group, for use on one thread. Programs are not shared between
+  // threads, since uniform values are part of the program state.
+  private static class ProgramKey {
+    final ShareGroup shareGroup;
+    final Thread thread;
+    final String source;
+
+    ProgramKey(ShareGroup shareGroup, Thread thread, String source) {
+      this.shareGroup = shareGroup;
+      this.thread = thread;
+      this.source = source;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof ProgramKey)) {
+        return false;
+      }
+      final ProgramKey key = (ProgramKey) other;
+      return shareGroup == key.shareGroup && thread == key.thread && source.equals(key.source);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(new Object[] {shareGroup, thread, source});
+    }
+  }
+
+  private static class SharedProgram {
+    final int program;
+    int refCount = 1;
+
+    SharedProgram(int program) {
+      this.program = program;
+    }
+  }
+
+  private static class ProgramBinary {
+    final int format;
+    final byte[] data;
+
+    ProgramBinary(int format, byte[] data) {
+      this.format = format;
+      this.data = data;
+    }
+  }
+
+  // The variables below are synchronized on |lock|. It is only held for lookups and updates, never
+  // while compiling, linking or accessing files.
+  private static final Object lock = new Object();
+  // Share group of each context created by EglBase, keyed by native context handle.
+  private static final Map<Long, ShareGroup> shareGroups = new HashMap<>();
+  private static final Map<ProgramKey, SharedProgram> linkedPrograms = new HashMap<>();
+  // Program binaries keyed by shader source.
+  private static final Map<String, ProgramBinary> binaries = new HashMap<>();
+  @Nullable private static File persistenceDirectory;
+  // Writes and deletes the persisted binaries in order. Created on first use.
+  @Nullable private static ExecutorService persistenceExecutor;
+
+  private static long linkedProgramHits;
+  private static long binaryHits;
+  private static long persistedBinaryHits;
+  private static long compileCount;
+
+  /**
+   * Sets the directory program binaries are persisted to, e.g. a subdirectory of
+   * Context.getCacheDir(). Null, the default, disables persistence.
+   */
+  public static void setPersistenceDirectory(@Nullable File directory) {
+    synchronized (lock) {
+      persistenceDirectory = directory;
+    }
+  }
+
+  /**
+   * Drops the program binaries, including the persisted ones. Programs that are currently linked
+   * are not affected. Blocks until the persisted binaries are deleted.
+   */
+  public static void invalidate() {
+    final File directory;
+    synchronized (lock) {
+      binaries.clear();
+      directory = persistenceDirectory;
+    }
+    if (directory == null) {
+      return;
+    }
+    // Queued behind the pending writes, so that none of them recreates a file afterwards.
+    runOnPersistenceThreadAndWait(() -> deleteFiles(directory));
+  }
+
+  public static Stats getStats() {
+    synchronized (lock) {
+      return new Stats(linkedProgramHits, binaryHits, persistedBinaryHits, compileCount);
+    }
+  }
+
+  /** Called by EglBase when a context is created, with 0 for |sharedContext| if there is none. */
+  static void onContextCreated(long context, long sharedContext) {
+    synchronized (lock) {
+      ShareGroup shareGroup = shareGroups.get(sharedContext);
+      if (shareGroup == null) {
+        shareGroup = new ShareGroup();
+      }
+      ++shareGroup.contextCount;
+      shareGroups.put(context, shareGroup);
+    }
+  }
+
+  /** Called by EglBase before a context is destroyed. */
+  static void onContextReleased(long context) {
+    synchronized (lock) {
+      final ShareGroup shareGroup = shareGroups.remove(context);
+      if (shareGroup == null || --shareGroup.contextCount > 0) {
+        return;
+      }
+      // The programs are deleted together with the last context of the share group.
+      final Iterator<ProgramKey> it = linkedPrograms.keySet().iterator();
+      while (it.hasNext()) {
+        if (it.next().shareGroup == shareGroup) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a shader program for the given sources in the current EGL context. Releasing the
+   * returned GlShader deletes the program once no other drawer uses it.
+   */
+  static GlShader acquire(String vertexSource, String fragmentSource) {
+    final String source = vertexSource + '\0' + fragmentSource;
+    final ProgramKey key;
+    final ProgramBinary binary;
+    final File directory;
+    synchronized (lock) {
+      final ShareGroup shareGroup = getCurrentShareGroup();
+      key = (shareGroup == null)
+          ? null
+          : new ProgramKey(shareGroup, Thread.currentThread(), source);
+      final SharedProgram sharedProgram = (key == null) ? null : linkedPrograms.get(key);
+      if (sharedProgram != null) {
+        ++sharedProgram.refCount;
+        ++linkedProgramHits;
+        return new GlShader(sharedProgram.program, () -> releaseProgram(key));
+      }
+      binary = binaries.get(source);
+      directory = persistenceDirectory;
+    }
+
+    final int program = loadProgram(source, vertexSource, fragmentSource, binary, directory);
+    if (key == null) {
+      // Contexts not created by EglBase may not share objects with any other context.
+      return new GlShader(program, /* releaseCallback= */ null);
+    }
+    synchronized (lock) {
+      // |key| contains the current thread, so no other thread has linked a program for it while
+      // the lock was not held.
+      linkedPrograms.put(key, new SharedProgram(program));
+    }
+    return new GlShader(program, () -> releaseProgram(key));
+  }
+
+  private static void releaseProgram(ProgramKey key) {
+    synchronized (lock) {
+      final SharedProgram sharedProgram = linkedPrograms.get(key);
+      if (sharedProgram == null) {
+        // The share group is gone, and with it the program.
+        return;
+      }
+      if (--sharedProgram.refCount == 0) {
+        linkedPrograms.remove(key);
+        GLES20.glDeleteProgram(sharedProgram.program);
+      }
+    }
+  }
+
+  // Blocks until the pending writes of persisted binaries are done. Visible for testing.
+  static void waitForPersistence() {
+    runOnPersistenceThreadAndWait(() -> {});
+  }
+
+  private static void runOnPersistenceThreadAndWait(Runnable task) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    getPersistenceExecutor().execute(() -> {
+      task.run();
+      latch.countDown();
+    });
+    ThreadUtils.awaitUninterruptibly(latch);
+  }
+
+  private static ExecutorService getPersistenceExecutor() {
+    synchronized (lock) {
+      if (persistenceExecutor == null) {
+        persistenceExecutor = Executors.newSingleThreadExecutor();
+      }
+      return persistenceExecutor;
+    }
+  }
+
+  // Must be called with |lock| held.
+  @Nullable
+  @TargetApi(18)
+  private static ShareGroup getCurrentShareGroup() {
+    if (shareGroups.isEmpty() || Build.VERSION.SDK_INT < 18) {
+      return null;
+    }
+    final long context =
+        new EglBase14Impl.Context(EGL14.eglGetCurrentContext()).getNativeEglContext();
+    return shareGroups.get(context);
+  }
+
+  // Creates a program from |cachedBinary|, or from the binary persisted in |directory|, if
+  // possible, or from source otherwise. Called without holding |lock|.
+  private static int loadProgram(String source, String vertexSource, String fragmentSource,
+      @Nullable ProgramBinary cachedBinary, @Nullable File directory) {
+    final boolean binarySupported = isProgramBinarySupported();
+    if (binarySupported) {
+      ProgramBinary binary = cachedBinary;
+      boolean isPersisted = false;
+      if (binary == null && directory != null) {
+        binary = readFile(directory, source);
+        isPersisted = binary != null;
+      }
+      if (binary != null) {
+        final int program = createProgramFromBinary(binary);
+        synchronized (lock) {
+          if (program == 0) {
+            binaries.remove(source);
+          } else {
+            binaries.put(source, binary);
+            if (isPersisted) {
+              ++persistedBinaryHits;
+            } else {
+              ++binaryHits;
+            }
+          }
+        }
+        if (program != 0) {
+          return program;
+        }
+        Logging.w(TAG, "Program binary rejected by the driver, compiling from source.");
+      }
+    }
+
+    final int program = GlShader.createProgram(
+        vertexSource, fragmentSource, /* retrievableBinary= */ binarySupported);
+    final ProgramBinary binary = binarySupported ? getProgramBinary(program) : null;
+    synchronized (lock) {
+      ++compileCount;
+      if (binary != null) {
+        binaries.put(source, binary);
+      }
+    }
+    if (binary != null && directory != null) {
+      // The driver version is queried here, since the persistence thread has no GL context.
+      final String driverVersion = getDriverVersion();
+      getPersistenceExecutor().execute(() -> writeFile(directory, source, driverVersion, binary));
+    }
+    return program;
+  }
+
+  private static boolean isProgramBinarySupported() {
+    if (Build.VERSION.SDK_INT < 18 || GlUtil.getGlesMajorVersion() < 3) {
+      return false;
+    }
+    final int[] formatCount = new int[1];
+    GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formatCount, 0);
+    return formatCount[0] > 0;
+  }
+
+  // Returns the new program, or 0 if the binary could not be loaded.
+  @TargetApi(18)
+  private static int createProgramFromBinary(ProgramBinary binary) {
+    final int program = GLES20.glCreateProgram();
+    if (program == 0) {
+      throw new RuntimeException("glCreateProgram() failed. GLES20 error: " + GLES20.glGetError());
+    }
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(binary.data.length);
+    buffer.put(binary.data);
+    buffer.rewind();
+    GLES30.glProgramBinary(program, binary.format, buffer, binary.data.length);
+    final int[] linkStatus = new int[] {GLES20.GL_FALSE};
+    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+    if (linkStatus[0] != GLES20.GL_TRUE) {
+      GLES20.glDeleteProgram(program);
+      // Clear the error raised for an invalid binary.
+      GLES20.glGetError();
+      return 0;
+    }
+    GlUtil.checkNoGLES2Error("createProgramFromBinary");
+    return program;
+  }
+
+  @Nullable
+  @TargetApi(18)
+  private static ProgramBinary getProgramBinary(int program) {
+    final int[] length = new int[1];
+    GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+    if (length[0] <= 0) {
+      return null;
+    }
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]);
+    final int[] format = new int[1];
+    GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, buffer);
+    GlUtil.checkNoGLES2Error("getProgramBinary");
+    final byte[] data = new byte[length[0]];
+    buffer.get(data);
+    return new ProgramBinary(format[0], data);
+  }
+
+  // Binaries are only valid for the driver that produced them.
+  private static String getDriverVersion() {
+    return GLES20.glGetString(GLES20.GL_RENDERER) + " " + GLES20.glGetString(GLES20.GL_VERSION);
+  }
+
+  private static File getFile(File directory, String source) {
+    // The file name is only a hint, the source is stored in the file and compared on load.
+    return new File(directory,
+        Integer.toHexString(source.hashCode()) + "_" + source.length() + FILE_SUFFIX);
+  }
+
+  @Nullable
+  private static ProgramBinary readFile(File directory, String source) {
+    final File file = getFile(directory, source);
+    if (!file.exists()) {
+      return null;
+    }
+    DataInputStream stream = null;
+    try {
+      stream = new DataInputStream(new FileInputStream(file));
+      if (stream.readInt() != FILE_FORMAT_VERSION || !getDriverVersion().equals(stream.readUTF())
+          || !source.equals(new String(readBytes(stream), UTF_8))) {
+        Logging.d(TAG, "Persisted program binary is outdated: " + file);
+        return null;
+      }
+      final int format = stream.readInt();
+      return new ProgramBinary(format, readBytes(stream));
+    } catch (IOException e) {
+      Logging.e(TAG, "Failed to read " + file, e);
+      return null;
+    } finally {
+      closeQuietly(stream);
+    }
+  }
+
+  // Runs on the persistence thread.
+  private static void writeFile(
+      File directory, String source, String driverVersion, ProgramBinary binary) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Logging.e(TAG, "Failed to create " + directory);
+      return;
+    }
+    final File file = getFile(directory, source);
+    // Write to a temporary file first so that a crash never leaves a truncated file behind.
+    final File tempFile = new File(file.getPath() + ".tmp");
+    DataOutputStream stream = null;
+    try {
+      stream = new DataOutputStream(new FileOutputStream(tempFile));
+      stream.writeInt(FILE_FORMAT_VERSION);
+      stream.writeUTF(driverVersion);
+      writeBytes(stream, source.getBytes(UTF_8));
+      stream.writeInt(binary.format);
+      writeBytes(stream, binary.data);
+    } catch (IOException e) {
+      Logging.e(TAG, "Failed to write " + tempFile, e);
+      return;
+    } finally {
+      closeQuietly(stream);
+    }
+    if (!tempFile.renameTo(file)) {
+      Logging.e(TAG, "Failed to rename " + tempFile + " to " + file);
+    }
+  }
+
+  // Runs on the persistence thread.
+  private static void deleteFiles(File directory) {
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(FILE_SUFFIX) && !file.delete()) {
+        Logging.w(TAG, "Failed to delete " + file);
+      }
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream stream) throws IOException {
+    final int length = stream.readInt();
+    if (length < 0) {
+      throw new IOException("Invalid length: " + length);
+    }
+    final byte[] data = new byte[length];
+    stream.readFully(data);
+    return data;
+  }
+
+  private static void writeBytes(DataOutputStream stream, byte[] data) throws IOException {
+    stream.writeInt(data.length);
+    stream.write(data);
+  }
+
+  private static void closeQuietly(@Nullable Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      Logging.e(TAG, "Failed to close stream", e);
+    }
+  }
+}
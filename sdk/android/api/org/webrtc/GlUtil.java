@@ -30,6 +30,20 @@ public class GlUtil {
     }
   }
 
+  /**
+   * Returns the major OpenGL ES version of the context bound on the current thread, e.g. 2 or 3.
+   * Returns 0 if the version string could not be parsed.
+   */
+  public static int getGlesMajorVersion() {
+    // The version string has the form "OpenGL ES <major>.<minor> <vendor-specific information>".
+    final String version = GLES20.glGetString(GLES20.GL_VERSION);
+    final String prefix = "OpenGL ES ";
+    if (version == null || !version.startsWith(prefix) || version.length() <= prefix.length()) {
+      return 0;
+    }
+    return Math.max(0, Character.digit(version.charAt(prefix.length()), 10 /* radix */));
+  }
+
   public static FloatBuffer createFloatBuffer(float[] coords) {
     // Allocate a direct ByteBuffer, using 4 bytes per float, and copy coords into it.
     ByteBuffer bb = ByteBuffer.allocateDirect(coords.length * 4);
@@ -59,8 +59,24 @@ public class HardwareVideoDecoderFactory extends MediaCodecVideoDecoderFactory {
    */
   public HardwareVideoDecoderFactory(@Nullable EglBase.Context sharedContext,
       @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate) {
+    this(sharedContext, codecAllowedPredicate, HardwareVideoDecoderOptions.getDefault());
+  }
+
+  /**
+   * Creates a HardwareVideoDecoderFactory that supports surface texture rendering.
+   *
+   * @param sharedContext The textures generated will be accessible from this context. May be null,
+   *                      this disables texture support.
+   * @param codecAllowedPredicate predicate to filter codecs. It is combined with the default
+   *                              predicate that only allows hardware codecs.
+   * @param options tuning parameters applied to every decoder created by this factory.
+   */
+  public HardwareVideoDecoderFactory(@Nullable EglBase.Context sharedContext,
+      @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate,
+      HardwareVideoDecoderOptions options) {
     super(sharedContext,
         (codecAllowedPredicate == null ? defaultAllowedPredicate
-                                       : codecAllowedPredicate.and(defaultAllowedPredicate)));
+                                       : codecAllowedPredicate.and(defaultAllowedPredicate)),
+        options);
   }
 }
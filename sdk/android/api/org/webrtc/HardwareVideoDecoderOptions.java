@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Optional tuning parameters for MediaCodec based video decoders, passed to
+ * HardwareVideoDecoderFactory. Create instances with builder().
+ */
+public class HardwareVideoDecoderOptions {
+  private final int zeroCopyOutputFrames;
+  private final boolean asyncCallbackModeEnabled;
+  @Nullable private final MediaCodecWarmPool warmPool;
+  private final boolean lowLatencyModeEnabled;
+  @Nullable private final CodecLatencyHistogram latencyHistogram;
+  @Nullable private final DecoderResolutionChangeStats resolutionChangeStats;
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns the options used when none are given explicitly. */
+  public static HardwareVideoDecoderOptions getDefault() {
+    return builder().createOptions();
+  }
+
+  public static class Builder {
+    private int zeroCopyOutputFrames;
+    private boolean asyncCallbackModeEnabled;
+    @Nullable private MediaCodecWarmPool warmPool;
+    private boolean lowLatencyModeEnabled;
+    @Nullable private CodecLatencyHistogram latencyHistogram;
+    @Nullable private DecoderResolutionChangeStats resolutionChangeStats;
+
+    private Builder() {}
+
+    /**
+     * Only used in byte buffer mode, i.e. when no shared EGL context is given. When set to a
+     * positive value, decoded NV12 frames are delivered as NV12Buffers that wrap the MediaCodec
+     * output buffer directly instead of being copied into a new I420 buffer. The codec output
+     * buffer is returned to the codec when the last reference to the frame is released.
+     *
+     * <p>|maxFramesInFlight| bounds how many such frames may be held by the application at the
+     * same time. Frames decoded while the limit is reached are copied as before, so that the codec
+     * never runs out of output buffers. The default of zero disables zero-copy output.
+     *
+     * <p>If such frames are still held when the decoder is released, the codec is stopped and
+     * released once the last of them is released.
+     */
+    public Builder setZeroCopyOutputFrames(int maxFramesInFlight) {
+      if (maxFramesInFlight < 0) {
+        throw new IllegalArgumentException("Invalid number of frames: " + maxFramesInFlight);
+      }
+      this.zeroCopyOutputFrames = maxFramesInFlight;
+      return this;
+    }
+
+    /**
+     * When enabled, decoders run MediaCodec in asynchronous mode on API level 21 and higher.
+     * decode() no longer blocks waiting for a codec input buffer; frames are queued and fed to the
+     * codec as input buffers become available. Decoded frames are delivered from a thread shared
+     * by all codecs instead of a polling output thread per decoder. Disabled by default.
+     */
+    public Builder setAsyncCallbackModeEnabled(boolean enabled) {
+      this.asyncCallbackModeEnabled = enabled;
+      return this;
+    }
+
+    /**
+     * Pool of warm codecs that decoders lease from when they are initialized. The factory starts
+     * warming up the decoders configured in the pool when it is created. The pool is owned by the
+     * application, which must release it once no longer needed. Null by default.
+     */
+    public Builder setWarmPool(@Nullable MediaCodecWarmPool warmPool) {
+      this.warmPool = warmPool;
+      return this;
+    }
+
+    /**
+     * When enabled, decoders are configured to minimize the time frames spend inside the codec:
+     * realtime priority from API level 23, and low latency decoding from API level 30 on codecs
+     * that advertise the low latency feature. Disabled by default.
+     */
+    public Builder setLowLatencyModeEnabled(boolean enabled) {
+      this.lowLatencyModeEnabled = enabled;
+      return this;
+    }
+
+    /**
+     * Histogram that collects the time each frame spends inside the codec, from input to output,
+     * for every decoder created by the factory. Null by default, which disables the measurement.
+     */
+    public Builder setLatencyHistogram(@Nullable CodecLatencyHistogram latencyHistogram) {
+      this.latencyHistogram = latencyHistogram;
+      return this;
+    }
+
+    /**
+     * Counts the resolution changes of every decoder created by the factory, and how long
+     * decoding stalled for those that reinitialized the codec. Null by default.
+     */
+    public Builder setResolutionChangeStats(
+        @Nullable DecoderResolutionChangeStats resolutionChangeStats) {
+      this.resolutionChangeStats = resolutionChangeStats;
+      return this;
+    }
+
+    public HardwareVideoDecoderOptions createOptions() {
+      return new HardwareVideoDecoderOptions(zeroCopyOutputFrames, asyncCallbackModeEnabled,
+          warmPool, lowLatencyModeEnabled, latencyHistogram, resolutionChangeStats);
+    }
+  }
+
+  private HardwareVideoDecoderOptions(int zeroCopyOutputFrames, boolean asyncCallbackModeEnabled,
+      @Nullable MediaCodecWarmPool warmPool, boolean lowLatencyModeEnabled,
+      @Nullable CodecLatencyHistogram latencyHistogram,
+      @Nullable DecoderResolutionChangeStats resolutionChangeStats) {
+    this.zeroCopyOutputFrames = zeroCopyOutputFrames;
+    this.asyncCallbackModeEnabled = asyncCallbackModeEnabled;
+    this.warmPool = warmPool;
+    this.lowLatencyModeEnabled = lowLatencyModeEnabled;
+    this.latencyHistogram = latencyHistogram;
+    this.resolutionChangeStats = resolutionChangeStats;
+  }
+
+  int getZeroCopyOutputFrames() {
+    return zeroCopyOutputFrames;
+  }
+
+  boolean isAsyncCallbackModeEnabled() {
+    return asyncCallbackModeEnabled;
+  }
+
+  @Nullable
+  MediaCodecWarmPool getWarmPool() {
+    return warmPool;
+  }
+
+  boolean isLowLatencyModeEnabled() {
+    return lowLatencyModeEnabled;
+  }
+
+  @Nullable
+  CodecLatencyHistogram getLatencyHistogram() {
+    return latencyHistogram;
+  }
+
+  @Nullable
+  DecoderResolutionChangeStats getResolutionChangeStats() {
+    return resolutionChangeStats;
+  }
+}
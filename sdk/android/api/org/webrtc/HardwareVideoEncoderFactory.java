@@ -15,13 +15,13 @@ import static org.webrtc.MediaCodecUtils.INTEL_PREFIX;
 import static org.webrtc.MediaCodecUtils.QCOM_PREFIX;
 
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.os.Build;
 import android.support.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import org.webrtc.MediaCodecCapabilityCache.CodecEntry;
 
 /** Factory for android hardware video encoders. */
 @SuppressWarnings("deprecation") // API 16 requires the use of deprecated methods.
@@ -43,6 +43,7 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
   private final boolean enableIntelVp8Encoder;
   private final boolean enableH264HighProfile;
   @Nullable private final Predicate<MediaCodecInfo> codecAllowedPredicate;
+  private final HardwareVideoEncoderOptions options;
 
   /**
    * Creates a HardwareVideoEncoderFactory that supports surface texture encoding.
@@ -70,6 +71,24 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
    */
   public HardwareVideoEncoderFactory(EglBase.Context sharedContext, boolean enableIntelVp8Encoder,
       boolean enableH264HighProfile, @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate) {
+    this(sharedContext, enableIntelVp8Encoder, enableH264HighProfile, codecAllowedPredicate,
+        HardwareVideoEncoderOptions.getDefault());
+  }
+
+  /**
+   * Creates a HardwareVideoEncoderFactory that supports surface texture encoding.
+   *
+   * @param sharedContext The textures generated will be accessible from this context. May be null,
+   *                      this disables texture support.
+   * @param enableIntelVp8Encoder true if Intel's VP8 encoder enabled.
+   * @param enableH264HighProfile true if H264 High Profile enabled.
+   * @param codecAllowedPredicate optional predicate to filter codecs. All codecs are allowed
+   *                              when predicate is not provided.
+   * @param options tuning parameters applied to every encoder created by this factory.
+   */
+  public HardwareVideoEncoderFactory(EglBase.Context sharedContext, boolean enableIntelVp8Encoder,
+      boolean enableH264HighProfile, @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate,
+      HardwareVideoEncoderOptions options) {
     // Texture mode requires EglBase14.
     if (sharedContext instanceof EglBase14.Context) {
       this.sharedContext = (EglBase14.Context) sharedContext;
@@ -80,6 +99,12 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     this.enableIntelVp8Encoder = enableIntelVp8Encoder;
     this.enableH264HighProfile = enableH264HighProfile;
     this.codecAllowedPredicate = codecAllowedPredicate;
+    this.options = options;
+
+    final MediaCodecWarmPool warmPool = options.getWarmPool();
+    if (warmPool != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      warmPool.warmUp(/* isEncoder= */ true, this::selectWarmCodec);
+    }
   }
 
   @Deprecated
@@ -96,18 +121,16 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     }
 
     VideoCodecType type = VideoCodecType.valueOf(input.name);
-    MediaCodecInfo info = findCodecForType(type);
+    CodecEntry codec = findCodecForType(type);
 
-    if (info == null) {
+    if (codec == null) {
       return null;
     }
 
-    String codecName = info.getName();
-    String mime = type.mimeType();
-    Integer surfaceColorFormat = MediaCodecUtils.selectColorFormat(
-        MediaCodecUtils.TEXTURE_COLOR_FORMATS, info.getCapabilitiesForType(mime));
-    Integer yuvColorFormat = MediaCodecUtils.selectColorFormat(
-        MediaCodecUtils.ENCODER_COLOR_FORMATS, info.getCapabilitiesForType(mime));
+    String codecName = codec.name;
+    Integer surfaceColorFormat =
+        codec.selectColorFormat(MediaCodecUtils.TEXTURE_COLOR_FORMATS, type);
+    Integer yuvColorFormat = codec.selectColorFormat(MediaCodecUtils.ENCODER_COLOR_FORMATS, type);
 
     if (type == VideoCodecType.H264) {
       boolean isHighProfile = H264Utils.isSameH264Profile(
@@ -118,7 +141,7 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
       if (!isHighProfile && !isBaselineProfile) {
         return null;
       }
-      if (isHighProfile && !isH264HighProfileSupported(info)) {
+      if (isHighProfile && !isH264HighProfileSupported(codecName)) {
         return null;
       }
     }
@@ -126,7 +149,7 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     return new HardwareVideoEncoder(new MediaCodecWrapperFactoryImpl(), codecName, type,
         surfaceColorFormat, yuvColorFormat, input.params, getKeyFrameIntervalSec(type),
         getForcedKeyFrameIntervalMs(type, codecName), createBitrateAdjuster(type, codecName),
-        sharedContext);
+        sharedContext, options);
   }
 
   @Override
@@ -141,12 +164,12 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     // VP8, VP9, H264 (high profile), and H264 (baseline profile).
     for (VideoCodecType type :
         new VideoCodecType[] {VideoCodecType.VP8, VideoCodecType.VP9, VideoCodecType.H264}) {
-      MediaCodecInfo codec = findCodecForType(type);
+      CodecEntry codec = findCodecForType(type);
       if (codec != null) {
         String name = type.name();
         // TODO(sakal): Always add H264 HP once WebRTC correctly removes codecs that are not
         // supported by the decoder.
-        if (type == VideoCodecType.H264 && isH264HighProfileSupported(codec)) {
+        if (type == VideoCodecType.H264 && isH264HighProfileSupported(codec.name)) {
           supportedCodecInfos.add(new VideoCodecInfo(
               name, MediaCodecUtils.getCodecProperties(type, /* highProfile= */ true)));
         }
@@ -159,56 +182,54 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     return supportedCodecInfos.toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
   }
 
-  private @Nullable MediaCodecInfo findCodecForType(VideoCodecType type) {
-    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
-      MediaCodecInfo info = null;
-      try {
-        info = MediaCodecList.getCodecInfoAt(i);
-      } catch (IllegalArgumentException e) {
-        Logging.e(TAG, "Cannot retrieve encoder codec info", e);
-      }
-
-      if (info == null || !info.isEncoder()) {
-        continue;
-      }
+  // Returns the codec createEncoder() would use for |type|, to be warmed up by the pool.
+  private @Nullable MediaCodecWarmPool.CodecSpec selectWarmCodec(VideoCodecType type) {
+    final CodecEntry codec = findCodecForType(type);
+    if (codec == null) {
+      return null;
+    }
+    return new MediaCodecWarmPool.CodecSpec(
+        codec.name, codec.selectColorFormat(MediaCodecUtils.ENCODER_COLOR_FORMATS, type));
+  }
 
-      if (isSupportedCodec(info, type)) {
-        return info;
+  private @Nullable CodecEntry findCodecForType(VideoCodecType type) {
+    // Capabilities are queried once per process, see MediaCodecCapabilityCache.
+    for (CodecEntry codec : MediaCodecCapabilityCache.getCodecs()) {
+      if (codec.isEncoder && isSupportedCodec(codec, type)) {
+        return codec;
       }
     }
     return null; // No support for this type.
   }
 
-  // Returns true if the given MediaCodecInfo indicates a supported encoder for the given type.
-  private boolean isSupportedCodec(MediaCodecInfo info, VideoCodecType type) {
-    if (!MediaCodecUtils.codecSupportsType(info, type)) {
+  // Returns true if the given codec is a supported encoder for the given type.
+  private boolean isSupportedCodec(CodecEntry codec, VideoCodecType type) {
+    if (!codec.supportsType(type)) {
       return false;
     }
     // Check for a supported color format.
-    if (MediaCodecUtils.selectColorFormat(
-            MediaCodecUtils.ENCODER_COLOR_FORMATS, info.getCapabilitiesForType(type.mimeType()))
-        == null) {
+    if (codec.selectColorFormat(MediaCodecUtils.ENCODER_COLOR_FORMATS, type) == null) {
       return false;
     }
-    return isHardwareSupportedInCurrentSdk(info, type) && isMediaCodecAllowed(info);
+    return isHardwareSupportedInCurrentSdk(codec.name, type)
+        && isMediaCodecAllowed(codec.getCodecInfo());
   }
 
-  // Returns true if the given MediaCodecInfo indicates a hardware module that is supported on the
+  // Returns true if the given codec name indicates a hardware module that is supported on the
   // current SDK.
-  private boolean isHardwareSupportedInCurrentSdk(MediaCodecInfo info, VideoCodecType type) {
+  private boolean isHardwareSupportedInCurrentSdk(String name, VideoCodecType type) {
     switch (type) {
       case VP8:
-        return isHardwareSupportedInCurrentSdkVp8(info);
+        return isHardwareSupportedInCurrentSdkVp8(name);
       case VP9:
-        return isHardwareSupportedInCurrentSdkVp9(info);
+        return isHardwareSupportedInCurrentSdkVp9(name);
       case H264:
-        return isHardwareSupportedInCurrentSdkH264(info);
+        return isHardwareSupportedInCurrentSdkH264(name);
     }
     return false;
   }
 
-  private boolean isHardwareSupportedInCurrentSdkVp8(MediaCodecInfo info) {
-    String name = info.getName();
+  private boolean isHardwareSupportedInCurrentSdkVp8(String name) {
     // QCOM Vp8 encoder is supported in KITKAT or later.
     return (name.startsWith(QCOM_PREFIX) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
         // Exynos VP8 encoder is supported in M or later.
@@ -218,19 +239,17 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
                && enableIntelVp8Encoder);
   }
 
-  private boolean isHardwareSupportedInCurrentSdkVp9(MediaCodecInfo info) {
-    String name = info.getName();
+  private boolean isHardwareSupportedInCurrentSdkVp9(String name) {
     return (name.startsWith(QCOM_PREFIX) || name.startsWith(EXYNOS_PREFIX))
         // Both QCOM and Exynos VP9 encoders are supported in N or later.
         && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
   }
 
-  private boolean isHardwareSupportedInCurrentSdkH264(MediaCodecInfo info) {
+  private boolean isHardwareSupportedInCurrentSdkH264(String name) {
     // First, H264 hardware might perform poorly on this model.
     if (H264_HW_EXCEPTION_MODELS.contains(Build.MODEL)) {
       return false;
     }
-    String name = info.getName();
     // QCOM H264 encoder is supported in KITKAT or later.
     return (name.startsWith(QCOM_PREFIX) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
         // Exynos H264 encoder is supported in LOLLIPOP or later.
@@ -285,8 +304,8 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     return new BaseBitrateAdjuster();
   }
 
-  private boolean isH264HighProfileSupported(MediaCodecInfo info) {
+  private boolean isH264HighProfileSupported(String name) {
     return enableH264HighProfile && Build.VERSION.SDK_INT > Build.VERSION_CODES.M
-        && info.getName().startsWith(EXYNOS_PREFIX);
+        && name.startsWith(EXYNOS_PREFIX);
   }
 }
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Optional tuning parameters for MediaCodec based video encoders, passed to
+ * HardwareVideoEncoderFactory. Create instances with builder().
+ */
+public class HardwareVideoEncoderOptions {
+  private final boolean asyncCallbackModeEnabled;
+  @Nullable private final MediaCodecWarmPool warmPool;
+  private final boolean lowLatencyModeEnabled;
+  @Nullable private final CodecLatencyHistogram latencyHistogram;
+  @Nullable private final EncoderInputPathStats inputPathStats;
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns the options used when none are given explicitly. */
+  public static HardwareVideoEncoderOptions getDefault() {
+    return builder().createOptions();
+  }
+
+  public static class Builder {
+    private boolean asyncCallbackModeEnabled;
+    @Nullable private MediaCodecWarmPool warmPool;
+    private boolean lowLatencyModeEnabled;
+    @Nullable private CodecLatencyHistogram latencyHistogram;
+    @Nullable private EncoderInputPathStats inputPathStats;
+
+    private Builder() {}
+
+    /**
+     * When enabled, encoders run MediaCodec in asynchronous mode and receive input and output
+     * buffers through callbacks on a thread shared by all encoders, instead of polling the codec
+     * from a dedicated output thread per encoder. Only takes effect on API level 21 and higher;
+     * older devices keep using the polling output thread. Disabled by default.
+     */
+    public Builder setAsyncCallbackModeEnabled(boolean enabled) {
+      this.asyncCallbackModeEnabled = enabled;
+      return this;
+    }
+
+    /**
+     * Pool of warm codecs that encoders lease from when they are initialized. The factory starts
+     * warming up the encoders configured in the pool when it is created. The pool is owned by the
+     * application, which must release it once no longer needed. Null by default.
+     */
+    public Builder setWarmPool(@Nullable MediaCodecWarmPool warmPool) {
+      this.warmPool = warmPool;
+      return this;
+    }
+
+    /**
+     * When enabled, encoders are configured to minimize the time frames spend inside the codec:
+     * realtime priority and an operating rate matching the frame rate from API level 23, and an
+     * output latency of one frame from API level 26. Keys are only set on API levels that define
+     * them. Disabled by default.
+     */
+    public Builder setLowLatencyModeEnabled(boolean enabled) {
+      this.lowLatencyModeEnabled = enabled;
+      return this;
+    }
+
+    /**
+     * Histogram that collects the time each frame spends inside the codec, from input to output,
+     * for every encoder created by the factory. Null by default, which disables the measurement.
+     */
+    public Builder setLatencyHistogram(@Nullable CodecLatencyHistogram latencyHistogram) {
+      this.latencyHistogram = latencyHistogram;
+      return this;
+    }
+
+    /**
+     * Counts how byte buffer frames are written into the codec input buffers of every encoder
+     * created by the factory. Null by default.
+     */
+    public Builder setInputPathStats(@Nullable EncoderInputPathStats inputPathStats) {
+      this.inputPathStats = inputPathStats;
+      return this;
+    }
+
+    public HardwareVideoEncoderOptions createOptions() {
+      return new HardwareVideoEncoderOptions(asyncCallbackModeEnabled, warmPool,
+          lowLatencyModeEnabled, latencyHistogram, inputPathStats);
+    }
+  }
+
+  private HardwareVideoEncoderOptions(boolean asyncCallbackModeEnabled,
+      @Nullable MediaCodecWarmPool warmPool, boolean lowLatencyModeEnabled,
+      @Nullable CodecLatencyHistogram latencyHistogram,
+      @Nullable EncoderInputPathStats inputPathStats) {
+    this.asyncCallbackModeEnabled = asyncCallbackModeEnabled;
+    this.warmPool = warmPool;
+    this.lowLatencyModeEnabled = lowLatencyModeEnabled;
+    this.latencyHistogram = latencyHistogram;
+    this.inputPathStats = inputPathStats;
+  }
+
+  boolean isAsyncCallbackModeEnabled() {
+    return asyncCallbackModeEnabled;
+  }
+
+  @Nullable
+  MediaCodecWarmPool getWarmPool() {
+    return warmPool;
+  }
+
+  boolean isLowLatencyModeEnabled() {
+    return lowLatencyModeEnabled;
+  }
+
+  @Nullable
+  CodecLatencyHistogram getLatencyHistogram() {
+    return latencyHistogram;
+  }
+
+  @Nullable
+  EncoderInputPathStats getInputPathStats() {
+    return inputPathStats;
+  }
+}
@@ -75,7 +75,10 @@ public class JavaI420Buffer implements VideoFrame.I420Buffer {
         width, height, dataY, strideY, dataU, strideU, dataV, strideV, releaseCallback);
   }
 
-  /** Allocates an empty I420Buffer suitable for an image of the given dimensions. */
+  /**
+   * Allocates an empty I420Buffer suitable for an image of the given dimensions. The memory is taken
+   * from NativeByteBufferPool.getDefault() and returned to it once the buffer is released.
+   */
   public static JavaI420Buffer allocate(int width, int height) {
     int chromaHeight = (height + 1) / 2;
     int strideUV = (width + 1) / 2;
@@ -83,8 +86,8 @@ public class JavaI420Buffer implements VideoFrame.I420Buffer {
     int uPos = yPos + width * height;
     int vPos = uPos + strideUV * chromaHeight;
 
-    ByteBuffer buffer =
-        JniCommon.nativeAllocateByteBuffer(width * height + 2 * strideUV * chromaHeight);
+    final NativeByteBufferPool pool = NativeByteBufferPool.getDefault();
+    ByteBuffer buffer = pool.acquire(width * height + 2 * strideUV * chromaHeight);
 
     buffer.position(yPos);
     buffer.limit(uPos);
@@ -99,7 +102,7 @@ public class JavaI420Buffer implements VideoFrame.I420Buffer {
     ByteBuffer dataV = buffer.slice();
 
     return new JavaI420Buffer(width, height, dataY, width, dataU, strideUV, dataV, strideUV,
-        () -> { JniCommon.nativeFreeByteBuffer(buffer); });
+        () -> { pool.recycle(buffer); });
   }
 
   @Override
@@ -0,0 +1,462 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.annotation.TargetApi;
+import android.graphics.Point;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Process wide snapshot of the MediaCodec capabilities used by HardwareVideoEncoderFactory and
+ * the MediaCodec based decoder factories. Querying codec capabilities is slow on many devices, so
+ * the snapshot is computed once per process. It can optionally be persisted to a file, in which
+ * case later processes reuse it as long as the build fingerprint, the SDK level and the list of
+ * codec names are unchanged. This class is thread safe.
+ */
+@SuppressWarnings("deprecation") // API level 16 requires the use of deprecated methods.
+public class MediaCodecCapabilityCache {
+  private static final String TAG = "MediaCodecCapabilityCache";
+
+  // Increase when the file format changes, so that old files are ignored.
+  private static final int FILE_FORMAT_VERSION = 2;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final String KEY_VERSION = "version";
+  private static final String KEY_CACHE_KEY = "key";
+  private static final String KEY_CODECS = "codecs";
+  private static final String KEY_NAME = "name";
+  private static final String KEY_IS_ENCODER = "encoder";
+  private static final String KEY_COLOR_FORMATS = "colorFormats";
+  private static final String KEY_FEATURES = "features";
+  private static final String KEY_MAX_SIZES = "maxSizes";
+
+  // Codec features recorded in the snapshot, together with the API level they were introduced at.
+  private static final String[] SNAPSHOT_FEATURES = {
+      MediaCodecUtils.FEATURE_ADAPTIVE_PLAYBACK, MediaCodecUtils.FEATURE_LOW_LATENCY};
+  private static final int[] SNAPSHOT_FEATURE_API_LEVELS = {Build.VERSION_CODES.KITKAT, 30};
+
+  /** Capabilities of one codec, limited to the mime types of VideoCodecType. */
+  static class CodecEntry {
+    final String name;
+    final boolean isEncoder;
+    // Supported color formats, keyed by mime type.
+    private final Map<String, int[]> colorFormats;
+    // Supported features out of SNAPSHOT_FEATURES, keyed by mime type.
+    private final Map<String, Set<String>> features;
+    // Maximum supported width and height, keyed by mime type. Missing if unknown.
+    private final Map<String, Point> maxSizes;
+    @Nullable private MediaCodecInfo info;
+
+    CodecEntry(String name, boolean isEncoder, Map<String, int[]> colorFormats,
+        Map<String, Set<String>> features, Map<String, Point> maxSizes) {
+      this.name = name;
+      this.isEncoder = isEncoder;
+      this.colorFormats = colorFormats;
+      this.features = features;
+      this.maxSizes = maxSizes;
+    }
+
+    boolean supportsType(VideoCodecType type) {
+      return colorFormats.containsKey(type.mimeType());
+    }
+
+    /** Returns the first format of |preferredColorFormats| supported for |type|, if any. */
+    @Nullable
+    Integer selectColorFormat(int[] preferredColorFormats, VideoCodecType type) {
+      final int[] supportedColorFormats = colorFormats.get(type.mimeType());
+      if (supportedColorFormats == null) {
+        return null;
+      }
+      return MediaCodecUtils.selectColorFormat(preferredColorFormats, supportedColorFormats);
+    }
+
+    boolean isFeatureSupported(VideoCodecType type, String feature) {
+      final Set<String> supportedFeatures = features.get(type.mimeType());
+      return supportedFeatures != null && supportedFeatures.contains(feature);
+    }
+
+    @Nullable
+    Point getMaxSupportedSize(VideoCodecType type) {
+      return maxSizes.get(type.mimeType());
+    }
+
+    /** Returns the MediaCodecInfo of this codec, used for codec filtering predicates. */
+    MediaCodecInfo getCodecInfo() {
+      return info;
+    }
+  }
+
+  @Nullable private static File persistenceFile;
+  @Nullable private static List<CodecEntry> codecs;
+  private static long enumerationTimeMs = -1;
+  private static boolean loadedFromFile;
+
+  /**
+   * Sets the file used to persist the snapshot across processes, e.g. a file in the application's
+   * cache directory. Pass null to keep the snapshot in memory only, which is the default.
+   */
+  public static synchronized void setPersistenceFile(@Nullable File file) {
+    persistenceFile = file;
+  }
+
+  /**
+   * Drops the in-memory snapshot and deletes the persisted one, if any. Also resets the
+   * statistics of the dropped snapshot, i.e. getEnumerationTimeMs() and isLoadedFromFile().
+   */
+  public static synchronized void invalidate() {
+    codecs = null;
+    enumerationTimeMs = -1;
+    loadedFromFile = false;
+    if (persistenceFile != null && persistenceFile.exists() && !persistenceFile.delete()) {
+      Logging.w(TAG, "Failed to delete " + persistenceFile);
+    }
+  }
+
+  /**
+   * Returns the time it took to create the current snapshot, including loading or storing it,
+   * or -1 if no snapshot has been created yet.
+   */
+  public static synchronized long getEnumerationTimeMs() {
+    return enumerationTimeMs;
+  }
+
+  /** Returns true if the current snapshot was loaded from the persistence file. */
+  public static synchronized boolean isLoadedFromFile() {
+    return loadedFromFile;
+  }
+
+  /** Returns all codecs that support at least one VideoCodecType, in MediaCodecList order. */
+  static synchronized List<CodecEntry> getCodecs() {
+    if (codecs != null) {
+      return codecs;
+    }
+    final long startTimeMs = SystemClock.elapsedRealtime();
+
+    // Listing the codecs is cheap compared to querying their capabilities.
+    final List<MediaCodecInfo> infos = new ArrayList<>();
+    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
+      try {
+        infos.add(MediaCodecList.getCodecInfoAt(i));
+      } catch (IllegalArgumentException e) {
+        Logging.e(TAG, "Cannot retrieve codec info", e);
+      }
+    }
+    final String cacheKey = createCacheKey(infos);
+
+    List<CodecEntry> entries = (persistenceFile == null) ? null : readFile(cacheKey);
+    loadedFromFile = (entries != null);
+    if (entries == null) {
+      entries = queryCapabilities(infos);
+      if (persistenceFile != null) {
+        writeFile(cacheKey, entries);
+      }
+    }
+
+    // Attach the MediaCodecInfo objects, which cannot be persisted.
+    final Map<String, MediaCodecInfo> infosByName = new HashMap<>();
+    for (MediaCodecInfo info : infos) {
+      infosByName.put(info.getName() + info.isEncoder(), info);
+    }
+    for (CodecEntry entry : entries) {
+      entry.info = infosByName.get(entry.name + entry.isEncoder);
+    }
+
+    codecs = Collections.unmodifiableList(entries);
+    enumerationTimeMs = SystemClock.elapsedRealtime() - startTimeMs;
+    Logging.d(TAG,
+        "Enumerated " + codecs.size() + " codecs in " + enumerationTimeMs
+            + " ms. Loaded from file: " + loadedFromFile);
+    return codecs;
+  }
+
+  /**
+   * Returns true if the codec |codecName| advertises |feature| for |type|. Only the adaptive
+   * playback and low latency features are part of the snapshot.
+   */
+  static boolean isFeatureSupported(
+      String codecName, boolean isEncoder, VideoCodecType type, String feature) {
+    if (!Arrays.asList(SNAPSHOT_FEATURES).contains(feature)) {
+      throw new IllegalArgumentException("Feature is not part of the snapshot: " + feature);
+    }
+    final CodecEntry codec = findCodec(codecName, isEncoder);
+    return codec != null && codec.isFeatureSupported(type, feature);
+  }
+
+  /**
+   * Returns the largest width and height the codec |codecName| supports for |type|, or null if
+   * they are unknown. Sizes are only known from API level 21.
+   */
+  @Nullable
+  static Point getMaxSupportedSize(String codecName, boolean isEncoder, VideoCodecType type) {
+    final CodecEntry codec = findCodec(codecName, isEncoder);
+    return (codec == null) ? null : codec.getMaxSupportedSize(type);
+  }
+
+  @Nullable
+  private static CodecEntry findCodec(String codecName, boolean isEncoder) {
+    for (CodecEntry codec : getCodecs()) {
+      if (codec.isEncoder == isEncoder && codec.name.equals(codecName)) {
+        return codec;
+      }
+    }
+    return null;
+  }
+
+  private static String createCacheKey(List<MediaCodecInfo> infos) {
+    final StringBuilder key = new StringBuilder();
+    key.append(Build.FINGERPRINT).append('|').append(Build.VERSION.SDK_INT);
+    for (MediaCodecInfo info : infos) {
+      key.append('|').append(info.getName());
+    }
+    return key.toString();
+  }
+
+  private static List<CodecEntry> queryCapabilities(List<MediaCodecInfo> infos) {
+    final List<CodecEntry> entries = new ArrayList<>();
+    for (MediaCodecInfo info : infos) {
+      final Map<String, int[]> colorFormats = new HashMap<>();
+      final Map<String, Set<String>> features = new HashMap<>();
+      final Map<String, Point> maxSizes = new HashMap<>();
+      for (VideoCodecType type : VideoCodecType.values()) {
+        if (!MediaCodecUtils.codecSupportsType(info, type)) {
+          continue;
+        }
+        final MediaCodecInfo.CodecCapabilities capabilities;
+        try {
+          capabilities = info.getCapabilitiesForType(type.mimeType());
+        } catch (IllegalArgumentException e) {
+          Logging.e(TAG, "Cannot retrieve capabilities of " + info.getName(), e);
+          continue;
+        }
+        colorFormats.put(type.mimeType(), capabilities.colorFormats);
+        features.put(type.mimeType(), queryFeatures(capabilities));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+          final Point maxSize = queryMaxSize(capabilities);
+          if (maxSize != null) {
+            maxSizes.put(type.mimeType(), maxSize);
+          }
+        }
+      }
+      if (!colorFormats.isEmpty()) {
+        entries.add(
+            new CodecEntry(info.getName(), info.isEncoder(), colorFormats, features, maxSizes));
+      }
+    }
+    return entries;
+  }
+
+  @TargetApi(19)
+  private static Set<String> queryFeatures(MediaCodecInfo.CodecCapabilities capabilities) {
+    final Set<String> features = new HashSet<>();
+    for (int i = 0; i < SNAPSHOT_FEATURES.length; ++i) {
+      if (Build.VERSION.SDK_INT >= SNAPSHOT_FEATURE_API_LEVELS[i]
+          && capabilities.isFeatureSupported(SNAPSHOT_FEATURES[i])) {
+        features.add(SNAPSHOT_FEATURES[i]);
+      }
+    }
+    return features;
+  }
+
+  @TargetApi(21)
+  @Nullable
+  private static Point queryMaxSize(MediaCodecInfo.CodecCapabilities capabilities) {
+    final MediaCodecInfo.VideoCapabilities videoCapabilities =
+        capabilities.getVideoCapabilities();
+    if (videoCapabilities == null) {
+      return null;
+    }
+    return new Point(videoCapabilities.getSupportedWidths().getUpper(),
+        videoCapabilities.getSupportedHeights().getUpper());
+  }
+
+  @Nullable
+  private static List<CodecEntry> readFile(String cacheKey) {
+    if (!persistenceFile.exists()) {
+      return null;
+    }
+    final byte[] data = new byte[(int) persistenceFile.length()];
+    int offset = 0;
+    InputStream stream = null;
+    try {
+      stream = new FileInputStream(persistenceFile);
+      while (offset < data.length) {
+        final int read = stream.read(data, offset, data.length - offset);
+        if (read < 0) {
+          break;
+        }
+        offset += read;
+      }
+    } catch (IOException e) {
+      Logging.e(TAG, "Failed to read " + persistenceFile, e);
+      return null;
+    } finally {
+      closeQuietly(stream);
+    }
+    final List<CodecEntry> entries = deserialize(new String(data, 0, offset, UTF_8), cacheKey);
+    if (entries == null) {
+      Logging.d(TAG, "Persisted codec capabilities are outdated");
+    }
+    return entries;
+  }
+
+  private static void writeFile(String cacheKey, List<CodecEntry> entries) {
+    final String data;
+    try {
+      data = serialize(cacheKey, entries);
+    } catch (JSONException e) {
+      Logging.e(TAG, "Failed to serialize codec capabilities", e);
+      return;
+    }
+    // Write to a temporary file first so that a crash never leaves a truncated file behind.
+    final File tempFile = new File(persistenceFile.getPath() + ".tmp");
+    OutputStream stream = null;
+    try {
+      stream = new FileOutputStream(tempFile);
+      stream.write(data.getBytes(UTF_8));
+    } catch (IOException e) {
+      Logging.e(TAG, "Failed to write " + tempFile, e);
+      return;
+    } finally {
+      closeQuietly(stream);
+    }
+    if (!tempFile.renameTo(persistenceFile)) {
+      Logging.e(TAG, "Failed to rename " + tempFile + " to " + persistenceFile);
+    }
+  }
+
+  private static void closeQuietly(@Nullable Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      Logging.e(TAG, "Failed to close stream", e);
+    }
+  }
+
+  // Visible for testing.
+  static String serialize(String cacheKey, List<CodecEntry> entries) throws JSONException {
+    final JSONArray jsonCodecs = new JSONArray();
+    for (CodecEntry entry : entries) {
+      final JSONObject jsonColorFormats = new JSONObject();
+      for (Map.Entry<String, int[]> formats : entry.colorFormats.entrySet()) {
+        final JSONArray jsonFormats = new JSONArray();
+        for (int format : formats.getValue()) {
+          jsonFormats.put(format);
+        }
+        jsonColorFormats.put(formats.getKey(), jsonFormats);
+      }
+      final JSONObject jsonFeatures = new JSONObject();
+      for (Map.Entry<String, Set<String>> features : entry.features.entrySet()) {
+        jsonFeatures.put(features.getKey(), new JSONArray(features.getValue()));
+      }
+      final JSONObject jsonMaxSizes = new JSONObject();
+      for (Map.Entry<String, Point> maxSize : entry.maxSizes.entrySet()) {
+        jsonMaxSizes.put(
+            maxSize.getKey(), new JSONArray().put(maxSize.getValue().x).put(maxSize.getValue().y));
+      }
+      jsonCodecs.put(new JSONObject()
+                         .put(KEY_NAME, entry.name)
+                         .put(KEY_IS_ENCODER, entry.isEncoder)
+                         .put(KEY_COLOR_FORMATS, jsonColorFormats)
+                         .put(KEY_FEATURES, jsonFeatures)
+                         .put(KEY_MAX_SIZES, jsonMaxSizes));
+    }
+    return new JSONObject()
+        .put(KEY_VERSION, FILE_FORMAT_VERSION)
+        .put(KEY_CACHE_KEY, cacheKey)
+        .put(KEY_CODECS, jsonCodecs)
+        .toString();
+  }
+
+  /** Returns the persisted entries, or null if |data| is invalid or |cacheKey| has changed. */
+  // Visible for testing.
+  @Nullable
+  static List<CodecEntry> deserialize(String data, String cacheKey) {
+    try {
+      final JSONObject json = new JSONObject(data);
+      if (json.getInt(KEY_VERSION) != FILE_FORMAT_VERSION
+          || !cacheKey.equals(json.getString(KEY_CACHE_KEY))) {
+        return null;
+      }
+      final JSONArray jsonCodecs = json.getJSONArray(KEY_CODECS);
+      final List<CodecEntry> entries = new ArrayList<>();
+      for (int i = 0; i < jsonCodecs.length(); ++i) {
+        final JSONObject jsonCodec = jsonCodecs.getJSONObject(i);
+        final JSONObject jsonColorFormats = jsonCodec.getJSONObject(KEY_COLOR_FORMATS);
+        final Map<String, int[]> colorFormats = new HashMap<>();
+        final Iterator<String> mimeTypes = jsonColorFormats.keys();
+        while (mimeTypes.hasNext()) {
+          final String mimeType = mimeTypes.next();
+          final JSONArray jsonFormats = jsonColorFormats.getJSONArray(mimeType);
+          final int[] formats = new int[jsonFormats.length()];
+          for (int j = 0; j < formats.length; ++j) {
+            formats[j] = jsonFormats.getInt(j);
+          }
+          colorFormats.put(mimeType, formats);
+        }
+        final JSONObject jsonFeatures = jsonCodec.getJSONObject(KEY_FEATURES);
+        final Map<String, Set<String>> features = new HashMap<>();
+        final Iterator<String> featureMimeTypes = jsonFeatures.keys();
+        while (featureMimeTypes.hasNext()) {
+          final String mimeType = featureMimeTypes.next();
+          final JSONArray jsonFeatureNames = jsonFeatures.getJSONArray(mimeType);
+          final Set<String> featureNames = new HashSet<>();
+          for (int j = 0; j < jsonFeatureNames.length(); ++j) {
+            featureNames.add(jsonFeatureNames.getString(j));
+          }
+          features.put(mimeType, featureNames);
+        }
+        final JSONObject jsonMaxSizes = jsonCodec.getJSONObject(KEY_MAX_SIZES);
+        final Map<String, Point> maxSizes = new HashMap<>();
+        final Iterator<String> sizeMimeTypes = jsonMaxSizes.keys();
+        while (sizeMimeTypes.hasNext()) {
+          final String mimeType = sizeMimeTypes.next();
+          final JSONArray jsonSize = jsonMaxSizes.getJSONArray(mimeType);
+          maxSizes.put(mimeType, new Point(jsonSize.getInt(0), jsonSize.getInt(1)));
+        }
+        entries.add(new CodecEntry(jsonCodec.getString(KEY_NAME),
+            jsonCodec.getBoolean(KEY_IS_ENCODER), colorFormats, features, maxSizes));
+      }
+      return entries;
+    } catch (JSONException e) {
+      Logging.e(TAG, "Invalid persisted codec capabilities", e);
+      return null;
+    }
+  }
+
+  private MediaCodecCapabilityCache() {}
+}
@@ -0,0 +1,379 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Pool of MediaCodec instances that are created and configured in the background, so that
+ * creating the codec, which takes 50-300 ms on many devices, is not on the critical path of the
+ * first frame of a call. The pool is given to HardwareVideoEncoderFactory and
+ * HardwareVideoDecoderFactory through their options; encoders and decoders lease a warm codec when
+ * they are initialized and fall back to creating one when none is available.
+ *
+ * <p>Warm codecs are configured and started once with a representative format of their resolution
+ * class and then stopped, which leaves them ready to be configured with the real format. This class
+ * is thread safe.
+ */
+public class MediaCodecWarmPool {
+  private static final String TAG = "MediaCodecWarmPool";
+
+  private static final int WARM_UP_FRAME_RATE = 30;
+  private static final int WARM_UP_KEY_FRAME_INTERVAL_SEC = 1;
+  private static final int WARM_UP_BITS_PER_PIXEL = 2;
+
+  /**
+   * Resolution classes that codecs are warmed up for. A codec is only leased to an encoder or
+   * decoder whose initial resolution falls into the same class.
+   */
+  public enum ResolutionClass {
+    SD(640, 480),
+    HD(1280, 720),
+    FULL_HD(1920, 1080);
+
+    final int width;
+    final int height;
+
+    ResolutionClass(int width, int height) {
+      this.width = width;
+      this.height = height;
+    }
+
+    /** Returns the smallest class that holds |width| x |height| in either orientation. */
+    static ResolutionClass forSize(int width, int height) {
+      final int longSide = Math.max(width, height);
+      final int shortSide = Math.min(width, height);
+      for (ResolutionClass resolutionClass : values()) {
+        if (longSide <= resolutionClass.width && shortSide <= resolutionClass.height) {
+          return resolutionClass;
+        }
+      }
+      return FULL_HD;
+    }
+  }
+
+  /** Snapshot of the pool counters. */
+  public static class Stats {
+    /** Number of codecs requested from the pool. */
+    public final int leaseCount;
+    /** Number of requests served by a warm codec. */
+    public final int hitCount;
+    /** Average time from codec initialization to the first frame, when a warm codec was used. */
+    public final long averageWarmTimeToFirstFrameMs;
+    /** Average time from codec initialization to the first frame, when no warm codec was used. */
+    public final long averageColdTimeToFirstFrameMs;
+
+    Stats(int leaseCount, int hitCount, long averageWarmTimeToFirstFrameMs,
+        long averageColdTimeToFirstFrameMs) {
+      this.leaseCount = leaseCount;
+      this.hitCount = hitCount;
+      this.averageWarmTimeToFirstFrameMs = averageWarmTimeToFirstFrameMs;
+      this.averageColdTimeToFirstFrameMs = averageColdTimeToFirstFrameMs;
+    }
+
+    /** Returns the fraction of requests served by a warm codec, or 0 if there were none. */
+    public float getHitRate() {
+      return leaseCount == 0 ? 0 : (float) hitCount / leaseCount;
+    }
+
+    @Override
+    public String toString() {
+      return "leases: " + leaseCount + ", hits: " + hitCount + ", warm time to first frame: "
+          + averageWarmTimeToFirstFrameMs + " ms, cold time to first frame: "
+          + averageColdTimeToFirstFrameMs + " ms";
+    }
+  }
+
+  /** Codec picked by a factory for a codec type. */
+  static class CodecSpec {
+    final String name;
+    // Color format used for the warm-up configuration, or null to leave it unset.
+    @Nullable final Integer colorFormat;
+
+    CodecSpec(String name, @Nullable Integer colorFormat) {
+      this.name = name;
+      this.colorFormat = colorFormat;
+    }
+  }
+
+  /** Picks the codec a factory would use for a codec type. Called on the pool thread. */
+  interface CodecSelector {
+    @Nullable CodecSpec selectCodec(VideoCodecType type);
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    private final List<Slot> slots = new ArrayList<>();
+    private MediaCodecWrapperFactory mediaCodecWrapperFactory = new MediaCodecWrapperFactoryImpl();
+
+    private Builder() {}
+
+    /** Keeps |count| warm encoders of |type| for resolutions of |resolutionClass|. */
+    public Builder addEncoders(VideoCodecType type, ResolutionClass resolutionClass, int count) {
+      return addSlot(/* isEncoder= */ true, type, resolutionClass, count);
+    }
+
+    /** Keeps |count| warm decoders of |type| for resolutions of |resolutionClass|. */
+    public Builder addDecoders(VideoCodecType type, ResolutionClass resolutionClass, int count) {
+      return addSlot(/* isEncoder= */ false, type, resolutionClass, count);
+    }
+
+    // Visible for testing.
+    Builder setMediaCodecWrapperFactory(MediaCodecWrapperFactory mediaCodecWrapperFactory) {
+      this.mediaCodecWrapperFactory = mediaCodecWrapperFactory;
+      return this;
+    }
+
+    public MediaCodecWarmPool createPool() {
+      return new MediaCodecWarmPool(slots, mediaCodecWrapperFactory);
+    }
+
+    private Builder addSlot(
+        boolean isEncoder, VideoCodecType type, ResolutionClass resolutionClass, int count) {
+      if (count <= 0) {
+        throw new IllegalArgumentException("Invalid number of codecs: " + count);
+      }
+      slots.add(new Slot(isEncoder, type, resolutionClass, count));
+      return this;
+    }
+  }
+
+  // Warm codecs of one codec type and resolution class.
+  private static class Slot {
+    final boolean isEncoder;
+    final VideoCodecType type;
+    final ResolutionClass resolutionClass;
+    final int targetCount;
+    final ArrayDeque<MediaCodecWrapper> idleCodecs = new ArrayDeque<>();
+    // Set once the owning factory has picked the codec.
+    @Nullable CodecSpec spec;
+    // Number of codecs being created on the pool thread.
+    int pendingCount;
+
+    Slot(boolean isEncoder, VideoCodecType type, ResolutionClass resolutionClass, int count) {
+      this.isEncoder = isEncoder;
+      this.type = type;
+      this.resolutionClass = resolutionClass;
+      this.targetCount = count;
+    }
+  }
+
+  private final List<Slot> slots;
+  private final MediaCodecWrapperFactory mediaCodecWrapperFactory;
+  private final Handler handler;
+
+  // Guarded by |this|.
+  private boolean released;
+  private int leaseCount;
+  private int hitCount;
+  private long warmTimeToFirstFrameSumMs;
+  private int warmFirstFrameCount;
+  private long coldTimeToFirstFrameSumMs;
+  private int coldFirstFrameCount;
+
+  private MediaCodecWarmPool(List<Slot> slots, MediaCodecWrapperFactory mediaCodecWrapperFactory) {
+    this.slots = new ArrayList<>(slots);
+    this.mediaCodecWrapperFactory = mediaCodecWrapperFactory;
+    final HandlerThread thread = new HandlerThread(TAG);
+    thread.start();
+    handler = new Handler(thread.getLooper());
+  }
+
+  public synchronized Stats getStats() {
+    return new Stats(leaseCount, hitCount,
+        warmFirstFrameCount == 0 ? 0 : warmTimeToFirstFrameSumMs / warmFirstFrameCount,
+        coldFirstFrameCount == 0 ? 0 : coldTimeToFirstFrameSumMs / coldFirstFrameCount);
+  }
+
+  /**
+   * Releases all idle codecs and stops the pool thread. Codecs that have been leased are owned by
+   * their encoder or decoder and are not affected. Later requests are not served by the pool.
+   */
+  public void release() {
+    final List<MediaCodecWrapper> idleCodecs = new ArrayList<>();
+    synchronized (this) {
+      if (released) {
+        return;
+      }
+      released = true;
+      Logging.d(TAG, "Releasing pool: " + getStats());
+      for (Slot slot : slots) {
+        idleCodecs.addAll(slot.idleCodecs);
+        slot.idleCodecs.clear();
+      }
+    }
+    // A codec that is being warmed up is released by the pool thread once it is done.
+    handler.getLooper().quit();
+    for (MediaCodecWrapper codec : idleCodecs) {
+      releaseCodec(codec);
+    }
+  }
+
+  /**
+   * Starts warming up the encoder or decoder slots, using |selector| to pick the codec for each
+   * codec type. Called by the factories the pool is given to.
+   */
+  void warmUp(final boolean isEncoder, final CodecSelector selector) {
+    handler.post(() -> {
+      for (Slot slot : slots) {
+        if (slot.isEncoder != isEncoder) {
+          continue;
+        }
+        final CodecSpec spec = selector.selectCodec(slot.type);
+        if (spec == null) {
+          Logging.w(TAG, "No codec to warm up for " + slot.type);
+          continue;
+        }
+        synchronized (this) {
+          slot.spec = spec;
+        }
+        fillSlot(slot);
+      }
+    });
+  }
+
+  /**
+   * Returns a warm codec named |codecName| for |width| x |height|, or null if none is available.
+   * The returned codec is in the uninitialized state and owned by the caller.
+   */
+  @Nullable
+  synchronized MediaCodecWrapper lease(
+      VideoCodecType type, String codecName, boolean isEncoder, int width, int height) {
+    if (released) {
+      return null;
+    }
+    ++leaseCount;
+    final ResolutionClass resolutionClass = ResolutionClass.forSize(width, height);
+    for (final Slot slot : slots) {
+      if (slot.isEncoder != isEncoder || slot.type != type
+          || slot.resolutionClass != resolutionClass || slot.spec == null
+          || !slot.spec.name.equals(codecName)) {
+        continue;
+      }
+      final MediaCodecWrapper codec = slot.idleCodecs.poll();
+      if (codec == null) {
+        break;
+      }
+      ++hitCount;
+      // Replace the leased codec.
+      handler.post(() -> fillSlot(slot));
+      return codec;
+    }
+    Logging.d(TAG, "No warm codec for " + codecName + " at " + width + " x " + height);
+    return null;
+  }
+
+  /**
+   * Records the time from the start of codec initialization to the first encoded or decoded frame.
+   * |leased| tells whether the codec came from the pool.
+   */
+  synchronized void reportTimeToFirstFrame(boolean leased, long timeMs) {
+    if (leased) {
+      warmTimeToFirstFrameSumMs += timeMs;
+      ++warmFirstFrameCount;
+    } else {
+      coldTimeToFirstFrameSumMs += timeMs;
+      ++coldFirstFrameCount;
+    }
+  }
+
+  // Visible for testing.
+  void waitForPendingWork() {
+    final CountDownLatch latch = new CountDownLatch(1);
+    handler.post(latch::countDown);
+    ThreadUtils.awaitUninterruptibly(latch);
+  }
+
+  // Creates codecs until |slot| holds its target count. Runs on the pool thread.
+  private void fillSlot(Slot slot) {
+    final CodecSpec spec;
+    synchronized (this) {
+      if (released || slot.spec == null
+          || slot.idleCodecs.size() + slot.pendingCount >= slot.targetCount) {
+        return;
+      }
+      spec = slot.spec;
+      ++slot.pendingCount;
+    }
+    final MediaCodecWrapper codec = createWarmCodec(slot, spec);
+    synchronized (this) {
+      --slot.pendingCount;
+      if (codec != null && !released) {
+        slot.idleCodecs.add(codec);
+        // Continue with the next codec, if any, after other pending work.
+        handler.post(() -> fillSlot(slot));
+        return;
+      }
+    }
+    if (codec != null) {
+      releaseCodec(codec);
+    }
+  }
+
+  @Nullable
+  private MediaCodecWrapper createWarmCodec(Slot slot, CodecSpec spec) {
+    final long startTimeMs = SystemClock.elapsedRealtime();
+    final MediaCodecWrapper codec;
+    try {
+      codec = mediaCodecWrapperFactory.createByCodecName(spec.name);
+    } catch (IOException | IllegalArgumentException e) {
+      Logging.e(TAG, "Cannot create codec " + spec.name, e);
+      return null;
+    }
+    final int width = slot.resolutionClass.width;
+    final int height = slot.resolutionClass.height;
+    try {
+      final MediaFormat format = MediaFormat.createVideoFormat(slot.type.mimeType(), width, height);
+      if (spec.colorFormat != null) {
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, spec.colorFormat);
+      }
+      if (slot.isEncoder) {
+        format.setInteger(MediaFormat.KEY_BIT_RATE, width * height * WARM_UP_BITS_PER_PIXEL);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, WARM_UP_FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, WARM_UP_KEY_FRAME_INTERVAL_SEC);
+      }
+      codec.configure(format, /* surface= */ null, /* crypto= */ null,
+          slot.isEncoder ? MediaCodec.CONFIGURE_FLAG_ENCODE : 0);
+      codec.start();
+      // Stopping returns the codec to the uninitialized state, ready for the real configuration.
+      codec.stop();
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      Logging.e(TAG, "Cannot warm up codec " + spec.name, e);
+      releaseCodec(codec);
+      return null;
+    }
+    Logging.d(TAG,
+        "Warmed up " + spec.name + " for " + slot.resolutionClass + " in "
+            + (SystemClock.elapsedRealtime() - startTimeMs) + " ms");
+    return codec;
+  }
+
+  private static void releaseCodec(MediaCodecWrapper codec) {
+    try {
+      codec.release();
+    } catch (IllegalStateException e) {
+      Logging.e(TAG, "Codec release failed", e);
+    }
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.os.Handler;
+import android.support.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scales one video frame buffer to several resolutions at once, e.g. for the layers of a
+ * simulcast stream. Buffers in memory are scaled as a pyramid: each layer is scaled from the next
+ * larger layer instead of from the full resolution source. TextureBufferImpl buffers are drawn into
+ * a single texture with one viewport per layer, in one pass on the texture thread of the buffer.
+ *
+ * <p>This class is thread safe. The texture resources are bound to the texture thread of the first
+ * TextureBufferImpl that is scaled; texture buffers from other threads are scaled lazily with
+ * cropAndScale() instead.
+ */
+public class MultiResolutionScaler {
+  private static final String TAG = "MultiResolutionScaler";
+
+  // Number of idle layer textures kept for reuse.
+  private static final int MAX_FREE_TEXTURES = 3;
+  // Gap between the layers in the layer texture, so that bilinear sampling at the edge of one layer
+  // does not pick up pixels from its neighbor.
+  private static final int LAYER_PADDING = 2;
+  // Upper bound for the wait on the fence of one layer pass, before falling back to glFinish().
+  private static final long DRAW_FENCE_TIMEOUT_NS = 1000L * 1000L * 1000L;
+
+  private final Object lock = new Object();
+  // Thread the texture resources below belong to. Set on the first texture buffer.
+  @Nullable private Handler textureHandler;
+  private boolean isReleased;
+
+  // Only accessed on |textureHandler|.
+  @Nullable private GlRectDrawer drawer;
+  // Whether the layer pass is synchronized with a fence (GLES3) instead of glFinish().
+  private boolean useDrawFences;
+  private final ArrayDeque<GlTextureFrameBuffer> freeTextures = new ArrayDeque<>();
+
+  /**
+   * Scales the full |buffer| to each size in |targetSizes|. See the crop variant below for details.
+   */
+  public List<VideoFrame.Buffer> scale(VideoFrame.Buffer buffer, List<Size> targetSizes) {
+    return scale(buffer, /* cropX= */ 0, /* cropY= */ 0, buffer.getWidth(), buffer.getHeight(),
+        targetSizes);
+  }
+
+  /**
+   * Crops |buffer| to the given rectangle and scales the result to each size in |targetSizes|.
+   * Returns one new buffer per target size, in the same order. The caller owns the returned buffers
+   * and must release them; |buffer| is not released.
+   */
+  public List<VideoFrame.Buffer> scale(VideoFrame.Buffer buffer, int cropX, int cropY,
+      int cropWidth, int cropHeight, List<Size> targetSizes) {
+    for (Size size : targetSizes) {
+      if (size.width <= 0 || size.height <= 0) {
+        throw new IllegalArgumentException("Invalid target size: " + size);
+      }
+    }
+    if (targetSizes.isEmpty()) {
+      return Collections.emptyList();
+    }
+    final Integer[] order = sortBySize(targetSizes);
+    if (buffer instanceof TextureBufferImpl) {
+      final TextureBufferImpl textureBuffer = (TextureBufferImpl) buffer;
+      final Handler handler = textureBuffer.getToI420Handler();
+      if (acquireTextureHandler(handler)) {
+        return ThreadUtils.invokeAtFrontUninterruptibly(handler,
+            () -> drawLayers(textureBuffer, cropX, cropY, cropWidth, cropHeight, order,
+                targetSizes));
+      }
+    }
+    return scalePyramid(buffer, cropX, cropY, cropWidth, cropHeight, order, targetSizes);
+  }
+
+  /**
+   * Frees the texture resources. Layers that are still in use stay valid until they are released.
+   */
+  public void release() {
+    final Handler handler;
+    synchronized (lock) {
+      isReleased = true;
+      handler = textureHandler;
+    }
+    if (handler != null) {
+      handler.post(() -> {
+        if (drawer != null) {
+          drawer.release();
+          drawer = null;
+        }
+        for (GlTextureFrameBuffer texture : freeTextures) {
+          texture.release();
+        }
+        freeTextures.clear();
+      });
+    }
+  }
+
+  // Returns true if texture resources may be used on |handler|.
+  private boolean acquireTextureHandler(Handler handler) {
+    synchronized (lock) {
+      if (isReleased) {
+        return false;
+      }
+      if (textureHandler == null) {
+        textureHandler = handler;
+      }
+      if (textureHandler != handler) {
+        Logging.w(TAG, "Texture buffer from another thread, scaling lazily.");
+        return false;
+      }
+      return true;
+    }
+  }
+
+  // Returns the indices of |targetSizes|, largest area first.
+  private static Integer[] sortBySize(final List<Size> targetSizes) {
+    final Integer[] order = new Integer[targetSizes.size()];
+    for (int i = 0; i < order.length; ++i) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> {
+      final Size sizeA = targetSizes.get(a);
+      final Size sizeB = targetSizes.get(b);
+      return Long.compare((long) sizeB.width * sizeB.height, (long) sizeA.width * sizeA.height);
+    });
+    return order;
+  }
+
+  // Runs on |textureHandler|. The largest layer is drawn at the bottom left of one texture and the
+  // other layers are stacked on top of each other to its right.
+  private List<VideoFrame.Buffer> drawLayers(TextureBufferImpl buffer, int cropX, int cropY,
+      int cropWidth, int cropHeight, Integer[] order, List<Size> targetSizes) {
+    final Size largest = targetSizes.get(order[0]);
+    final int[] viewportX = new int[order.length];
+    final int[] viewportY = new int[order.length];
+    int textureWidth = largest.width;
+    int columnHeight = 0;
+    for (int i = 1; i < order.length; ++i) {
+      final Size size = targetSizes.get(order[i]);
+      viewportX[i] = largest.width + LAYER_PADDING;
+      viewportY[i] = columnHeight;
+      textureWidth = Math.max(textureWidth, viewportX[i] + size.width);
+      columnHeight += size.height + LAYER_PADDING;
+    }
+    final int textureHeight = Math.max(largest.height, columnHeight);
+
+    if (drawer == null) {
+      drawer = new GlRectDrawer();
+      useDrawFences = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+          && GlUtil.getGlesMajorVersion() >= 3;
+    }
+    final GlTextureFrameBuffer texture = freeTextures.isEmpty()
+        ? new GlTextureFrameBuffer(GLES20.GL_RGBA)
+        : freeTextures.pollFirst();
+    texture.setSize(textureWidth, textureHeight);
+
+    final VideoFrame.TextureBuffer croppedBuffer = (VideoFrame.TextureBuffer) buffer.cropAndScale(
+        cropX, cropY, cropWidth, cropHeight, cropWidth, cropHeight);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, texture.getFrameBufferId());
+    for (int i = 0; i < order.length; ++i) {
+      final Size size = targetSizes.get(order[i]);
+      VideoFrameDrawer.drawTexture(drawer, croppedBuffer, new Matrix(), size.width, size.height,
+          viewportX[i], viewportY[i], size.width, size.height);
+    }
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    GlUtil.checkNoGLES2Error("MultiResolutionScaler.drawLayers");
+    // The layers are read from other EGL contexts sharing the texture, e.g. hardware encoders, as
+    // soon as they are returned. With GLES3, a fence waits for this pass only, instead of for all
+    // work queued on the context, and the flush submits the pass while the layers are set up.
+    final long drawFence = useDrawFences
+        ? GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, /* flags= */ 0)
+        : 0;
+    if (drawFence != 0) {
+      GLES20.glFlush();
+    } else {
+      GLES20.glFinish();
+    }
+    croppedBuffer.release();
+
+    final Handler handler = buffer.getToI420Handler();
+    final TextureBufferImpl layerTexture = new TextureBufferImpl(textureWidth, textureHeight,
+        VideoFrame.TextureBuffer.Type.RGB, texture.getTextureId(), new Matrix(), handler,
+        buffer.getYuvConverter(), () -> handler.post(() -> returnTexture(texture)));
+    final VideoFrame.Buffer[] layers = new VideoFrame.Buffer[order.length];
+    for (int i = 0; i < order.length; ++i) {
+      final Size size = targetSizes.get(order[i]);
+      // In WebRTC, Y=0 is the top row, while in OpenGL Y=0 is the bottom row.
+      final int cropYFromTop = textureHeight - (viewportY[i] + size.height);
+      layers[order[i]] = layerTexture.cropAndScale(
+          viewportX[i], cropYFromTop, size.width, size.height, size.width, size.height);
+    }
+    // The layers keep the texture alive until the last of them is released.
+    layerTexture.release();
+    if (drawFence != 0) {
+      waitForDrawFence(drawFence);
+    }
+    return new ArrayList<>(Arrays.asList(layers));
+  }
+
+  // Runs on |textureHandler|.
+  private static void waitForDrawFence(long drawFence) {
+    final int status = GLES30.glClientWaitSync(drawFence, /* flags= */ 0, DRAW_FENCE_TIMEOUT_NS);
+    if (status != GLES30.GL_ALREADY_SIGNALED && status != GLES30.GL_CONDITION_SATISFIED) {
+      Logging.w(TAG, "Waiting for the layer pass failed: " + status);
+      GLES20.glFinish();
+    }
+    GLES30.glDeleteSync(drawFence);
+  }
+
+  // Runs on |textureHandler|.
+  private void returnTexture(GlTextureFrameBuffer texture) {
+    final boolean released;
+    synchronized (lock) {
+      released = isReleased;
+    }
+    if (released || freeTextures.size() >= MAX_FREE_TEXTURES) {
+      texture.release();
+    } else {
+      freeTextures.addLast(texture);
+    }
+  }
+
+  private static List<VideoFrame.Buffer> scalePyramid(VideoFrame.Buffer buffer, int cropX,
+      int cropY, int cropWidth, int cropHeight, Integer[] order, List<Size> targetSizes) {
+    final VideoFrame.Buffer[] layers = new VideoFrame.Buffer[order.length];
+    VideoFrame.Buffer previous = null;
+    for (int index : order) {
+      final Size size = targetSizes.get(index);
+      if (previous != null && previous.getWidth() >= size.width
+          && previous.getHeight() >= size.height) {
+        // The previous layer already contains the crop rectangle, at a lower resolution.
+        layers[index] = previous.cropAndScale(/* cropX= */ 0, /* cropY= */ 0, previous.getWidth(),
+            previous.getHeight(), size.width, size.height);
+      } else {
+        layers[index] =
+            buffer.cropAndScale(cropX, cropY, cropWidth, cropHeight, size.width, size.height);
+      }
+      previous = layers[index];
+    }
+    return new ArrayList<>(Arrays.asList(layers));
+  }
+}
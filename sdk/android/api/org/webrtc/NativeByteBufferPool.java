@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Bounded, size-bucketed pool of native direct byte buffers. Used by JavaI420Buffer.allocate() to
+ * avoid a malloc/free pair for every frame. Buffers are returned to the pool when the owning frame
+ * buffer is released. This class is thread safe.
+ */
+public class NativeByteBufferPool {
+  private static final String TAG = "NativeByteBufferPool";
+
+  // Requested sizes are rounded up to a multiple of this, so that frames of almost the same size
+  // can share buffers.
+  private static final int BUCKET_GRANULARITY_BYTES = 4096;
+
+  private static final int DEFAULT_MAX_BUFFERS_PER_BUCKET = 8;
+  private static final int DEFAULT_MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
+  private static final NativeByteBufferPool defaultPool =
+      new NativeByteBufferPool(DEFAULT_MAX_BUFFERS_PER_BUCKET, DEFAULT_MAX_POOLED_BYTES);
+
+  /** Snapshot of the pool counters. */
+  public static class Stats {
+    /** Number of allocations served by a pooled buffer. */
+    public final long hitCount;
+    /** Number of allocations that required a new native buffer. */
+    public final long missCount;
+    /** Number of returned buffers that were freed because the pool was full. */
+    public final long evictionCount;
+    /** Bytes currently held idle in the pool. */
+    public final long pooledBytes;
+    /** Bytes currently allocated through the pool, both in use and idle. */
+    public final long allocatedBytes;
+    /** Largest value |allocatedBytes| has had. */
+    public final long highWaterAllocatedBytes;
+
+    Stats(long hitCount, long missCount, long evictionCount, long pooledBytes,
+        long allocatedBytes, long highWaterAllocatedBytes) {
+      this.hitCount = hitCount;
+      this.missCount = missCount;
+      this.evictionCount = evictionCount;
+      this.pooledBytes = pooledBytes;
+      this.allocatedBytes = allocatedBytes;
+      this.highWaterAllocatedBytes = highWaterAllocatedBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "hits: " + hitCount + ", misses: " + missCount + ", evictions: " + evictionCount
+          + ", pooled bytes: " + pooledBytes + ", allocated bytes: " + allocatedBytes
+          + ", high water: " + highWaterAllocatedBytes;
+    }
+  }
+
+  // Idle buffers, keyed by capacity.
+  private final Map<Integer, ArrayDeque<ByteBuffer>> buckets = new HashMap<>();
+  private int maxBuffersPerBucket;
+  private long maxPooledBytes;
+
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+  private long pooledBytes;
+  private long allocatedBytes;
+  private long highWaterAllocatedBytes;
+
+  /** Returns the pool that backs JavaI420Buffer.allocate(). */
+  public static NativeByteBufferPool getDefault() {
+    return defaultPool;
+  }
+
+  NativeByteBufferPool(int maxBuffersPerBucket, long maxPooledBytes) {
+    this.maxBuffersPerBucket = maxBuffersPerBucket;
+    this.maxPooledBytes = maxPooledBytes;
+  }
+
+  /**
+   * Changes the bounds of the pool. Idle buffers exceeding the new bounds are freed immediately.
+   * Setting either value to zero disables pooling.
+   */
+  public synchronized void setLimits(int maxBuffersPerBucket, long maxPooledBytes) {
+    if (maxBuffersPerBucket < 0 || maxPooledBytes < 0) {
+      throw new IllegalArgumentException("Pool limits must be non-negative.");
+    }
+    this.maxBuffersPerBucket = maxBuffersPerBucket;
+    this.maxPooledBytes = maxPooledBytes;
+    trimTo(maxBuffersPerBucket, maxPooledBytes);
+  }
+
+  /** Frees all idle buffers. Buffers currently in use are not affected. */
+  public synchronized void trim() {
+    trimTo(0 /* maxBuffersPerBucket */, 0 /* maxPooledBytes */);
+  }
+
+  public synchronized Stats getStats() {
+    return new Stats(hitCount, missCount, evictionCount, pooledBytes, allocatedBytes,
+        highWaterAllocatedBytes);
+  }
+
+  /**
+   * Returns a direct buffer with at least |size| bytes of capacity. The buffer must be handed back
+   * with recycle() and not be used afterwards.
+   */
+  ByteBuffer acquire(int size) {
+    final int capacity = bucketCapacity(size);
+    synchronized (this) {
+      final ArrayDeque<ByteBuffer> bucket = buckets.get(capacity);
+      if (bucket != null && !bucket.isEmpty()) {
+        ++hitCount;
+        pooledBytes -= capacity;
+        return bucket.pollLast();
+      }
+      ++missCount;
+      allocatedBytes += capacity;
+      highWaterAllocatedBytes = Math.max(highWaterAllocatedBytes, allocatedBytes);
+    }
+    return JniCommon.nativeAllocateByteBuffer(capacity);
+  }
+
+  /** Returns a buffer obtained from acquire() to the pool, or frees it if the pool is full. */
+  void recycle(ByteBuffer buffer) {
+    final int capacity = buffer.capacity();
+    synchronized (this) {
+      ArrayDeque<ByteBuffer> bucket = buckets.get(capacity);
+      final int bucketSize = (bucket == null) ? 0 : bucket.size();
+      if (bucketSize < maxBuffersPerBucket && pooledBytes + capacity <= maxPooledBytes) {
+        if (bucket == null) {
+          bucket = new ArrayDeque<>();
+          buckets.put(capacity, bucket);
+        }
+        buffer.clear();
+        bucket.addLast(buffer);
+        pooledBytes += capacity;
+        return;
+      }
+      ++evictionCount;
+      allocatedBytes -= capacity;
+    }
+    JniCommon.nativeFreeByteBuffer(buffer);
+  }
+
+  // Frees idle buffers until the pool fits within the given bounds. Oldest buffers are freed first.
+  private void trimTo(int maxBuffersPerBucket, long maxPooledBytes) {
+    final Iterator<ArrayDeque<ByteBuffer>> it = buckets.values().iterator();
+    while (it.hasNext()) {
+      final ArrayDeque<ByteBuffer> bucket = it.next();
+      while (!bucket.isEmpty()
+          && (bucket.size() > maxBuffersPerBucket || pooledBytes > maxPooledBytes)) {
+        freePooledBuffer(bucket.pollFirst());
+      }
+      if (bucket.isEmpty()) {
+        it.remove();
+      }
+    }
+    Logging.d(TAG, "Trimmed pool: " + getStats());
+  }
+
+  private void freePooledBuffer(ByteBuffer buffer) {
+    pooledBytes -= buffer.capacity();
+    allocatedBytes -= buffer.capacity();
+    JniCommon.nativeFreeByteBuffer(buffer);
+  }
+
+  private static int bucketCapacity(int size) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("Invalid buffer size: " + size);
+    }
+    return (int) (((long) size + BUCKET_GRANULARITY_BYTES - 1) / BUCKET_GRANULARITY_BYTES
+        * BUCKET_GRANULARITY_BYTES);
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Render thread that many EglRenderers can share instead of each creating a thread of its own, e.g.
+ * for the tiles of a gallery view. Pass it to EglRenderer.init(SharedEglRenderThread, ...).
+ *
+ * <p>All renderers draw on the same thread, with EGL contexts in the same share group, and share
+ * one VideoFrameDrawer, so the YUV textures are allocated once. Renderers that have received a
+ * frame are drawn together in one pass at most once per display refresh period. The thread count
+ * and texture memory thus stay flat as the number of renderers grows. Per-renderer render times are
+ * logged by each EglRenderer as usual and available from EglRenderer.getRenderStats(); the render
+ * passes of the thread are available from getPassStats().
+ */
+public class SharedEglRenderThread {
+  private static final String TAG = "SharedEglRenderThread";
+  private static final long LOG_INTERVAL_SEC = 4;
+  private static final float DEFAULT_REFRESH_RATE_HZ = 60f;
+
+  /** Snapshot of the render pass counters of a SharedEglRenderThread, since it was created. */
+  public static class PassStats {
+    /** Number of renderers currently using the thread. */
+    public final int rendererCount;
+    /** Number of render passes. */
+    public final long passCount;
+    /** Number of frames drawn in all render passes. */
+    public final long framesDrawn;
+    /** Average time of one render pass, for all renderers drawn in it. */
+    public final double averagePassTimeMs;
+
+    PassStats(int rendererCount, long passCount, long framesDrawn, double averagePassTimeMs) {
+      this.rendererCount = rendererCount;
+      this.passCount = passCount;
+      this.framesDrawn = framesDrawn;
+      this.averagePassTimeMs = averagePassTimeMs;
+    }
+
+    @Override
+    public String toString() {
+      return "renderers: " + rendererCount + ", render passes: " + passCount
+          + ", frames drawn: " + framesDrawn + ", average pass time ms: " + averagePassTimeMs;
+    }
+  }
+
+  private final String name;
+  private final Handler handler;
+  private final int[] configAttributes;
+  private final long refreshPeriodNs;
+  // Owns the share group. Only accessed on the render thread.
+  private final EglBase rootEglBase;
+  // Shared by all renderers. Only accessed on the render thread.
+  private final VideoFrameDrawer frameDrawer = new VideoFrameDrawer();
+
+  // These variables are synchronized on |lock|.
+  private final Object lock = new Object();
+  // Renderers with a pending frame, drawn in the next pass.
+  private final LinkedHashSet<EglRenderer> dirtyRenderers = new LinkedHashSet<>();
+  private boolean isPassScheduled;
+  private long lastPassTimeNs;
+  private int rendererCount;
+  private boolean isReleased;
+  // Totals for getPassStats(), never reset.
+  private long totalPassCount;
+  private long totalFramesDrawn;
+  private long totalPassTimeNs;
+
+  // These variables are only accessed on the render thread and reset when they are logged.
+  private int passCount;
+  private int drawCount;
+  private long passTimeNs;
+
+  private final Runnable renderPassRunnable = this::renderPass;
+  private final Runnable logStatisticsRunnable = new Runnable() {
+    @Override
+    public void run() {
+      logStatistics();
+      handler.postDelayed(this, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+    }
+  };
+
+  /**
+   * Creates the render thread and the EGL share group, sharing resources with |sharedContext|. All
+   * renderers using this thread create their EGL contexts with |configAttributes|. Renderers are
+   * drawn at most 60 times per second.
+   */
+  public static SharedEglRenderThread create(
+      String name, @Nullable EglBase.Context sharedContext, int[] configAttributes) {
+    return create(name, sharedContext, configAttributes, DEFAULT_REFRESH_RATE_HZ);
+  }
+
+  /**
+   * Same as above, but draws renderers at most |refreshRateHz| times per second. Use the refresh
+   * rate of the display the renderers are shown on.
+   */
+  public static SharedEglRenderThread create(String name, @Nullable EglBase.Context sharedContext,
+      int[] configAttributes, float refreshRateHz) {
+    if (refreshRateHz <= 0) {
+      throw new IllegalArgumentException("Invalid refresh rate: " + refreshRateHz);
+    }
+    final HandlerThread thread = new HandlerThread(name);
+    thread.start();
+    final Handler handler = new Handler(thread.getLooper());
+    // Create the EGL context on the render thread, see EglRenderer.init().
+    final EglBase rootEglBase = ThreadUtils.invokeAtFrontUninterruptibly(
+        handler, () -> EglBase.create(sharedContext, configAttributes));
+    return new SharedEglRenderThread(name, handler, configAttributes,
+        (long) (TimeUnit.SECONDS.toNanos(1) / refreshRateHz), rootEglBase);
+  }
+
+  private SharedEglRenderThread(String name, Handler handler, int[] configAttributes,
+      long refreshPeriodNs, EglBase rootEglBase) {
+    this.name = name;
+    this.handler = handler;
+    this.configAttributes = configAttributes;
+    this.refreshPeriodNs = refreshPeriodNs;
+    this.rootEglBase = rootEglBase;
+    handler.postDelayed(logStatisticsRunnable, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+  }
+
+  /**
+   * Stops the render thread and releases the share group. All renderers using this thread must
+   * have been released first.
+   */
+  public void release() {
+    synchronized (lock) {
+      if (isReleased) {
+        return;
+      }
+      if (rendererCount > 0) {
+        throw new IllegalStateException(rendererCount + " renderers still use " + name);
+      }
+      isReleased = true;
+    }
+    Logging.d(TAG, name + " releasing.");
+    handler.removeCallbacks(logStatisticsRunnable);
+    handler.removeCallbacks(renderPassRunnable);
+    ThreadUtils.invokeAtFrontUninterruptibly(handler, () -> {
+      // The renderer contexts are gone, so the shared textures are deleted in the root context. It
+      // has no surface of its own, and its config might not support pbuffers.
+      try {
+        rootEglBase.createDummyPbufferSurface();
+        rootEglBase.makeCurrent();
+        frameDrawer.release();
+        rootEglBase.detachCurrent();
+      } catch (RuntimeException e) {
+        Logging.w(TAG, name + " could not release the shared textures: " + e);
+      }
+      rootEglBase.release();
+    });
+    handler.getLooper().quit();
+  }
+
+  /** Returns the render pass counters of this thread. Can be called on any thread. */
+  public PassStats getPassStats() {
+    synchronized (lock) {
+      return new PassStats(rendererCount, totalPassCount, totalFramesDrawn,
+          (totalPassCount == 0) ? 0 : totalPassTimeNs / (double) totalPassCount / 1e6);
+    }
+  }
+
+  Handler getHandler() {
+    return handler;
+  }
+
+  /** Must be called on the render thread. */
+  VideoFrameDrawer getFrameDrawer() {
+    return frameDrawer;
+  }
+
+  /**
+   * Creates the EGL context for a new renderer in the share group. Must be called on the render
+   * thread.
+   */
+  EglBase addRenderer() {
+    synchronized (lock) {
+      if (isReleased) {
+        throw new IllegalStateException(name + " has been released");
+      }
+      ++rendererCount;
+    }
+    return EglBase.create(rootEglBase.getEglBaseContext(), configAttributes);
+  }
+
+  /**
+   * Called on the render thread when a renderer releases its resources. The shared textures are
+   * kept for later renderers and released in release().
+   */
+  void removeRenderer(EglRenderer renderer) {
+    synchronized (lock) {
+      dirtyRenderers.remove(renderer);
+      --rendererCount;
+    }
+  }
+
+  /** Schedules |renderer| to be drawn in the next render pass. Can be called on any thread. */
+  void scheduleRender(EglRenderer renderer) {
+    synchronized (lock) {
+      dirtyRenderers.add(renderer);
+      if (isPassScheduled || isReleased) {
+        return;
+      }
+      isPassScheduled = true;
+      // Wait for the next refresh period, so that frames arriving for other renderers in the
+      // meantime are drawn in the same pass.
+      final long delayNs = Math.max(0, lastPassTimeNs + refreshPeriodNs - System.nanoTime());
+      handler.postAtTime(
+          renderPassRunnable, SystemClock.uptimeMillis() + TimeUnit.NANOSECONDS.toMillis(delayNs));
+    }
+  }
+
+  private void renderPass() {
+    final long startTimeNs = System.nanoTime();
+    final List<EglRenderer> renderers;
+    synchronized (lock) {
+      renderers = new ArrayList<>(dirtyRenderers);
+      dirtyRenderers.clear();
+      isPassScheduled = false;
+      lastPassTimeNs = startTimeNs;
+    }
+    for (EglRenderer renderer : renderers) {
+      renderer.renderFrameOnRenderThread();
+    }
+    final long durationNs = System.nanoTime() - startTimeNs;
+    ++passCount;
+    drawCount += renderers.size();
+    passTimeNs += durationNs;
+    synchronized (lock) {
+      ++totalPassCount;
+      totalFramesDrawn += renderers.size();
+      totalPassTimeNs += durationNs;
+    }
+  }
+
+  private void logStatistics() {
+    final int renderers;
+    synchronized (lock) {
+      renderers = rendererCount;
+    }
+    final String averagePassTime =
+        (passCount == 0) ? "NA" : TimeUnit.NANOSECONDS.toMicros(passTimeNs / passCount) + " us";
+    Logging.d(TAG,
+        name + " Renderers: " + renderers + ". Render passes: " + passCount
+            + ". Frames drawn: " + drawCount + ". Average pass time: " + averagePassTime + ".");
+    passCount = 0;
+    drawCount = 0;
+    passTimeNs = 0;
+  }
+}
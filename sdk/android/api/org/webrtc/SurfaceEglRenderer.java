@@ -67,6 +67,23 @@ public class SurfaceEglRenderer extends EglRenderer implements SurfaceHolder.Cal
     init(sharedContext, null /* rendererEvents */, configAttributes, drawer);
   }
 
+  /**
+   * Initialize this class to render on |sharedRenderThread|, together with other renderers. See
+   * EglRenderer.init(SharedEglRenderThread, RendererCommon.GlDrawer, boolean).
+   */
+  public void init(final SharedEglRenderThread sharedRenderThread,
+      RendererCommon.RendererEvents rendererEvents, RendererCommon.GlDrawer drawer) {
+    ThreadUtils.checkIsOnMainThread();
+    this.rendererEvents = rendererEvents;
+    synchronized (layoutLock) {
+      isFirstFrameRendered = false;
+      rotatedFrameWidth = 0;
+      rotatedFrameHeight = 0;
+      frameRotation = 0;
+    }
+    super.init(sharedRenderThread, drawer, /* usePresentationTimeStamp= */ false);
+  }
+
   /**
    * Limit render framerate.
    *
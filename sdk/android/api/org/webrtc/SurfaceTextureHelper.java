@@ -15,24 +15,30 @@ import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.support.annotation.Nullable;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.webrtc.EglBase;
 import org.webrtc.VideoFrame.TextureBuffer;
 
 /**
  * Helper class for using a SurfaceTexture to create WebRTC VideoFrames. In order to create WebRTC
- * VideoFrames, render onto the SurfaceTexture. The frames will be delivered to the listener. Only
- * one texture frame can be in flight at once, so the frame must be released in order to receive a
- * new frame. Call stopListening() to stop receiveing new frames. Call dispose to release all
- * resources once the texture frame is released.
+ * VideoFrames, render onto the SurfaceTexture. The frames will be delivered to the listener. By
+ * default only one texture frame can be in flight at once, so the frame must be released in order
+ * to receive a new frame. With a texture ring, each frame is copied into one of several textures
+ * instead, so that several frames can be in flight. Call stopListening() to stop receiveing new
+ * frames. Call dispose to release all resources once the texture frames are released.
  */
 public class SurfaceTextureHelper {
   private static final String TAG = "SurfaceTextureHelper";
+  // How often a copied frame of the texture ring is checked for completion by the GPU.
+  private static final int COPY_FENCE_POLL_INTERVAL_MS = 1;
   /**
    * Construct a new SurfaceTextureHelper sharing OpenGL resources with |sharedContext|. A dedicated
    * thread and handler is created for handling the SurfaceTexture. May return null if EGL fails to
@@ -45,6 +51,23 @@ public class SurfaceTextureHelper {
   public static SurfaceTextureHelper create(final String threadName,
       final EglBase.Context sharedContext, boolean alignTimestamps,
       final YuvConverter yuvConverter) {
+    return create(
+        threadName, sharedContext, alignTimestamps, yuvConverter, /* textureRingSize= */ 0);
+  }
+
+  /**
+   * Same as above, but with a ring of |textureRingSize| textures. When positive, every frame is
+   * copied from the OES texture into a free RGB texture of the ring, and up to |textureRingSize|
+   * frames can be in flight at once. Frames that arrive while all textures are in use are dropped
+   * instead of stalling the producer. Zero disables the ring, in which case the OES texture itself
+   * is delivered and only one frame can be in flight.
+   */
+  public static SurfaceTextureHelper create(final String threadName,
+      final EglBase.Context sharedContext, boolean alignTimestamps,
+      final YuvConverter yuvConverter, final int textureRingSize) {
+    if (textureRingSize < 0) {
+      throw new IllegalArgumentException("Invalid texture ring size: " + textureRingSize);
+    }
     final HandlerThread thread = new HandlerThread(threadName);
     thread.start();
     final Handler handler = new Handler(thread.getLooper());
@@ -58,7 +81,8 @@ public class SurfaceTextureHelper {
       @Override
       public SurfaceTextureHelper call() {
         try {
-          return new SurfaceTextureHelper(sharedContext, handler, alignTimestamps, yuvConverter);
+          return new SurfaceTextureHelper(
+              sharedContext, handler, alignTimestamps, yuvConverter, textureRingSize);
         } catch (RuntimeException e) {
           Logging.e(TAG, threadName + " create failure", e);
           return null;
@@ -94,6 +118,34 @@ public class SurfaceTextureHelper {
   private final YuvConverter yuvConverter;
   @Nullable private final TimestampAligner timestampAligner;
 
+  // Copy of a frame in a regular texture, used when the texture ring is enabled.
+  private static class TextureSlot {
+    final GlTextureFrameBuffer frameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+    boolean inUse;
+    // Fence that signals when the copy into |frameBuffer| has completed, or 0 if there is none.
+    long copyFence;
+    // Frame waiting for |copyFence| before it is delivered.
+    @Nullable VideoFrame pendingFrame;
+  }
+
+  // Null when the texture ring is disabled. Only accessed from the |handler| thread.
+  @Nullable private final TextureSlot[] textureRing;
+  @Nullable private final GlRectDrawer textureRingDrawer;
+  private int usedTextureSlotCount;
+  // Whether copies are synchronized with fences (GLES3) instead of glFinish().
+  private final boolean useCopyFences;
+  // Slots whose copy has been issued but not delivered yet, in copy order.
+  private final ArrayDeque<TextureSlot> pendingTextureSlots = new ArrayDeque<>();
+  private boolean isCopyFencePollPosted;
+  private final Runnable deliverCopiedFramesRunnable = () -> {
+    isCopyFencePollPosted = false;
+    deliverCopiedFrames();
+  };
+  // Number of frames dropped because all texture slots were in use, and number of times all slots
+  // became used.
+  private final AtomicInteger droppedFrameCount = new AtomicInteger();
+  private final AtomicInteger textureRingFullCount = new AtomicInteger();
+
   // These variables are only accessed from the |handler| thread.
   @Nullable private VideoSink listener;
   // The possible states of this class.
@@ -122,7 +174,7 @@ public class SurfaceTextureHelper {
   };
 
   private SurfaceTextureHelper(EglBase.Context sharedContext, Handler handler,
-      boolean alignTimestamps, YuvConverter yuvConverter) {
+      boolean alignTimestamps, YuvConverter yuvConverter, int textureRingSize) {
     if (handler.getLooper().getThread() != Thread.currentThread()) {
       throw new IllegalStateException("SurfaceTextureHelper must be created on the handler thread");
     }
@@ -142,6 +194,20 @@ public class SurfaceTextureHelper {
       throw e;
     }
 
+    if (textureRingSize > 0) {
+      textureRing = new TextureSlot[textureRingSize];
+      for (int i = 0; i < textureRingSize; ++i) {
+        textureRing[i] = new TextureSlot();
+      }
+      textureRingDrawer = new GlRectDrawer();
+      useCopyFences = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+          && GlUtil.getGlesMajorVersion() >= 3;
+    } else {
+      textureRing = null;
+      textureRingDrawer = null;
+      useCopyFences = false;
+    }
+
     oesTextureId = GlUtil.generateTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES);
     surfaceTexture = new SurfaceTexture(oesTextureId);
     setOnFrameAvailableListener(surfaceTexture, (SurfaceTexture st) -> {
@@ -186,6 +252,7 @@ public class SurfaceTextureHelper {
     ThreadUtils.invokeAtFrontUninterruptibly(handler, () -> {
       listener = null;
       pendingListener = null;
+      dropCopiedFrames();
     });
   }
 
@@ -227,8 +294,9 @@ public class SurfaceTextureHelper {
   }
 
   /**
-   * This function is called when the texture frame is released. Only one texture frame can be in
-   * flight at once, so this function must be called before a new frame is delivered.
+   * This function is called when the OES texture frame is released. Without a texture ring, only
+   * one texture frame can be in flight at once, so this function must be called before a new frame
+   * is delivered.
    */
   private void returnTextureFrame() {
     handler.post(() -> {
@@ -241,10 +309,40 @@ public class SurfaceTextureHelper {
     });
   }
 
+  // Called when a frame delivered from |slot| of the texture ring is released.
+  private void returnTextureSlot(TextureSlot slot) {
+    handler.post(() -> {
+      slot.inUse = false;
+      --usedTextureSlotCount;
+      isTextureInUse = false;
+      if (isQuitting) {
+        if (usedTextureSlotCount == 0) {
+          release();
+        }
+      } else {
+        tryDeliverTextureFrame();
+      }
+    });
+  }
+
+  /**
+   * Returns true if no new frame can be delivered until a frame is released, i.e. if the texture
+   * frame is in use or, with a texture ring, all textures of the ring are in use.
+   */
   public boolean isTextureInUse() {
     return isTextureInUse;
   }
 
+  /** Returns the number of frames dropped because all textures of the ring were in use. */
+  public int getDroppedFrameCount() {
+    return droppedFrameCount.get();
+  }
+
+  /** Returns the number of times all textures of the ring became in use. */
+  public int getTextureRingFullCount() {
+    return textureRingFullCount.get();
+  }
+
   /**
    * Call disconnect() to stop receiving frames. OpenGL resources are released and the handler is
    * stopped when the texture frame has been released. You are guaranteed to not receive any more
@@ -254,7 +352,8 @@ public class SurfaceTextureHelper {
     Logging.d(TAG, "dispose()");
     ThreadUtils.invokeAtFrontUninterruptibly(handler, () -> {
       isQuitting = true;
-      if (!isTextureInUse) {
+      dropCopiedFrames();
+      if (!isTextureInUse && usedTextureSlotCount == 0) {
         release();
       }
     });
@@ -283,14 +382,24 @@ public class SurfaceTextureHelper {
     if (handler.getLooper().getThread() != Thread.currentThread()) {
       throw new IllegalStateException("Wrong thread.");
     }
-    if (isQuitting || !hasPendingTexture || isTextureInUse || listener == null) {
+    if (isQuitting || !hasPendingTexture || listener == null) {
+      return;
+    }
+    if (textureRing == null && isTextureInUse) {
       return;
     }
-    isTextureInUse = true;
     hasPendingTexture = false;
 
     updateTexImage();
 
+    final TextureSlot slot = (textureRing == null) ? null : findFreeTextureSlot();
+    if (textureRing != null && slot == null) {
+      // All textures of the ring are held by sinks. Drop the frame instead of stalling the
+      // producer.
+      droppedFrameCount.incrementAndGet();
+      return;
+    }
+
     final float[] transformMatrix = new float[16];
     surfaceTexture.getTransformMatrix(transformMatrix);
     long timestampNs = surfaceTexture.getTimestamp();
@@ -300,22 +409,126 @@ public class SurfaceTextureHelper {
     if (textureWidth == 0 || textureHeight == 0) {
       throw new RuntimeException("Texture size has not been set.");
     }
-    final VideoFrame.Buffer buffer =
-        new TextureBufferImpl(textureWidth, textureHeight, TextureBuffer.Type.OES, oesTextureId,
-            RendererCommon.convertMatrixToAndroidGraphicsMatrix(transformMatrix), handler,
-            yuvConverter, this ::returnTextureFrame);
-    final VideoFrame frame = new VideoFrame(buffer, frameRotation, timestampNs);
-    ((VideoSink) listener).onFrame(frame);
-    frame.release();
+    if (slot == null) {
+      isTextureInUse = true;
+      final VideoFrame.Buffer buffer = new TextureBufferImpl(textureWidth, textureHeight,
+          TextureBuffer.Type.OES, oesTextureId,
+          RendererCommon.convertMatrixToAndroidGraphicsMatrix(transformMatrix), handler,
+          yuvConverter, this ::returnTextureFrame);
+      final VideoFrame frame = new VideoFrame(buffer, frameRotation, timestampNs);
+      ((VideoSink) listener).onFrame(frame);
+      frame.release();
+      return;
+    }
+    copyToTextureSlot(slot, transformMatrix);
+    // The transformation has been applied by the copy.
+    final VideoFrame.Buffer buffer = new TextureBufferImpl(textureWidth, textureHeight,
+        TextureBuffer.Type.RGB, slot.frameBuffer.getTextureId(), new Matrix(), handler,
+        yuvConverter, () -> returnTextureSlot(slot));
+    slot.pendingFrame = new VideoFrame(buffer, frameRotation, timestampNs);
+    pendingTextureSlots.add(slot);
+    deliverCopiedFrames();
+  }
+
+  // Delivers the frames of the texture ring whose copy has completed, in copy order. If the GPU
+  // has not completed the oldest copy yet, checks again shortly instead of blocking the thread.
+  private void deliverCopiedFrames() {
+    while (!pendingTextureSlots.isEmpty()) {
+      final TextureSlot slot = pendingTextureSlots.peek();
+      if (slot.copyFence != 0) {
+        final int status = GLES30.glClientWaitSync(slot.copyFence, /* flags= */ 0,
+            /* timeout= */ 0);
+        if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+          if (!isCopyFencePollPosted) {
+            isCopyFencePollPosted = true;
+            handler.postDelayed(deliverCopiedFramesRunnable, COPY_FENCE_POLL_INTERVAL_MS);
+          }
+          return;
+        }
+        if (status == GLES30.GL_WAIT_FAILED) {
+          Logging.e(TAG, "glClientWaitSync failed: " + GLES20.glGetError());
+        }
+        GLES30.glDeleteSync(slot.copyFence);
+        slot.copyFence = 0;
+      }
+      pendingTextureSlots.poll();
+      final VideoFrame frame = slot.pendingFrame;
+      slot.pendingFrame = null;
+      if (listener != null && !isQuitting) {
+        ((VideoSink) listener).onFrame(frame);
+      }
+      frame.release();
+    }
+  }
+
+  // Releases the frames of the texture ring that have not been delivered yet.
+  private void dropCopiedFrames() {
+    for (TextureSlot slot : pendingTextureSlots) {
+      if (slot.copyFence != 0) {
+        GLES30.glDeleteSync(slot.copyFence);
+        slot.copyFence = 0;
+      }
+      slot.pendingFrame.release();
+      slot.pendingFrame = null;
+    }
+    pendingTextureSlots.clear();
+    handler.removeCallbacks(deliverCopiedFramesRunnable);
+    isCopyFencePollPosted = false;
+  }
+
+  @Nullable
+  private TextureSlot findFreeTextureSlot() {
+    for (TextureSlot slot : textureRing) {
+      if (!slot.inUse) {
+        return slot;
+      }
+    }
+    return null;
+  }
+
+  // Draws the current OES frame into |slot| and marks the slot as used.
+  private void copyToTextureSlot(TextureSlot slot, float[] transformMatrix) {
+    slot.frameBuffer.setSize(textureWidth, textureHeight);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, slot.frameBuffer.getFrameBufferId());
+    textureRingDrawer.drawOes(oesTextureId, transformMatrix, textureWidth, textureHeight,
+        /* viewportX= */ 0, /* viewportY= */ 0, textureWidth, textureHeight);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    // The texture is read from other, shared contexts. The frame is only handed out once the copy
+    // is complete. With GLES3, a fence tells when that is, and the flush makes sure the copy is
+    // submitted without waiting for it. Otherwise, wait for the copy here.
+    slot.copyFence = useCopyFences
+        ? GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, /* flags= */ 0)
+        : 0;
+    if (slot.copyFence != 0) {
+      GLES20.glFlush();
+    } else {
+      GLES20.glFinish();
+    }
+
+    slot.inUse = true;
+    ++usedTextureSlotCount;
+    if (usedTextureSlotCount == textureRing.length) {
+      textureRingFullCount.incrementAndGet();
+      isTextureInUse = true;
+    }
   }
 
   private void release() {
     if (handler.getLooper().getThread() != Thread.currentThread()) {
       throw new IllegalStateException("Wrong thread.");
     }
-    if (isTextureInUse || !isQuitting) {
+    if (isTextureInUse || usedTextureSlotCount > 0 || !isQuitting) {
       throw new IllegalStateException("Unexpected release.");
     }
+    if (textureRing != null) {
+      for (TextureSlot slot : textureRing) {
+        slot.frameBuffer.release();
+      }
+      textureRingDrawer.release();
+      Logging.d(TAG,
+          "Texture ring dropped frames: " + droppedFrameCount
+              + ", full count: " + textureRingFullCount);
+    }
     yuvConverter.release();
     GLES20.glDeleteTextures(1, new int[] {oesTextureId}, 0);
     surfaceTexture.release();
@@ -87,6 +87,29 @@ public class SurfaceViewRenderer extends SurfaceView
     eglRenderer.init(sharedContext, this /* rendererEvents */, configAttributes, drawer);
   }
 
+  /**
+   * Initialize this class to render on |sharedRenderThread| instead of on a render thread of its
+   * own. Use this for views showing many videos at once, e.g. a gallery. release() must be called
+   * before |sharedRenderThread| is released.
+   */
+  public void init(
+      SharedEglRenderThread sharedRenderThread, RendererCommon.RendererEvents rendererEvents) {
+    init(sharedRenderThread, rendererEvents, new GlRectDrawer());
+  }
+
+  /**
+   * Same as above, with a custom |drawer|. This class is responsible for calling release() on
+   * |drawer|.
+   */
+  public void init(SharedEglRenderThread sharedRenderThread,
+      RendererCommon.RendererEvents rendererEvents, RendererCommon.GlDrawer drawer) {
+    ThreadUtils.checkIsOnMainThread();
+    this.rendererEvents = rendererEvents;
+    rotatedFrameWidth = 0;
+    rotatedFrameHeight = 0;
+    eglRenderer.init(sharedRenderThread, this /* rendererEvents */, drawer);
+  }
+
   /**
    * Block until any pending frame is returned and all GL resources released, even if an interrupt
    * occurs. If an interrupt occurs during release(), the interrupt flag will be set. This function
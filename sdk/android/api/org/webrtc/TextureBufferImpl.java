@@ -13,12 +13,36 @@ package org.webrtc;
 import android.graphics.Matrix;
 import android.os.Handler;
 import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Android texture buffer that glues together the necessary information together with a generic
- * release callback. ToI420() is implemented by providing a Handler and a YuvConverter.
+ * release callback. ToI420() is implemented by providing a Handler and a YuvConverter. The I420
+ * result is cached, so that a buffer delivered to several sinks is only converted once.
  */
 public class TextureBufferImpl implements VideoFrame.TextureBuffer {
+  /** Receives the result of toI420Async(). */
+  public interface ToI420Callback {
+    /**
+     * Called with the converted buffer, which the callee takes ownership of and must release, or
+     * with null if the conversion failed.
+     */
+    void onI420Buffer(@Nullable VideoFrame.I420Buffer i420Buffer);
+  }
+
+  // A toI420Async() caller waiting for a conversion that is already in flight.
+  private static class PendingCallback {
+    final Executor executor;
+    final ToI420Callback callback;
+
+    PendingCallback(Executor executor, ToI420Callback callback) {
+      this.executor = executor;
+      this.callback = callback;
+    }
+  }
+
   // This is the full resolution the texture has in memory after applying the transformation matrix
   // that might include cropping. This resolution is useful to know when sampling the texture to
   // avoid downscaling artifacts.
@@ -34,6 +58,15 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
   private final YuvConverter yuvConverter;
   private final RefCountDelegate refCountDelegate;
 
+  private final Object i420Lock = new Object();
+  // Result of the first conversion of this buffer, returned to all later callers of toI420() and
+  // toI420Async(). Holds one reference that is released together with this buffer.
+  @Nullable private VideoFrame.I420Buffer cachedI420Buffer;
+  // Callers waiting for the conversion in flight, or null if there is none. Conversions are run on
+  // the texture thread, by toI420() or as a queued asynchronous conversion.
+  @Nullable private List<PendingCallback> pendingI420Callbacks;
+  private boolean isReleased;
+
   public TextureBufferImpl(int width, int height, Type type, int id, Matrix transformMatrix,
       Handler toI420Handler, YuvConverter yuvConverter, @Nullable Runnable releaseCallback) {
     this.unscaledWidth = width;
@@ -45,7 +78,7 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
     this.transformMatrix = transformMatrix;
     this.toI420Handler = toI420Handler;
     this.yuvConverter = yuvConverter;
-    this.refCountDelegate = new RefCountDelegate(releaseCallback);
+    this.refCountDelegate = new RefCountDelegate(() -> onRefCountZero(releaseCallback));
   }
 
   private TextureBufferImpl(int unscaledWidth, int unscaledHeight, int width, int height, Type type,
@@ -60,7 +93,7 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
     this.transformMatrix = transformMatrix;
     this.toI420Handler = toI420Handler;
     this.yuvConverter = yuvConverter;
-    this.refCountDelegate = new RefCountDelegate(releaseCallback);
+    this.refCountDelegate = new RefCountDelegate(() -> onRefCountZero(releaseCallback));
   }
 
   @Override
@@ -90,8 +123,61 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
 
   @Override
   public VideoFrame.I420Buffer toI420() {
-    return ThreadUtils.invokeAtFrontUninterruptibly(
-        toI420Handler, () -> yuvConverter.convert(this));
+    synchronized (i420Lock) {
+      if (cachedI420Buffer != null) {
+        yuvConverter.onConversionSaved();
+        cachedI420Buffer.retain();
+        return cachedI420Buffer;
+      }
+    }
+    // Conversions of this buffer run on the texture thread, so the cache is checked again there.
+    return ThreadUtils.invokeAtFrontUninterruptibly(toI420Handler, this::toI420OnTextureThread);
+  }
+
+  /**
+   * Non-blocking variant of toI420(). The conversion is queued behind other work on the texture
+   * thread instead of blocking the caller, and conversions requested by several consumers are run
+   * in one pipelined batch. |callback| is run on |executor| when the conversion is done. This
+   * buffer is retained until then. Queue and conversion times are available from
+   * YuvConverter.getAsyncConversionStats().
+   */
+  public void toI420Async(Executor executor, ToI420Callback callback) {
+    final VideoFrame.I420Buffer cachedBuffer;
+    final YuvConverter.AsyncConversion conversion;
+    synchronized (i420Lock) {
+      cachedBuffer = cachedI420Buffer;
+      if (cachedBuffer != null) {
+        cachedBuffer.retain();
+        conversion = null;
+      } else if (pendingI420Callbacks != null) {
+        // Share the result of the conversion in flight.
+        pendingI420Callbacks.add(new PendingCallback(executor, callback));
+        yuvConverter.onConversionSaved();
+        return;
+      } else {
+        pendingI420Callbacks = new ArrayList<>();
+        pendingI420Callbacks.add(new PendingCallback(executor, callback));
+        retain();
+        // Queued under the lock, so that a toI420() call that sees the pending callbacks finds the
+        // conversion in the queue. The internal callback runs directly on the texture thread and
+        // dispatches to the callers.
+        conversion =
+            yuvConverter.enqueueAsyncConversion(this, Runnable::run, this::onConversionDone);
+      }
+    }
+    if (cachedBuffer != null) {
+      yuvConverter.onConversionSaved();
+      executor.execute(() -> callback.onI420Buffer(cachedBuffer));
+      return;
+    }
+
+    if (!toI420Handler.post(yuvConverter::processAsyncConversions)) {
+      // The texture thread is gone. Fail the conversion unless an earlier task already took it.
+      if (yuvConverter.cancelAsyncConversion(conversion)) {
+        release();
+        onConversionDone(null);
+      }
+    }
   }
 
   @Override
@@ -155,6 +241,78 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
         /* scaledHeight= */ newHeight);
   }
 
+  // Returns the result of the first conversion of this buffer. An asynchronous conversion in flight
+  // is run right away and its result shared, otherwise the buffer is converted here. The conversion
+  // runs without holding |i420Lock|, so toI420Async() callers on other threads are never blocked
+  // by it. Must be called on the texture thread.
+  private VideoFrame.I420Buffer toI420OnTextureThread() {
+    while (true) {
+      synchronized (i420Lock) {
+        if (cachedI420Buffer != null) {
+          yuvConverter.onConversionSaved();
+          cachedI420Buffer.retain();
+          return cachedI420Buffer;
+        }
+        if (pendingI420Callbacks == null) {
+          // Let toI420Async() callers share the result of this conversion.
+          pendingI420Callbacks = new ArrayList<>();
+          break;
+        }
+      }
+      // Asynchronous conversions are run on this thread, so they cannot be in progress. The queued
+      // conversion delivers and caches its result before this call returns.
+      yuvConverter.processAsyncConversions();
+    }
+
+    final VideoFrame.I420Buffer i420Buffer;
+    try {
+      i420Buffer = yuvConverter.convert(this);
+    } catch (RuntimeException e) {
+      onConversionDone(null);
+      throw e;
+    }
+    // Keep a reference for the caller, onConversionDone() releases the one from convert().
+    i420Buffer.retain();
+    onConversionDone(i420Buffer);
+    return i420Buffer;
+  }
+
+  // Caches |i420Buffer| and passes it to the callers waiting for the conversion in flight. Takes
+  // ownership of |i420Buffer|.
+  private void onConversionDone(@Nullable VideoFrame.I420Buffer i420Buffer) {
+    final List<PendingCallback> callbacks;
+    synchronized (i420Lock) {
+      callbacks = pendingI420Callbacks;
+      pendingI420Callbacks = null;
+      if (i420Buffer != null && cachedI420Buffer == null && !isReleased) {
+        i420Buffer.retain();
+        cachedI420Buffer = i420Buffer;
+      }
+    }
+    for (PendingCallback pendingCallback : callbacks) {
+      if (i420Buffer != null) {
+        i420Buffer.retain();
+      }
+      pendingCallback.executor.execute(() -> pendingCallback.callback.onI420Buffer(i420Buffer));
+    }
+    if (i420Buffer != null) {
+      i420Buffer.release();
+    }
+  }
+
+  private void onRefCountZero(@Nullable Runnable releaseCallback) {
+    synchronized (i420Lock) {
+      isReleased = true;
+      if (cachedI420Buffer != null) {
+        cachedI420Buffer.release();
+        cachedI420Buffer = null;
+      }
+    }
+    if (releaseCallback != null) {
+      releaseCallback.run();
+    }
+  }
+
   private TextureBufferImpl applyTransformMatrix(Matrix transformMatrix, int unscaledWidth,
       int unscaledHeight, int scaledWidth, int scaledHeight) {
     final Matrix newMatrix = new Matrix(this.transformMatrix);
@@ -10,11 +10,15 @@
 
 package org.webrtc;
 
+import android.annotation.TargetApi;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
 import android.support.annotation.Nullable;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Helper class to draw VideoFrames. Calls either drawer.drawOes, drawer.drawRgb, or
@@ -49,16 +53,73 @@ public class VideoFrameDrawer {
     }
   }
 
+  /** Snapshot of the YUV texture upload counters of a VideoFrameDrawer. */
+  public static class UploadStats {
+    /** Number of I420 frames uploaded to textures. */
+    public final long uploadCount;
+    /** Number of uploads that reallocated the texture storage because the frame size changed. */
+    public final long reallocationCount;
+    /** Number of planes that were repacked on the CPU because their stride could not be used. */
+    public final long repackedPlaneCount;
+    /** Number of uploads that went through a pixel unpack buffer. */
+    public final long pixelUnpackBufferUploadCount;
+    /** Average time spent uploading a frame on the GL thread. */
+    public final double averageUploadTimeMs;
+
+    UploadStats(long uploadCount, long reallocationCount, long repackedPlaneCount,
+        long pixelUnpackBufferUploadCount, double averageUploadTimeMs) {
+      this.uploadCount = uploadCount;
+      this.reallocationCount = reallocationCount;
+      this.repackedPlaneCount = repackedPlaneCount;
+      this.pixelUnpackBufferUploadCount = pixelUnpackBufferUploadCount;
+      this.averageUploadTimeMs = averageUploadTimeMs;
+    }
+
+    @Override
+    public String toString() {
+      return "uploads: " + uploadCount + ", reallocations: " + reallocationCount
+          + ", repacked planes: " + repackedPlaneCount + ", pixel unpack buffer uploads: "
+          + pixelUnpackBufferUploadCount + ", average upload time ms: " + averageUploadTimeMs;
+    }
+  }
+
   /**
-   * Helper class for uploading YUV bytebuffer frames to textures that handles stride > width. This
-   * class keeps an internal ByteBuffer to avoid unnecessary allocations for intermediate copies.
+   * Helper class for uploading YUV bytebuffer frames to textures that handles stride > width.
+   * Texture storage is only respecified when the frame size changes. On OpenGL ES 3 contexts,
+   * planes are uploaded directly with GL_UNPACK_ROW_LENGTH set to their stride, and optionally
+   * streamed through pixel unpack buffers. Otherwise, planes with stride > width are repacked into
+   * an internal ByteBuffer, which avoids unnecessary allocations for intermediate copies. Leaves
+   * GL_UNPACK_ALIGNMENT at 1.
    */
   private static class YuvUploader {
-    // Intermediate copy buffer for uploading yuv frames that are not packed, i.e. stride > width.
-    // TODO(magjed): Investigate when GL_UNPACK_ROW_LENGTH is available, or make a custom shader
-    // that handles stride and compare performance with intermediate copy.
+    // Number of pixel unpack buffers used in turn, so that filling one does not wait for the
+    // previous upload from it.
+    private static final int PIXEL_UNPACK_BUFFER_COUNT = 2;
+
+    // Intermediate copy buffer for uploading yuv frames that are not packed, i.e. stride > width,
+    // on contexts without GL_UNPACK_ROW_LENGTH.
     @Nullable private ByteBuffer copyBuffer;
     @Nullable private int[] yuvTextures;
+    // Size of the storage of each texture in |yuvTextures|.
+    private final int[] textureWidths = new int[3];
+    private final int[] textureHeights = new int[3];
+    // GLES 3 features, queried on first use.
+    @Nullable private Boolean unpackRowLengthSupported;
+    @Nullable private Boolean pixelUnpackBuffersSupported;
+    private boolean pixelUnpackBufferEnabled;
+    @Nullable private int[] pixelUnpackBuffers;
+    private final int[] pixelUnpackBufferCapacities = new int[PIXEL_UNPACK_BUFFER_COUNT];
+    private int nextPixelUnpackBuffer;
+
+    private long uploadCount;
+    private long reallocationCount;
+    private long repackedPlaneCount;
+    private long pixelUnpackBufferUploadCount;
+    private long uploadTimeNs;
+
+    public void setPixelUnpackBufferEnabled(boolean enabled) {
+      pixelUnpackBufferEnabled = enabled;
+    }
 
     /**
      * Upload |planes| into OpenGL textures, taking stride into consideration.
@@ -67,45 +128,147 @@ public class VideoFrameDrawer {
      */
     @Nullable
     public int[] uploadYuvData(int width, int height, int[] strides, ByteBuffer[] planes) {
+      final long startTimeNs = System.nanoTime();
       final int[] planeWidths = new int[] {width, width / 2, width / 2};
       final int[] planeHeights = new int[] {height, height / 2, height / 2};
-      // Make a first pass to see if we need a temporary copy buffer.
-      int copyCapacityNeeded = 0;
-      for (int i = 0; i < 3; ++i) {
-        if (strides[i] > planeWidths[i]) {
-          copyCapacityNeeded = Math.max(copyCapacityNeeded, planeWidths[i] * planeHeights[i]);
-        }
-      }
-      // Allocate copy buffer if necessary.
-      if (copyCapacityNeeded > 0
-          && (copyBuffer == null || copyBuffer.capacity() < copyCapacityNeeded)) {
-        copyBuffer = ByteBuffer.allocateDirect(copyCapacityNeeded);
-      }
       // Make sure YUV textures are allocated.
       if (yuvTextures == null) {
         yuvTextures = new int[3];
         for (int i = 0; i < 3; i++) {
           yuvTextures[i] = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
+          textureWidths[i] = 0;
+          textureHeights[i] = 0;
+        }
+      }
+      if (unpackRowLengthSupported == null) {
+        unpackRowLengthSupported = GlUtil.getGlesMajorVersion() >= 3;
+        // GLES30.glTexSubImage2D() with a buffer offset is only available from API level 24.
+        pixelUnpackBuffersSupported =
+            unpackRowLengthSupported && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+      }
+      // Rows are tightly packed at |strides|, which need not be a multiple of 4.
+      GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+
+      if (pixelUnpackBufferEnabled && pixelUnpackBuffersSupported) {
+        uploadThroughPixelUnpackBuffer(planeWidths, planeHeights, strides, planes);
+      } else {
+        for (int i = 0; i < 3; ++i) {
+          GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+          GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, yuvTextures[i]);
+          final ByteBuffer plane;
+          if (strides[i] == planeWidths[i]) {
+            // Input is packed already.
+            plane = planes[i];
+          } else if (unpackRowLengthSupported) {
+            GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, strides[i]);
+            plane = planes[i];
+          } else {
+            plane = repackPlane(planes[i], strides[i], planeWidths[i], planeHeights[i]);
+          }
+          uploadPlane(i, planeWidths[i], planeHeights[i], plane);
+          if (strides[i] != planeWidths[i] && unpackRowLengthSupported) {
+            GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0);
+          }
         }
       }
-      // Upload each plane.
+      GlUtil.checkNoGLES2Error("YuvUploader.uploadYuvData");
+      ++uploadCount;
+      uploadTimeNs += System.nanoTime() - startTimeNs;
+      return yuvTextures;
+    }
+
+    // Repacks |plane| into |copyBuffer|, since GLES 2 only accepts packed data.
+    private ByteBuffer repackPlane(ByteBuffer plane, int stride, int planeWidth, int planeHeight) {
+      final int capacityNeeded = planeWidth * planeHeight;
+      if (copyBuffer == null || copyBuffer.capacity() < capacityNeeded) {
+        copyBuffer = ByteBuffer.allocateDirect(capacityNeeded);
+      }
+      YuvHelper.copyPlane(plane, stride, copyBuffer, planeWidth, planeWidth, planeHeight);
+      ++repackedPlaneCount;
+      return copyBuffer;
+    }
+
+    // Uploads to the bound texture of plane |index|, respecifying the texture storage only if the
+    // size has changed.
+    private void uploadPlane(int index, int planeWidth, int planeHeight, ByteBuffer plane) {
+      if (textureWidths[index] == planeWidth && textureHeights[index] == planeHeight) {
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, planeWidth, planeHeight,
+            GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, plane);
+        return;
+      }
+      GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, planeWidth, planeHeight, 0,
+          GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, plane);
+      textureWidths[index] = planeWidth;
+      textureHeights[index] = planeHeight;
+      if (index == 0) {
+        ++reallocationCount;
+      }
+    }
+
+    // Copies all planes, keeping their strides, into the next pixel unpack buffer and uploads them
+    // from there. The copy into mapped memory replaces the copy the driver would otherwise make
+    // inside glTexSubImage2D(), and the transfer to the textures does not block the GL thread.
+    @TargetApi(Build.VERSION_CODES.N)
+    private void uploadThroughPixelUnpackBuffer(
+        int[] planeWidths, int[] planeHeights, int[] strides, ByteBuffer[] planes) {
+      final int[] offsets = new int[3];
+      final int[] sizes = new int[3];
+      int totalSize = 0;
+      for (int i = 0; i < 3; ++i) {
+        offsets[i] = totalSize;
+        // The last row does not need to be padded to the stride.
+        sizes[i] = strides[i] * (planeHeights[i] - 1) + planeWidths[i];
+        totalSize += sizes[i];
+      }
+      if (pixelUnpackBuffers == null) {
+        pixelUnpackBuffers = new int[PIXEL_UNPACK_BUFFER_COUNT];
+        GLES30.glGenBuffers(PIXEL_UNPACK_BUFFER_COUNT, pixelUnpackBuffers, 0);
+      }
+      final int bufferIndex = nextPixelUnpackBuffer;
+      nextPixelUnpackBuffer = (nextPixelUnpackBuffer + 1) % PIXEL_UNPACK_BUFFER_COUNT;
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, pixelUnpackBuffers[bufferIndex]);
+      if (pixelUnpackBufferCapacities[bufferIndex] < totalSize) {
+        GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, totalSize, null, GLES30.GL_STREAM_DRAW);
+        pixelUnpackBufferCapacities[bufferIndex] = totalSize;
+      }
+      // Invalidating the previous contents lets the driver hand out fresh memory instead of
+      // waiting for an upload that still reads from the buffer.
+      final ByteBuffer mappedBuffer = (ByteBuffer) GLES30.glMapBufferRange(
+          GLES30.GL_PIXEL_UNPACK_BUFFER, /* offset= */ 0, totalSize,
+          GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+      if (mappedBuffer == null) {
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        throw new RuntimeException("glMapBufferRange failed: " + GLES20.glGetError());
+      }
+      for (int i = 0; i < 3; ++i) {
+        final ByteBuffer plane = planes[i].duplicate();
+        plane.position(0);
+        plane.limit(sizes[i]);
+        mappedBuffer.position(offsets[i]);
+        mappedBuffer.put(plane);
+      }
+      GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+
       for (int i = 0; i < 3; ++i) {
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, yuvTextures[i]);
-        // GLES only accepts packed data, i.e. stride == planeWidth.
-        final ByteBuffer packedByteBuffer;
-        if (strides[i] == planeWidths[i]) {
-          // Input is packed already.
-          packedByteBuffer = planes[i];
+        GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, strides[i]);
+        if (textureWidths[i] != planeWidths[i] || textureHeights[i] != planeHeights[i]) {
+          GLES30.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, planeWidths[i],
+              planeHeights[i], 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, offsets[i]);
+          textureWidths[i] = planeWidths[i];
+          textureHeights[i] = planeHeights[i];
+          if (i == 0) {
+            ++reallocationCount;
+          }
         } else {
-          YuvHelper.copyPlane(
-              planes[i], strides[i], copyBuffer, planeWidths[i], planeWidths[i], planeHeights[i]);
-          packedByteBuffer = copyBuffer;
+          GLES30.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, planeWidths[i], planeHeights[i],
+              GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, offsets[i]);
         }
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, planeWidths[i],
-            planeHeights[i], 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, packedByteBuffer);
       }
-      return yuvTextures;
+      GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0);
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+      ++pixelUnpackBufferUploadCount;
     }
 
     @Nullable
@@ -120,6 +283,12 @@ public class VideoFrameDrawer {
       return yuvTextures;
     }
 
+    public UploadStats getStats() {
+      final double nsPerUpload = 1000.0 * 1000.0 * Math.max(1, uploadCount);
+      return new UploadStats(uploadCount, reallocationCount, repackedPlaneCount,
+          pixelUnpackBufferUploadCount, uploadTimeNs / nsPerUpload);
+    }
+
     /**
      * Releases cached resources. Uploader can still be used and the resources will be reallocated
      * on first use.
@@ -130,6 +299,13 @@ public class VideoFrameDrawer {
         GLES20.glDeleteTextures(3, yuvTextures, 0);
         yuvTextures = null;
       }
+      if (pixelUnpackBuffers != null) {
+        GLES30.glDeleteBuffers(PIXEL_UNPACK_BUFFER_COUNT, pixelUnpackBuffers, 0);
+        pixelUnpackBuffers = null;
+        Arrays.fill(pixelUnpackBufferCapacities, 0);
+      }
+      unpackRowLengthSupported = null;
+      pixelUnpackBuffersSupported = null;
     }
   }
 
@@ -234,6 +410,21 @@ public class VideoFrameDrawer {
     return buffer;
   }
 
+  /**
+   * Uploads I420 frames through pixel unpack buffers where supported, i.e. on OpenGL ES 3 contexts
+   * from API level 24. The planes are then copied into buffer memory and transferred to the
+   * textures asynchronously, which helps for large frames on drivers that otherwise block the GL
+   * thread in glTexSubImage2D(). Disabled by default.
+   */
+  public void setPixelUnpackBufferEnabled(boolean enabled) {
+    yuvUploader.setPixelUnpackBufferEnabled(enabled);
+  }
+
+  /** Returns the I420 upload counters. Must be called on the GL thread. */
+  public UploadStats getUploadStats() {
+    return yuvUploader.getStats();
+  }
+
   public void release() {
     yuvUploader.release();
     lastI420Frame = null;
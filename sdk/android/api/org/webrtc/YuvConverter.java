@@ -12,7 +12,13 @@ package org.webrtc;
 
 import android.graphics.Matrix;
 import android.opengl.GLES20;
+import android.support.annotation.Nullable;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import org.webrtc.VideoFrame.I420Buffer;
 import org.webrtc.VideoFrame.TextureBuffer;
 
@@ -21,6 +27,12 @@ import org.webrtc.VideoFrame.TextureBuffer;
  * should only be operated from a single thread with an active EGL context.
  */
 public class YuvConverter {
+  private static final String TAG = "YuvConverter";
+
+  // Number of readbacks that may be in flight at the same time in pipelined mode. With the default
+  // of two, the result for frame N - 1 is returned while frame N is being read back.
+  private static final int DEFAULT_PIPELINE_DEPTH = 2;
+
   private static final String FRAGMENT_SHADER =
       // Difference in texture coordinate corresponding to one
       // sub-pixel in the x direction.
@@ -102,12 +114,101 @@ public class YuvConverter {
     }
   }
 
+  // Holds the geometry of the combined I420 layout that is drawn into |i420TextureFrameBuffer|.
+  private static class I420Layout {
+    final int frameWidth;
+    final int frameHeight;
+    final int stride;
+    final int uvHeight;
+
+    I420Layout(int frameWidth, int frameHeight) {
+      this.frameWidth = frameWidth;
+      this.frameHeight = frameHeight;
+      // See drawI420() for a description of the memory layout.
+      this.stride = ((frameWidth + 7) / 8) * 8;
+      this.uvHeight = (frameHeight + 1) / 2;
+    }
+
+    int getTotalHeight() {
+      return frameHeight + uvHeight;
+    }
+
+    int getSizeInBytes() {
+      return stride * getTotalHeight();
+    }
+  }
+
+  // A conversion requested with TextureBufferImpl.toI420Async() that has not been run yet.
+  static class AsyncConversion {
+    final TextureBuffer textureBuffer;
+    final Executor executor;
+    final TextureBufferImpl.ToI420Callback callback;
+    final long enqueueTimeNs;
+
+    AsyncConversion(TextureBuffer textureBuffer, Executor executor,
+        TextureBufferImpl.ToI420Callback callback, long enqueueTimeNs) {
+      this.textureBuffer = textureBuffer;
+      this.executor = executor;
+      this.callback = callback;
+      this.enqueueTimeNs = enqueueTimeNs;
+    }
+  }
+
+  /** Snapshot of the counters for conversions requested with TextureBufferImpl.toI420Async(). */
+  public static class AsyncConversionStats {
+    /** Number of asynchronous conversions that have been run. */
+    public final long conversionCount;
+    /** Number of conversions waiting for the texture thread. */
+    public final int queueDepth;
+    /** Largest value |queueDepth| has had. */
+    public final int maxQueueDepth;
+    /** Average time from toI420Async() until the conversion started. */
+    public final double averageQueueTimeMs;
+    /** Average time spent converting a frame on the texture thread. */
+    public final double averageConversionTimeMs;
+
+    AsyncConversionStats(long conversionCount, int queueDepth, int maxQueueDepth,
+        double averageQueueTimeMs, double averageConversionTimeMs) {
+      this.conversionCount = conversionCount;
+      this.queueDepth = queueDepth;
+      this.maxQueueDepth = maxQueueDepth;
+      this.averageQueueTimeMs = averageQueueTimeMs;
+      this.averageConversionTimeMs = averageConversionTimeMs;
+    }
+
+    @Override
+    public String toString() {
+      return "conversions: " + conversionCount + ", queue depth: " + queueDepth
+          + ", max queue depth: " + maxQueueDepth + ", average queue time ms: "
+          + averageQueueTimeMs + ", average conversion time ms: " + averageConversionTimeMs;
+    }
+  }
+
   private final ThreadUtils.ThreadChecker threadChecker = new ThreadUtils.ThreadChecker();
   private final GlTextureFrameBuffer i420TextureFrameBuffer =
       new GlTextureFrameBuffer(GLES20.GL_RGBA);
   private final ShaderCallbacks shaderCallbacks = new ShaderCallbacks();
   private final GlGenericDrawer drawer = new GlGenericDrawer(FRAGMENT_SHADER, shaderCallbacks);
   private final VideoFrameDrawer videoFrameDrawer;
+  private final int pipelineDepth;
+
+  // Pipelined readback state. Keeps |pipelineDepth| - 1 readbacks in flight between calls to
+  // convertPipelined(), and collects the completed ones until they are returned.
+  private final PixelReadback pixelReadback;
+  private final ArrayDeque<I420Buffer> pipelinedResults = new ArrayDeque<>();
+
+  // Asynchronous conversion state. Requests are queued from any thread and run in batches on the
+  // thread of the converter.
+  private final Object asyncLock = new Object();
+  private final ArrayDeque<AsyncConversion> asyncConversions = new ArrayDeque<>();
+  private int maxAsyncQueueDepth;
+  private long asyncConversionCount;
+  private long totalAsyncQueueTimeNs;
+  private long totalAsyncConversionTimeNs;
+
+  // Number of toI420() and toI420Async() calls served by the cached result of an earlier conversion
+  // of the same TextureBufferImpl.
+  private final AtomicLong savedConversionCount = new AtomicLong();
 
   /**
    * This class should be constructed on a thread that has an active EGL context.
@@ -117,7 +218,20 @@ public class YuvConverter {
   }
 
   public YuvConverter(VideoFrameDrawer videoFrameDrawer) {
+    this(videoFrameDrawer, DEFAULT_PIPELINE_DEPTH);
+  }
+
+  /**
+   * @param pipelineDepth Number of conversions that convertPipelined() keeps in flight. Must be at
+   *     least two; use two for double buffering and three for triple buffering.
+   */
+  public YuvConverter(VideoFrameDrawer videoFrameDrawer, int pipelineDepth) {
+    if (pipelineDepth < 2) {
+      throw new IllegalArgumentException("Pipeline depth must be at least 2: " + pipelineDepth);
+    }
     this.videoFrameDrawer = videoFrameDrawer;
+    this.pipelineDepth = pipelineDepth;
+    this.pixelReadback = new PixelReadback(pipelineDepth - 1);
     threadChecker.detachThread();
   }
 
@@ -125,6 +239,199 @@ public class YuvConverter {
   public I420Buffer convert(TextureBuffer inputTextureBuffer) {
     threadChecker.checkIsOnValidThread();
 
+    final I420Layout layout = drawI420(inputTextureBuffer);
+    final NativeByteBufferPool pool = NativeByteBufferPool.getDefault();
+    final ByteBuffer i420ByteBuffer = pool.acquire(layout.getSizeInBytes());
+
+    GLES20.glReadPixels(0, 0, i420TextureFrameBuffer.getWidth(), i420TextureFrameBuffer.getHeight(),
+        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, i420ByteBuffer);
+
+    GlUtil.checkNoGLES2Error("YuvConverter.convert");
+
+    // Restore normal framebuffer.
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+    return wrapI420(layout, i420ByteBuffer, () -> { pool.recycle(i420ByteBuffer); });
+  }
+
+  /**
+   * Pipelined variant of convert(). Draws |inputTextureBuffer| and starts an asynchronous readback
+   * into a pixel pack buffer, so the GL pipeline does not stall on glReadPixels. Returns the result
+   * of the oldest conversion still in flight once |pipelineDepth| conversions have been started,
+   * and null while the pipeline is filling up. Results are always returned in submission order;
+   * call flushPipeline() to collect the remaining ones.
+   *
+   * <p>On contexts without OpenGL ES 3 support this falls back to convert() and returns the result
+   * for |inputTextureBuffer| directly.
+   */
+  @Nullable
+  public I420Buffer convertPipelined(TextureBuffer inputTextureBuffer) {
+    threadChecker.checkIsOnValidThread();
+    if (!pixelReadback.isAsynchronous()) {
+      return convert(inputTextureBuffer);
+    }
+
+    final I420Layout layout = drawI420(inputTextureBuffer);
+    final NativeByteBufferPool pool = NativeByteBufferPool.getDefault();
+    // Completes the oldest readback once |pipelineDepth| readbacks are in flight.
+    pixelReadback.readPixels(/* tag= */ this, i420TextureFrameBuffer.getWidth(),
+        i420TextureFrameBuffer.getHeight(), (rgbaBuffer, width, height) -> {
+          final ByteBuffer i420ByteBuffer = pool.acquire(layout.getSizeInBytes());
+          i420ByteBuffer.put(rgbaBuffer);
+          pipelinedResults.addLast(
+              wrapI420(layout, i420ByteBuffer, () -> { pool.recycle(i420ByteBuffer); }));
+        });
+
+    // Restore normal framebuffer.
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+    return pipelinedResults.pollFirst();
+  }
+
+  /**
+   * Waits for all conversions started with convertPipelined() and returns their results in
+   * submission order.
+   */
+  public List<I420Buffer> flushPipeline() {
+    threadChecker.checkIsOnValidThread();
+    pixelReadback.flush();
+    final List<I420Buffer> results = new ArrayList<>(pipelinedResults);
+    pipelinedResults.clear();
+    return results;
+  }
+
+  public AsyncConversionStats getAsyncConversionStats() {
+    synchronized (asyncLock) {
+      final double nsPerConversion = 1000.0 * 1000.0 * Math.max(1, asyncConversionCount);
+      return new AsyncConversionStats(asyncConversionCount, asyncConversions.size(),
+          maxAsyncQueueDepth, totalAsyncQueueTimeNs / nsPerConversion,
+          totalAsyncConversionTimeNs / nsPerConversion);
+    }
+  }
+
+  /**
+   * Returns the number of conversions of texture buffers using this converter that were avoided
+   * because the buffer had already been converted for another consumer.
+   */
+  public long getSavedConversionCount() {
+    return savedConversionCount.get();
+  }
+
+  public void release() {
+    threadChecker.checkIsOnValidThread();
+    // Fail conversions that have been queued but not run, so that their buffers are released.
+    for (AsyncConversion conversion : takeAsyncConversions()) {
+      deliverAsyncConversion(conversion, null);
+    }
+    for (I420Buffer buffer : flushPipeline()) {
+      buffer.release();
+    }
+    pixelReadback.release();
+    drawer.release();
+    i420TextureFrameBuffer.release();
+    videoFrameDrawer.release();
+    // Allow this class to be reused.
+    threadChecker.detachThread();
+  }
+
+  /**
+   * Queues a conversion of |textureBuffer|, which must already be retained by the caller. Can be
+   * called on any thread; processAsyncConversions() must then be posted to the converter thread.
+   */
+  AsyncConversion enqueueAsyncConversion(
+      TextureBuffer textureBuffer, Executor executor, TextureBufferImpl.ToI420Callback callback) {
+    final AsyncConversion conversion =
+        new AsyncConversion(textureBuffer, executor, callback, System.nanoTime());
+    synchronized (asyncLock) {
+      asyncConversions.addLast(conversion);
+      maxAsyncQueueDepth = Math.max(maxAsyncQueueDepth, asyncConversions.size());
+    }
+    return conversion;
+  }
+
+  /** Removes |conversion| from the queue. Returns false if it has already been taken. */
+  boolean cancelAsyncConversion(AsyncConversion conversion) {
+    synchronized (asyncLock) {
+      return asyncConversions.remove(conversion);
+    }
+  }
+
+  /**
+   * Runs all queued asynchronous conversions as one batch. Several frames are converted with
+   * convertPipelined(), so that drawing a frame overlaps the readback of the previous one.
+   */
+  void processAsyncConversions() {
+    threadChecker.checkIsOnValidThread();
+    final List<AsyncConversion> batch = takeAsyncConversions();
+    if (batch.isEmpty()) {
+      return;
+    }
+    final long startTimeNs = System.nanoTime();
+    // Pipelining only pays off for more than one frame, and results must not be mixed up with
+    // readbacks started by a direct caller of convertPipelined().
+    final boolean pipelined = batch.size() > 1 && !pixelReadback.hasPendingReadbacks();
+    int deliveredCount = 0;
+    try {
+      for (AsyncConversion conversion : batch) {
+        final I420Buffer result = pipelined ? convertPipelined(conversion.textureBuffer)
+                                            : convert(conversion.textureBuffer);
+        // Pipelined results are returned in submission order, for the oldest pending conversion.
+        if (result != null) {
+          deliverAsyncConversion(batch.get(deliveredCount++), result);
+        }
+      }
+      if (pipelined) {
+        for (I420Buffer result : flushPipeline()) {
+          deliverAsyncConversion(batch.get(deliveredCount++), result);
+        }
+      }
+    } catch (RuntimeException e) {
+      Logging.e(TAG, "Asynchronous conversion failed", e);
+      while (deliveredCount < batch.size()) {
+        deliverAsyncConversion(batch.get(deliveredCount++), null);
+      }
+      if (pipelined) {
+        // Drop the readbacks of this batch that are still in flight, so that their results are not
+        // returned to a later caller.
+        pixelReadback.cancel(/* tag= */ this);
+        for (I420Buffer result : pipelinedResults) {
+          result.release();
+        }
+        pipelinedResults.clear();
+      }
+    }
+
+    final long endTimeNs = System.nanoTime();
+    synchronized (asyncLock) {
+      asyncConversionCount += batch.size();
+      totalAsyncConversionTimeNs += endTimeNs - startTimeNs;
+      for (AsyncConversion conversion : batch) {
+        totalAsyncQueueTimeNs += startTimeNs - conversion.enqueueTimeNs;
+      }
+    }
+  }
+
+  void onConversionSaved() {
+    savedConversionCount.incrementAndGet();
+  }
+
+  private List<AsyncConversion> takeAsyncConversions() {
+    synchronized (asyncLock) {
+      final List<AsyncConversion> conversions = new ArrayList<>(asyncConversions);
+      asyncConversions.clear();
+      return conversions;
+    }
+  }
+
+  private static void deliverAsyncConversion(
+      final AsyncConversion conversion, @Nullable final I420Buffer result) {
+    conversion.textureBuffer.release();
+    conversion.executor.execute(() -> conversion.callback.onI420Buffer(result));
+  }
+
+  // Draws the Y, U and V planes of |inputTextureBuffer| into |i420TextureFrameBuffer|. The frame
+  // buffer is left bound so that the caller can read back the result.
+  private I420Layout drawI420(TextureBuffer inputTextureBuffer) {
     TextureBuffer preparedBuffer = (TextureBuffer) videoFrameDrawer.prepareBufferForViewportSize(
         inputTextureBuffer, inputTextureBuffer.getWidth(), inputTextureBuffer.getHeight());
 
@@ -156,16 +463,13 @@ public class YuvConverter {
     // Since the V data needs to start on a boundary of such a
     // larger pixel, it is not sufficient that |stride| is even, it
     // has to be a multiple of 8 pixels.
-    final int frameWidth = preparedBuffer.getWidth();
-    final int frameHeight = preparedBuffer.getHeight();
-    final int stride = ((frameWidth + 7) / 8) * 8;
-    final int uvHeight = (frameHeight + 1) / 2;
-    // Total height of the combined memory layout.
-    final int totalHeight = frameHeight + uvHeight;
-    final ByteBuffer i420ByteBuffer = JniCommon.nativeAllocateByteBuffer(stride * totalHeight);
+    final I420Layout layout = new I420Layout(preparedBuffer.getWidth(), preparedBuffer.getHeight());
+    final int frameWidth = layout.frameWidth;
+    final int frameHeight = layout.frameHeight;
+    final int uvHeight = layout.uvHeight;
     // Viewport width is divided by four since we are squeezing in four color bytes in each RGBA
     // pixel.
-    final int viewportWidth = stride / 4;
+    final int viewportWidth = layout.stride / 4;
 
     // Produce a frame buffer starting at top-left corner, not bottom-left.
     final Matrix renderMatrix = new Matrix();
@@ -173,7 +477,7 @@ public class YuvConverter {
     renderMatrix.preScale(1f, -1f);
     renderMatrix.preTranslate(-0.5f, -0.5f);
 
-    i420TextureFrameBuffer.setSize(viewportWidth, totalHeight);
+    i420TextureFrameBuffer.setSize(viewportWidth, layout.getTotalHeight());
 
     // Bind our framebuffer.
     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, i420TextureFrameBuffer.getFrameBufferId());
@@ -197,27 +501,28 @@ public class YuvConverter {
         /* viewportX= */ viewportWidth / 2, /* viewportY= */ frameHeight, viewportWidth / 2,
         /* viewportHeight= */ uvHeight);
 
-    GLES20.glReadPixels(0, 0, i420TextureFrameBuffer.getWidth(), i420TextureFrameBuffer.getHeight(),
-        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, i420ByteBuffer);
+    preparedBuffer.release();
+    return layout;
+  }
 
-    GlUtil.checkNoGLES2Error("YuvConverter.convert");
-
-    // Restore normal framebuffer.
-    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+  // Wraps |i420ByteBuffer|, which holds the combined layout drawn by drawI420(), as an I420Buffer.
+  private static I420Buffer wrapI420(
+      I420Layout layout, ByteBuffer i420ByteBuffer, Runnable releaseCallback) {
+    final int stride = layout.stride;
 
     // Prepare Y, U, and V ByteBuffer slices.
     final int yPos = 0;
-    final int uPos = yPos + stride * frameHeight;
+    final int uPos = yPos + stride * layout.frameHeight;
     // Rows of U and V alternate in the buffer, so V data starts after the first row of U.
     final int vPos = uPos + stride / 2;
 
     i420ByteBuffer.position(yPos);
-    i420ByteBuffer.limit(yPos + stride * frameHeight);
+    i420ByteBuffer.limit(yPos + stride * layout.frameHeight);
     final ByteBuffer dataY = i420ByteBuffer.slice();
 
     i420ByteBuffer.position(uPos);
     // The last row does not have padding.
-    final int uvSize = stride * (uvHeight - 1) + stride / 2;
+    final int uvSize = stride * (layout.uvHeight - 1) + stride / 2;
     i420ByteBuffer.limit(uPos + uvSize);
     final ByteBuffer dataU = i420ByteBuffer.slice();
 
@@ -225,18 +530,7 @@ public class YuvConverter {
     i420ByteBuffer.limit(vPos + uvSize);
     final ByteBuffer dataV = i420ByteBuffer.slice();
 
-    preparedBuffer.release();
-
-    return JavaI420Buffer.wrap(frameWidth, frameHeight, dataY, stride, dataU, stride, dataV, stride,
-        () -> { JniCommon.nativeFreeByteBuffer(i420ByteBuffer); });
-  }
-
-  public void release() {
-    threadChecker.checkIsOnValidThread();
-    drawer.release();
-    i420TextureFrameBuffer.release();
-    videoFrameDrawer.release();
-    // Allow this class to be reused.
-    threadChecker.detachThread();
+    return JavaI420Buffer.wrap(layout.frameWidth, layout.frameHeight, dataY, stride, dataU, stride,
+        dataV, stride, releaseCallback);
   }
 }
@@ -65,6 +65,100 @@ public class YuvHelper {
         chromaWidth * 2, width, height);
   }
 
+  /** Helper method for converting NV12 to tightly packed I420 destination buffer. */
+  public static void NV12ToI420(ByteBuffer srcY, int srcStrideY, ByteBuffer srcUV,
+      int srcStrideUV, ByteBuffer dst, int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    checkPackedCapacity(dst, width, height);
+
+    final int startY = 0;
+    final int startU = height * width;
+    final int startV = startU + chromaHeight * chromaWidth;
+
+    dst.position(startY);
+    final ByteBuffer dstY = dst.slice();
+    dst.position(startU);
+    final ByteBuffer dstU = dst.slice();
+    dst.position(startV);
+    final ByteBuffer dstV = dst.slice();
+
+    nativeNV12ToI420(srcY, srcStrideY, srcUV, srcStrideUV, dstY, width, dstU, chromaWidth, dstV,
+        chromaWidth, width, height);
+  }
+
+  /** Helper method for copying NV12 to tightly packed NV12 destination buffer. */
+  public static void NV12Copy(ByteBuffer srcY, int srcStrideY, ByteBuffer srcUV, int srcStrideUV,
+      ByteBuffer dst, int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    checkPackedCapacity(dst, width, height);
+
+    final int startY = 0;
+    final int startUV = height * width;
+
+    dst.position(startY);
+    final ByteBuffer dstY = dst.slice();
+    dst.position(startUV);
+    final ByteBuffer dstUV = dst.slice();
+
+    nativeCopyPlane(srcY, srcStrideY, dstY, width, width, height);
+    nativeCopyPlane(
+        srcUV, srcStrideUV, dstUV, chromaWidth * 2, chromaWidth * 2, chromaHeight);
+  }
+
+  /**
+   * Helper method for converting tightly packed NV21 data, as produced by Camera1, to tightly
+   * packed I420 destination buffer.
+   */
+  public static void NV21ToI420(byte[] src, ByteBuffer dst, int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    checkPackedCapacity(dst, width, height);
+
+    final int startY = 0;
+    final int startU = height * width;
+    final int startV = startU + chromaHeight * chromaWidth;
+
+    dst.position(startY);
+    final ByteBuffer dstY = dst.slice();
+    dst.position(startU);
+    final ByteBuffer dstU = dst.slice();
+    dst.position(startV);
+    final ByteBuffer dstV = dst.slice();
+
+    nativeNV21ToI420(src, dstY, width, dstU, chromaWidth, dstV, chromaWidth, width, height);
+  }
+
+  /**
+   * Helper method for converting tightly packed NV21 data, as produced by Camera1, to tightly
+   * packed NV12 destination buffer.
+   */
+  public static void NV21ToNV12(byte[] src, ByteBuffer dst, int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    checkPackedCapacity(dst, width, height);
+
+    final int startY = 0;
+    final int startUV = height * width;
+
+    dst.position(startY);
+    final ByteBuffer dstY = dst.slice();
+    dst.position(startUV);
+    final ByteBuffer dstUV = dst.slice();
+
+    nativeNV21ToNV12(src, dstY, width, dstUV, chromaWidth * 2, width, height);
+  }
+
+  private static void checkPackedCapacity(ByteBuffer dst, int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    final int minSize = width * height + chromaWidth * chromaHeight * 2;
+    if (dst.capacity() < minSize) {
+      throw new IllegalArgumentException("Expected destination buffer capacity to be at least "
+          + minSize + " was " + dst.capacity());
+    }
+  }
+
   /** Helper method for rotating I420 to tightly packed destination buffer. */
   public static void I420Rotate(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
       ByteBuffer srcV, int srcStrideV, ByteBuffer dst, int srcWidth, int srcHeight,
@@ -132,6 +226,13 @@ public class YuvHelper {
   private static native void nativeI420ToNV12(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU,
       int srcStrideU, ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY,
       ByteBuffer dstUV, int dstStrideUV, int width, int height);
+  private static native void nativeNV12ToI420(ByteBuffer srcY, int srcStrideY, ByteBuffer srcUV,
+      int srcStrideUV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
+      ByteBuffer dstV, int dstStrideV, int width, int height);
+  private static native void nativeNV21ToI420(byte[] src, ByteBuffer dstY, int dstStrideY,
+      ByteBuffer dstU, int dstStrideU, ByteBuffer dstV, int dstStrideV, int width, int height);
+  private static native void nativeNV21ToNV12(byte[] src, ByteBuffer dstY, int dstStrideY,
+      ByteBuffer dstUV, int dstStrideUV, int width, int height);
   private static native void nativeI420Rotate(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU,
       int srcStrideU, ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY,
       ByteBuffer dstU, int dstStrideU, ByteBuffer dstV, int dstStrideV, int srcWidth, int srcHeight,
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc.audio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer of PCM bytes. Can be used to tap the
+ * recorded or played out audio of a JavaAudioDeviceModule, see
+ * JavaAudioDeviceModule.Builder.setRecordedAudioRingBuffer() and
+ * setPlayoutAudioRingBuffer(). The audio thread is then the producer, and the client drains the
+ * samples from a thread of its own. Neither side blocks or allocates memory.
+ *
+ * <p>Samples are written in whole chunks. A chunk that does not fit is dropped and counted by
+ * getOverflowCount() and getDroppedBytes(), so the content of the buffer always starts and ends
+ * on a frame boundary.
+ */
+public class AudioRingBuffer {
+  private final byte[] buffer;
+  private final int mask;
+  // Total number of bytes written and read since creation. Only the producer updates
+  // |writePosition| and only the consumer updates |readPosition|.
+  private final AtomicLong writePosition = new AtomicLong();
+  private final AtomicLong readPosition = new AtomicLong();
+  // Only updated by the producer.
+  private volatile long overflowCount;
+  private volatile long droppedBytes;
+
+  private volatile int audioFormat;
+  private volatile int channelCount;
+  private volatile int sampleRate;
+
+  /** Creates a ring buffer that holds at least |capacityInBytes| bytes. */
+  public AudioRingBuffer(int capacityInBytes) {
+    if (capacityInBytes <= 0 || capacityInBytes > (1 << 30)) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacityInBytes);
+    }
+    // Round up to a power of two, so that positions can be mapped to indices with a mask.
+    final int capacity = Integer.highestOneBit(capacityInBytes - 1) << 1;
+    buffer = new byte[Math.max(capacity, 1)];
+    mask = buffer.length - 1;
+  }
+
+  public int getCapacity() {
+    return buffer.length;
+  }
+
+  /**
+   * Returns the format of the samples, one of the android.media.AudioFormat ENCODING_PCM values,
+   * or 0 if no samples have been produced yet. Reflects the most recent audio session.
+   */
+  public int getAudioFormat() {
+    return audioFormat;
+  }
+
+  /** Returns the channel count of the samples, or 0 if no samples have been produced yet. */
+  public int getChannelCount() {
+    return channelCount;
+  }
+
+  /** Returns the sample rate of the samples, or 0 if no samples have been produced yet. */
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  /** Returns the number of chunks dropped because the consumer did not keep up. */
+  public long getOverflowCount() {
+    return overflowCount;
+  }
+
+  /** Returns the number of bytes dropped because the consumer did not keep up. */
+  public long getDroppedBytes() {
+    return droppedBytes;
+  }
+
+  /** Returns the number of bytes that can be read. Should be called by the consumer. */
+  public int available() {
+    return (int) (writePosition.get() - readPosition.get());
+  }
+
+  /**
+   * Writes |size| bytes from the position of |src|, or drops them if they do not fit. The position
+   * of |src| is left unchanged. Should only be called by the producer. Returns false if the bytes
+   * were dropped.
+   */
+  public boolean write(ByteBuffer src, int size) {
+    final long writePos = writePosition.get();
+    if (size > buffer.length - (writePos - readPosition.get())) {
+      overflowCount++;
+      droppedBytes += size;
+      return false;
+    }
+    final int position = src.position();
+    final int index = (int) (writePos & mask);
+    final int firstPart = Math.min(size, buffer.length - index);
+    src.get(buffer, index, firstPart);
+    src.get(buffer, 0, size - firstPart);
+    src.position(position);
+    // Publishes the bytes to the consumer.
+    writePosition.lazySet(writePos + size);
+    return true;
+  }
+
+  /**
+   * Reads up to |length| bytes into |dst| at |offset|. Should only be called by the consumer.
+   * Returns the number of bytes read.
+   */
+  public int read(byte[] dst, int offset, int length) {
+    final long readPos = readPosition.get();
+    final int size = (int) Math.min(length, writePosition.get() - readPos);
+    final int index = (int) (readPos & mask);
+    final int firstPart = Math.min(size, buffer.length - index);
+    System.arraycopy(buffer, index, dst, offset, firstPart);
+    System.arraycopy(buffer, 0, dst, offset + firstPart, size - firstPart);
+    // Hands the space back to the producer.
+    readPosition.lazySet(readPos + size);
+    return size;
+  }
+
+  /**
+   * Reads up to dst.remaining() bytes into |dst| and advances its position. Should only be called
+   * by the consumer. Returns the number of bytes read.
+   */
+  public int read(ByteBuffer dst) {
+    final long readPos = readPosition.get();
+    final int size = (int) Math.min(dst.remaining(), writePosition.get() - readPos);
+    final int index = (int) (readPos & mask);
+    final int firstPart = Math.min(size, buffer.length - index);
+    dst.put(buffer, index, firstPart);
+    dst.put(buffer, 0, size - firstPart);
+    readPosition.lazySet(readPos + size);
+    return size;
+  }
+
+  // Called by the producer before the first samples of an audio session are written.
+  void setFormat(int audioFormat, int channelCount, int sampleRate) {
+    this.audioFormat = audioFormat;
+    this.channelCount = channelCount;
+    this.sampleRate = sampleRate;
+  }
+}
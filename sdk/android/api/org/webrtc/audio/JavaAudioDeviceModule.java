@@ -12,6 +12,7 @@ package org.webrtc.audio;
 
 import android.media.AudioManager;
 import android.content.Context;
+import java.nio.ByteBuffer;
 import org.webrtc.JniCommon;
 import org.webrtc.Logging;
 
@@ -36,10 +37,14 @@ public class JavaAudioDeviceModule implements AudioDeviceModule {
     private AudioTrackErrorCallback audioTrackErrorCallback;
     private AudioRecordErrorCallback audioRecordErrorCallback;
     private SamplesReadyCallback samplesReadyCallback;
+    private ByteBufferSamplesReadyCallback byteBufferSamplesReadyCallback;
+    private AudioRingBuffer recordedAudioRingBuffer;
+    private AudioRingBuffer playoutAudioRingBuffer;
     private boolean useHardwareAcousticEchoCanceler = isBuiltInAcousticEchoCancelerSupported();
     private boolean useHardwareNoiseSuppressor = isBuiltInNoiseSuppressorSupported();
     private boolean useStereoInput;
     private boolean useStereoOutput;
+    private boolean useAdaptivePlayoutBufferSize;
 
     private Builder(Context context) {
       this.context = context;
@@ -122,6 +127,36 @@ public class JavaAudioDeviceModule implements AudioDeviceModule {
       return this;
     }
 
+    /**
+     * Set a callback to listen to the raw audio input from the AudioRecord without copying it. See
+     * ByteBufferSamplesReadyCallback for the lifetime of the samples. Can be combined with
+     * setSamplesReadyCallback(), in which case this callback is run first.
+     */
+    public Builder setByteBufferSamplesReadyCallback(
+        ByteBufferSamplesReadyCallback byteBufferSamplesReadyCallback) {
+      this.byteBufferSamplesReadyCallback = byteBufferSamplesReadyCallback;
+      return this;
+    }
+
+    /**
+     * Set a ring buffer that receives a copy of the raw audio input from the AudioRecord. The
+     * client is the consumer and should drain it from its own thread; the audio thread never waits
+     * for it.
+     */
+    public Builder setRecordedAudioRingBuffer(AudioRingBuffer recordedAudioRingBuffer) {
+      this.recordedAudioRingBuffer = recordedAudioRingBuffer;
+      return this;
+    }
+
+    /**
+     * Set a ring buffer that receives a copy of the audio written to the AudioTrack, after
+     * muting is applied. The client is the consumer and should drain it from its own thread.
+     */
+    public Builder setPlayoutAudioRingBuffer(AudioRingBuffer playoutAudioRingBuffer) {
+      this.playoutAudioRingBuffer = playoutAudioRingBuffer;
+      return this;
+    }
+
     /**
      * Control if the built-in HW noise suppressor should be used or not. The default is on if it is
      * supported. It is possible to query support by calling isBuiltInNoiseSuppressorSupported().
@@ -165,6 +200,16 @@ public class JavaAudioDeviceModule implements AudioDeviceModule {
       return this;
     }
 
+    /**
+     * Control if the size of the AudioTrack buffer should adapt to underruns. If enabled, the
+     * buffer starts out at the minimum size, grows after underruns and shrinks again while
+     * playout is stable. Requires API level 24; ignored on older devices. The default is off.
+     */
+    public Builder setUseAdaptivePlayoutBufferSize(boolean useAdaptivePlayoutBufferSize) {
+      this.useAdaptivePlayoutBufferSize = useAdaptivePlayoutBufferSize;
+      return this;
+    }
+
     /**
      * Construct an AudioDeviceModule based on the supplied arguments. The caller takes ownership
      * and is responsible for calling release().
@@ -189,9 +234,10 @@ public class JavaAudioDeviceModule implements AudioDeviceModule {
       }
       final WebRtcAudioRecord audioInput = new WebRtcAudioRecord(context, audioManager, audioSource,
           audioFormat, audioRecordErrorCallback, samplesReadyCallback,
-          useHardwareAcousticEchoCanceler, useHardwareNoiseSuppressor);
-      final WebRtcAudioTrack audioOutput =
-          new WebRtcAudioTrack(context, audioManager, audioTrackErrorCallback);
+          byteBufferSamplesReadyCallback, recordedAudioRingBuffer, useHardwareAcousticEchoCanceler,
+          useHardwareNoiseSuppressor);
+      final WebRtcAudioTrack audioOutput = new WebRtcAudioTrack(context, audioManager,
+          audioTrackErrorCallback, playoutAudioRingBuffer, useAdaptivePlayoutBufferSize);
       return new JavaAudioDeviceModule(context, audioManager, audioInput, audioOutput,
           inputSampleRate, outputSampleRate, useStereoInput, useStereoOutput);
     }
@@ -247,11 +293,30 @@ public class JavaAudioDeviceModule implements AudioDeviceModule {
     }
   }
 
-  /** Called when new audio samples are ready. This should only be set for debug purposes */
+  /**
+   * Called when new audio samples are ready. This should only be set for debug purposes. Each call
+   * allocates a copy of the samples; prefer ByteBufferSamplesReadyCallback when the samples do not
+   * need to be kept.
+   */
   public static interface SamplesReadyCallback {
     void onWebRtcAudioRecordSamplesReady(AudioSamples samples);
   }
 
+  /**
+   * Called on the audio thread when new audio samples are ready, without allocating any memory.
+   */
+  public static interface ByteBufferSamplesReadyCallback {
+    /**
+     * |samples| is a read-only view of the recording buffer, positioned at the first sample. It is
+     * reused for all calls and is only valid during this call; its content is overwritten by the
+     * next recorded buffer. Clients that need the samples later must copy them before returning.
+     * The byte order of |samples| is ByteOrder.nativeOrder(), so getShort() returns the PCM
+     * samples. |audioFormat|, |channelCount| and |sampleRate| are the same as in AudioSamples.
+     */
+    void onWebRtcAudioRecordSamplesReady(
+        ByteBuffer samples, int audioFormat, int channelCount, int sampleRate);
+  }
+
   /* AudioTrack */
   // Audio playout/track error handler functions.
   public enum AudioTrackStartErrorCode {
@@ -265,6 +330,144 @@ public class JavaAudioDeviceModule implements AudioDeviceModule {
     void onWebRtcAudioTrackError(String errorMessage);
   }
 
+  /** State of the AudioTrack buffer, see getPlayoutBufferStats(). */
+  public static class PlayoutBufferStats {
+    /** Current size of the AudioTrack buffer in frames. */
+    public final int bufferSizeInFrames;
+    /** Output latency added by the AudioTrack buffer, in milliseconds. */
+    public final int latencyMs;
+    /** Number of underruns since playout started. Only available from API level 24. */
+    public final int underrunCount;
+    /** Number of times the buffer grew or shrank due to adaptive buffer sizing. */
+    public final int bufferSizeIncreaseCount;
+    public final int bufferSizeDecreaseCount;
+
+    PlayoutBufferStats(int bufferSizeInFrames, int latencyMs, int underrunCount,
+        int bufferSizeIncreaseCount, int bufferSizeDecreaseCount) {
+      this.bufferSizeInFrames = bufferSizeInFrames;
+      this.latencyMs = latencyMs;
+      this.underrunCount = underrunCount;
+      this.bufferSizeIncreaseCount = bufferSizeIncreaseCount;
+      this.bufferSizeDecreaseCount = bufferSizeDecreaseCount;
+    }
+
+    @Override
+    public String toString() {
+      return "PlayoutBufferStats{bufferSizeInFrames=" + bufferSizeInFrames
+          + ", latencyMs=" + latencyMs + ", underrunCount=" + underrunCount
+          + ", bufferSizeIncreaseCount=" + bufferSizeIncreaseCount
+          + ", bufferSizeDecreaseCount=" + bufferSizeDecreaseCount + "}";
+    }
+  }
+
+  /** State of the AudioRecord buffer, see getRecordBufferStats(). */
+  public static class RecordBufferStats {
+    /** Size of the AudioRecord buffer in frames. */
+    public final int bufferSizeInFrames;
+    /** Input latency the AudioRecord buffer can add when it fills up, in milliseconds. */
+    public final int latencyMs;
+
+    RecordBufferStats(int bufferSizeInFrames, int latencyMs) {
+      this.bufferSizeInFrames = bufferSizeInFrames;
+      this.latencyMs = latencyMs;
+    }
+
+    @Override
+    public String toString() {
+      return "RecordBufferStats{bufferSizeInFrames=" + bufferSizeInFrames
+          + ", latencyMs=" + latencyMs + "}";
+    }
+  }
+
+  /**
+   * Histogram of durations with exponentially growing buckets. Bucket 0 counts durations below
+   * 2 us, bucket i > 0 counts durations in [2^i, 2^(i+1)) us, and the last bucket also counts all
+   * longer durations.
+   */
+  public static class LatencyHistogram {
+    public static final int BUCKET_COUNT = 24;
+
+    public final long[] bucketCounts;
+
+    LatencyHistogram(long[] bucketCounts) {
+      this.bucketCounts = bucketCounts;
+    }
+
+    static int getBucket(long durationUs) {
+      if (durationUs < 2) {
+        return 0;
+      }
+      return Math.min(63 - Long.numberOfLeadingZeros(durationUs), BUCKET_COUNT - 1);
+    }
+
+    /** Returns the exclusive upper bound of |bucket| in microseconds. */
+    public static long getBucketUpperBoundUs(int bucket) {
+      return (bucket == BUCKET_COUNT - 1) ? Long.MAX_VALUE : 1L << (bucket + 1);
+    }
+
+    public long getTotalCount() {
+      long totalCount = 0;
+      for (long count : bucketCounts) {
+        totalCount += count;
+      }
+      return totalCount;
+    }
+
+    /**
+     * Returns the upper bound of the bucket that contains the given |percentile| (0-100) of the
+     * durations, or 0 if the histogram is empty.
+     */
+    public long getPercentileUs(double percentile) {
+      final long totalCount = getTotalCount();
+      if (totalCount == 0) {
+        return 0;
+      }
+      final long targetCount = (long) Math.ceil(totalCount * percentile / 100.0);
+      long count = 0;
+      for (int i = 0; i < bucketCounts.length; ++i) {
+        count += bucketCounts[i];
+        if (count >= targetCount) {
+          return getBucketUpperBoundUs(i);
+        }
+      }
+      return getBucketUpperBoundUs(BUCKET_COUNT - 1);
+    }
+
+    @Override
+    public String toString() {
+      return "{p50<" + getPercentileUs(50) + "us, p99<" + getPercentileUs(99)
+          + "us, count=" + getTotalCount() + "}";
+    }
+  }
+
+  /** Behavior of one real-time audio thread, see getRecordStats() and getPlayoutStats(). */
+  public static class AudioThreadStats {
+    /** Number of completed reads from the AudioRecord or writes to the AudioTrack. */
+    public final long callbackCount;
+    /** Number of reads or writes that transferred fewer bytes than requested. */
+    public final long shortTransferCount;
+    /** Time between successive read or write completions. */
+    public final LatencyHistogram callbackIntervalHistogram;
+    /** Time spent delivering recorded data to, or getting playout data from, native code. */
+    public final LatencyHistogram nativeCallHistogram;
+
+    AudioThreadStats(long callbackCount, long shortTransferCount,
+        LatencyHistogram callbackIntervalHistogram, LatencyHistogram nativeCallHistogram) {
+      this.callbackCount = callbackCount;
+      this.shortTransferCount = shortTransferCount;
+      this.callbackIntervalHistogram = callbackIntervalHistogram;
+      this.nativeCallHistogram = nativeCallHistogram;
+    }
+
+    @Override
+    public String toString() {
+      return "AudioThreadStats{callbackCount=" + callbackCount
+          + ", shortTransferCount=" + shortTransferCount
+          + ", callbackInterval=" + callbackIntervalHistogram
+          + ", nativeCall=" + nativeCallHistogram + "}";
+    }
+  }
+
   /**
    * Returns true if the device supports built-in HW AEC, and the UUID is approved (some UUIDs can
    * be excluded).
@@ -339,6 +542,41 @@ public class JavaAudioDeviceModule implements AudioDeviceModule {
     audioInput.setMicrophoneMute(mute);
   }
 
+  /**
+   * Returns the state of the AudioTrack buffer of the current or most recent playout session. Can
+   * be called on any thread. The underrun count is refreshed once per second.
+   */
+  public PlayoutBufferStats getPlayoutBufferStats() {
+    return audioOutput.getPlayoutBufferStats();
+  }
+
+  /**
+   * Returns the state of the AudioRecord buffer of the current or most recent recording session.
+   * Can be called on any thread. AudioRecord does not report overruns; reads that return less data
+   * than requested are counted by getRecordStats().
+   */
+  public RecordBufferStats getRecordBufferStats() {
+    return audioInput.getRecordBufferStats();
+  }
+
+  /**
+   * Returns the statistics of the recording thread, accumulated since this module was created.
+   * Cheap and lock-free; intended to be polled from a stats thread. The latency of the AudioRecord
+   * buffer is reported by getRecordBufferStats().
+   */
+  public AudioThreadStats getRecordStats() {
+    return audioInput.getStats();
+  }
+
+  /**
+   * Returns the statistics of the playout thread, accumulated since this module was created.
+   * Cheap and lock-free; intended to be polled from a stats thread. The underruns and latency of
+   * the AudioTrack buffer are reported by getPlayoutBufferStats().
+   */
+  public AudioThreadStats getPlayoutStats() {
+    return audioOutput.getStats();
+  }
+
   private static native long nativeCreateAudioDeviceModule(Context context,
       AudioManager audioManager, WebRtcAudioRecord audioInput, WebRtcAudioTrack audioOutput,
       int inputSampleRate, int outputSampleRate, boolean useStereoInput, boolean useStereoOutput);
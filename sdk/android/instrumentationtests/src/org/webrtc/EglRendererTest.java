@@ -250,11 +250,16 @@ public class EglRendererTest {
 
   /** Tells eglRenderer to render test frame with given index. */
   private void feedFrame(int i) {
+    feedFrame(eglRenderer, i);
+  }
+
+  /** Tells |renderer| to render test frame with given index. */
+  private static void feedFrame(EglRenderer renderer, int i) {
     final VideoFrame.I420Buffer buffer = JavaI420Buffer.wrap(TEST_FRAME_WIDTH, TEST_FRAME_HEIGHT,
         TEST_FRAMES[i][0], TEST_FRAME_WIDTH, TEST_FRAMES[i][1], TEST_FRAME_WIDTH / 2,
         TEST_FRAMES[i][2], TEST_FRAME_WIDTH / 2, null /* releaseCallback */);
     final VideoFrame frame = new VideoFrame(buffer, 0 /* rotation */, 0 /* timestamp */);
-    eglRenderer.onFrame(frame);
+    renderer.onFrame(frame);
     frame.release();
   }
 
@@ -287,6 +292,39 @@ public class EglRendererTest {
     checkBitmapContent(testFrameListener.resetAndGetBitmap(), 1);
   }
 
+  @Test
+  @SmallTest
+  public void testReturnedBitmapIsReused() throws Exception {
+    eglRenderer.addFrameListener(testFrameListener, 1f /* scaleFactor */);
+    feedFrame(0);
+    assertTrue(testFrameListener.waitForBitmap(RENDER_WAIT_MS));
+    final Bitmap firstBitmap = testFrameListener.resetAndGetBitmap();
+    eglRenderer.returnBitmap(firstBitmap);
+    eglRenderer.addFrameListener(testFrameListener, 1f /* scaleFactor */);
+    feedFrame(1);
+    assertTrue(testFrameListener.waitForBitmap(RENDER_WAIT_MS));
+    final Bitmap secondBitmap = testFrameListener.resetAndGetBitmap();
+    assertTrue(firstBitmap == secondBitmap);
+    checkBitmapContent(secondBitmap, 1);
+  }
+
+  @Test
+  @SmallTest
+  public void testByteBufferFrameListener() throws Exception {
+    // Copy the pixels into a Bitmap, since the buffer is only valid during the callback.
+    eglRenderer.addByteBufferFrameListener((rgbaBuffer, width, height) -> {
+      final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+      bitmap.copyPixelsFromBuffer(rgbaBuffer);
+      testFrameListener.onFrame(bitmap);
+    }, 1f /* scaleFactor */, null /* drawerParam */, false /* applyFpsReduction */);
+    feedFrame(0);
+    assertTrue(testFrameListener.waitForBitmap(RENDER_WAIT_MS));
+    checkBitmapContent(testFrameListener.resetAndGetBitmap(), 0);
+    // The listener is only called once.
+    feedFrame(1);
+    assertFalse(testFrameListener.waitForBitmap(RENDER_WAIT_MS));
+  }
+
   @Test
   @SmallTest
   public void testAddFrameListenerBitmapScale() throws Exception {
@@ -354,6 +392,71 @@ public class EglRendererTest {
     assertFalse(testFrameListener.waitForBitmap(RENDER_WAIT_MS));
   }
 
+  @Test
+  @SmallTest
+  public void testVsyncPacing() throws Exception {
+    eglRenderer.setVsyncPacingEnabled(true);
+    eglRenderer.addFrameListener(testFrameListener, 1f /* scaleFactor */);
+    // Frames are drawn on the next vsync; a frame replaced before then is dropped. Both frames are
+    // fed in one task on the render thread, so that no vsync is handled between them.
+    eglRenderer.invokeOnRenderThreadForTesting(() -> {
+      feedFrame(0);
+      feedFrame(1);
+    });
+    assertTrue(testFrameListener.waitForBitmap(RENDER_WAIT_MS));
+    checkBitmapContent(testFrameListener.resetAndGetBitmap(), 1);
+    eglRenderer.addFrameListener(testFrameListener, 1f /* scaleFactor */);
+    feedFrame(2);
+    assertTrue(testFrameListener.waitForBitmap(RENDER_WAIT_MS));
+    checkBitmapContent(testFrameListener.resetAndGetBitmap(), 2);
+
+    final EglRenderer.RenderStats stats = eglRenderer.getRenderStats();
+    assertEquals(3, stats.framesReceived);
+    assertEquals(1, stats.framesDropped);
+    assertEquals(2, stats.framesRendered);
+  }
+
+  @Test
+  @SmallTest
+  public void testSharedRenderThread() throws Exception {
+    final SharedEglRenderThread sharedRenderThread = SharedEglRenderThread.create(
+        "SharedRenderThread", null /* sharedContext */, EglBase.CONFIG_RGBA);
+    final EglRenderer firstRenderer = new EglRenderer("FirstRenderer: ");
+    final EglRenderer secondRenderer = new EglRenderer("SecondRenderer: ");
+    firstRenderer.init(
+        sharedRenderThread, new GlRectDrawer(), /* usePresentationTimeStamp= */ false);
+    secondRenderer.init(
+        sharedRenderThread, new GlRectDrawer(), /* usePresentationTimeStamp= */ false);
+    final SurfaceTexture firstSurfaceTexture = new SurfaceTexture(oesTextureId);
+    final SurfaceTexture secondSurfaceTexture = new SurfaceTexture(oesTextureId);
+    firstSurfaceTexture.setDefaultBufferSize(1 /* width */, 1 /* height */);
+    secondSurfaceTexture.setDefaultBufferSize(1 /* width */, 1 /* height */);
+    firstRenderer.createEglSurface(firstSurfaceTexture);
+    secondRenderer.createEglSurface(secondSurfaceTexture);
+
+    // Both renderers draw on the shared thread and deliver the frame they received.
+    final TestFrameListener secondFrameListener = new TestFrameListener();
+    firstRenderer.addFrameListener(testFrameListener, 1f /* scaleFactor */);
+    secondRenderer.addFrameListener(secondFrameListener, 1f /* scaleFactor */);
+    feedFrame(firstRenderer, 0);
+    feedFrame(secondRenderer, 1);
+    assertTrue(testFrameListener.waitForBitmap(RENDER_WAIT_MS));
+    assertTrue(secondFrameListener.waitForBitmap(RENDER_WAIT_MS));
+    checkBitmapContent(testFrameListener.resetAndGetBitmap(), 0);
+    checkBitmapContent(secondFrameListener.resetAndGetBitmap(), 1);
+    assertEquals(1, firstRenderer.getRenderStats().framesRendered);
+    assertEquals(1, secondRenderer.getRenderStats().framesRendered);
+    final SharedEglRenderThread.PassStats passStats = sharedRenderThread.getPassStats();
+    assertEquals(2, passStats.rendererCount);
+    assertEquals(2, passStats.framesDrawn);
+
+    firstRenderer.release();
+    secondRenderer.release();
+    sharedRenderThread.release();
+    firstSurfaceTexture.release();
+    secondSurfaceTexture.release();
+  }
+
   private static ByteBuffer[][] copyTestDataToDirectByteBuffers(byte[][][] testData) {
     final ByteBuffer[][] result = new ByteBuffer[testData.length][];
 
@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import java.io.File;
+import org.chromium.base.test.BaseJUnit4ClassRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(BaseJUnit4ClassRunner.class)
+public class GlShaderCacheTest {
+  private static final String VERTEX_SHADER = "attribute vec4 in_pos;\n"
+      + "void main() {\n"
+      + "  gl_Position = in_pos;\n"
+      + "}\n";
+
+  // Each test uses its own fragment shader, so that the tests do not see each other's binaries.
+  private static String createFragmentShader(String color) {
+    return "precision mediump float;\n"
+        + "void main() {\n"
+        + "  gl_FragColor = vec4(" + color + ");\n"
+        + "}\n";
+  }
+
+  private static EglBase createEglBase(@Nullable EglBase sharedEglBase) {
+    final EglBase eglBase = EglBase.create(
+        sharedEglBase == null ? null : sharedEglBase.getEglBaseContext(), EglBase.CONFIG_PLAIN);
+    eglBase.createDummyPbufferSurface();
+    return eglBase;
+  }
+
+  // Must be called with a context current.
+  private static boolean isProgramBinarySupported() {
+    if (GlUtil.getGlesMajorVersion() < 3) {
+      return false;
+    }
+    final int[] formatCount = new int[1];
+    GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formatCount, 0);
+    return formatCount[0] > 0;
+  }
+
+  @Test
+  @SmallTest
+  public void testProgramSharedInShareGroup() {
+    final String fragmentShader = createFragmentShader("1.0, 0.0, 0.0, 1.0");
+    final EglBase firstEglBase = createEglBase(null);
+    final EglBase secondEglBase = createEglBase(firstEglBase);
+    firstEglBase.makeCurrent();
+    final GlShader firstShader = GlShaderCache.acquire(VERTEX_SHADER, fragmentShader);
+    final long linkedProgramHits = GlShaderCache.getStats().linkedProgramHits;
+
+    secondEglBase.makeCurrent();
+    final GlShader secondShader = GlShaderCache.acquire(VERTEX_SHADER, fragmentShader);
+    assertEquals(linkedProgramHits + 1, GlShaderCache.getStats().linkedProgramHits);
+    secondShader.useProgram();
+    secondShader.release();
+
+    firstEglBase.makeCurrent();
+    // The program is still usable after the other drawer released it.
+    firstShader.useProgram();
+    firstShader.release();
+    secondEglBase.release();
+    firstEglBase.release();
+  }
+
+  @Test
+  @SmallTest
+  public void testProgramLoadedFromBinary() {
+    final String fragmentShader = createFragmentShader("0.0, 1.0, 0.0, 1.0");
+    EglBase eglBase = createEglBase(null);
+    eglBase.makeCurrent();
+    if (!isProgramBinarySupported()) {
+      eglBase.release();
+      return;
+    }
+    final long compileCount = GlShaderCache.getStats().compileCount;
+    final long binaryHits = GlShaderCache.getStats().binaryHits;
+    GlShaderCache.acquire(VERTEX_SHADER, fragmentShader).release();
+    eglBase.release();
+
+    // A new share group can not reuse the linked program, but reuses its binary.
+    eglBase = createEglBase(null);
+    eglBase.makeCurrent();
+    final GlShader shader = GlShaderCache.acquire(VERTEX_SHADER, fragmentShader);
+    shader.useProgram();
+    assertEquals(compileCount + 1, GlShaderCache.getStats().compileCount);
+    assertEquals(binaryHits + 1, GlShaderCache.getStats().binaryHits);
+    shader.release();
+    eglBase.release();
+  }
+
+  @Test
+  @SmallTest
+  public void testProgramBinaryPersisted() {
+    final String fragmentShader = createFragmentShader("0.0, 0.0, 1.0, 1.0");
+    final File directory =
+        new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "GlShaderCacheTest");
+    GlShaderCache.setPersistenceDirectory(directory);
+    final EglBase eglBase = createEglBase(null);
+    eglBase.makeCurrent();
+    if (!isProgramBinarySupported()) {
+      eglBase.release();
+      GlShaderCache.setPersistenceDirectory(null);
+      return;
+    }
+    GlShaderCache.acquire(VERTEX_SHADER, fragmentShader).release();
+    // The binary is written on a background thread.
+    GlShaderCache.waitForPersistence();
+    assertTrue(directory.list().length > 0);
+
+    // Drop the binaries kept in memory, as if the process was restarted, but keep the files.
+    GlShaderCache.setPersistenceDirectory(null);
+    GlShaderCache.invalidate();
+    GlShaderCache.setPersistenceDirectory(directory);
+    final long persistedBinaryHits = GlShaderCache.getStats().persistedBinaryHits;
+    final GlShader shader = GlShaderCache.acquire(VERTEX_SHADER, fragmentShader);
+    shader.useProgram();
+    assertEquals(persistedBinaryHits + 1, GlShaderCache.getStats().persistedBinaryHits);
+    shader.release();
+
+    GlShaderCache.invalidate();
+    GlShaderCache.setPersistenceDirectory(null);
+    eglBase.release();
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.filters.MediumTest;
+import android.support.test.filters.SmallTest;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import org.chromium.base.test.BaseJUnit4ClassRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(BaseJUnit4ClassRunner.class)
+public class MultiResolutionScalerTest {
+  private static final List<Size> SIMULCAST_SIZES =
+      Arrays.asList(new Size(32, 24), new Size(128, 96), new Size(64, 48));
+
+  @Before
+  public void setUp() {
+    NativeLibrary.initialize(new NativeLibrary.DefaultLoader(), TestConstants.NATIVE_LIBRARY);
+  }
+
+  /** Fills |plane| with |value|, respecting the stride. */
+  private static void fillPlane(ByteBuffer plane, int stride, int width, int height, int value) {
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        plane.put(y * stride + x, (byte) value);
+      }
+    }
+  }
+
+  // Gray levels of the top left, top right, bottom left and bottom right quadrants of the source.
+  private static final int[] QUADRANT_VALUES = {40, 90, 140, 190};
+  // Pixels this close to the border between two quadrants may be blended by the scaling filter.
+  private static final int QUADRANT_BORDER_MARGIN = 2;
+
+  // Returns the index in QUADRANT_VALUES of the quadrant that pixel (|x|, |y|) belongs to.
+  private static int getQuadrant(int x, int y, int width, int height) {
+    return (y < height / 2 ? 0 : 2) + (x < width / 2 ? 0 : 1);
+  }
+
+  /** Fills the four quadrants of |plane| with QUADRANT_VALUES, respecting the stride. */
+  private static void fillQuadrants(ByteBuffer plane, int stride, int width, int height) {
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        plane.put(y * stride + x, (byte) QUADRANT_VALUES[getQuadrant(x, y, width, height)]);
+      }
+    }
+  }
+
+  /**
+   * Asserts that the |width| x |height| pixels of |plane| show the four quadrants with the values
+   * in |expected|, up to the borders of the plane. Only pixels near the borders between two
+   * quadrants are skipped, so content from a wrong viewport, crop or neighboring layer is caught.
+   */
+  private static void assertQuadrants(
+      int[] expected, ByteBuffer plane, int stride, int width, int height) {
+    for (int y = 0; y < height; ++y) {
+      if (Math.abs(y - height / 2) < QUADRANT_BORDER_MARGIN) {
+        continue;
+      }
+      for (int x = 0; x < width; ++x) {
+        if (Math.abs(x - width / 2) < QUADRANT_BORDER_MARGIN) {
+          continue;
+        }
+        final int expectedValue = expected[getQuadrant(x, y, width, height)];
+        final int actual = plane.get(y * stride + x) & 0xFF;
+        assertTrue("Expected " + expectedValue + " but got " + actual + " at (" + x + ", " + y
+                + ") of " + width + "x" + height,
+            Math.abs(expectedValue - actual) <= 2);
+      }
+    }
+  }
+
+  // Asserts that each layer has the size at the same index in SIMULCAST_SIZES and shows the full
+  // source.
+  private static void assertLayersMatch(int[] expectedY, List<VideoFrame.Buffer> layers) {
+    assertEquals(SIMULCAST_SIZES.size(), layers.size());
+    for (int i = 0; i < layers.size(); ++i) {
+      final VideoFrame.Buffer layer = layers.get(i);
+      assertEquals(SIMULCAST_SIZES.get(i).width, layer.getWidth());
+      assertEquals(SIMULCAST_SIZES.get(i).height, layer.getHeight());
+      final VideoFrame.I420Buffer i420 = layer.toI420();
+      assertQuadrants(
+          expectedY, i420.getDataY(), i420.getStrideY(), i420.getWidth(), i420.getHeight());
+      i420.release();
+      layer.release();
+    }
+  }
+
+  @Test
+  @SmallTest
+  public void testI420Layers() {
+    final int width = 256;
+    final int height = 192;
+    final JavaI420Buffer source = JavaI420Buffer.allocate(width, height);
+    fillQuadrants(source.getDataY(), source.getStrideY(), width, height);
+    fillPlane(source.getDataU(), source.getStrideU(), width / 2, height / 2, 128);
+    fillPlane(source.getDataV(), source.getStrideV(), width / 2, height / 2, 128);
+
+    final MultiResolutionScaler scaler = new MultiResolutionScaler();
+    assertLayersMatch(QUADRANT_VALUES, scaler.scale(source, SIMULCAST_SIZES));
+    source.release();
+    scaler.release();
+  }
+
+  @Test
+  @MediumTest
+  public void testTextureLayers() {
+    final int width = 256;
+    final int height = 192;
+    final HandlerThread textureThread = new HandlerThread("MultiResolutionScalerTest");
+    textureThread.start();
+    final Handler textureHandler = new Handler(textureThread.getLooper());
+
+    // Create an RGB texture with four gray quadrants on the texture thread.
+    final EglBase eglBase = ThreadUtils.invokeAtFrontUninterruptibly(textureHandler, () -> {
+      final EglBase textureEglBase = EglBase.create(null, EglBase.CONFIG_PIXEL_BUFFER);
+      textureEglBase.createDummyPbufferSurface();
+      textureEglBase.makeCurrent();
+      return textureEglBase;
+    });
+    final GlTextureFrameBuffer frameBuffer =
+        ThreadUtils.invokeAtFrontUninterruptibly(textureHandler, () -> {
+          final GlTextureFrameBuffer textureFrameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+          textureFrameBuffer.setSize(width, height);
+          GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, textureFrameBuffer.getFrameBufferId());
+          GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+          for (int i = 0; i < QUADRANT_VALUES.length; ++i) {
+            // In WebRTC, Y=0 is the top row, while in OpenGL Y=0 is the bottom row.
+            GLES20.glScissor(
+                (i % 2) * width / 2, (i < 2 ? 1 : 0) * height / 2, width / 2, height / 2);
+            final float gray = QUADRANT_VALUES[i] / 255.0f;
+            GLES20.glClearColor(gray, gray, gray, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+          }
+          GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+          GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+          return textureFrameBuffer;
+        });
+    final YuvConverter yuvConverter = new YuvConverter();
+    final TextureBufferImpl source = new TextureBufferImpl(width, height,
+        VideoFrame.TextureBuffer.Type.RGB, frameBuffer.getTextureId(), new Matrix(),
+        textureHandler, yuvConverter, /* releaseCallback= */ null);
+
+    final MultiResolutionScaler scaler = new MultiResolutionScaler();
+    final List<VideoFrame.Buffer> layers = scaler.scale(source, SIMULCAST_SIZES);
+    for (VideoFrame.Buffer layer : layers) {
+      assertTrue(layer instanceof VideoFrame.TextureBuffer);
+    }
+    // YuvConverter maps full range gray levels to limited range Y.
+    final int[] expectedY = new int[QUADRANT_VALUES.length];
+    for (int i = 0; i < QUADRANT_VALUES.length; ++i) {
+      expectedY[i] = Math.round(16 + QUADRANT_VALUES[i] * 219 / 255.0f);
+    }
+    assertLayersMatch(expectedY, layers);
+    source.release();
+    scaler.release();
+
+    ThreadUtils.invokeAtFrontUninterruptibly(textureHandler, () -> {
+      yuvConverter.release();
+      frameBuffer.release();
+      eglBase.release();
+    });
+    textureThread.quit();
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import java.nio.ByteBuffer;
+import org.chromium.base.test.BaseJUnit4ClassRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(BaseJUnit4ClassRunner.class)
+public class NativeByteBufferPoolTest {
+  @Before
+  public void setUp() {
+    NativeLibrary.initialize(new NativeLibrary.DefaultLoader(), TestConstants.NATIVE_LIBRARY);
+  }
+
+  @Test
+  @SmallTest
+  public void testRecycledBufferIsReused() {
+    final NativeByteBufferPool pool =
+        new NativeByteBufferPool(2 /* maxBuffersPerBucket */, 1 << 20 /* maxPooledBytes */);
+    final ByteBuffer first = pool.acquire(1000);
+    assertTrue(first.capacity() >= 1000);
+    pool.recycle(first);
+    final ByteBuffer second = pool.acquire(1010);
+    assertSame(first, second);
+    pool.recycle(second);
+
+    final NativeByteBufferPool.Stats stats = pool.getStats();
+    assertEquals(1, stats.hitCount);
+    assertEquals(1, stats.missCount);
+    assertEquals(first.capacity(), stats.pooledBytes);
+    assertEquals(first.capacity(), stats.highWaterAllocatedBytes);
+    pool.trim();
+    assertEquals(0, pool.getStats().allocatedBytes);
+  }
+
+  @Test
+  @SmallTest
+  public void testBuffersBeyondLimitAreFreed() {
+    final NativeByteBufferPool pool =
+        new NativeByteBufferPool(1 /* maxBuffersPerBucket */, 1 << 20 /* maxPooledBytes */);
+    final ByteBuffer first = pool.acquire(1000);
+    final ByteBuffer second = pool.acquire(1000);
+    pool.recycle(first);
+    pool.recycle(second);
+
+    final NativeByteBufferPool.Stats stats = pool.getStats();
+    assertEquals(2, stats.missCount);
+    assertEquals(1, stats.evictionCount);
+    assertEquals(first.capacity(), stats.allocatedBytes);
+    assertEquals(2 * first.capacity(), stats.highWaterAllocatedBytes);
+    pool.trim();
+  }
+}
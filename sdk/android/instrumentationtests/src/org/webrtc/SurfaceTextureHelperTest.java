@@ -520,4 +520,224 @@ public class SurfaceTextureHelperTest {
     surfaceTextureHelper.dispose();
     eglBase.release();
   }
+
+  /**
+   * Test converting a texture frame with toI420Async() for two consumers at once. Each consumer
+   * should receive an I420 buffer with the expected Y value, while the frame is only read back
+   * once.
+   */
+  @Test
+  @MediumTest
+  public void testTextureToYuvAsync() throws InterruptedException {
+    final int width = 16;
+    final int height = 16;
+    final int numConversions = 2;
+
+    final EglBase eglBase = EglBase.create(null, EglBase.CONFIG_PLAIN);
+
+    // Create SurfaceTextureHelper and listener.
+    final YuvConverter yuvConverter = new YuvConverter();
+    final SurfaceTextureHelper surfaceTextureHelper =
+        SurfaceTextureHelper.create("SurfaceTextureHelper test" /* threadName */,
+            eglBase.getEglBaseContext(), false /* alignTimestamps */, yuvConverter);
+    final MockTextureListener listener = new MockTextureListener();
+    surfaceTextureHelper.startListening(listener);
+    surfaceTextureHelper.setTextureSize(width, height);
+
+    eglBase.createSurface(surfaceTextureHelper.getSurfaceTexture());
+    eglBase.makeCurrent();
+    GLES20.glClearColor(79 / 255.0f, 66 / 255.0f, 161 / 255.0f, 1.0f);
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    // swapBuffers() will ultimately trigger onTextureFrameAvailable().
+    eglBase.swapBuffers();
+
+    final TextureBufferImpl textureBuffer = (TextureBufferImpl) listener.waitForTextureBuffer();
+    final CountDownLatch conversionsDone = new CountDownLatch(numConversions);
+    final VideoFrame.I420Buffer[] results = new VideoFrame.I420Buffer[numConversions];
+    for (int i = 0; i < numConversions; ++i) {
+      final int index = i;
+      textureBuffer.toI420Async(Runnable::run, i420Buffer -> {
+        results[index] = i420Buffer;
+        conversionsDone.countDown();
+      });
+    }
+    // The pending conversions keep their own reference to the texture buffer.
+    textureBuffer.release();
+    conversionsDone.await();
+
+    for (VideoFrame.I420Buffer i420 : results) {
+      assertTrue(i420 != null);
+      assertEquals(width, i420.getWidth());
+      assertEquals(height, i420.getHeight());
+      // Allow off-by-one differences due to different rounding.
+      assertClose(1, 85, i420.getDataY().get(0) & 0xFF);
+      i420.release();
+    }
+    // The second consumer shares the result of the first conversion.
+    assertEquals(1, yuvConverter.getAsyncConversionStats().conversionCount);
+    assertEquals(numConversions - 1, yuvConverter.getSavedConversionCount());
+
+    surfaceTextureHelper.dispose();
+    eglBase.release();
+  }
+
+  /**
+   * Test that calling toI420() several times on the same texture frame returns the cached result
+   * of the first conversion.
+   */
+  @Test
+  @MediumTest
+  public void testTextureToYuvIsCached() throws InterruptedException {
+    final int width = 16;
+    final int height = 16;
+
+    final EglBase eglBase = EglBase.create(null, EglBase.CONFIG_PLAIN);
+
+    // Create SurfaceTextureHelper and listener.
+    final YuvConverter yuvConverter = new YuvConverter();
+    final SurfaceTextureHelper surfaceTextureHelper =
+        SurfaceTextureHelper.create("SurfaceTextureHelper test" /* threadName */,
+            eglBase.getEglBaseContext(), false /* alignTimestamps */, yuvConverter);
+    final MockTextureListener listener = new MockTextureListener();
+    surfaceTextureHelper.startListening(listener);
+    surfaceTextureHelper.setTextureSize(width, height);
+
+    eglBase.createSurface(surfaceTextureHelper.getSurfaceTexture());
+    eglBase.makeCurrent();
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    // swapBuffers() will ultimately trigger onTextureFrameAvailable().
+    eglBase.swapBuffers();
+
+    final VideoFrame.TextureBuffer textureBuffer = listener.waitForTextureBuffer();
+    final VideoFrame.I420Buffer first = textureBuffer.toI420();
+    final VideoFrame.I420Buffer second = textureBuffer.toI420();
+    assertTrue(first == second);
+    assertEquals(1, yuvConverter.getSavedConversionCount());
+    first.release();
+    second.release();
+    textureBuffer.release();
+
+    surfaceTextureHelper.dispose();
+    eglBase.release();
+  }
+
+  /**
+   * Test that toI420() shares the result of a toI420Async() conversion that is still in flight
+   * instead of converting the frame a second time.
+   */
+  @Test
+  @MediumTest
+  public void testTextureToYuvJoinsAsyncConversion() throws InterruptedException {
+    final int width = 16;
+    final int height = 16;
+
+    final EglBase eglBase = EglBase.create(null, EglBase.CONFIG_PLAIN);
+
+    // Create SurfaceTextureHelper and listener.
+    final YuvConverter yuvConverter = new YuvConverter();
+    final SurfaceTextureHelper surfaceTextureHelper =
+        SurfaceTextureHelper.create("SurfaceTextureHelper test" /* threadName */,
+            eglBase.getEglBaseContext(), false /* alignTimestamps */, yuvConverter);
+    final MockTextureListener listener = new MockTextureListener();
+    surfaceTextureHelper.startListening(listener);
+    surfaceTextureHelper.setTextureSize(width, height);
+
+    eglBase.createSurface(surfaceTextureHelper.getSurfaceTexture());
+    eglBase.makeCurrent();
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    // swapBuffers() will ultimately trigger onTextureFrameAvailable().
+    eglBase.swapBuffers();
+
+    final TextureBufferImpl textureBuffer = (TextureBufferImpl) listener.waitForTextureBuffer();
+    // Keep the texture thread busy, so that the asynchronous conversion is still queued when
+    // toI420() is called.
+    final CountDownLatch unblockTextureThread = new CountDownLatch(1);
+    surfaceTextureHelper.getHandler().post(() -> {
+      ThreadUtils.awaitUninterruptibly(unblockTextureThread);
+    });
+    final CountDownLatch asyncConversionDone = new CountDownLatch(1);
+    final VideoFrame.I420Buffer[] asyncResult = new VideoFrame.I420Buffer[1];
+    textureBuffer.toI420Async(Runnable::run, i420Buffer -> {
+      asyncResult[0] = i420Buffer;
+      asyncConversionDone.countDown();
+    });
+
+    final VideoFrame.I420Buffer[] syncResult = new VideoFrame.I420Buffer[1];
+    final Thread syncThread = new Thread(() -> { syncResult[0] = textureBuffer.toI420(); });
+    syncThread.start();
+    unblockTextureThread.countDown();
+    syncThread.join();
+    asyncConversionDone.await();
+
+    // Whichever call runs first converts the frame, the other one gets the same buffer.
+    assertTrue(asyncResult[0] != null);
+    assertTrue(syncResult[0] == asyncResult[0]);
+    assertEquals(1, yuvConverter.getAsyncConversionStats().conversionCount);
+    assertEquals(1, yuvConverter.getSavedConversionCount());
+    asyncResult[0].release();
+    syncResult[0].release();
+    textureBuffer.release();
+
+    surfaceTextureHelper.dispose();
+    eglBase.release();
+  }
+
+  /**
+   * Test that a SurfaceTextureHelper with a texture ring keeps delivering frames while earlier
+   * frames are still held, and drops frames once every texture of the ring is in use.
+   */
+  @Test
+  @MediumTest
+  public void testTextureRing() throws InterruptedException {
+    final int width = 16;
+    final int height = 16;
+    final int textureRingSize = 2;
+    final EglBase eglBase = EglBase.create(null, EglBase.CONFIG_PIXEL_BUFFER);
+    eglBase.createPbufferSurface(width, height);
+
+    // Create SurfaceTextureHelper and listener.
+    final SurfaceTextureHelper surfaceTextureHelper = SurfaceTextureHelper.create(
+        "SurfaceTextureHelper test" /* threadName */, eglBase.getEglBaseContext(),
+        false /* alignTimestamps */, new YuvConverter(), textureRingSize);
+    final MockTextureListener listener = new MockTextureListener();
+    surfaceTextureHelper.startListening(listener);
+    surfaceTextureHelper.setTextureSize(width, height);
+
+    // Create resources for stubbing an OES texture producer. |eglOesBase| has the SurfaceTexture in
+    // |surfaceTextureHelper| as the target EGLSurface.
+    final EglBase eglOesBase = EglBase.create(eglBase.getEglBaseContext(), EglBase.CONFIG_PLAIN);
+    eglOesBase.createSurface(surfaceTextureHelper.getSurfaceTexture());
+    eglOesBase.makeCurrent();
+
+    // Fill the ring without returning any frame.
+    final VideoFrame.TextureBuffer[] heldBuffers = new VideoFrame.TextureBuffer[textureRingSize];
+    for (int i = 0; i < textureRingSize; ++i) {
+      GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+      // swapBuffers() will ultimately trigger onTextureFrameAvailable().
+      eglOesBase.swapBuffers();
+      heldBuffers[i] = listener.waitForTextureBuffer();
+      assertEquals(VideoFrame.TextureBuffer.Type.RGB, heldBuffers[i].getType());
+    }
+    assertTrue(heldBuffers[0].getTextureId() != heldBuffers[1].getTextureId());
+    assertEquals(1, surfaceTextureHelper.getTextureRingFullCount());
+
+    // The ring is full, so the next frame is dropped.
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    eglOesBase.swapBuffers();
+    listener.assertNoFrameIsDelivered(/* waitPeriodMs= */ 500);
+    assertEquals(1, surfaceTextureHelper.getDroppedFrameCount());
+
+    // Returning a frame makes room for a new one.
+    heldBuffers[0].release();
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    eglOesBase.swapBuffers();
+    final VideoFrame.TextureBuffer textureBuffer = listener.waitForTextureBuffer();
+    assertEquals(heldBuffers[0].getTextureId(), textureBuffer.getTextureId());
+
+    textureBuffer.release();
+    heldBuffers[1].release();
+    eglOesBase.release();
+    surfaceTextureHelper.dispose();
+    eglBase.release();
+  }
 }
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+
+import android.opengl.GLES20;
+import android.support.test.filters.SmallTest;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.chromium.base.test.BaseJUnit4ClassRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(BaseJUnit4ClassRunner.class)
+public class VideoFrameDrawerTest {
+  private static final int WIDTH = 16;
+  private static final int HEIGHT = 16;
+  // Stride padding of the strided test frames.
+  private static final int PADDING = 8;
+  private static final int SEED = 42;
+
+  private EglBase eglBase;
+  private GlRectDrawer drawer;
+
+  @Before
+  public void setUp() {
+    NativeLibrary.initialize(new NativeLibrary.DefaultLoader(), TestConstants.NATIVE_LIBRARY);
+    eglBase = EglBase.create(null, EglBase.CONFIG_PIXEL_BUFFER);
+    eglBase.createPbufferSurface(WIDTH, HEIGHT);
+    eglBase.makeCurrent();
+    drawer = new GlRectDrawer();
+  }
+
+  @After
+  public void tearDown() {
+    drawer.release();
+    eglBase.release();
+  }
+
+  // Creates a frame with random content whose planes have |padding| bytes at the end of each row.
+  private static VideoFrame createFrame(int padding) {
+    final Random random = new Random(SEED);
+    final ByteBuffer[] planes = new ByteBuffer[3];
+    final int[] strides = new int[3];
+    for (int i = 0; i < 3; ++i) {
+      final int planeWidth = (i == 0) ? WIDTH : WIDTH / 2;
+      final int planeHeight = (i == 0) ? HEIGHT : HEIGHT / 2;
+      strides[i] = planeWidth + padding;
+      planes[i] = ByteBuffer.allocateDirect(strides[i] * planeHeight);
+      final byte[] row = new byte[planeWidth];
+      for (int y = 0; y < planeHeight; ++y) {
+        random.nextBytes(row);
+        planes[i].position(y * strides[i]);
+        planes[i].put(row);
+      }
+      planes[i].rewind();
+    }
+    final VideoFrame.I420Buffer buffer = JavaI420Buffer.wrap(WIDTH, HEIGHT, planes[0], strides[0],
+        planes[1], strides[1], planes[2], strides[2], /* releaseCallback= */ null);
+    return new VideoFrame(buffer, /* rotation= */ 0, /* timestampNs= */ 0);
+  }
+
+  private ByteBuffer drawAndReadPixels(VideoFrameDrawer frameDrawer, VideoFrame frame) {
+    frameDrawer.drawFrame(frame, drawer);
+    final ByteBuffer data = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+    GLES20.glReadPixels(0, 0, WIDTH, HEIGHT, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
+    GlUtil.checkNoGLES2Error("glReadPixels");
+    return data;
+  }
+
+  private void testStridedUpload(boolean pixelUnpackBufferEnabled) {
+    final VideoFrameDrawer frameDrawer = new VideoFrameDrawer();
+    frameDrawer.setPixelUnpackBufferEnabled(pixelUnpackBufferEnabled);
+    final VideoFrame packedFrame = createFrame(/* padding= */ 0);
+    final VideoFrame stridedFrame = createFrame(PADDING);
+
+    final ByteBuffer expected = drawAndReadPixels(frameDrawer, packedFrame);
+    final ByteBuffer actual = drawAndReadPixels(frameDrawer, stridedFrame);
+    assertEquals(expected, actual);
+
+    // The second frame has the same size and reuses the texture storage.
+    final VideoFrameDrawer.UploadStats stats = frameDrawer.getUploadStats();
+    assertEquals(2, stats.uploadCount);
+    assertEquals(1, stats.reallocationCount);
+
+    packedFrame.release();
+    stridedFrame.release();
+    frameDrawer.release();
+  }
+
+  @Test
+  @SmallTest
+  public void testStridedUpload() {
+    testStridedUpload(/* pixelUnpackBufferEnabled= */ false);
+  }
+
+  @Test
+  @SmallTest
+  public void testStridedUploadThroughPixelUnpackBuffer() {
+    testStridedUpload(/* pixelUnpackBufferEnabled= */ true);
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.support.test.filters.SmallTest;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.chromium.base.test.BaseJUnit4ClassRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(BaseJUnit4ClassRunner.class)
+public class YuvConverterTest {
+  private static final int WIDTH = 16;
+  private static final int HEIGHT = 16;
+  private static final int FRAME_COUNT = 5;
+
+  private EglBase eglBase;
+  private final List<GlTextureFrameBuffer> frameBuffers = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    NativeLibrary.initialize(new NativeLibrary.DefaultLoader(), TestConstants.NATIVE_LIBRARY);
+    eglBase = EglBase.create(null, EglBase.CONFIG_PIXEL_BUFFER);
+    eglBase.createDummyPbufferSurface();
+    eglBase.makeCurrent();
+  }
+
+  @After
+  public void tearDown() {
+    for (GlTextureFrameBuffer frameBuffer : frameBuffers) {
+      frameBuffer.release();
+    }
+    eglBase.release();
+  }
+
+  // Creates an RGB texture filled with a color that is different for each |index|.
+  private VideoFrame.TextureBuffer createTextureBuffer(YuvConverter yuvConverter, int index) {
+    final GlTextureFrameBuffer frameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+    frameBuffer.setSize(WIDTH, HEIGHT);
+    frameBuffers.add(frameBuffer);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer.getFrameBufferId());
+    GLES20.glClearColor(index / (float) FRAME_COUNT, 1.0f - index / (float) FRAME_COUNT,
+        /* blue= */ 0.5f, /* alpha= */ 1.0f);
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    return new TextureBufferImpl(WIDTH, HEIGHT, VideoFrame.TextureBuffer.Type.RGB,
+        frameBuffer.getTextureId(), new Matrix(), /* toI420Handler= */ null, yuvConverter,
+        /* releaseCallback= */ null);
+  }
+
+  private static void assertPlaneEquals(ByteBuffer expected, int expectedStride, ByteBuffer actual,
+      int actualStride, int width, int height) {
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        assertEquals("Mismatch at (" + x + ", " + y + ")", expected.get(y * expectedStride + x),
+            actual.get(y * actualStride + x));
+      }
+    }
+  }
+
+  private static void assertI420Equals(
+      VideoFrame.I420Buffer expected, VideoFrame.I420Buffer actual) {
+    assertEquals(expected.getWidth(), actual.getWidth());
+    assertEquals(expected.getHeight(), actual.getHeight());
+    final int chromaWidth = (WIDTH + 1) / 2;
+    final int chromaHeight = (HEIGHT + 1) / 2;
+    assertPlaneEquals(expected.getDataY(), expected.getStrideY(), actual.getDataY(),
+        actual.getStrideY(), WIDTH, HEIGHT);
+    assertPlaneEquals(expected.getDataU(), expected.getStrideU(), actual.getDataU(),
+        actual.getStrideU(), chromaWidth, chromaHeight);
+    assertPlaneEquals(expected.getDataV(), expected.getStrideV(), actual.getDataV(),
+        actual.getStrideV(), chromaWidth, chromaHeight);
+  }
+
+  @Test
+  @SmallTest
+  public void testConvertPipelinedMatchesConvert() {
+    final YuvConverter yuvConverter = new YuvConverter();
+    final List<VideoFrame.TextureBuffer> textureBuffers = new ArrayList<>();
+    final List<VideoFrame.I420Buffer> expectedBuffers = new ArrayList<>();
+    for (int i = 0; i < FRAME_COUNT; ++i) {
+      final VideoFrame.TextureBuffer textureBuffer = createTextureBuffer(yuvConverter, i);
+      textureBuffers.add(textureBuffer);
+      final VideoFrame.I420Buffer expectedBuffer = yuvConverter.convert(textureBuffer);
+      assertNotNull(expectedBuffer);
+      expectedBuffers.add(expectedBuffer);
+    }
+
+    // Results are returned in submission order, partly from convertPipelined() and the rest from
+    // flushPipeline().
+    final List<VideoFrame.I420Buffer> pipelinedBuffers = new ArrayList<>();
+    for (VideoFrame.TextureBuffer textureBuffer : textureBuffers) {
+      final VideoFrame.I420Buffer result = yuvConverter.convertPipelined(textureBuffer);
+      if (result != null) {
+        pipelinedBuffers.add(result);
+      }
+    }
+    pipelinedBuffers.addAll(yuvConverter.flushPipeline());
+    assertEquals(FRAME_COUNT, pipelinedBuffers.size());
+    for (int i = 0; i < FRAME_COUNT; ++i) {
+      assertI420Equals(expectedBuffers.get(i), pipelinedBuffers.get(i));
+    }
+
+    for (int i = 0; i < FRAME_COUNT; ++i) {
+      expectedBuffers.get(i).release();
+      pipelinedBuffers.get(i).release();
+      textureBuffers.get(i).release();
+    }
+    yuvConverter.release();
+  }
+
+  @Test
+  @SmallTest
+  public void testFlushPipelineReturnsPendingConversions() {
+    // Without pixel pack buffers, convertPipelined() returns each result directly.
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N || GlUtil.getGlesMajorVersion() < 3) {
+      return;
+    }
+    final YuvConverter yuvConverter =
+        new YuvConverter(new VideoFrameDrawer(), /* pipelineDepth= */ 3);
+    final VideoFrame.TextureBuffer firstBuffer = createTextureBuffer(yuvConverter, 1);
+    final VideoFrame.TextureBuffer secondBuffer = createTextureBuffer(yuvConverter, 2);
+    final VideoFrame.I420Buffer expectedFirst = yuvConverter.convert(firstBuffer);
+    final VideoFrame.I420Buffer expectedSecond = yuvConverter.convert(secondBuffer);
+
+    // With a depth of three, both conversions are still in flight after they were started.
+    assertEquals(null, yuvConverter.convertPipelined(firstBuffer));
+    assertEquals(null, yuvConverter.convertPipelined(secondBuffer));
+    final List<VideoFrame.I420Buffer> results = yuvConverter.flushPipeline();
+    assertEquals(2, results.size());
+    assertI420Equals(expectedFirst, results.get(0));
+    assertI420Equals(expectedSecond, results.get(1));
+    // Nothing is left in the pipeline.
+    assertEquals(0, yuvConverter.flushPipeline().size());
+
+    for (VideoFrame.I420Buffer buffer : results) {
+      buffer.release();
+    }
+    expectedFirst.release();
+    expectedSecond.release();
+    firstBuffer.release();
+    secondBuffer.release();
+    yuvConverter.release();
+  }
+}
@@ -132,6 +132,76 @@ public class YuvHelperTest {
         new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 51, 101, 52, 102, 53, 105, 54, 106}, dst);
   }
 
+  // NV12 source with odd strides and padding bytes that must not be copied.
+  private static final int TEST_NV12_STRIDE_Y = 5;
+  private static final int TEST_NV12_STRIDE_UV = 5;
+  private static final ByteBuffer TEST_NV12_Y = createStridedPlane(
+      new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9}, TEST_WIDTH, TEST_HEIGHT, TEST_NV12_STRIDE_Y);
+  private static final ByteBuffer TEST_NV12_UV =
+      createStridedPlane(new byte[] {51, 101, 52, 102, 53, 105, 54, 106}, TEST_CHROMA_WIDTH * 2,
+          TEST_CHROMA_HEIGHT, TEST_NV12_STRIDE_UV);
+
+  // Tightly packed NV21 source, as produced by Camera1, with even dimensions.
+  private static final int TEST_NV21_WIDTH = 4;
+  private static final int TEST_NV21_HEIGHT = 2;
+  private static final byte[] TEST_NV21 = {1, 2, 3, 4, 5, 6, 7, 8, 101, 51, 102, 52};
+
+  private static ByteBuffer createStridedPlane(byte[] packed, int width, int height, int stride) {
+    final ByteBuffer plane = ByteBuffer.allocateDirect(height * stride);
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < stride; ++x) {
+        plane.put(y * stride + x, x < width ? packed[y * width + x] : (byte) -1);
+      }
+    }
+    return plane;
+  }
+
+  @SmallTest
+  @Test
+  public void testNV12ToI420() {
+    final ByteBuffer dst = ByteBuffer.allocateDirect(
+        TEST_WIDTH * TEST_HEIGHT + TEST_CHROMA_WIDTH * TEST_CHROMA_HEIGHT * 2);
+
+    YuvHelper.NV12ToI420(TEST_NV12_Y, TEST_NV12_STRIDE_Y, TEST_NV12_UV, TEST_NV12_STRIDE_UV, dst,
+        TEST_WIDTH, TEST_HEIGHT);
+
+    assertByteBufferContentEquals(
+        new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 51, 52, 53, 54, 101, 102, 105, 106}, dst);
+  }
+
+  @SmallTest
+  @Test
+  public void testNV12Copy() {
+    final ByteBuffer dst = ByteBuffer.allocateDirect(
+        TEST_WIDTH * TEST_HEIGHT + TEST_CHROMA_WIDTH * TEST_CHROMA_HEIGHT * 2);
+
+    YuvHelper.NV12Copy(TEST_NV12_Y, TEST_NV12_STRIDE_Y, TEST_NV12_UV, TEST_NV12_STRIDE_UV, dst,
+        TEST_WIDTH, TEST_HEIGHT);
+
+    assertByteBufferContentEquals(
+        new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 51, 101, 52, 102, 53, 105, 54, 106}, dst);
+  }
+
+  @SmallTest
+  @Test
+  public void testNV21ToI420() {
+    final ByteBuffer dst = ByteBuffer.allocateDirect(TEST_NV21_WIDTH * TEST_NV21_HEIGHT * 3 / 2);
+
+    YuvHelper.NV21ToI420(TEST_NV21, dst, TEST_NV21_WIDTH, TEST_NV21_HEIGHT);
+
+    assertByteBufferContentEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 51, 52, 101, 102}, dst);
+  }
+
+  @SmallTest
+  @Test
+  public void testNV21ToNV12() {
+    final ByteBuffer dst = ByteBuffer.allocateDirect(TEST_NV21_WIDTH * TEST_NV21_HEIGHT * 3 / 2);
+
+    YuvHelper.NV21ToNV12(TEST_NV21, dst, TEST_NV21_WIDTH, TEST_NV21_HEIGHT);
+
+    assertByteBufferContentEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 51, 101, 52, 102}, dst);
+  }
+
   private static void assertByteBufferContentEquals(byte[] expected, ByteBuffer test) {
     assertTrue(
         "ByteBuffer is too small. Expected " + expected.length + " but was " + test.capacity(),
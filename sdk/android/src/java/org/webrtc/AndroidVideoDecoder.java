@@ -11,14 +11,19 @@
 package org.webrtc;
 
 import android.annotation.TargetApi;
+import android.graphics.Point;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo.CodecCapabilities;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.view.Surface;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
@@ -40,6 +45,14 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
   private static final String MEDIA_FORMAT_KEY_CROP_RIGHT = "crop-right";
   private static final String MEDIA_FORMAT_KEY_CROP_TOP = "crop-top";
   private static final String MEDIA_FORMAT_KEY_CROP_BOTTOM = "crop-bottom";
+  // MediaFormat.KEY_MAX_WIDTH and KEY_MAX_HEIGHT, API level 19.
+  private static final String MEDIA_FORMAT_KEY_MAX_WIDTH = "max-width";
+  private static final String MEDIA_FORMAT_KEY_MAX_HEIGHT = "max-height";
+
+  // Smallest maximum resolution requested from codecs that support adaptive playback, in either
+  // orientation, unless the codec supports less. Resolution changes up to the requested size
+  // continue on the same codec instance.
+  private static final int ADAPTIVE_PLAYBACK_MIN_MAX_DIMENSION = 1920;
 
   // MediaCodec.release() occasionally hangs.  Release stops waiting and reports failure after
   // this timeout.
@@ -55,9 +68,15 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
   // MediaCodec.
   private static final int DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US = 100000;
 
+  // In asynchronous mode, frames that arrive while the codec has no free input buffer are queued.
+  // If this many frames are already waiting, decode() fails, just like when no input buffer becomes
+  // available within DEQUEUE_INPUT_TIMEOUT_US in polling mode.
+  private static final int MAX_PENDING_INPUT_FRAMES = 30;
+
   private final MediaCodecWrapperFactory mediaCodecWrapperFactory;
   private final String codecName;
   private final VideoCodecType codecType;
+  private final HardwareVideoDecoderOptions options;
 
   private static class FrameInfo {
     final long decodeStartTimeMs;
@@ -69,15 +88,85 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     }
   }
 
+  // Tracks MediaCodec output buffers that are handed out as NV12Buffers without copying. A new
+  // instance is created for every codec instance. Buffers are returned to the codec when the last
+  // reference to the frame is released, which may happen on any thread. The codec is not stopped
+  // while any of these buffers is in use, since the frames wrap codec memory.
+  private static class ZeroCopyOutputBuffers {
+    private final MediaCodecWrapper codec;
+    private final int maxBuffersInFlight;
+    private int buffersInFlight;
+    private boolean codecStopped;
+    // Stops and releases the codec once the last buffer in flight has been released.
+    @Nullable private Runnable pendingCodecRelease;
+
+    ZeroCopyOutputBuffers(MediaCodecWrapper codec, int maxBuffersInFlight) {
+      this.codec = codec;
+      this.maxBuffersInFlight = maxBuffersInFlight;
+    }
+
+    // Returns true if another output buffer may be handed out without copying.
+    synchronized boolean tryAcquire() {
+      if (codecStopped || buffersInFlight >= maxBuffersInFlight) {
+        return false;
+      }
+      ++buffersInFlight;
+      return true;
+    }
+
+    void release(int index) {
+      final Runnable codecRelease;
+      synchronized (this) {
+        --buffersInFlight;
+        if (!codecStopped) {
+          try {
+            codec.releaseOutputBuffer(index, /* render= */ false);
+          } catch (IllegalStateException e) {
+            Logging.e(TAG, "releaseOutputBuffer failed", e);
+          }
+          return;
+        }
+        if (buffersInFlight > 0 || pendingCodecRelease == null) {
+          return;
+        }
+        codecRelease = pendingCodecRelease;
+        pendingCodecRelease = null;
+      }
+      Logging.d(TAG, "Last zero-copy output buffer released, releasing the codec");
+      codecRelease.run();
+    }
+
+    // Stops handing out buffers. Returns true if no buffers are in use and the caller may release
+    // the codec right away. Otherwise |codecRelease| is run on the thread that releases the last
+    // buffer in use.
+    synchronized boolean stop(Runnable codecRelease) {
+      codecStopped = true;
+      if (buffersInFlight == 0) {
+        return true;
+      }
+      Logging.d(TAG,
+          "Deferring codec release until " + buffersInFlight
+              + " zero-copy output buffers are released");
+      pendingCodecRelease = codecRelease;
+      return false;
+    }
+  }
+
   private final BlockingDeque<FrameInfo> frameInfos;
   private int colorFormat;
 
   // Output thread runs a loop which polls MediaCodec for decoded output buffers.  It reformats
   // those buffers into VideoFrames and delivers them to the callback.  Variable is set on decoder
-  // thread and is immutable while the codec is running.
+  // thread and is immutable while the codec is running.  Null in asynchronous mode.
   @Nullable private Thread outputThread;
 
-  // Checker that ensures work is run on the output thread.
+  // Receives the codec callbacks in asynchronous mode, null in polling mode.  Set on the decoder
+  // thread and immutable while the codec is running.
+  @Nullable private AsyncCodecCallback asyncCodecCallback;
+
+  // Checker that ensures work is run on the output thread. In asynchronous mode output is handled
+  // on the shared MediaCodecCallbackThread, or on the output thread of |asyncCodecCallback| when
+  // frames are delivered as byte buffers.
   private ThreadChecker outputThreadChecker;
 
   // Checker that ensures work is run on the decoder thread.  The decoder thread is owned by the
@@ -99,10 +188,25 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
   // after delivering the first frame.  Only accessed on the output thread while the decoder is
   // running.
   private boolean hasDecodedFirstFrame;
+  // Time the codec was initialized and whether it was leased from the warm pool of |options|. Only
+  // written before the output thread starts.
+  private long initStartTimeMs;
+  private boolean codecLeased;
   // Whether the decoder has seen a key frame.  The first frame must be a key frame.  Only accessed
   // on the decoder thread.
   private boolean keyFrameRequired;
 
+  // Resolution of the frames passed to the codec.  Only accessed on the decoder thread.
+  private int inputWidth;
+  private int inputHeight;
+  // Whether the codec has been configured for adaptive playback, and the maximum width and height
+  // it was configured for.  Valid and immutable while the decoder is running.
+  private boolean adaptivePlayback;
+  private int adaptiveMaxWidth;
+  private int adaptiveMaxHeight;
+  // Cached result of isAdaptivePlaybackSupported().  Only accessed on the decoder thread.
+  @Nullable private Boolean adaptivePlaybackSupported;
+
   private final @Nullable EglBase.Context sharedContext;
   // Valid and immutable while the decoder is running.
   @Nullable private SurfaceTextureHelper surfaceTextureHelper;
@@ -129,8 +233,18 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
   // Valid and immutable while the decoder is running.
   @Nullable private MediaCodecWrapper codec;
 
+  // Non-null while the decoder is running in byte buffer mode with zero-copy output enabled.
+  @Nullable private ZeroCopyOutputBuffers zeroCopyOutputBuffers;
+
   AndroidVideoDecoder(MediaCodecWrapperFactory mediaCodecWrapperFactory, String codecName,
       VideoCodecType codecType, int colorFormat, @Nullable EglBase.Context sharedContext) {
+    this(mediaCodecWrapperFactory, codecName, codecType, colorFormat, sharedContext,
+        HardwareVideoDecoderOptions.getDefault());
+  }
+
+  AndroidVideoDecoder(MediaCodecWrapperFactory mediaCodecWrapperFactory, String codecName,
+      VideoCodecType codecType, int colorFormat, @Nullable EglBase.Context sharedContext,
+      HardwareVideoDecoderOptions options) {
     if (!isSupportedColorFormat(colorFormat)) {
       throw new IllegalArgumentException("Unsupported color format: " + colorFormat);
     }
@@ -142,6 +256,7 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     this.codecType = codecType;
     this.colorFormat = colorFormat;
     this.sharedContext = sharedContext;
+    this.options = options;
     this.frameInfos = new LinkedBlockingDeque<>();
   }
 
@@ -164,7 +279,7 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     Logging.d(TAG,
         "initDecodeInternal name: " + codecName + " type: " + codecType + " width: " + width
             + " height: " + height);
-    if (outputThread != null) {
+    if (outputThread != null || asyncCodecCallback != null) {
       Logging.e(TAG, "initDecodeInternal called while the codec is already running");
       return VideoCodecStatus.FALLBACK_SOFTWARE;
     }
@@ -178,33 +293,106 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     sliceHeight = height;
     hasDecodedFirstFrame = false;
     keyFrameRequired = true;
-
+    inputWidth = width;
+    inputHeight = height;
+    initStartTimeMs = SystemClock.elapsedRealtime();
+
+    final MediaCodecWarmPool warmPool = options.getWarmPool();
+    codec = (warmPool == null)
+        ? null
+        : warmPool.lease(codecType, codecName, /* isEncoder= */ false, width, height);
+    codecLeased = (codec != null);
     try {
-      codec = mediaCodecWrapperFactory.createByCodecName(codecName);
+      if (codec == null) {
+        codec = mediaCodecWrapperFactory.createByCodecName(codecName);
+      }
     } catch (IOException | IllegalArgumentException e) {
       Logging.e(TAG, "Cannot create media decoder " + codecName);
       return VideoCodecStatus.FALLBACK_SOFTWARE;
     }
     try {
-      MediaFormat format = MediaFormat.createVideoFormat(codecType.mimeType(), width, height);
-      if (sharedContext == null) {
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+      // Adaptive playback is only defined when decoding to a surface.
+      adaptivePlayback = surface != null && getAdaptivePlaybackSupported();
+      if (adaptivePlayback) {
+        final int maxDimension =
+            Math.max(ADAPTIVE_PLAYBACK_MIN_MAX_DIMENSION, Math.max(width, height));
+        final Point maxSupportedSize = getMaxSupportedSize();
+        adaptiveMaxWidth = (maxSupportedSize == null)
+            ? maxDimension
+            : Math.max(width, Math.min(maxDimension, maxSupportedSize.x));
+        adaptiveMaxHeight = (maxSupportedSize == null)
+            ? maxDimension
+            : Math.max(height, Math.min(maxDimension, maxSupportedSize.y));
+      }
+      if (useAsyncMode()) {
+        outputThreadChecker = new ThreadChecker();
+        outputThreadChecker.detachThread();
+        asyncCodecCallback =
+            new AsyncCodecCallback(/* useOutputThread= */ surfaceTextureHelper == null);
+      }
+      try {
+        configureCodec(width, height);
+      } catch (IllegalStateException | IllegalArgumentException e) {
+        if (!adaptivePlayback) {
+          throw e;
+        }
+        // Some codecs reject the maximum size keys. Decode without adaptive playback instead.
+        Logging.w(TAG, "Configuring adaptive playback failed, retrying without it", e);
+        adaptivePlayback = false;
+        adaptivePlaybackSupported = false;
+        // The state of a codec after a failed configure() is undefined, so retry on a new one.
+        codec.release();
+        codecLeased = false;
+        try {
+          codec = mediaCodecWrapperFactory.createByCodecName(codecName);
+        } catch (IOException ioException) {
+          throw new IllegalStateException("Cannot recreate media decoder", ioException);
+        }
+        configureCodec(width, height);
       }
-      codec.configure(format, surface, null, 0);
       codec.start();
-    } catch (IllegalStateException e) {
+    } catch (IllegalStateException | IllegalArgumentException e) {
       Logging.e(TAG, "initDecode failed", e);
       release();
       return VideoCodecStatus.FALLBACK_SOFTWARE;
     }
+    if (sharedContext == null && options.getZeroCopyOutputFrames() > 0) {
+      zeroCopyOutputBuffers = new ZeroCopyOutputBuffers(codec, options.getZeroCopyOutputFrames());
+    }
     running = true;
-    outputThread = createOutputThread();
-    outputThread.start();
+    if (asyncCodecCallback == null) {
+      outputThread = createOutputThread();
+      outputThread.start();
+    }
 
     Logging.d(TAG, "initDecodeInternal done");
     return VideoCodecStatus.OK;
   }
 
+  // Configures |codec| for frames of |width| x |height|. In asynchronous mode the callback is set
+  // first, as MediaCodec requires.
+  private void configureCodec(int width, int height) {
+    if (asyncCodecCallback != null) {
+      codec.setCallback(asyncCodecCallback, MediaCodecCallbackThread.getHandler());
+    }
+    codec.configure(createFormat(width, height), surface, null, 0);
+  }
+
+  private MediaFormat createFormat(int width, int height) {
+    final MediaFormat format = MediaFormat.createVideoFormat(codecType.mimeType(), width, height);
+    if (sharedContext == null) {
+      format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+    }
+    if (options.isLowLatencyModeEnabled()) {
+      MediaCodecUtils.setLowLatencyDecoderKeys(format, isLowLatencyFeatureSupported());
+    }
+    if (adaptivePlayback) {
+      format.setInteger(MEDIA_FORMAT_KEY_MAX_WIDTH, adaptiveMaxWidth);
+      format.setInteger(MEDIA_FORMAT_KEY_MAX_HEIGHT, adaptiveMaxHeight);
+    }
+    return format;
+  }
+
   @Override
   public VideoCodecStatus decode(EncodedImage frame, DecodeInfo info) {
     decoderThreadChecker.checkIsOnValidThread();
@@ -224,18 +412,10 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
       return VideoCodecStatus.ERR_PARAMETER;
     }
 
-    // Load dimensions from shared memory under the dimension lock.
-    final int width;
-    final int height;
-    synchronized (dimensionLock) {
-      width = this.width;
-      height = this.height;
-    }
-
-    // Check if the resolution changed and reset the codec if necessary.
+    // Check if the resolution changed and reconfigure the codec if necessary.
     if (frame.encodedWidth * frame.encodedHeight > 0
-        && (frame.encodedWidth != width || frame.encodedHeight != height)) {
-      VideoCodecStatus status = reinitDecode(frame.encodedWidth, frame.encodedHeight);
+        && (frame.encodedWidth != inputWidth || frame.encodedHeight != inputHeight)) {
+      VideoCodecStatus status = changeResolution(frame.encodedWidth, frame.encodedHeight);
       if (status != VideoCodecStatus.OK) {
         return status;
       }
@@ -253,6 +433,14 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
       }
     }
 
+    if (asyncCodecCallback != null) {
+      final VideoCodecStatus status = asyncCodecCallback.queueInput(frame, size);
+      if (status == VideoCodecStatus.OK) {
+        keyFrameRequired = false;
+      }
+      return status;
+    }
+
     int index;
     try {
       index = codec.dequeueInputBuffer(DEQUEUE_INPUT_TIMEOUT_US);
@@ -325,11 +513,19 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     }
     callback = null;
     frameInfos.clear();
+    final DecoderResolutionChangeStats resolutionChangeStats = options.getResolutionChangeStats();
+    if (resolutionChangeStats != null) {
+      Logging.d(TAG, "Resolution changes: " + resolutionChangeStats);
+    }
     return status;
   }
 
   // Internal variant is used when restarting the codec due to reconfiguration.
   private VideoCodecStatus releaseInternal() {
+    if (asyncCodecCallback != null) {
+      // Unlike the output thread, the callback thread never releases the codec on its own.
+      return releaseAsyncCodec();
+    }
     if (!running) {
       Logging.d(TAG, "release: Decoder is not running.");
       return VideoCodecStatus.OK;
@@ -351,11 +547,64 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
       }
     } finally {
       codec = null;
+      zeroCopyOutputBuffers = null;
       outputThread = null;
     }
     return VideoCodecStatus.OK;
   }
 
+  // Releases the codec of an asynchronous mode session.
+  private VideoCodecStatus releaseAsyncCodec() {
+    Logging.d(TAG, "Releasing MediaCodec in asynchronous mode");
+    running = false;
+    asyncCodecCallback.stop();
+    // Callbacks that are already queued see the stopped flag and return. Wait for a callback that
+    // may currently be running, so that the codec is not stopped underneath it.
+    ThreadUtils.invokeAtFrontUninterruptibly(MediaCodecCallbackThread.getHandler(), () -> {});
+    asyncCodecCallback.releaseOutputThread();
+    try {
+      stopAndReleaseCodec();
+      if (shutdownException != null) {
+        Logging.e(TAG, "Media decoder release error", new RuntimeException(shutdownException));
+        shutdownException = null;
+        return VideoCodecStatus.ERROR;
+      }
+    } finally {
+      codec = null;
+      zeroCopyOutputBuffers = null;
+      asyncCodecCallback = null;
+    }
+    return VideoCodecStatus.OK;
+  }
+
+  // Switches decoding to frames of |newWidth| x |newHeight|. Continues on the same codec instance
+  // if it was configured for adaptive playback of that size, and reinitializes the codec otherwise.
+  private VideoCodecStatus changeResolution(int newWidth, int newHeight) {
+    decoderThreadChecker.checkIsOnValidThread();
+    final DecoderResolutionChangeStats stats = options.getResolutionChangeStats();
+    if (adaptivePlayback && newWidth <= adaptiveMaxWidth && newHeight <= adaptiveMaxHeight) {
+      Logging.d(TAG, "Adaptive resolution change to " + newWidth + " x " + newHeight);
+      inputWidth = newWidth;
+      inputHeight = newHeight;
+      // The codec reports the new size through an output format change. Frames of the new size
+      // can only be decoded starting from a key frame.
+      keyFrameRequired = true;
+      if (stats != null) {
+        stats.addAdaptiveChange();
+      }
+      return VideoCodecStatus.OK;
+    }
+    final long startTimeMs = SystemClock.elapsedRealtime();
+    final VideoCodecStatus status = reinitDecode(newWidth, newHeight);
+    final long stallMs = SystemClock.elapsedRealtime() - startTimeMs;
+    if (stats != null) {
+      stats.addReinit(stallMs);
+    }
+    Logging.d(TAG,
+        "Reinitialized decoder for " + newWidth + " x " + newHeight + " in " + stallMs + " ms");
+    return status;
+  }
+
   private VideoCodecStatus reinitDecode(int newWidth, int newHeight) {
     decoderThreadChecker.checkIsOnValidThread();
     VideoCodecStatus status = releaseInternal();
@@ -398,14 +647,31 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
         return;
       }
 
+      deliverDecodedOutput(result, info);
+    } catch (IllegalStateException e) {
+      Logging.e(TAG, "deliverDecodedFrame failed", e);
+    }
+  }
+
+  // Delivers the decoded frame in output buffer |result| and hands the buffer back to the codec.
+  private void deliverDecodedOutput(int result, MediaCodec.BufferInfo info) {
+    outputThreadChecker.checkIsOnValidThread();
+    try {
       FrameInfo frameInfo = frameInfos.poll();
       Integer decodeTimeMs = null;
       int rotation = 0;
       if (frameInfo != null) {
         decodeTimeMs = (int) (SystemClock.elapsedRealtime() - frameInfo.decodeStartTimeMs);
         rotation = frameInfo.rotation;
+        final CodecLatencyHistogram latencyHistogram = options.getLatencyHistogram();
+        if (latencyHistogram != null) {
+          latencyHistogram.addSample(decodeTimeMs);
+        }
       }
 
+      if (!hasDecodedFirstFrame) {
+        reportTimeToFirstFrame();
+      }
       hasDecodedFirstFrame = true;
 
       if (surfaceTextureHelper != null) {
@@ -419,6 +685,44 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     }
   }
 
+  private boolean getAdaptivePlaybackSupported() {
+    if (adaptivePlaybackSupported == null) {
+      adaptivePlaybackSupported = isAdaptivePlaybackSupported();
+    }
+    return adaptivePlaybackSupported;
+  }
+
+  // Visible for testing.
+  protected boolean isAdaptivePlaybackSupported() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+        && MediaCodecCapabilityCache.isFeatureSupported(codecName, /* isEncoder= */ false,
+            codecType, MediaCodecUtils.FEATURE_ADAPTIVE_PLAYBACK);
+  }
+
+  // Visible for testing.
+  @Nullable
+  protected Point getMaxSupportedSize() {
+    return MediaCodecCapabilityCache.getMaxSupportedSize(
+        codecName, /* isEncoder= */ false, codecType);
+  }
+
+  private boolean isLowLatencyFeatureSupported() {
+    // The feature is only defined from API level 30.
+    return Build.VERSION.SDK_INT >= 30
+        && MediaCodecCapabilityCache.isFeatureSupported(codecName, /* isEncoder= */ false,
+            codecType, MediaCodecUtils.FEATURE_LOW_LATENCY);
+  }
+
+  private void reportTimeToFirstFrame() {
+    final long timeToFirstFrameMs = SystemClock.elapsedRealtime() - initStartTimeMs;
+    Logging.d(TAG,
+        "Time to first frame: " + timeToFirstFrameMs + " ms. Warm codec: " + codecLeased);
+    final MediaCodecWarmPool warmPool = options.getWarmPool();
+    if (warmPool != null) {
+      warmPool.reportTimeToFirstFrame(codecLeased, timeToFirstFrameMs);
+    }
+  }
+
   private void deliverTextureFrame(final int index, final MediaCodec.BufferInfo info,
       final int rotation, final Integer decodeTimeMs) {
     // Load dimensions from shared memory under the dimension lock.
@@ -486,7 +790,8 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
       stride = info.size * 2 / (height * 3);
     }
 
-    ByteBuffer buffer = codec.getOutputBuffers()[result];
+    ByteBuffer buffer = (asyncCodecCallback != null) ? codec.getOutputBuffer(result)
+                                                     : codec.getOutputBuffers()[result];
     buffer.position(info.offset);
     buffer.limit(info.offset + info.size);
     buffer = buffer.slice();
@@ -494,11 +799,18 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     final VideoFrame.Buffer frameBuffer;
     if (colorFormat == CodecCapabilities.COLOR_FormatYUV420Planar) {
       frameBuffer = copyI420Buffer(buffer, stride, sliceHeight, width, height);
+      codec.releaseOutputBuffer(result, /* render= */ false);
+    } else if (zeroCopyOutputBuffers != null && zeroCopyOutputBuffers.tryAcquire()) {
+      // All other supported color formats are NV12. Hand out the codec buffer directly; it is
+      // returned to the codec once the frame is released.
+      final ZeroCopyOutputBuffers outputBuffers = zeroCopyOutputBuffers;
+      frameBuffer = new NV12Buffer(
+          width, height, stride, sliceHeight, buffer, () -> outputBuffers.release(result));
     } else {
       // All other supported color formats are NV12.
       frameBuffer = copyNV12ToI420Buffer(buffer, stride, sliceHeight, width, height);
+      codec.releaseOutputBuffer(result, /* render= */ false);
     }
-    codec.releaseOutputBuffer(result, /* render= */ false);
 
     long presentationTimeNs = info.presentationTimeUs * 1000;
     VideoFrame frame = new VideoFrame(frameBuffer, rotation, presentationTimeNs);
@@ -590,9 +902,10 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
       newWidth = format.getInteger(MediaFormat.KEY_WIDTH);
       newHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
     }
-    // Compare to existing width, height, and save values under the dimension lock.
+    // Compare to existing width, height, and save values under the dimension lock. With adaptive
+    // playback, the codec reports resolution changes of the stream this way.
     synchronized (dimensionLock) {
-      if (hasDecodedFirstFrame && (width != newWidth || height != newHeight)) {
+      if (hasDecodedFirstFrame && !adaptivePlayback && (width != newWidth || height != newHeight)) {
         stopOnOutputThread(new RuntimeException("Unexpected size change. Configured " + width + "*"
             + height + ". New " + newWidth + "*" + newHeight));
         return;
@@ -629,6 +942,27 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
   private void releaseCodecOnOutputThread() {
     outputThreadChecker.checkIsOnValidThread();
     Logging.d(TAG, "Releasing MediaCodec on output thread");
+    stopAndReleaseCodec();
+    Logging.d(TAG, "Release on output thread done");
+  }
+
+  private void stopAndReleaseCodec() {
+    final MediaCodecWrapper codec = this.codec;
+    if (zeroCopyOutputBuffers != null
+        && !zeroCopyOutputBuffers.stop(() -> stopAndReleaseCodec(codec))) {
+      // Frames held by the application still wrap codec memory.
+      return;
+    }
+    final Exception releaseException = stopAndReleaseCodec(codec);
+    if (releaseException != null) {
+      // Propagate exceptions caught during release back to the main thread.
+      shutdownException = releaseException;
+    }
+  }
+
+  // Stops and releases |codec|. Returns the exception thrown by release(), if any.
+  @Nullable
+  private static Exception stopAndReleaseCodec(MediaCodecWrapper codec) {
     try {
       codec.stop();
     } catch (Exception e) {
@@ -638,16 +972,200 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
       codec.release();
     } catch (Exception e) {
       Logging.e(TAG, "Media decoder release failed", e);
-      // Propagate exceptions caught during release back to the main thread.
-      shutdownException = e;
+      return e;
     }
-    Logging.d(TAG, "Release on output thread done");
+    return null;
   }
 
   private void stopOnOutputThread(Exception e) {
     outputThreadChecker.checkIsOnValidThread();
     running = false;
     shutdownException = e;
+    if (asyncCodecCallback != null) {
+      // The codec itself is released by release().
+      asyncCodecCallback.stop();
+    }
+  }
+
+  private boolean useAsyncMode() {
+    return options.isAsyncCallbackModeEnabled()
+        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+  }
+
+  // Encoded frame waiting for a codec input buffer in asynchronous mode.
+  private static class PendingInput {
+    final ByteBuffer data;
+    final long presentationTimeUs;
+    final FrameInfo frameInfo;
+
+    PendingInput(ByteBuffer data, long presentationTimeUs, FrameInfo frameInfo) {
+      this.data = data;
+      this.presentationTimeUs = presentationTimeUs;
+      this.frameInfo = frameInfo;
+    }
+  }
+
+  /**
+   * Receives input and output buffers from a codec running in asynchronous mode. One instance is
+   * created per codec session, so that callbacks still queued for a stopped codec are ignored.
+   *
+   * <p>The callbacks of all decoders run on the shared MediaCodecCallbackThread. Texture output
+   * only renders the buffer there, and the frame reaches the sink on the SurfaceTextureHelper
+   * thread of the decoder. Byte buffer output calls the sink directly, so it is handed off to an
+   * output thread of this decoder, and a slow sink does not stall the other decoders.
+   */
+  private class AsyncCodecCallback implements MediaCodecWrapper.Callback {
+    private final Object inputLock = new Object();
+    // Input buffers handed out by the codec that have not been filled yet. Guarded by inputLock.
+    private final ArrayDeque<Integer> availableInputBuffers = new ArrayDeque<>();
+    // Frames waiting for an input buffer, in decode order. Guarded by inputLock.
+    private final ArrayDeque<PendingInput> pendingInputs = new ArrayDeque<>();
+    // Copies of pending frames that have been queued to the codec, reused for the next pending
+    // frames. Guarded by inputLock.
+    private final ArrayDeque<ByteBuffer> freeInputCopies = new ArrayDeque<>();
+    // Runs the output callbacks when frames are delivered as byte buffers, null otherwise.
+    @Nullable private final Handler outputHandler;
+    private volatile boolean stopped;
+
+    AsyncCodecCallback(boolean useOutputThread) {
+      if (useOutputThread) {
+        final HandlerThread outputThread = new HandlerThread("AndroidVideoDecoder.outputThread");
+        outputThread.start();
+        outputHandler = new Handler(outputThread.getLooper());
+      } else {
+        outputHandler = null;
+      }
+    }
+
+    // Called on the decoder thread. Queues |frame| directly if an input buffer is available and no
+    // other frame is waiting, otherwise copies it to the pending list.
+    VideoCodecStatus queueInput(EncodedImage frame, int size) {
+      final long presentationTimeUs = TimeUnit.NANOSECONDS.toMicros(frame.captureTimeNs);
+      final FrameInfo frameInfo = new FrameInfo(SystemClock.elapsedRealtime(), frame.rotation);
+      synchronized (inputLock) {
+        if (stopped) {
+          Logging.e(TAG, "decode() - codec stopped");
+          return VideoCodecStatus.ERROR;
+        }
+        if (pendingInputs.isEmpty() && !availableInputBuffers.isEmpty()) {
+          frameInfos.offer(frameInfo);
+          if (!fillInputBuffer(availableInputBuffers.poll(), frame.buffer, presentationTimeUs)) {
+            frameInfos.pollLast();
+            return VideoCodecStatus.ERROR;
+          }
+          return VideoCodecStatus.OK;
+        }
+        if (pendingInputs.size() >= MAX_PENDING_INPUT_FRAMES) {
+          Logging.e(TAG, "decode() - too many pending frames; decoder falling behind");
+          return VideoCodecStatus.ERROR;
+        }
+        // The encoded image is only valid during decode(), so the data has to be copied.
+        final ByteBuffer data = obtainInputCopy(size);
+        data.put(frame.buffer);
+        data.flip();
+        frameInfos.offer(frameInfo);
+        pendingInputs.add(new PendingInput(data, presentationTimeUs, frameInfo));
+        return VideoCodecStatus.OK;
+      }
+    }
+
+    void stop() {
+      synchronized (inputLock) {
+        stopped = true;
+        pendingInputs.clear();
+        availableInputBuffers.clear();
+        freeInputCopies.clear();
+      }
+    }
+
+    // Called on the decoder thread after stop(). Waits for an output callback that may currently be
+    // running on the output thread, and ends the thread.
+    void releaseOutputThread() {
+      if (outputHandler != null) {
+        ThreadUtils.invokeAtFrontUninterruptibly(outputHandler, () -> {});
+        outputHandler.getLooper().quit();
+      }
+    }
+
+    // Returns an empty buffer for a pending frame of |size| bytes, reusing the copy of a queued
+    // frame if it is large enough. Must be called with inputLock held.
+    private ByteBuffer obtainInputCopy(int size) {
+      final ByteBuffer data = freeInputCopies.poll();
+      if (data == null || data.capacity() < size) {
+        return ByteBuffer.allocate(size);
+      }
+      data.clear();
+      return data;
+    }
+
+    // Must be called with inputLock held.
+    private boolean fillInputBuffer(int index, ByteBuffer data, long presentationTimeUs) {
+      final int size = data.remaining();
+      try {
+        final ByteBuffer buffer = codec.getInputBuffer(index);
+        if (buffer.capacity() < size) {
+          Logging.e(TAG, "decode() - HW buffer too small");
+          return false;
+        }
+        buffer.put(data);
+        codec.queueInputBuffer(index, 0 /* offset */, size, presentationTimeUs, 0 /* flags */);
+      } catch (IllegalStateException e) {
+        Logging.e(TAG, "queueInputBuffer failed", e);
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public void onInputBufferAvailable(int index) {
+      synchronized (inputLock) {
+        if (stopped) {
+          return;
+        }
+        final PendingInput pendingInput = pendingInputs.poll();
+        if (pendingInput == null) {
+          availableInputBuffers.add(index);
+          return;
+        }
+        if (!fillInputBuffer(index, pendingInput.data, pendingInput.presentationTimeUs)) {
+          Logging.e(TAG, "Dropping pending frame");
+          frameInfos.removeFirstOccurrence(pendingInput.frameInfo);
+        }
+        freeInputCopies.add(pendingInput.data);
+      }
+    }
+
+    @Override
+    public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+      runOnOutputThread(() -> deliverDecodedOutput(index, info));
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+      runOnOutputThread(() -> reformat(format));
+    }
+
+    @Override
+    public void onError(Exception e) {
+      Logging.e(TAG, "MediaCodec error in asynchronous mode", e);
+      runOnOutputThread(() -> stopOnOutputThread(e));
+    }
+
+    // Runs |runnable| unless the codec has been stopped. Output callbacks stay in order, since they
+    // are all handled on the same thread.
+    private void runOnOutputThread(Runnable runnable) {
+      if (outputHandler == null) {
+        if (!stopped) {
+          runnable.run();
+        }
+        return;
+      }
+      outputHandler.post(() -> {
+        if (!stopped) {
+          runnable.run();
+        }
+      });
+    }
   }
 
   private boolean isSupportedColorFormat(int colorFormat) {
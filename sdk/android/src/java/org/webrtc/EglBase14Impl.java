@@ -74,6 +74,8 @@ class EglBase14Impl implements EglBase14 {
     eglDisplay = getEglDisplay();
     eglConfig = getEglConfig(eglDisplay, configAttributes);
     eglContext = createEglContext(sharedContext, eglDisplay, eglConfig);
+    GlShaderCache.onContextCreated(new Context(eglContext).getNativeEglContext(),
+        sharedContext == null ? 0 : new Context(sharedContext).getNativeEglContext());
   }
 
   // Create EGLSurface from the Android Surface.
@@ -168,6 +170,7 @@ class EglBase14Impl implements EglBase14 {
     checkIsNotReleased();
     releaseSurface();
     detachCurrent();
+    GlShaderCache.onContextReleased(getEglBaseContext().getNativeEglContext());
     EGL14.eglDestroyContext(eglDisplay, eglContext);
     EGL14.eglReleaseThread();
     EGL14.eglTerminate(eglDisplay);
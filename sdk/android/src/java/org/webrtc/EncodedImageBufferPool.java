@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small pool of direct byte buffers for encoder output that cannot be delivered straight from the
+ * codec buffer, e.g. H.264 key frames with prepended SPS and PPS. Buffers are handed out as exactly
+ * sized slices and come back to the pool when the EncodedImage wrapping them is released. This
+ * class is thread safe.
+ */
+class EncodedImageBufferPool {
+  // Extra capacity allocated on top of the requested size, so that a following, slightly larger
+  // frame can still reuse the buffer.
+  private static final int HEADROOM_DIVISOR = 4;
+
+  private final int maxPooledBuffers;
+  private final List<ByteBuffer> freeBuffers = new ArrayList<>();
+
+  private int allocationCount;
+  private int reuseCount;
+  private long allocatedBytes;
+
+  EncodedImageBufferPool(int maxPooledBuffers) {
+    this.maxPooledBuffers = maxPooledBuffers;
+  }
+
+  /**
+   * Returns a buffer with capacity and limit equal to |size|. The backing buffer returns to the
+   * pool when |releaseCallback| of the returned Lease is run.
+   */
+  Lease acquire(int size) {
+    ByteBuffer backingBuffer = null;
+    synchronized (this) {
+      // Use the smallest free buffer that is large enough.
+      int bestIndex = -1;
+      for (int i = 0; i < freeBuffers.size(); ++i) {
+        final int capacity = freeBuffers.get(i).capacity();
+        if (capacity >= size
+            && (bestIndex == -1 || capacity < freeBuffers.get(bestIndex).capacity())) {
+          bestIndex = i;
+        }
+      }
+      if (bestIndex != -1) {
+        backingBuffer = freeBuffers.remove(bestIndex);
+        ++reuseCount;
+      } else {
+        ++allocationCount;
+        allocatedBytes += size + size / HEADROOM_DIVISOR;
+      }
+    }
+    if (backingBuffer == null) {
+      backingBuffer = ByteBuffer.allocateDirect(size + size / HEADROOM_DIVISOR);
+    }
+    return new Lease(backingBuffer, size);
+  }
+
+  /** Frees all idle buffers. */
+  synchronized void clear() {
+    freeBuffers.clear();
+  }
+
+  synchronized int getAllocationCount() {
+    return allocationCount;
+  }
+
+  synchronized int getReuseCount() {
+    return reuseCount;
+  }
+
+  synchronized String getStats() {
+    return "allocations: " + allocationCount + ", reuses: " + reuseCount
+        + ", allocated bytes: " + allocatedBytes + ", pooled buffers: " + freeBuffers.size();
+  }
+
+  private synchronized void recycle(ByteBuffer backingBuffer) {
+    if (freeBuffers.size() >= maxPooledBuffers) {
+      // Drop the smallest buffer, it is the least likely to fit the next frame.
+      int smallestIndex = 0;
+      for (int i = 1; i < freeBuffers.size(); ++i) {
+        if (freeBuffers.get(i).capacity() < freeBuffers.get(smallestIndex).capacity()) {
+          smallestIndex = i;
+        }
+      }
+      if (freeBuffers.isEmpty()
+          || freeBuffers.get(smallestIndex).capacity() >= backingBuffer.capacity()) {
+        return;
+      }
+      freeBuffers.remove(smallestIndex);
+    }
+    freeBuffers.add(backingBuffer);
+  }
+
+  /** A buffer handed out by acquire(), together with the callback that returns it to the pool. */
+  class Lease {
+    final ByteBuffer buffer;
+    final Runnable releaseCallback;
+
+    private Lease(final ByteBuffer backingBuffer, int size) {
+      backingBuffer.clear();
+      backingBuffer.limit(size);
+      this.buffer = backingBuffer.slice();
+      this.releaseCallback = () -> recycle(backingBuffer);
+    }
+  }
+}
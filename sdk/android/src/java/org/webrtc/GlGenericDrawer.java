@@ -145,7 +145,7 @@ class GlGenericDrawer implements RendererCommon.GlDrawer {
 
   // Visible for testing.
   GlShader createShader(ShaderType shaderType) {
-    return new GlShader(
+    return GlShaderCache.acquire(
         vertexShader, createFragmentShaderString(genericFragmentSource, shaderType));
   }
 
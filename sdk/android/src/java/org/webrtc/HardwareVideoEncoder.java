@@ -16,7 +16,9 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.opengl.GLES20;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.view.Surface;
 import java.io.IOException;
@@ -24,6 +26,7 @@ import java.nio.ByteBuffer;
 import java.util.Deque;
 import java.util.Map;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import org.webrtc.ThreadUtils.ThreadChecker;
@@ -53,6 +56,9 @@ class HardwareVideoEncoder implements VideoEncoder {
   // See MAX_ENCODER_Q_SIZE in androidmediaencoder.cc.
   private static final int MAX_ENCODER_Q_SIZE = 2;
 
+  // Number of idle buffers kept for H.264 key frames, which are copied to prepend SPS and PPS.
+  private static final int OUTPUT_BUFFER_POOL_SIZE = 2;
+
   private static final int MEDIA_CODEC_RELEASE_TIMEOUT_MS = 5000;
   private static final int DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US = 100000;
 
@@ -71,6 +77,7 @@ class HardwareVideoEncoder implements VideoEncoder {
   private final BitrateAdjuster bitrateAdjuster;
   // EGL context shared with the application.  Used to access texture inputs.
   private final EglBase14.Context sharedContext;
+  private final HardwareVideoEncoderOptions options;
 
   // Drawer used to draw input textures onto the codec's input surface.
   private final GlRectDrawer textureDrawer = new GlRectDrawer();
@@ -78,6 +85,12 @@ class HardwareVideoEncoder implements VideoEncoder {
   // A queue of EncodedImage.Builders that correspond to frames in the codec.  These builders are
   // pre-populated with all the information that can't be sent through MediaCodec.
   private final BlockingDeque<EncodedImage.Builder> outputBuilders = new LinkedBlockingDeque<>();
+  // Times at which the frames in the codec were passed to encode(), in the same order as
+  // |outputBuilders|. Used for the latency histogram of |options|.
+  private final BlockingDeque<Long> inputTimesMs = new LinkedBlockingDeque<>();
+  // Buffers for output that has to be copied. Kept across codec restarts.
+  private final EncodedImageBufferPool outputBufferPool =
+      new EncodedImageBufferPool(OUTPUT_BUFFER_POOL_SIZE);
 
   private final ThreadChecker encodeThreadChecker = new ThreadChecker();
   private final ThreadChecker outputThreadChecker = new ThreadChecker();
@@ -88,8 +101,11 @@ class HardwareVideoEncoder implements VideoEncoder {
 
   // --- Valid and immutable while an encoding session is running.
   @Nullable private MediaCodecWrapper codec;
-  // Thread that delivers encoded frames to the user callback.
+  // Thread that delivers encoded frames to the user callback. Null in asynchronous mode, where
+  // frames are delivered from the shared MediaCodecCallbackThread instead.
   @Nullable private Thread outputThread;
+  // Receives the codec callbacks in asynchronous mode, null in polling mode.
+  @Nullable private AsyncCodecCallback asyncCodecCallback;
 
   // EGL base wrapping the shared texture context.  Holds hooks to both the shared context and the
   // input surface.  Making this base current allows textures from the context to be drawn onto the
@@ -101,12 +117,18 @@ class HardwareVideoEncoder implements VideoEncoder {
   private int width;
   private int height;
   private boolean useSurfaceMode;
+  // Whether |codec| was leased from the warm pool of |options|.
+  private boolean codecLeased;
+  // Time the encoding session was initialized, or -1 once its first frame has been delivered.
+  // Set on the encoding thread and cleared on the output thread, or on the callback thread in
+  // asynchronous mode.
+  private volatile long initStartTimeMs = -1;
 
   // --- Only accessed from the encoding thread.
   // Presentation timestamp of the last requested (or forced) key frame.
   private long lastKeyFrameNs;
 
-  // --- Only accessed on the output thread.
+  // --- Only accessed on the output thread, or on the callback thread in asynchronous mode.
   // Contents of the last observed config frame output by the MediaCodec. Used by H.264.
   @Nullable private ByteBuffer configBuffer;
   private int adjustedBitrate;
@@ -137,6 +159,20 @@ class HardwareVideoEncoder implements VideoEncoder {
       VideoCodecType codecType, Integer surfaceColorFormat, Integer yuvColorFormat,
       Map<String, String> params, int keyFrameIntervalSec, int forceKeyFrameIntervalMs,
       BitrateAdjuster bitrateAdjuster, EglBase14.Context sharedContext) {
+    this(mediaCodecWrapperFactory, codecName, codecType, surfaceColorFormat, yuvColorFormat, params,
+        keyFrameIntervalSec, forceKeyFrameIntervalMs, bitrateAdjuster, sharedContext,
+        HardwareVideoEncoderOptions.getDefault());
+  }
+
+  /**
+   * Creates a new HardwareVideoEncoder. Same as above, but with additional |options| that select
+   * optional codec behavior such as asynchronous mode.
+   */
+  public HardwareVideoEncoder(MediaCodecWrapperFactory mediaCodecWrapperFactory, String codecName,
+      VideoCodecType codecType, Integer surfaceColorFormat, Integer yuvColorFormat,
+      Map<String, String> params, int keyFrameIntervalSec, int forceKeyFrameIntervalMs,
+      BitrateAdjuster bitrateAdjuster, EglBase14.Context sharedContext,
+      HardwareVideoEncoderOptions options) {
     this.mediaCodecWrapperFactory = mediaCodecWrapperFactory;
     this.codecName = codecName;
     this.codecType = codecType;
@@ -148,6 +184,7 @@ class HardwareVideoEncoder implements VideoEncoder {
     this.forcedKeyFrameNs = TimeUnit.MILLISECONDS.toNanos(forceKeyFrameIntervalMs);
     this.bitrateAdjuster = bitrateAdjuster;
     this.sharedContext = sharedContext;
+    this.options = options;
 
     // Allow construction on a different thread.
     encodeThreadChecker.detachThread();
@@ -178,9 +215,17 @@ class HardwareVideoEncoder implements VideoEncoder {
     encodeThreadChecker.checkIsOnValidThread();
 
     lastKeyFrameNs = -1;
+    initStartTimeMs = SystemClock.elapsedRealtime();
 
+    final MediaCodecWarmPool warmPool = options.getWarmPool();
+    codec = (warmPool == null)
+        ? null
+        : warmPool.lease(codecType, codecName, /* isEncoder= */ true, width, height);
+    codecLeased = (codec != null);
     try {
-      codec = mediaCodecWrapperFactory.createByCodecName(codecName);
+      if (codec == null) {
+        codec = mediaCodecWrapperFactory.createByCodecName(codecName);
+      }
     } catch (IOException | IllegalArgumentException e) {
       Logging.e(TAG, "Cannot create media encoder " + codecName);
       return VideoCodecStatus.FALLBACK_SOFTWARE;
@@ -188,12 +233,21 @@ class HardwareVideoEncoder implements VideoEncoder {
 
     final int colorFormat = useSurfaceMode ? surfaceColorFormat : yuvColorFormat;
     try {
+      if (useAsyncMode()) {
+        // Must be set before the codec is configured.
+        asyncCodecCallback = new AsyncCodecCallback();
+        codec.setCallback(asyncCodecCallback, MediaCodecCallbackThread.getHandler());
+      }
       MediaFormat format = MediaFormat.createVideoFormat(codecType.mimeType(), width, height);
       format.setInteger(MediaFormat.KEY_BIT_RATE, adjustedBitrate);
       format.setInteger(KEY_BITRATE_MODE, VIDEO_ControlRateConstant);
       format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
       format.setInteger(MediaFormat.KEY_FRAME_RATE, bitrateAdjuster.getCodecConfigFramerate());
       format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, keyFrameIntervalSec);
+      if (options.isLowLatencyModeEnabled()) {
+        MediaCodecUtils.setLowLatencyEncoderKeys(
+            format, bitrateAdjuster.getCodecConfigFramerate());
+      }
       if (codecType == VideoCodecType.H264) {
         String profileLevelId = params.get(VideoCodecInfo.H264_FMTP_PROFILE_LEVEL_ID);
         if (profileLevelId == null) {
@@ -230,8 +284,10 @@ class HardwareVideoEncoder implements VideoEncoder {
 
     running = true;
     outputThreadChecker.detachThread();
-    outputThread = createOutputThread();
-    outputThread.start();
+    if (asyncCodecCallback == null) {
+      outputThread = createOutputThread();
+      outputThread.start();
+    }
 
     return VideoCodecStatus.OK;
   }
@@ -241,7 +297,10 @@ class HardwareVideoEncoder implements VideoEncoder {
     encodeThreadChecker.checkIsOnValidThread();
 
     final VideoCodecStatus returnValue;
-    if (outputThread == null) {
+    if (asyncCodecCallback != null) {
+      running = false;
+      returnValue = releaseAsyncCodec();
+    } else if (outputThread == null) {
       returnValue = VideoCodecStatus.OK;
     } else {
       // The outputThread actually stops and releases the codec once running is false.
@@ -269,9 +328,16 @@ class HardwareVideoEncoder implements VideoEncoder {
       textureInputSurface = null;
     }
     outputBuilders.clear();
+    inputTimesMs.clear();
+    final EncoderInputPathStats inputPathStats = options.getInputPathStats();
+    if (inputPathStats != null) {
+      Logging.d(TAG, "Byte buffer input frames: " + inputPathStats);
+    }
+    Logging.d(TAG, "Output buffer pool: " + outputBufferPool.getStats());
 
     codec = null;
     outputThread = null;
+    asyncCodecCallback = null;
 
     // Allow changing thread after release.
     encodeThreadChecker.detachThread();
@@ -285,6 +351,11 @@ class HardwareVideoEncoder implements VideoEncoder {
     if (codec == null) {
       return VideoCodecStatus.UNINITIALIZED;
     }
+    if (asyncCodecCallback != null && !running) {
+      // The codec reported an error in asynchronous mode and can not be used anymore.
+      Logging.e(TAG, "encode() - codec error", shutdownException);
+      return VideoCodecStatus.FALLBACK_SOFTWARE;
+    }
 
     final VideoFrame.Buffer videoFrameBuffer = videoFrame.getBuffer();
     final boolean isTextureBuffer = videoFrameBuffer instanceof VideoFrame.TextureBuffer;
@@ -327,6 +398,7 @@ class HardwareVideoEncoder implements VideoEncoder {
                                        .setEncodedHeight(videoFrame.getBuffer().getHeight())
                                        .setRotation(videoFrame.getRotation());
     outputBuilders.offer(builder);
+    inputTimesMs.offer(SystemClock.elapsedRealtime());
 
     final VideoCodecStatus returnValue;
     if (useSurfaceMode) {
@@ -339,6 +411,7 @@ class HardwareVideoEncoder implements VideoEncoder {
     if (returnValue != VideoCodecStatus.OK) {
       // Keep the output builders in sync with buffers in the codec.
       outputBuilders.pollLast();
+      inputTimesMs.pollLast();
     }
 
     return returnValue;
@@ -371,7 +444,8 @@ class HardwareVideoEncoder implements VideoEncoder {
     // No timeout.  Don't block for an input buffer, drop frames if the encoder falls behind.
     int index;
     try {
-      index = codec.dequeueInputBuffer(0 /* timeout */);
+      index = (asyncCodecCallback != null) ? asyncCodecCallback.pollInputBuffer()
+                                           : codec.dequeueInputBuffer(0 /* timeout */);
     } catch (IllegalStateException e) {
       Logging.e(TAG, "dequeueInputBuffer failed", e);
       return VideoCodecStatus.ERROR;
@@ -385,7 +459,8 @@ class HardwareVideoEncoder implements VideoEncoder {
 
     ByteBuffer buffer;
     try {
-      buffer = codec.getInputBuffers()[index];
+      buffer = (asyncCodecCallback != null) ? codec.getInputBuffer(index)
+                                            : codec.getInputBuffers()[index];
     } catch (IllegalStateException e) {
       Logging.e(TAG, "getInputBuffers failed", e);
       return VideoCodecStatus.ERROR;
@@ -484,14 +559,26 @@ class HardwareVideoEncoder implements VideoEncoder {
   // Visible for testing.
   protected void deliverEncodedImage() {
     outputThreadChecker.checkIsOnValidThread();
+    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    final int index;
     try {
-      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-      int index = codec.dequeueOutputBuffer(info, DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US);
-      if (index < 0) {
-        return;
-      }
+      index = codec.dequeueOutputBuffer(info, DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US);
+    } catch (IllegalStateException e) {
+      Logging.e(TAG, "dequeueOutputBuffer failed", e);
+      return;
+    }
+    if (index >= 0) {
+      deliverEncodedOutput(index, info);
+    }
+  }
 
-      ByteBuffer codecOutputBuffer = codec.getOutputBuffers()[index];
+  // Delivers the contents of output buffer |index| and hands the buffer back to the codec.
+  private void deliverEncodedOutput(int index, MediaCodec.BufferInfo info) {
+    outputThreadChecker.checkIsOnValidThread();
+    try {
+      ByteBuffer codecOutputBuffer = (asyncCodecCallback != null)
+          ? codec.getOutputBuffer(index)
+          : codec.getOutputBuffers()[index];
       codecOutputBuffer.position(info.offset);
       codecOutputBuffer.limit(info.offset + info.size);
 
@@ -499,50 +586,126 @@ class HardwareVideoEncoder implements VideoEncoder {
         Logging.d(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
         configBuffer = ByteBuffer.allocateDirect(info.size);
         configBuffer.put(codecOutputBuffer);
-      } else {
-        bitrateAdjuster.reportEncodedFrame(info.size);
-        if (adjustedBitrate != bitrateAdjuster.getAdjustedBitrateBps()) {
-          updateBitrate();
-        }
+        codec.releaseOutputBuffer(index, false);
+        return;
+      }
 
-        final boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-        if (isKeyFrame) {
-          Logging.d(TAG, "Sync frame generated");
-        }
+      final long startTimeMs = initStartTimeMs;
+      if (startTimeMs >= 0) {
+        reportTimeToFirstFrame(startTimeMs);
+      }
 
-        final ByteBuffer frameBuffer;
-        if (isKeyFrame && codecType == VideoCodecType.H264) {
-          Logging.d(TAG,
-              "Prepending config frame of size " + configBuffer.capacity()
-                  + " to output buffer with offset " + info.offset + ", size " + info.size);
-          // For H.264 key frame prepend SPS and PPS NALs at the start.
-          frameBuffer = ByteBuffer.allocateDirect(info.size + configBuffer.capacity());
-          configBuffer.rewind();
-          frameBuffer.put(configBuffer);
-          frameBuffer.put(codecOutputBuffer);
-          frameBuffer.rewind();
-        } else {
-          frameBuffer = codecOutputBuffer.slice();
-        }
+      bitrateAdjuster.reportEncodedFrame(info.size);
+      if (adjustedBitrate != bitrateAdjuster.getAdjustedBitrateBps()) {
+        updateBitrate();
+      }
 
-        final EncodedImage.FrameType frameType = isKeyFrame
-            ? EncodedImage.FrameType.VideoFrameKey
-            : EncodedImage.FrameType.VideoFrameDelta;
+      final boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+      if (isKeyFrame) {
+        Logging.d(TAG, "Sync frame generated");
+      }
 
-        EncodedImage.Builder builder = outputBuilders.poll();
-        builder.setBuffer(frameBuffer).setFrameType(frameType);
-        // TODO(mellem):  Set codec-specific info.
-        callback.onEncodedFrame(builder.createEncodedImage(), new CodecSpecificInfo());
+      final ByteBuffer frameBuffer;
+      final Runnable releaseCallback;
+      if (isKeyFrame && codecType == VideoCodecType.H264) {
+        Logging.d(TAG,
+            "Prepending config frame of size " + configBuffer.capacity()
+                + " to output buffer with offset " + info.offset + ", size " + info.size);
+        // For H.264 key frame prepend SPS and PPS NALs at the start.
+        final EncodedImageBufferPool.Lease lease =
+            outputBufferPool.acquire(info.size + configBuffer.capacity());
+        frameBuffer = lease.buffer;
+        configBuffer.rewind();
+        frameBuffer.put(configBuffer);
+        frameBuffer.put(codecOutputBuffer);
+        frameBuffer.rewind();
+        releaseCallback = lease.releaseCallback;
+        // The data has been copied, so the codec buffer can be returned right away.
+        codec.releaseOutputBuffer(index, false);
+      } else {
+        // The codec buffer is returned once the encoded image is released.
+        frameBuffer = codecOutputBuffer.slice();
+        final MediaCodecWrapper outputCodec = codec;
+        releaseCallback = () -> releaseOutputBuffer(outputCodec, index);
       }
-      codec.releaseOutputBuffer(index, false);
+
+      final EncodedImage.FrameType frameType = isKeyFrame
+          ? EncodedImage.FrameType.VideoFrameKey
+          : EncodedImage.FrameType.VideoFrameDelta;
+
+      EncodedImage.Builder builder = outputBuilders.poll();
+      final Long inputTimeMs = inputTimesMs.poll();
+      final CodecLatencyHistogram latencyHistogram = options.getLatencyHistogram();
+      if (latencyHistogram != null && inputTimeMs != null) {
+        latencyHistogram.addSample(SystemClock.elapsedRealtime() - inputTimeMs);
+      }
+      final EncodedImage encodedImage = builder.setBuffer(frameBuffer, releaseCallback)
+                                            .setFrameType(frameType)
+                                            .createEncodedImage();
+      // TODO(mellem):  Set codec-specific info.
+      callback.onEncodedFrame(encodedImage, new CodecSpecificInfo());
+      // Callbacks that need the image after returning have retained it.
+      encodedImage.release();
     } catch (IllegalStateException e) {
       Logging.e(TAG, "deliverOutput failed", e);
     }
   }
 
+  private void reportTimeToFirstFrame(long startTimeMs) {
+    final long timeToFirstFrameMs = SystemClock.elapsedRealtime() - startTimeMs;
+    initStartTimeMs = -1;
+    Logging.d(TAG,
+        "Time to first frame: " + timeToFirstFrameMs + " ms. Warm codec: " + codecLeased);
+    final MediaCodecWarmPool warmPool = options.getWarmPool();
+    if (warmPool != null) {
+      warmPool.reportTimeToFirstFrame(codecLeased, timeToFirstFrameMs);
+    }
+  }
+
+  private static void releaseOutputBuffer(MediaCodecWrapper codec, int index) {
+    try {
+      codec.releaseOutputBuffer(index, false);
+    } catch (IllegalStateException e) {
+      // The codec has been stopped while the encoded image was still in use.
+      Logging.e(TAG, "releaseOutputBuffer failed", e);
+    }
+  }
+
+  // Visible for testing.
+  int getOutputBufferAllocationCount() {
+    return outputBufferPool.getAllocationCount();
+  }
+
   private void releaseCodecOnOutputThread() {
     outputThreadChecker.checkIsOnValidThread();
     Logging.d(TAG, "Releasing MediaCodec on output thread");
+    stopAndReleaseCodec();
+    Logging.d(TAG, "Release on output thread done");
+  }
+
+  // Releases the codec of an asynchronous mode session. Called on the encoder thread.
+  private VideoCodecStatus releaseAsyncCodec() {
+    encodeThreadChecker.checkIsOnValidThread();
+    Logging.d(TAG, "Releasing MediaCodec in asynchronous mode");
+    asyncCodecCallback.stop();
+    // Callbacks that are already queued see the stopped flag and return. Wait for a callback that
+    // may currently be running, so that the codec is not stopped underneath it.
+    ThreadUtils.invokeAtFrontUninterruptibly(MediaCodecCallbackThread.getHandler(), () -> {});
+    outputThreadChecker.detachThread();
+    // Set if the codec reported an error while running.
+    final Exception codecError = shutdownException;
+    shutdownException = null;
+    stopAndReleaseCodec();
+    if (codecError != null || shutdownException != null) {
+      Logging.e(TAG, "Media encoder release exception",
+          (shutdownException != null) ? shutdownException : codecError);
+      shutdownException = null;
+      return VideoCodecStatus.ERROR;
+    }
+    return VideoCodecStatus.OK;
+  }
+
+  private void stopAndReleaseCodec() {
     try {
       codec.stop();
     } catch (Exception e) {
@@ -556,7 +719,6 @@ class HardwareVideoEncoder implements VideoEncoder {
       shutdownException = e;
     }
     configBuffer = null;
-    Logging.d(TAG, "Release on output thread done");
   }
 
   private VideoCodecStatus updateBitrate() {
@@ -577,35 +739,149 @@ class HardwareVideoEncoder implements VideoEncoder {
     return sharedContext != null && surfaceColorFormat != null;
   }
 
+  private boolean useAsyncMode() {
+    return options.isAsyncCallbackModeEnabled()
+        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+  }
+
+  /**
+   * Receives input and output buffers from a codec running in asynchronous mode. One instance is
+   * created per codec session, so that callbacks still queued for a stopped codec are ignored.
+   */
+  private class AsyncCodecCallback implements MediaCodecWrapper.Callback {
+    // Indices of input buffers that the codec has handed out and that are not yet queued.
+    private final ConcurrentLinkedQueue<Integer> availableInputBuffers =
+        new ConcurrentLinkedQueue<>();
+    private volatile boolean stopped;
+
+    /** Returns the index of an available input buffer, or -1 if there is none. */
+    int pollInputBuffer() {
+      final Integer index = availableInputBuffers.poll();
+      return (index == null) ? -1 : index;
+    }
+
+    void stop() {
+      stopped = true;
+    }
+
+    @Override
+    public void onInputBufferAvailable(int index) {
+      if (!stopped) {
+        availableInputBuffers.offer(index);
+      }
+    }
+
+    @Override
+    public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+      if (!stopped) {
+        deliverEncodedOutput(index, info);
+      }
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+      Logging.d(TAG, "Output format changed: " + format);
+    }
+
+    @Override
+    public void onError(Exception e) {
+      Logging.e(TAG, "MediaCodec error in asynchronous mode", e);
+      if (!stopped) {
+        // The codec itself is released by release(). Until then, encode() fails.
+        shutdownException = e;
+        running = false;
+        stop();
+      }
+    }
+  }
+
   // Visible for testing.
   protected void fillInputBuffer(ByteBuffer buffer, VideoFrame.Buffer videoFrameBuffer) {
-    yuvFormat.fillBuffer(buffer, videoFrameBuffer);
+    final InputPath inputPath = yuvFormat.fillBuffer(buffer, videoFrameBuffer);
+    final EncoderInputPathStats inputPathStats = options.getInputPathStats();
+    if (inputPathStats == null) {
+      return;
+    }
+    switch (inputPath) {
+      case NV12_DIRECT:
+        inputPathStats.addNV12DirectFrame();
+        break;
+      case NV21_DIRECT:
+        inputPathStats.addNV21DirectFrame();
+        break;
+      case I420_CONVERSION:
+        inputPathStats.addI420ConversionFrame();
+        break;
+    }
   }
 
+  /**
+   * How a byte buffer frame was written into the codec input buffer. NV12 and NV21 frames are
+   * written in a single pass, all other buffers go through an intermediate I420 buffer.
+   */
+  private enum InputPath { NV12_DIRECT, NV21_DIRECT, I420_CONVERSION }
+
   /**
    * Enumeration of supported YUV color formats used for MediaCodec's input.
    */
   private enum YuvFormat {
     I420 {
       @Override
-      void fillBuffer(ByteBuffer dstBuffer, VideoFrame.Buffer srcBuffer) {
+      InputPath fillBuffer(ByteBuffer dstBuffer, VideoFrame.Buffer srcBuffer) {
+        if (srcBuffer instanceof NV12Buffer) {
+          NV12Buffer nv12 = (NV12Buffer) srcBuffer;
+          YuvHelper.NV12ToI420(getYPlane(nv12), nv12.getStride(), getUVPlane(nv12),
+              nv12.getStride(), dstBuffer, nv12.getWidth(), nv12.getHeight());
+          return InputPath.NV12_DIRECT;
+        }
+        if (srcBuffer instanceof NV21Buffer) {
+          NV21Buffer nv21 = (NV21Buffer) srcBuffer;
+          YuvHelper.NV21ToI420(nv21.getData(), dstBuffer, nv21.getWidth(), nv21.getHeight());
+          return InputPath.NV21_DIRECT;
+        }
         VideoFrame.I420Buffer i420 = srcBuffer.toI420();
         YuvHelper.I420Copy(i420.getDataY(), i420.getStrideY(), i420.getDataU(), i420.getStrideU(),
             i420.getDataV(), i420.getStrideV(), dstBuffer, i420.getWidth(), i420.getHeight());
         i420.release();
+        return InputPath.I420_CONVERSION;
       }
     },
     NV12 {
       @Override
-      void fillBuffer(ByteBuffer dstBuffer, VideoFrame.Buffer srcBuffer) {
+      InputPath fillBuffer(ByteBuffer dstBuffer, VideoFrame.Buffer srcBuffer) {
+        if (srcBuffer instanceof NV12Buffer) {
+          NV12Buffer nv12 = (NV12Buffer) srcBuffer;
+          YuvHelper.NV12Copy(getYPlane(nv12), nv12.getStride(), getUVPlane(nv12),
+              nv12.getStride(), dstBuffer, nv12.getWidth(), nv12.getHeight());
+          return InputPath.NV12_DIRECT;
+        }
+        if (srcBuffer instanceof NV21Buffer) {
+          NV21Buffer nv21 = (NV21Buffer) srcBuffer;
+          YuvHelper.NV21ToNV12(nv21.getData(), dstBuffer, nv21.getWidth(), nv21.getHeight());
+          return InputPath.NV21_DIRECT;
+        }
         VideoFrame.I420Buffer i420 = srcBuffer.toI420();
         YuvHelper.I420ToNV12(i420.getDataY(), i420.getStrideY(), i420.getDataU(), i420.getStrideU(),
             i420.getDataV(), i420.getStrideV(), dstBuffer, i420.getWidth(), i420.getHeight());
         i420.release();
+        return InputPath.I420_CONVERSION;
       }
     };
 
-    abstract void fillBuffer(ByteBuffer dstBuffer, VideoFrame.Buffer srcBuffer);
+    /** Writes |srcBuffer| tightly packed into |dstBuffer| and returns the path that was used. */
+    abstract InputPath fillBuffer(ByteBuffer dstBuffer, VideoFrame.Buffer srcBuffer);
+
+    private static ByteBuffer getYPlane(NV12Buffer nv12) {
+      final ByteBuffer src = nv12.getBuffer();
+      src.limit(nv12.getStride() * nv12.getHeight());
+      return src.slice();
+    }
+
+    private static ByteBuffer getUVPlane(NV12Buffer nv12) {
+      final ByteBuffer src = nv12.getBuffer();
+      src.position(nv12.getStride() * nv12.getSliceHeight());
+      return src.slice();
+    }
 
     static YuvFormat valueOf(int colorFormat) {
       switch (colorFormat) {
@@ -0,0 +1,39 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.Nullable;
+
+/**
+ * Process wide thread that receives MediaCodec callbacks for all codecs running in asynchronous
+ * mode. Sharing one thread avoids a blocked output thread per codec. Callbacks must therefore
+ * never block for long, and work that calls into the application, like delivering frames to a
+ * sink, has to be handed off to a thread of the codec.
+ */
+class MediaCodecCallbackThread {
+  private static final String THREAD_NAME = "MediaCodecCallbackThread";
+
+  @Nullable private static Handler handler;
+
+  /** Returns the handler of the shared callback thread, starting the thread if needed. */
+  static synchronized Handler getHandler() {
+    if (handler == null) {
+      final HandlerThread thread = new HandlerThread(THREAD_NAME);
+      thread.start();
+      handler = new Handler(thread.getLooper());
+    }
+    return handler;
+  }
+
+  private MediaCodecCallbackThread() {}
+}
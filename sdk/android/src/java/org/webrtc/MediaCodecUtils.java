@@ -14,6 +14,7 @@ import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaFormat;
 import android.os.Build;
 import android.support.annotation.Nullable;
 import java.util.HashMap;
@@ -55,6 +56,19 @@ class MediaCodecUtils {
       MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
       MediaCodecUtils.COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m};
 
+  // MediaFormat keys used by the low latency mode. Not present as MediaFormat constants until the
+  // API level they were introduced at, given in the comments.
+  static final String KEY_PRIORITY = "priority"; // API level 23.
+  static final String KEY_OPERATING_RATE = "operating-rate"; // API level 23.
+  static final String KEY_LATENCY = "latency"; // API level 26.
+  static final String KEY_LOW_LATENCY = "low-latency"; // API level 30.
+  // CodecCapabilities.FEATURE_LowLatency, API level 30.
+  static final String FEATURE_LOW_LATENCY = "low-latency";
+  // CodecCapabilities.FEATURE_AdaptivePlayback, API level 19.
+  static final String FEATURE_ADAPTIVE_PLAYBACK = "adaptive-playback";
+  // Value of KEY_PRIORITY for realtime operation.
+  private static final int PRIORITY_REALTIME = 0;
+
   // Color formats supported by texture mode encoding - in order of preference.
   static final int[] TEXTURE_COLOR_FORMATS = getTextureColorFormats();
 
@@ -68,8 +82,12 @@ class MediaCodecUtils {
 
   static @Nullable Integer selectColorFormat(
       int[] supportedColorFormats, CodecCapabilities capabilities) {
+    return selectColorFormat(supportedColorFormats, capabilities.colorFormats);
+  }
+
+  static @Nullable Integer selectColorFormat(int[] supportedColorFormats, int[] codecColorFormats) {
     for (int supportedColorFormat : supportedColorFormats) {
-      for (int codecColorFormat : capabilities.colorFormats) {
+      for (int codecColorFormat : codecColorFormats) {
         if (codecColorFormat == supportedColorFormat) {
           return codecColorFormat;
         }
@@ -87,6 +105,36 @@ class MediaCodecUtils {
     return false;
   }
 
+  /**
+   * Sets the keys that reduce buffering inside an encoder running at |frameRate|. Keys not
+   * supported by the current API level are left out.
+   */
+  static void setLowLatencyEncoderKeys(MediaFormat format, int frameRate) {
+    if (Build.VERSION.SDK_INT >= 23) {
+      format.setInteger(KEY_PRIORITY, PRIORITY_REALTIME);
+      format.setInteger(KEY_OPERATING_RATE, frameRate);
+    }
+    if (Build.VERSION.SDK_INT >= 26) {
+      // Output each frame as soon as it is encoded, instead of holding back frames for B-frames or
+      // rate control lookahead.
+      format.setInteger(KEY_LATENCY, 1);
+    }
+  }
+
+  /**
+   * Sets the keys that reduce buffering inside a decoder. KEY_LOW_LATENCY is only set when
+   * |lowLatencyFeatureSupported| tells that the codec advertises FEATURE_LOW_LATENCY, since other
+   * codecs may fail to configure with it.
+   */
+  static void setLowLatencyDecoderKeys(MediaFormat format, boolean lowLatencyFeatureSupported) {
+    if (Build.VERSION.SDK_INT >= 23) {
+      format.setInteger(KEY_PRIORITY, PRIORITY_REALTIME);
+    }
+    if (Build.VERSION.SDK_INT >= 30 && lowLatencyFeatureSupported) {
+      format.setInteger(KEY_LOW_LATENCY, 1);
+    }
+  }
+
   static Map<String, String> getCodecProperties(VideoCodecType type, boolean highProfile) {
     switch (type) {
       case VP8:
@@ -14,13 +14,12 @@ import static org.webrtc.MediaCodecUtils.EXYNOS_PREFIX;
 import static org.webrtc.MediaCodecUtils.QCOM_PREFIX;
 
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecInfo.CodecCapabilities;
-import android.media.MediaCodecList;
 import android.os.Build;
 import android.support.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import org.webrtc.MediaCodecCapabilityCache.CodecEntry;
 
 /** Factory for decoders backed by Android MediaCodec API. */
 @SuppressWarnings("deprecation") // API level 16 requires use of deprecated methods.
@@ -29,6 +28,7 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
 
   private final @Nullable EglBase.Context sharedContext;
   private final @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate;
+  private final HardwareVideoDecoderOptions options;
 
   /**
    * MediaCodecVideoDecoderFactory with support of codecs filtering.
@@ -40,24 +40,44 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
    */
   public MediaCodecVideoDecoderFactory(@Nullable EglBase.Context sharedContext,
       @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate) {
+    this(sharedContext, codecAllowedPredicate, HardwareVideoDecoderOptions.getDefault());
+  }
+
+  /**
+   * MediaCodecVideoDecoderFactory with support of codecs filtering and decoder tuning.
+   *
+   * @param sharedContext The textures generated will be accessible from this context. May be null,
+   *                      this disables texture support.
+   * @param codecAllowedPredicate optional predicate to test if codec allowed. All codecs are
+   *                              allowed when predicate is not provided.
+   * @param options tuning parameters applied to every decoder created by this factory.
+   */
+  public MediaCodecVideoDecoderFactory(@Nullable EglBase.Context sharedContext,
+      @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate,
+      HardwareVideoDecoderOptions options) {
     this.sharedContext = sharedContext;
     this.codecAllowedPredicate = codecAllowedPredicate;
+    this.options = options;
+
+    final MediaCodecWarmPool warmPool = options.getWarmPool();
+    if (warmPool != null) {
+      warmPool.warmUp(/* isEncoder= */ false, this::selectWarmCodec);
+    }
   }
 
   @Nullable
   @Override
   public VideoDecoder createDecoder(VideoCodecInfo codecType) {
     VideoCodecType type = VideoCodecType.valueOf(codecType.getName());
-    MediaCodecInfo info = findCodecForType(type);
+    CodecEntry codec = findCodecForType(type);
 
-    if (info == null) {
+    if (codec == null) {
       return null;
     }
 
-    CodecCapabilities capabilities = info.getCapabilitiesForType(type.mimeType());
-    return new AndroidVideoDecoder(new MediaCodecWrapperFactoryImpl(), info.getName(), type,
-        MediaCodecUtils.selectColorFormat(MediaCodecUtils.DECODER_COLOR_FORMATS, capabilities),
-        sharedContext);
+    return new AndroidVideoDecoder(new MediaCodecWrapperFactoryImpl(), codec.name, type,
+        codec.selectColorFormat(MediaCodecUtils.DECODER_COLOR_FORMATS, type), sharedContext,
+        options);
   }
 
   @Override
@@ -67,10 +87,10 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
     // VP8, VP9, H264 (high profile), and H264 (baseline profile).
     for (VideoCodecType type :
         new VideoCodecType[] {VideoCodecType.VP8, VideoCodecType.VP9, VideoCodecType.H264}) {
-      MediaCodecInfo codec = findCodecForType(type);
+      CodecEntry codec = findCodecForType(type);
       if (codec != null) {
         String name = type.name();
-        if (type == VideoCodecType.H264 && isH264HighProfileSupported(codec)) {
+        if (type == VideoCodecType.H264 && isH264HighProfileSupported(codec.name)) {
           supportedCodecInfos.add(new VideoCodecInfo(
               name, MediaCodecUtils.getCodecProperties(type, /* highProfile= */ true)));
         }
@@ -83,45 +103,42 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
     return supportedCodecInfos.toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
   }
 
-  private @Nullable MediaCodecInfo findCodecForType(VideoCodecType type) {
+  // Returns the codec createDecoder() would use for |type|, to be warmed up by the pool.
+  private @Nullable MediaCodecWarmPool.CodecSpec selectWarmCodec(VideoCodecType type) {
+    final CodecEntry codec = findCodecForType(type);
+    if (codec == null) {
+      return null;
+    }
+    return new MediaCodecWarmPool.CodecSpec(
+        codec.name, codec.selectColorFormat(MediaCodecUtils.DECODER_COLOR_FORMATS, type));
+  }
+
+  private @Nullable CodecEntry findCodecForType(VideoCodecType type) {
     // HW decoding is not supported on builds before KITKAT.
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
       return null;
     }
 
-    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
-      MediaCodecInfo info = null;
-      try {
-        info = MediaCodecList.getCodecInfoAt(i);
-      } catch (IllegalArgumentException e) {
-        Logging.e(TAG, "Cannot retrieve decoder codec info", e);
-      }
-
-      if (info == null || info.isEncoder()) {
-        continue;
-      }
-
-      if (isSupportedCodec(info, type)) {
-        return info;
+    // Capabilities are queried once per process, see MediaCodecCapabilityCache.
+    for (CodecEntry codec : MediaCodecCapabilityCache.getCodecs()) {
+      if (!codec.isEncoder && isSupportedCodec(codec, type)) {
+        return codec;
       }
     }
 
     return null; // No support for this type.
   }
 
-  // Returns true if the given MediaCodecInfo indicates a supported encoder for the given type.
-  private boolean isSupportedCodec(MediaCodecInfo info, VideoCodecType type) {
-    String name = info.getName();
-    if (!MediaCodecUtils.codecSupportsType(info, type)) {
+  // Returns true if the given codec is a supported decoder for the given type.
+  private boolean isSupportedCodec(CodecEntry codec, VideoCodecType type) {
+    if (!codec.supportsType(type)) {
       return false;
     }
     // Check for a supported color format.
-    if (MediaCodecUtils.selectColorFormat(
-            MediaCodecUtils.DECODER_COLOR_FORMATS, info.getCapabilitiesForType(type.mimeType()))
-        == null) {
+    if (codec.selectColorFormat(MediaCodecUtils.DECODER_COLOR_FORMATS, type) == null) {
       return false;
     }
-    return isCodecAllowed(info);
+    return isCodecAllowed(codec.getCodecInfo());
   }
 
   private boolean isCodecAllowed(MediaCodecInfo info) {
@@ -131,8 +148,7 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
     return codecAllowedPredicate.test(info);
   }
 
-  private boolean isH264HighProfileSupported(MediaCodecInfo info) {
-    String name = info.getName();
+  private boolean isH264HighProfileSupported(String name) {
     // Support H.264 HP decoding on QCOM chips for Android L and above.
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && name.startsWith(QCOM_PREFIX)) {
       return true;
@@ -14,6 +14,7 @@ import android.media.MediaCodec;
 import android.media.MediaCrypto;
 import android.media.MediaFormat;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.Surface;
 import java.nio.ByteBuffer;
 
@@ -23,6 +24,27 @@ import java.nio.ByteBuffer;
  * exists to allow mocking and using a fake implementation in tests.
  */
 interface MediaCodecWrapper {
+  /**
+   * Mirrors {@link android.media.MediaCodec.Callback}, which is only available on API level 21
+   * and higher.
+   */
+  interface Callback {
+    void onInputBufferAvailable(int index);
+
+    void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+    void onOutputFormatChanged(MediaFormat format);
+
+    void onError(Exception e);
+  }
+
+  /**
+   * Switches the codec to asynchronous mode. Must be called before configure(). Callbacks are
+   * delivered on the thread of |handler|. dequeueInputBuffer(), dequeueOutputBuffer(),
+   * getInputBuffers() and getOutputBuffers() may not be used in this mode. Requires API level 21.
+   */
+  void setCallback(Callback callback, Handler handler);
+
   void configure(MediaFormat format, Surface surface, MediaCrypto crypto, int flags);
 
   void start();
@@ -47,6 +69,12 @@ interface MediaCodecWrapper {
 
   ByteBuffer[] getOutputBuffers();
 
+  /** Returns the input buffer with the given index. Requires API level 21. */
+  ByteBuffer getInputBuffer(int index);
+
+  /** Returns the output buffer with the given index. Requires API level 21. */
+  ByteBuffer getOutputBuffer(int index);
+
   Surface createInputSurface();
 
   void setParameters(Bundle params);
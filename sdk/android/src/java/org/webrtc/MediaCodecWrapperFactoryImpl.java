@@ -16,6 +16,7 @@ import android.media.MediaCodec.BufferInfo;
 import android.media.MediaCrypto;
 import android.media.MediaFormat;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.Surface;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -32,6 +33,32 @@ class MediaCodecWrapperFactoryImpl implements MediaCodecWrapperFactory {
       this.mediaCodec = mediaCodec;
     }
 
+    @Override
+    @TargetApi(21)
+    public void setCallback(final Callback callback, Handler handler) {
+      mediaCodec.setCallback(new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+          callback.onInputBufferAvailable(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info) {
+          callback.onOutputBufferAvailable(index, info);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+          callback.onOutputFormatChanged(format);
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+          callback.onError(e);
+        }
+      }, handler);
+    }
+
     @Override
     public void configure(MediaFormat format, Surface surface, MediaCrypto crypto, int flags) {
       mediaCodec.configure(format, surface, crypto, flags);
@@ -93,6 +120,18 @@ class MediaCodecWrapperFactoryImpl implements MediaCodecWrapperFactory {
       return mediaCodec.getOutputBuffers();
     }
 
+    @Override
+    @TargetApi(21)
+    public ByteBuffer getInputBuffer(int index) {
+      return mediaCodec.getInputBuffer(index);
+    }
+
+    @Override
+    @TargetApi(21)
+    public ByteBuffer getOutputBuffer(int index) {
+      return mediaCodec.getOutputBuffer(index);
+    }
+
     @Override
     @TargetApi(18)
     public Surface createInputSurface() {
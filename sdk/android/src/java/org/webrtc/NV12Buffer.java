@@ -41,6 +41,19 @@ public class NV12Buffer implements VideoFrame.Buffer {
     return height;
   }
 
+  int getStride() {
+    return stride;
+  }
+
+  int getSliceHeight() {
+    return sliceHeight;
+  }
+
+  /** Returns the Y plane followed by the interleaved UV plane at offset stride * sliceHeight. */
+  ByteBuffer getBuffer() {
+    return buffer.slice();
+  }
+
   @Override
   public VideoFrame.I420Buffer toI420() {
     return (VideoFrame.I420Buffer) cropAndScale(0, 0, width, height, width, height);
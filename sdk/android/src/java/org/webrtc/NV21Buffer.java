@@ -37,6 +37,11 @@ public class NV21Buffer implements VideoFrame.Buffer {
     return height;
   }
 
+  /** Returns the tightly packed NV21 data. The array must not be modified. */
+  byte[] getData() {
+    return data;
+  }
+
   @Override
   public VideoFrame.I420Buffer toI420() {
     // Cropping converts the frame to I420. Just crop and scale to the whole image.
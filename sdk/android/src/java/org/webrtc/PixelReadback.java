@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Reads back RGBA pixels from the bound framebuffer without stalling the GL thread. Each readback
+ * is copied into a pixel pack buffer guarded by a fence, and delivered by poll() once the GPU has
+ * finished. Pixel pack buffers are reused between readbacks. On contexts without OpenGL ES 3
+ * support, pixels are read synchronously into a reused buffer instead. Used by EglRenderer for
+ * frame listeners and by YuvConverter for pipelined conversions.
+ *
+ * <p>All methods must be called on the thread that owns the current EGL context.
+ */
+class PixelReadback {
+  private static final String TAG = "PixelReadback";
+  private static final int DEFAULT_MAX_PENDING_READBACKS = 3;
+  private static final long READBACK_FENCE_TIMEOUT_NS = 100L * 1000 * 1000;
+
+  /** Receives the pixels of one readback. */
+  interface Callback {
+    /**
+     * |rgbaBuffer| holds |width| * |height| RGBA pixels without row padding. It is only valid
+     * during the call.
+     */
+    void onPixels(ByteBuffer rgbaBuffer, int width, int height);
+  }
+
+  private static class PendingReadback {
+    final Object tag;
+    final Callback callback;
+    final int width;
+    final int height;
+    final int pixelPackBufferId;
+    final long fence;
+
+    PendingReadback(
+        Object tag, Callback callback, int width, int height, int pixelPackBufferId, long fence) {
+      this.tag = tag;
+      this.callback = callback;
+      this.width = width;
+      this.height = height;
+      this.pixelPackBufferId = pixelPackBufferId;
+      this.fence = fence;
+    }
+  }
+
+  // Readbacks beyond this count are waited for after a new one is started, so that memory use stays
+  // bounded if the GPU falls behind.
+  private final int maxPendingReadbacks;
+  private final ArrayDeque<PendingReadback> pendingReadbacks = new ArrayDeque<>();
+  // Pixel pack buffers not used by a pending readback, and the capacities of all of them.
+  private final ArrayDeque<Integer> freePixelPackBuffers = new ArrayDeque<>();
+  private final Map<Integer, Integer> pixelPackBufferCapacities = new HashMap<>();
+  @Nullable private Boolean pixelPackBuffersSupported;
+  // Target of synchronous readbacks, reused while large enough.
+  @Nullable private ByteBuffer readBuffer;
+
+  PixelReadback() {
+    this(DEFAULT_MAX_PENDING_READBACKS);
+  }
+
+  /**
+   * @param maxPendingReadbacks Number of readbacks that may still be pending when readPixels()
+   *     returns. The oldest readbacks beyond it are waited for and delivered by readPixels().
+   */
+  PixelReadback(int maxPendingReadbacks) {
+    this.maxPendingReadbacks = maxPendingReadbacks;
+  }
+
+  /**
+   * Returns true if readbacks are delivered asynchronously, or false if readPixels() reads the
+   * pixels synchronously because OpenGL ES 3 is not supported.
+   */
+  boolean isAsynchronous() {
+    return isPixelPackBufferSupported();
+  }
+
+  boolean hasPendingReadbacks() {
+    return !pendingReadbacks.isEmpty();
+  }
+
+  /**
+   * Starts reading back the bottom left |width| x |height| pixels of the bound framebuffer.
+   * |callback| is run from a later call to poll() or readPixels(), or right away if asynchronous
+   * readback is not supported. |tag| identifies the readback for cancel().
+   */
+  void readPixels(Object tag, int width, int height, Callback callback) {
+    final int size = width * height * 4;
+    if (!isPixelPackBufferSupported()) {
+      if (readBuffer == null || readBuffer.capacity() < size) {
+        readBuffer = ByteBuffer.allocateDirect(size);
+      }
+      readBuffer.clear();
+      GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, readBuffer);
+      GlUtil.checkNoGLES2Error("PixelReadback.readPixels");
+      readBuffer.limit(size);
+      callback.onPixels(readBuffer, width, height);
+      return;
+    }
+
+    final int pixelPackBufferId = obtainPixelPackBuffer(size);
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelPackBufferId);
+    GLES30.glReadPixels(
+        0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, /* offset= */ 0);
+    final long fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, /* flags= */ 0);
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    GlUtil.checkNoGLES2Error("PixelReadback.readPixels");
+    pendingReadbacks.addLast(
+        new PendingReadback(tag, callback, width, height, pixelPackBufferId, fence));
+    // The new readback is issued first, so that the GPU works on it while the oldest is waited for.
+    while (pendingReadbacks.size() > maxPendingReadbacks) {
+      finishReadback(pendingReadbacks.pollFirst(), READBACK_FENCE_TIMEOUT_NS);
+    }
+  }
+
+  /**
+   * Delivers the readbacks that have completed, in the order they were started. Returns true if
+   * readbacks are still pending.
+   */
+  boolean poll() {
+    while (!pendingReadbacks.isEmpty()) {
+      final PendingReadback readback = pendingReadbacks.peekFirst();
+      final int waitResult = GLES30.glClientWaitSync(
+          readback.fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, /* timeout= */ 0);
+      if (waitResult == GLES30.GL_TIMEOUT_EXPIRED) {
+        return true;
+      }
+      finishReadback(pendingReadbacks.pollFirst(), /* timeoutNs= */ 0);
+    }
+    return false;
+  }
+
+  /** Waits for all pending readbacks and delivers them, in the order they were started. */
+  void flush() {
+    while (!pendingReadbacks.isEmpty()) {
+      finishReadback(pendingReadbacks.pollFirst(), READBACK_FENCE_TIMEOUT_NS);
+    }
+  }
+
+  /** Drops the pending readbacks started with |tag| without running their callbacks. */
+  void cancel(Object tag) {
+    final Iterator<PendingReadback> it = pendingReadbacks.iterator();
+    while (it.hasNext()) {
+      final PendingReadback readback = it.next();
+      if (readback.tag == tag) {
+        it.remove();
+        GLES30.glDeleteSync(readback.fence);
+        freePixelPackBuffers.addLast(readback.pixelPackBufferId);
+      }
+    }
+  }
+
+  /** Drops all pending readbacks and frees the GL resources. Allows this object to be reused. */
+  void release() {
+    for (PendingReadback readback : pendingReadbacks) {
+      GLES30.glDeleteSync(readback.fence);
+    }
+    pendingReadbacks.clear();
+    if (!pixelPackBufferCapacities.isEmpty()) {
+      final int[] bufferIds = new int[pixelPackBufferCapacities.size()];
+      int i = 0;
+      for (int bufferId : pixelPackBufferCapacities.keySet()) {
+        bufferIds[i++] = bufferId;
+      }
+      GLES30.glDeleteBuffers(bufferIds.length, bufferIds, 0);
+      pixelPackBufferCapacities.clear();
+    }
+    freePixelPackBuffers.clear();
+    pixelPackBuffersSupported = null;
+    readBuffer = null;
+  }
+
+  private boolean isPixelPackBufferSupported() {
+    if (pixelPackBuffersSupported == null) {
+      // GLES30.glReadPixels() with a buffer offset is only available from API level 24.
+      pixelPackBuffersSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+          && GlUtil.getGlesMajorVersion() >= 3;
+      Logging.d(TAG, "Pixel pack buffer readback supported: " + pixelPackBuffersSupported);
+    }
+    return pixelPackBuffersSupported;
+  }
+
+  // Returns a pixel pack buffer with a capacity of at least |size| bytes that is not used by any
+  // pending readback.
+  private int obtainPixelPackBuffer(int size) {
+    final int pixelPackBufferId;
+    if (freePixelPackBuffers.isEmpty()) {
+      final int[] bufferIds = new int[1];
+      GLES30.glGenBuffers(1, bufferIds, 0);
+      pixelPackBufferId = bufferIds[0];
+      pixelPackBufferCapacities.put(pixelPackBufferId, 0);
+    } else {
+      pixelPackBufferId = freePixelPackBuffers.pollFirst();
+    }
+    if (pixelPackBufferCapacities.get(pixelPackBufferId) < size) {
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelPackBufferId);
+      GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+      GlUtil.checkNoGLES2Error("PixelReadback.obtainPixelPackBuffer");
+      pixelPackBufferCapacities.put(pixelPackBufferId, size);
+    }
+    return pixelPackBufferId;
+  }
+
+  // Waits up to |timeoutNs| for |readback| and runs its callback with the mapped pixel pack buffer.
+  private void finishReadback(PendingReadback readback, long timeoutNs) {
+    if (timeoutNs > 0) {
+      final int waitResult = GLES30.glClientWaitSync(
+          readback.fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, timeoutNs);
+      if (waitResult == GLES30.GL_TIMEOUT_EXPIRED || waitResult == GLES30.GL_WAIT_FAILED) {
+        Logging.w(TAG, "Readback fence not signaled: " + waitResult);
+      }
+    }
+    GLES30.glDeleteSync(readback.fence);
+
+    final int size = readback.width * readback.height * 4;
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, readback.pixelPackBufferId);
+    final ByteBuffer mappedBuffer = (ByteBuffer) GLES30.glMapBufferRange(
+        GLES30.GL_PIXEL_PACK_BUFFER, /* offset= */ 0, size, GLES30.GL_MAP_READ_BIT);
+    if (mappedBuffer == null) {
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+      freePixelPackBuffers.addLast(readback.pixelPackBufferId);
+      throw new RuntimeException("glMapBufferRange failed: " + GLES20.glGetError());
+    }
+    try {
+      readback.callback.onPixels(mappedBuffer, readback.width, readback.height);
+    } finally {
+      GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+      freePixelPackBuffers.addLast(readback.pixelPackBufferId);
+    }
+    GlUtil.checkNoGLES2Error("PixelReadback.finishReadback");
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc.audio;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioThreadStats;
+import org.webrtc.audio.JavaAudioDeviceModule.LatencyHistogram;
+
+/**
+ * Collects timing statistics of a real-time audio thread without locks or allocations. All
+ * on*() methods must be called from the audio thread, the only writer. getStats() can be called
+ * from any thread; it is cheap, but the histograms it returns are not an atomic snapshot.
+ */
+class AudioThreadStatsCollector {
+  private final AtomicLongArray callbackIntervalBuckets =
+      new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+  private final AtomicLongArray nativeCallBuckets =
+      new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+  private volatile long callbackCount;
+  private volatile long shortTransferCount;
+  // Only accessed on the audio thread.
+  private long lastCompletionTimeNs;
+
+  /** Called when the audio thread starts, so that pauses between sessions are not counted. */
+  void onThreadStarted() {
+    lastCompletionTimeNs = 0;
+  }
+
+  /**
+   * Called when a read from or write to the audio device has completed. |isShort| tells if fewer
+   * bytes than requested were transferred.
+   */
+  void onTransferCompleted(boolean isShort) {
+    final long nowNs = System.nanoTime();
+    if (lastCompletionTimeNs != 0) {
+      increment(callbackIntervalBuckets, nowNs - lastCompletionTimeNs);
+    }
+    lastCompletionTimeNs = nowNs;
+    callbackCount++;
+    if (isShort) {
+      shortTransferCount++;
+    }
+  }
+
+  /** Called after a call into native code that started at |startTimeNs|. */
+  void onNativeCallCompleted(long startTimeNs) {
+    increment(nativeCallBuckets, System.nanoTime() - startTimeNs);
+  }
+
+  AudioThreadStats getStats() {
+    return new AudioThreadStats(callbackCount, shortTransferCount,
+        createHistogram(callbackIntervalBuckets), createHistogram(nativeCallBuckets));
+  }
+
+  // Single writer, so a plain read-modify-write is enough. lazySet() publishes the new count
+  // without a full memory barrier.
+  private static void increment(AtomicLongArray buckets, long durationNs) {
+    final int bucket = LatencyHistogram.getBucket(durationNs / 1000);
+    buckets.lazySet(bucket, buckets.get(bucket) + 1);
+  }
+
+  private static LatencyHistogram createHistogram(AtomicLongArray buckets) {
+    final long[] bucketCounts = new long[buckets.length()];
+    for (int i = 0; i < bucketCounts.length; ++i) {
+      bucketCounts[i] = buckets.get(i);
+    }
+    return new LatencyHistogram(bucketCounts);
+  }
+}
@@ -20,6 +20,7 @@ import android.os.Process;
 import android.support.annotation.Nullable;
 import java.lang.System;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import org.webrtc.CalledByNative;
@@ -27,6 +28,9 @@ import org.webrtc.Logging;
 import org.webrtc.ThreadUtils;
 import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordErrorCallback;
 import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordStartErrorCode;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioThreadStats;
+import org.webrtc.audio.JavaAudioDeviceModule.ByteBufferSamplesReadyCallback;
+import org.webrtc.audio.JavaAudioDeviceModule.RecordBufferStats;
 import org.webrtc.audio.JavaAudioDeviceModule.SamplesReadyCallback;
 
 class WebRtcAudioRecord {
@@ -63,6 +67,9 @@ class WebRtcAudioRecord {
   private final WebRtcAudioEffects effects = new WebRtcAudioEffects();
 
   private @Nullable ByteBuffer byteBuffer;
+  // Read-only view of |byteBuffer| handed to |byteBufferSamplesReadyCallback|. Created once per
+  // recording session so that no allocations are made on the audio thread.
+  private @Nullable ByteBuffer readOnlyByteBuffer;
 
   private @Nullable AudioRecord audioRecord;
   private @Nullable AudioRecordThread audioThread;
@@ -72,6 +79,14 @@ class WebRtcAudioRecord {
 
   private final @Nullable AudioRecordErrorCallback errorCallback;
   private final @Nullable SamplesReadyCallback audioSamplesReadyCallback;
+  private final @Nullable ByteBufferSamplesReadyCallback byteBufferSamplesReadyCallback;
+  private final @Nullable AudioRingBuffer ringBuffer;
+
+  private final AudioThreadStatsCollector statsCollector = new AudioThreadStatsCollector();
+  // Record buffer state of the current or most recent session. Written in initRecording(), but can
+  // be read from any thread through getRecordBufferStats().
+  private volatile int sampleRate;
+  private volatile int bufferSizeInFrames;
   private final boolean isAcousticEchoCancelerSupported;
   private final boolean isNoiseSuppressorSupported;
 
@@ -95,8 +110,10 @@ class WebRtcAudioRecord {
       assertTrue(audioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING);
 
       long lastTime = System.nanoTime();
+      statsCollector.onThreadStarted();
       while (keepAlive) {
         int bytesRead = audioRecord.read(byteBuffer, byteBuffer.capacity());
+        statsCollector.onTransferCompleted(bytesRead != byteBuffer.capacity());
         if (bytesRead == byteBuffer.capacity()) {
           if (microphoneMute) {
             byteBuffer.clear();
@@ -106,11 +123,24 @@ class WebRtcAudioRecord {
           // failed to join this thread. To be a bit safer, try to avoid calling any native methods
           // in case they've been unregistered after stopRecording() returned.
           if (keepAlive) {
+            final long nativeCallStartTimeNs = System.nanoTime();
             nativeDataIsRecorded(nativeAudioRecord, bytesRead);
+            statsCollector.onNativeCallCompleted(nativeCallStartTimeNs);
+          }
+          if (ringBuffer != null) {
+            readOnlyByteBuffer.clear();
+            ringBuffer.write(readOnlyByteBuffer, bytesRead);
+          }
+          if (byteBufferSamplesReadyCallback != null) {
+            readOnlyByteBuffer.clear();
+            byteBufferSamplesReadyCallback.onWebRtcAudioRecordSamplesReady(readOnlyByteBuffer,
+                audioRecord.getAudioFormat(), audioRecord.getChannelCount(),
+                audioRecord.getSampleRate());
           }
           if (audioSamplesReadyCallback != null) {
             // Copy the entire byte buffer array. The start of the byteBuffer is not necessarily
-            // at index 0.
+            // at index 0. The copy is needed since the client may keep the samples beyond the
+            // callback.
             byte[] data = Arrays.copyOfRange(byteBuffer.array(), byteBuffer.arrayOffset(),
                 byteBuffer.capacity() + byteBuffer.arrayOffset());
             audioSamplesReadyCallback.onWebRtcAudioRecordSamplesReady(
@@ -156,6 +186,17 @@ class WebRtcAudioRecord {
       int audioFormat, @Nullable AudioRecordErrorCallback errorCallback,
       @Nullable SamplesReadyCallback audioSamplesReadyCallback,
       boolean isAcousticEchoCancelerSupported, boolean isNoiseSuppressorSupported) {
+    this(context, audioManager, audioSource, audioFormat, errorCallback, audioSamplesReadyCallback,
+        null /* byteBufferSamplesReadyCallback */, null /* ringBuffer */,
+        isAcousticEchoCancelerSupported, isNoiseSuppressorSupported);
+  }
+
+  public WebRtcAudioRecord(Context context, AudioManager audioManager, int audioSource,
+      int audioFormat, @Nullable AudioRecordErrorCallback errorCallback,
+      @Nullable SamplesReadyCallback audioSamplesReadyCallback,
+      @Nullable ByteBufferSamplesReadyCallback byteBufferSamplesReadyCallback,
+      @Nullable AudioRingBuffer ringBuffer, boolean isAcousticEchoCancelerSupported,
+      boolean isNoiseSuppressorSupported) {
     if (isAcousticEchoCancelerSupported && !WebRtcAudioEffects.isAcousticEchoCancelerSupported()) {
       throw new IllegalArgumentException("HW AEC not supported");
     }
@@ -168,6 +209,8 @@ class WebRtcAudioRecord {
     this.audioFormat = audioFormat;
     this.errorCallback = errorCallback;
     this.audioSamplesReadyCallback = audioSamplesReadyCallback;
+    this.byteBufferSamplesReadyCallback = byteBufferSamplesReadyCallback;
+    this.ringBuffer = ringBuffer;
     this.isAcousticEchoCancelerSupported = isAcousticEchoCancelerSupported;
     this.isNoiseSuppressorSupported = isNoiseSuppressorSupported;
   }
@@ -214,6 +257,12 @@ class WebRtcAudioRecord {
       return -1;
     }
     Logging.d(TAG, "byteBuffer.capacity: " + byteBuffer.capacity());
+    // The samples are 16-bit PCM in native byte order, like the recorded data itself. Views are
+    // big-endian by default, whatever the order of the buffer they are created from.
+    readOnlyByteBuffer = byteBuffer.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+    if (ringBuffer != null) {
+      ringBuffer.setFormat(audioFormat, channels, sampleRate);
+    }
     emptyBytes = new byte[byteBuffer.capacity()];
     // Rather than passing the ByteBuffer with every callback (requiring
     // the potentially expensive GetDirectBufferAddress) we simply have the
@@ -249,6 +298,8 @@ class WebRtcAudioRecord {
       releaseAudioResources();
       return -1;
     }
+    bufferSizeInFrames = bufferSizeInBytes / bytesPerFrame;
+    this.sampleRate = sampleRate;
     effects.enable(audioRecord.getAudioSessionId());
     logMainParameters();
     logMainParametersExtended();
@@ -293,6 +344,19 @@ class WebRtcAudioRecord {
     return true;
   }
 
+  // Returns the state of the record buffer. Can be called on any thread.
+  RecordBufferStats getRecordBufferStats() {
+    final int sampleRate = this.sampleRate;
+    final int bufferSizeInFrames = this.bufferSizeInFrames;
+    final int latencyMs = (sampleRate == 0) ? 0 : (int) (1000L * bufferSizeInFrames / sampleRate);
+    return new RecordBufferStats(bufferSizeInFrames, latencyMs);
+  }
+
+  // Returns the statistics of the AudioRecordThread. Can be called on any thread.
+  AudioThreadStats getStats() {
+    return statsCollector.getStats();
+  }
+
   private void logMainParameters() {
     Logging.d(TAG,
         "AudioRecord: "
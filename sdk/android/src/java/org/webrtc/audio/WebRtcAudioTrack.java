@@ -25,7 +25,9 @@ import org.webrtc.CalledByNative;
 import org.webrtc.Logging;
 import org.webrtc.ThreadUtils;
 import org.webrtc.audio.JavaAudioDeviceModule.AudioTrackErrorCallback;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioThreadStats;
 import org.webrtc.audio.JavaAudioDeviceModule.AudioTrackStartErrorCode;
+import org.webrtc.audio.JavaAudioDeviceModule.PlayoutBufferStats;
 
 class WebRtcAudioTrack {
   private static final String TAG = "WebRtcAudioTrackExternal";
@@ -44,6 +46,21 @@ class WebRtcAudioTrack {
   // but the wait times out afther this amount of time.
   private static final long AUDIO_TRACK_THREAD_JOIN_TIMEOUT_MS = 2000;
 
+  // The underrun count of the AudioTrack is polled once per this number of written buffers, i.e.,
+  // once per second.
+  private static final int UNDERRUN_CHECK_INTERVAL_BUFFERS = BUFFERS_PER_SECOND;
+
+  // With adaptive buffer sizing, the AudioTrack buffer grows by one callback buffer after each
+  // interval with underruns, and shrinks by one callback buffer after this many consecutive
+  // intervals without underruns. Hence the target is less than one underrun per ten seconds.
+  // Visible for testing.
+  static final int INTERVALS_WITHOUT_UNDERRUN_BEFORE_SHRINK = 10;
+
+  // With adaptive buffer sizing, the AudioTrack is created with a capacity of
+  // ADAPTIVE_BUFFER_CAPACITY_FACTOR * (minimum required buffer size), and starts out using the
+  // minimum size.
+  private static final int ADAPTIVE_BUFFER_CAPACITY_FACTOR = 4;
+
   // By default, WebRTC creates audio tracks with a usage attribute
   // corresponding to voice communications, such as telephony or VoIP.
   private static final int DEFAULT_USAGE = getDefaultUsageAttribute();
@@ -74,6 +91,21 @@ class WebRtcAudioTrack {
   private byte[] emptyBytes;
 
   private final @Nullable AudioTrackErrorCallback errorCallback;
+  private final @Nullable AudioRingBuffer ringBuffer;
+  private final boolean useAdaptiveBufferSize;
+
+  // Playout buffer state. Only written by the thread that owns |audioTrack|, but can be read from
+  // any thread through getPlayoutBufferStats().
+  private volatile int sampleRate;
+  private int framesPerBuffer;
+  private int minBufferSizeInFrames;
+  private int intervalsWithoutUnderrun;
+  private volatile int bufferSizeInFrames;
+  private volatile int underrunCount;
+  private volatile int bufferSizeIncreaseCount;
+  private volatile int bufferSizeDecreaseCount;
+
+  private final AudioThreadStatsCollector statsCollector = new AudioThreadStatsCollector();
 
   /**
    * Audio thread which keeps calling AudioTrack.write() to stream audio.
@@ -97,12 +129,16 @@ class WebRtcAudioTrack {
       // Fixed size in bytes of each 10ms block of audio data that we ask for
       // using callbacks to the native WebRTC client.
       final int sizeInBytes = byteBuffer.capacity();
+      int buffersSinceUnderrunCheck = 0;
+      statsCollector.onThreadStarted();
 
       while (keepAlive) {
         // Get 10ms of PCM data from the native WebRTC client. Audio data is
         // written into the common ByteBuffer using the address that was
         // cached at construction.
+        final long nativeCallStartTimeNs = System.nanoTime();
         nativeGetPlayoutData(nativeAudioTrack, sizeInBytes);
+        statsCollector.onNativeCallCompleted(nativeCallStartTimeNs);
         // Write data until all data has been written to the audio sink.
         // Upon return, the buffer position will have been advanced to reflect
         // the amount of data that was successfully written to the AudioTrack.
@@ -112,7 +148,11 @@ class WebRtcAudioTrack {
           byteBuffer.put(emptyBytes);
           byteBuffer.position(0);
         }
+        if (ringBuffer != null) {
+          ringBuffer.write(byteBuffer, sizeInBytes);
+        }
         int bytesWritten = writeBytes(audioTrack, byteBuffer, sizeInBytes);
+        statsCollector.onTransferCompleted(bytesWritten != sizeInBytes);
         if (bytesWritten != sizeInBytes) {
           Logging.e(TAG, "AudioTrack.write played invalid number of bytes: " + bytesWritten);
           // If a write() returns a negative value, an error has occurred.
@@ -127,6 +167,12 @@ class WebRtcAudioTrack {
         // next call to AudioTrack.write() will fail.
         byteBuffer.rewind();
 
+        if (Build.VERSION.SDK_INT >= 24
+            && ++buffersSinceUnderrunCheck >= UNDERRUN_CHECK_INTERVAL_BUFFERS) {
+          buffersSinceUnderrunCheck = 0;
+          checkUnderruns();
+        }
+
         // TODO(henrika): it is possible to create a delay estimate here by
         // counting number of written frames and subtracting the result from
         // audioTrack.getPlaybackHeadPosition().
@@ -164,15 +210,19 @@ class WebRtcAudioTrack {
 
   @CalledByNative
   WebRtcAudioTrack(Context context, AudioManager audioManager) {
-    this(context, audioManager, null /* errorCallback */);
+    this(context, audioManager, null /* errorCallback */, null /* ringBuffer */,
+        false /* useAdaptiveBufferSize */);
   }
 
-  WebRtcAudioTrack(
-      Context context, AudioManager audioManager, @Nullable AudioTrackErrorCallback errorCallback) {
+  WebRtcAudioTrack(Context context, AudioManager audioManager,
+      @Nullable AudioTrackErrorCallback errorCallback, @Nullable AudioRingBuffer ringBuffer,
+      boolean useAdaptiveBufferSize) {
     threadChecker.detachThread();
     this.context = context;
     this.audioManager = audioManager;
     this.errorCallback = errorCallback;
+    this.ringBuffer = ringBuffer;
+    this.useAdaptiveBufferSize = useAdaptiveBufferSize;
     this.volumeLogger = new VolumeLogger(audioManager);
   }
 
@@ -186,9 +236,14 @@ class WebRtcAudioTrack {
     threadChecker.checkIsOnValidThread();
     Logging.d(TAG, "initPlayout(sampleRate=" + sampleRate + ", channels=" + channels + ")");
     final int bytesPerFrame = channels * (BITS_PER_SAMPLE / 8);
-    byteBuffer = ByteBuffer.allocateDirect(bytesPerFrame * (sampleRate / BUFFERS_PER_SECOND));
+    this.sampleRate = sampleRate;
+    framesPerBuffer = sampleRate / BUFFERS_PER_SECOND;
+    byteBuffer = ByteBuffer.allocateDirect(bytesPerFrame * framesPerBuffer);
     Logging.d(TAG, "byteBuffer.capacity: " + byteBuffer.capacity());
     emptyBytes = new byte[byteBuffer.capacity()];
+    if (ringBuffer != null) {
+      ringBuffer.setFormat(AudioFormat.ENCODING_PCM_16BIT, channels, sampleRate);
+    }
     // Rather than passing the ByteBuffer with every callback (requiring
     // the potentially expensive GetDirectBufferAddress) we simply have the
     // the native class cache the address to the memory once.
@@ -212,6 +267,14 @@ class WebRtcAudioTrack {
       return false;
     }
 
+    minBufferSizeInFrames = minBufferSizeInBytes / bytesPerFrame;
+    // Adaptive buffer sizing relies on AudioTrack.setBufferSizeInFrames(), added in API level 24.
+    final boolean adaptBufferSize = useAdaptiveBufferSize && Build.VERSION.SDK_INT >= 24;
+    final int bufferCapacityInBytes =
+        adaptBufferSize ? ADAPTIVE_BUFFER_CAPACITY_FACTOR * minBufferSizeInBytes
+                        : minBufferSizeInBytes;
+    Logging.d(TAG, "Adaptive buffer size: " + adaptBufferSize);
+
     // Ensure that prevision audio session was stopped correctly before trying
     // to create a new AudioTrack.
     if (audioTrack != null) {
@@ -229,7 +292,7 @@ class WebRtcAudioTrack {
         // and to allow certain platforms or routing policies to use this information for more
         // refined volume or routing decisions.
         audioTrack =
-            createAudioTrackOnLollipopOrHigher(sampleRate, channelConfig, minBufferSizeInBytes);
+            createAudioTrackOnLollipopOrHigher(sampleRate, channelConfig, bufferCapacityInBytes);
       } else {
         // Use default constructor for API levels below 21.
         audioTrack =
@@ -249,6 +312,7 @@ class WebRtcAudioTrack {
       releaseAudioResources();
       return false;
     }
+    initBufferSize(adaptBufferSize);
     logMainParameters();
     logMainParametersExtended();
     return true;
@@ -307,6 +371,92 @@ class WebRtcAudioTrack {
     return true;
   }
 
+  // Returns the state of the playout buffer. Can be called on any thread.
+  PlayoutBufferStats getPlayoutBufferStats() {
+    final int bufferSizeInFrames = this.bufferSizeInFrames;
+    final int latencyMs = (sampleRate == 0) ? 0 : (int) (1000L * bufferSizeInFrames / sampleRate);
+    return new PlayoutBufferStats(bufferSizeInFrames, latencyMs, underrunCount,
+        bufferSizeIncreaseCount, bufferSizeDecreaseCount);
+  }
+
+  // Returns the statistics of the AudioTrackThread. Can be called on any thread.
+  AudioThreadStats getStats() {
+    return statsCollector.getStats();
+  }
+
+  // Resets the playout buffer state for a newly created |audioTrack|, and shrinks its buffer to the
+  // minimum size if it will be adapted.
+  private void initBufferSize(boolean adaptBufferSize) {
+    intervalsWithoutUnderrun = 0;
+    underrunCount = 0;
+    bufferSizeIncreaseCount = 0;
+    bufferSizeDecreaseCount = 0;
+    if (adaptBufferSize) {
+      setBufferSizeInFrames(minBufferSizeInFrames);
+    }
+    bufferSizeInFrames = (Build.VERSION.SDK_INT >= 23) ? audioTrack.getBufferSizeInFrames()
+                                                       : minBufferSizeInFrames;
+  }
+
+  // Polls the underrun count of the AudioTrack and, with adaptive buffer sizing, grows the buffer
+  // after underruns and shrinks it again once playout has been stable for a while. Called on the
+  // AudioTrackThread.
+  @TargetApi(24)
+  private void checkUnderruns() {
+    final int newUnderrunCount = audioTrack.getUnderrunCount();
+    final boolean hadUnderruns = newUnderrunCount > underrunCount;
+    underrunCount = newUnderrunCount;
+    if (!useAdaptiveBufferSize) {
+      return;
+    }
+    intervalsWithoutUnderrun = hadUnderruns ? 0 : intervalsWithoutUnderrun + 1;
+    final int newBufferSizeInFrames = getAdaptedBufferSizeInFrames(hadUnderruns,
+        intervalsWithoutUnderrun, bufferSizeInFrames, framesPerBuffer, minBufferSizeInFrames,
+        audioTrack.getBufferCapacityInFrames());
+    if (intervalsWithoutUnderrun >= INTERVALS_WITHOUT_UNDERRUN_BEFORE_SHRINK) {
+      intervalsWithoutUnderrun = 0;
+    }
+    if (newBufferSizeInFrames > bufferSizeInFrames) {
+      setBufferSizeInFrames(newBufferSizeInFrames);
+      ++bufferSizeIncreaseCount;
+    } else if (newBufferSizeInFrames < bufferSizeInFrames) {
+      setBufferSizeInFrames(newBufferSizeInFrames);
+      ++bufferSizeDecreaseCount;
+    }
+  }
+
+  /**
+   * Returns the buffer size to use after an underrun check interval. The buffer grows by
+   * |framesPerBuffer| up to |capacityInFrames| if the interval |hadUnderruns|, and shrinks by
+   * |framesPerBuffer| down to |minBufferSizeInFrames| once |intervalsWithoutUnderrun|, which
+   * includes this interval, reaches INTERVALS_WITHOUT_UNDERRUN_BEFORE_SHRINK.
+   */
+  // Visible for testing.
+  static int getAdaptedBufferSizeInFrames(boolean hadUnderruns, int intervalsWithoutUnderrun,
+      int bufferSizeInFrames, int framesPerBuffer, int minBufferSizeInFrames,
+      int capacityInFrames) {
+    if (hadUnderruns) {
+      return Math.max(bufferSizeInFrames,
+          Math.min(bufferSizeInFrames + framesPerBuffer, capacityInFrames));
+    }
+    if (intervalsWithoutUnderrun >= INTERVALS_WITHOUT_UNDERRUN_BEFORE_SHRINK) {
+      return Math.min(bufferSizeInFrames,
+          Math.max(bufferSizeInFrames - framesPerBuffer, minBufferSizeInFrames));
+    }
+    return bufferSizeInFrames;
+  }
+
+  @TargetApi(24)
+  private void setBufferSizeInFrames(int requestedSizeInFrames) {
+    final int sizeInFrames = audioTrack.setBufferSizeInFrames(requestedSizeInFrames);
+    if (sizeInFrames < 0) {
+      Logging.e(TAG, "AudioTrack.setBufferSizeInFrames failed: " + sizeInFrames);
+      return;
+    }
+    Logging.d(TAG, "Buffer size changed from " + bufferSizeInFrames + " to " + sizeInFrames);
+    bufferSizeInFrames = sizeInFrames;
+  }
+
   // Get max possible volume index for a phone call audio stream.
   @CalledByNative
   private int getStreamMaxVolume() {
@@ -95,6 +95,96 @@ static void JNI_YuvHelper_I420ToNV12(JNIEnv* jni,
                      width, height);
 }
 
+static void JNI_YuvHelper_NV12ToI420(JNIEnv* jni,
+                                     const JavaParamRef<jobject>& j_src_y,
+                                     jint src_stride_y,
+                                     const JavaParamRef<jobject>& j_src_uv,
+                                     jint src_stride_uv,
+                                     const JavaParamRef<jobject>& j_dst_y,
+                                     jint dst_stride_y,
+                                     const JavaParamRef<jobject>& j_dst_u,
+                                     jint dst_stride_u,
+                                     const JavaParamRef<jobject>& j_dst_v,
+                                     jint dst_stride_v,
+                                     jint width,
+                                     jint height) {
+  const uint8_t* src_y =
+      static_cast<const uint8_t*>(jni->GetDirectBufferAddress(j_src_y.obj()));
+  const uint8_t* src_uv =
+      static_cast<const uint8_t*>(jni->GetDirectBufferAddress(j_src_uv.obj()));
+  uint8_t* dst_y =
+      static_cast<uint8_t*>(jni->GetDirectBufferAddress(j_dst_y.obj()));
+  uint8_t* dst_u =
+      static_cast<uint8_t*>(jni->GetDirectBufferAddress(j_dst_u.obj()));
+  uint8_t* dst_v =
+      static_cast<uint8_t*>(jni->GetDirectBufferAddress(j_dst_v.obj()));
+
+  libyuv::NV12ToI420(src_y, src_stride_y, src_uv, src_stride_uv, dst_y,
+                     dst_stride_y, dst_u, dst_stride_u, dst_v, dst_stride_v,
+                     width, height);
+}
+
+static void JNI_YuvHelper_NV21ToI420(JNIEnv* jni,
+                                     const JavaParamRef<jbyteArray>& j_src,
+                                     const JavaParamRef<jobject>& j_dst_y,
+                                     jint dst_stride_y,
+                                     const JavaParamRef<jobject>& j_dst_u,
+                                     jint dst_stride_u,
+                                     const JavaParamRef<jobject>& j_dst_v,
+                                     jint dst_stride_v,
+                                     jint width,
+                                     jint height) {
+  uint8_t* dst_y =
+      static_cast<uint8_t*>(jni->GetDirectBufferAddress(j_dst_y.obj()));
+  uint8_t* dst_u =
+      static_cast<uint8_t*>(jni->GetDirectBufferAddress(j_dst_u.obj()));
+  uint8_t* dst_v =
+      static_cast<uint8_t*>(jni->GetDirectBufferAddress(j_dst_v.obj()));
+  // No other JNI calls are allowed until the critical array is released.
+  void* src_bytes = jni->GetPrimitiveArrayCritical(j_src.obj(), nullptr);
+  const uint8_t* src_y = static_cast<const uint8_t*>(src_bytes);
+  const uint8_t* src_vu = src_y + width * height;
+
+  libyuv::NV21ToI420(src_y, width, src_vu, width, dst_y, dst_stride_y, dst_u,
+                     dst_stride_u, dst_v, dst_stride_v, width, height);
+
+  jni->ReleasePrimitiveArrayCritical(j_src.obj(), src_bytes, JNI_ABORT);
+}
+
+static void JNI_YuvHelper_NV21ToNV12(JNIEnv* jni,
+                                     const JavaParamRef<jbyteArray>& j_src,
+                                     const JavaParamRef<jobject>& j_dst_y,
+                                     jint dst_stride_y,
+                                     const JavaParamRef<jobject>& j_dst_uv,
+                                     jint dst_stride_uv,
+                                     jint width,
+                                     jint height) {
+  uint8_t* dst_y =
+      static_cast<uint8_t*>(jni->GetDirectBufferAddress(j_dst_y.obj()));
+  uint8_t* dst_uv =
+      static_cast<uint8_t*>(jni->GetDirectBufferAddress(j_dst_uv.obj()));
+  // No other JNI calls are allowed until the critical array is released.
+  void* src_bytes = jni->GetPrimitiveArrayCritical(j_src.obj(), nullptr);
+  const uint8_t* src_y = static_cast<const uint8_t*>(src_bytes);
+  const uint8_t* src_vu = src_y + width * height;
+
+  libyuv::CopyPlane(src_y, width, dst_y, dst_stride_y, width, height);
+
+  // Swap the interleaved V and U samples while copying the chroma plane.
+  const int chroma_width = (width + 1) / 2;
+  const int chroma_height = (height + 1) / 2;
+  for (int y = 0; y < chroma_height; ++y) {
+    const uint8_t* src_row = src_vu + y * width;
+    uint8_t* dst_row = dst_uv + y * dst_stride_uv;
+    for (int x = 0; x < chroma_width; ++x) {
+      dst_row[2 * x] = src_row[2 * x + 1];
+      dst_row[2 * x + 1] = src_row[2 * x];
+    }
+  }
+
+  jni->ReleasePrimitiveArrayCritical(j_src.obj(), src_bytes, JNI_ABORT);
+}
+
 void JNI_YuvHelper_I420Rotate(JNIEnv* jni,
                               const JavaParamRef<jobject>& j_src_y,
                               jint src_stride_y,
@@ -12,23 +12,33 @@ package org.webrtc;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.robolectric.Shadows.shadowOf;
 
 import android.graphics.Matrix;
+import android.graphics.Point;
 import android.graphics.SurfaceTexture;
 import android.media.MediaCodecInfo.CodecCapabilities;
 import android.media.MediaFormat;
 import android.os.Handler;
+import android.support.annotation.Nullable;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.chromium.testing.local.LocalRobolectricTestRunner;
 import org.junit.Before;
 import org.junit.Test;
@@ -59,9 +69,16 @@ public class AndroidVideoDecoderTest {
     private final Object deliverDecodedFrameLock = new Object();
     private boolean deliverDecodedFrameDone = true;
 
+    private final boolean adaptivePlaybackSupported;
+    @Nullable private final Point maxSupportedSize;
+
     public TestDecoder(MediaCodecWrapperFactory mediaCodecFactory, String codecName,
-        VideoCodecType codecType, int colorFormat, EglBase.Context sharedContext) {
-      super(mediaCodecFactory, codecName, codecType, colorFormat, sharedContext);
+        VideoCodecType codecType, int colorFormat, EglBase.Context sharedContext,
+        HardwareVideoDecoderOptions options, boolean adaptivePlaybackSupported,
+        @Nullable Point maxSupportedSize) {
+      super(mediaCodecFactory, codecName, codecType, colorFormat, sharedContext, options);
+      this.adaptivePlaybackSupported = adaptivePlaybackSupported;
+      this.maxSupportedSize = maxSupportedSize;
     }
 
     public void waitDeliverDecodedFrame() throws InterruptedException {
@@ -103,6 +120,16 @@ public class AndroidVideoDecoderTest {
     @Override
     protected void releaseSurface() {}
 
+    @Override
+    protected boolean isAdaptivePlaybackSupported() {
+      return adaptivePlaybackSupported;
+    }
+
+    @Override
+    protected Point getMaxSupportedSize() {
+      return maxSupportedSize;
+    }
+
     @Override
     protected VideoFrame.I420Buffer allocateI420Buffer(int width, int height) {
       int chromaHeight = (height + 1) / 2;
@@ -143,6 +170,11 @@ public class AndroidVideoDecoderTest {
   private class TestDecoderBuilder {
     private VideoCodecType codecType = VideoCodecType.VP8;
     private boolean useSurface = true;
+    private int colorFormat = COLOR_FORMAT;
+    private HardwareVideoDecoderOptions options = HardwareVideoDecoderOptions.getDefault();
+    private boolean adaptivePlaybackSupported;
+    @Nullable private Point maxSupportedSize;
+    @Nullable private MediaCodecWrapperFactory mediaCodecFactory;
 
     public TestDecoderBuilder setCodecType(VideoCodecType codecType) {
       this.codecType = codecType;
@@ -154,11 +186,39 @@ public class AndroidVideoDecoderTest {
       return this;
     }
 
+    public TestDecoderBuilder setColorFormat(int colorFormat) {
+      this.colorFormat = colorFormat;
+      return this;
+    }
+
+    public TestDecoderBuilder setOptions(HardwareVideoDecoderOptions options) {
+      this.options = options;
+      return this;
+    }
+
+    public TestDecoderBuilder setAdaptivePlaybackSupported(boolean adaptivePlaybackSupported) {
+      this.adaptivePlaybackSupported = adaptivePlaybackSupported;
+      return this;
+    }
+
+    public TestDecoderBuilder setMaxSupportedSize(@Nullable Point maxSupportedSize) {
+      this.maxSupportedSize = maxSupportedSize;
+      return this;
+    }
+
+    // Replaces the default factory, which always returns |fakeMediaCodecWrapper|.
+    public TestDecoderBuilder setMediaCodecFactory(MediaCodecWrapperFactory mediaCodecFactory) {
+      this.mediaCodecFactory = mediaCodecFactory;
+      return this;
+    }
+
     public TestDecoder build() {
-      return new TestDecoder((String name)
-                                 -> fakeMediaCodecWrapper,
-          /* codecName= */ "org.webrtc.testdecoder", codecType, COLOR_FORMAT,
-          useSurface ? mockEglBaseContext : null);
+      final MediaCodecWrapperFactory factory = (mediaCodecFactory != null)
+          ? mediaCodecFactory
+          : (String name) -> fakeMediaCodecWrapper;
+      return new TestDecoder(factory, /* codecName= */ "org.webrtc.testdecoder", codecType,
+          colorFormat, useSurface ? mockEglBaseContext : null, options, adaptivePlaybackSupported,
+          maxSupportedSize);
     }
   }
 
@@ -259,6 +319,125 @@ public class AndroidVideoDecoderTest {
         ENCODED_TEST_DATA, inputBuffer, offsetCaptor.getValue(), sizeCaptor.getValue());
   }
 
+  @Test
+  public void testResolutionChangeKeepsCodecWithAdaptivePlayback() {
+    // Set-up.
+    final DecoderResolutionChangeStats stats = new DecoderResolutionChangeStats();
+    final HardwareVideoDecoderOptions options =
+        HardwareVideoDecoderOptions.builder().setResolutionChangeStats(stats).createOptions();
+    TestDecoder decoder =
+        new TestDecoderBuilder().setAdaptivePlaybackSupported(true).setOptions(options).build();
+    decoder.initDecode(TEST_DECODER_SETTINGS, mockDecoderCallback);
+    MediaFormat mediaFormat = fakeMediaCodecWrapper.getConfiguredFormat();
+    assertThat(mediaFormat.getInteger("max-width")).isEqualTo(1920);
+    assertThat(mediaFormat.getInteger("max-height")).isEqualTo(1920);
+
+    // Test.
+    EncodedImage frame = EncodedImage.builder()
+                             .setBuffer(ByteBuffer.wrap(ENCODED_TEST_DATA))
+                             .setEncodedWidth(1280)
+                             .setEncodedHeight(720)
+                             .setFrameType(FrameType.VideoFrameKey)
+                             .setCompleteFrame(true)
+                             .createEncodedImage();
+    assertThat(decoder.decode(frame, new DecodeInfo(/* isMissingFrames= */ false,
+                                         /* renderTimeMs= */ 0)))
+        .isEqualTo(VideoCodecStatus.OK);
+
+    // Verify.
+    verify(fakeMediaCodecWrapper, never()).stop();
+    assertThat(fakeMediaCodecWrapper.getState()).isEqualTo(State.EXECUTING_RUNNING);
+    assertThat(stats.getAdaptiveChangeCount()).isEqualTo(1);
+    assertThat(stats.getReinitCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testAdaptivePlaybackMaxSizeIsClampedToSupportedSize() {
+    // Set-up.
+    final DecoderResolutionChangeStats stats = new DecoderResolutionChangeStats();
+    final HardwareVideoDecoderOptions options =
+        HardwareVideoDecoderOptions.builder().setResolutionChangeStats(stats).createOptions();
+    TestDecoder decoder = new TestDecoderBuilder()
+                              .setAdaptivePlaybackSupported(true)
+                              .setMaxSupportedSize(new Point(/* x= */ 1920, /* y= */ 1088))
+                              .setOptions(options)
+                              .build();
+
+    // Test.
+    decoder.initDecode(TEST_DECODER_SETTINGS, mockDecoderCallback);
+
+    // Verify.
+    MediaFormat mediaFormat = fakeMediaCodecWrapper.getConfiguredFormat();
+    assertThat(mediaFormat.getInteger("max-width")).isEqualTo(1920);
+    assertThat(mediaFormat.getInteger("max-height")).isEqualTo(1088);
+
+    // A portrait frame no longer fits and reinitializes the codec.
+    EncodedImage frame = EncodedImage.builder()
+                             .setBuffer(ByteBuffer.wrap(ENCODED_TEST_DATA))
+                             .setEncodedWidth(720)
+                             .setEncodedHeight(1280)
+                             .setFrameType(FrameType.VideoFrameKey)
+                             .setCompleteFrame(true)
+                             .createEncodedImage();
+    decoder.decode(frame, new DecodeInfo(/* isMissingFrames= */ false, /* renderTimeMs= */ 0));
+    assertThat(stats.getAdaptiveChangeCount()).isEqualTo(0);
+    assertThat(stats.getReinitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testConfigureFailureWithMaxSizeRetriesWithoutAdaptivePlayback() {
+    // Set-up.
+    final FakeMediaCodecWrapper failingCodec = spy(new FakeMediaCodecWrapper(new MediaFormat()));
+    doThrow(new IllegalArgumentException("Unsupported max size"))
+        .when(failingCodec)
+        .configure(any(), any(), any(), anyInt());
+    final Queue<MediaCodecWrapper> codecs =
+        new ArrayDeque<>(Arrays.asList(failingCodec, fakeMediaCodecWrapper));
+    TestDecoder decoder = new TestDecoderBuilder()
+                              .setAdaptivePlaybackSupported(true)
+                              .setMediaCodecFactory((String name) -> codecs.remove())
+                              .build();
+
+    // Test.
+    assertThat(decoder.initDecode(TEST_DECODER_SETTINGS, mockDecoderCallback))
+        .isEqualTo(VideoCodecStatus.OK);
+
+    // Verify. The retry runs on a new codec instance.
+    assertThat(failingCodec.getState()).isEqualTo(State.RELEASED);
+    MediaFormat mediaFormat = fakeMediaCodecWrapper.getConfiguredFormat();
+    assertThat(mediaFormat.containsKey("max-width")).isFalse();
+    assertThat(mediaFormat.containsKey("max-height")).isFalse();
+    assertThat(fakeMediaCodecWrapper.getState()).isEqualTo(State.EXECUTING_RUNNING);
+  }
+
+  @Test
+  public void testConfigureRetrySetsCallbackInAsyncMode() {
+    // Set-up.
+    final FakeMediaCodecWrapper failingCodec = spy(new FakeMediaCodecWrapper(new MediaFormat()));
+    doThrow(new IllegalArgumentException("Unsupported max size"))
+        .when(failingCodec)
+        .configure(any(), any(), any(), anyInt());
+    final Queue<MediaCodecWrapper> codecs =
+        new ArrayDeque<>(Arrays.asList(failingCodec, fakeMediaCodecWrapper));
+    final HardwareVideoDecoderOptions options =
+        HardwareVideoDecoderOptions.builder().setAsyncCallbackModeEnabled(true).createOptions();
+    TestDecoder decoder = new TestDecoderBuilder()
+                              .setAdaptivePlaybackSupported(true)
+                              .setOptions(options)
+                              .setMediaCodecFactory((String name) -> codecs.remove())
+                              .build();
+
+    // Test.
+    assertThat(decoder.initDecode(TEST_DECODER_SETTINGS, mockDecoderCallback))
+        .isEqualTo(VideoCodecStatus.OK);
+
+    // Verify.
+    assertThat(failingCodec.getState()).isEqualTo(State.RELEASED);
+    assertThat(fakeMediaCodecWrapper.isAsync()).isTrue();
+    assertThat(fakeMediaCodecWrapper.getState()).isEqualTo(State.EXECUTING_RUNNING);
+    decoder.release();
+  }
+
   @Test
   public void testDeliversOutputByteBuffers() throws InterruptedException {
     final byte[] testOutputData = CodecTestHelper.generateRandomData(
@@ -295,6 +474,172 @@ public class AndroidVideoDecoderTest {
     assertThat(deliveredBuffer.getDataV()).isEqualTo(expectedDeliveredBuffer.getDataV());
   }
 
+  @Test
+  public void testDecodeAndDeliverInAsyncMode() {
+    final byte[] testOutputData = CodecTestHelper.generateRandomData(
+        TEST_DECODER_SETTINGS.width * TEST_DECODER_SETTINGS.height * 3 / 2);
+
+    // Set-up.
+    HardwareVideoDecoderOptions options =
+        HardwareVideoDecoderOptions.builder().setAsyncCallbackModeEnabled(true).createOptions();
+    AndroidVideoDecoder decoder =
+        new TestDecoderBuilder().setUseSurface(/* useSurface= */ false).setOptions(options).build();
+    decoder.initDecode(TEST_DECODER_SETTINGS, mockDecoderCallback);
+    assertThat(fakeMediaCodecWrapper.isAsync()).isTrue();
+
+    // Test.
+    assertThat(decoder.decode(createTestEncodedImage(),
+                   new DecodeInfo(/* isMissingFrames= */ false, /* renderTimeMs= */ 0)))
+        .isEqualTo(VideoCodecStatus.OK);
+    ArgumentCaptor<Integer> indexCaptor = ArgumentCaptor.forClass(Integer.class);
+    ArgumentCaptor<Integer> sizeCaptor = ArgumentCaptor.forClass(Integer.class);
+    verify(fakeMediaCodecWrapper, timeout(1000))
+        .queueInputBuffer(indexCaptor.capture(), /* offset= */ eq(0), sizeCaptor.capture(),
+            /* presentationTimeUs= */ anyLong(),
+            /* flags= */ eq(0));
+    CodecTestHelper.assertEqualContents(ENCODED_TEST_DATA,
+        fakeMediaCodecWrapper.getInputBuffer(indexCaptor.getValue()), /* offset= */ 0,
+        sizeCaptor.getValue());
+
+    int outputIndex = fakeMediaCodecWrapper.addOutputData(
+        testOutputData, /* presentationTimestampUs= */ 0, /* flags= */ 0);
+
+    // Verify.
+    verify(mockDecoderCallback, timeout(1000))
+        .onDecodedFrame(any(VideoFrame.class),
+            /* decodeTimeMs= */ any(Integer.class),
+            /* qp= */ any());
+    verify(fakeMediaCodecWrapper, timeout(1000)).releaseOutputBuffer(outputIndex, false);
+
+    assertThat(decoder.release()).isEqualTo(VideoCodecStatus.OK);
+    assertThat(fakeMediaCodecWrapper.getState()).isEqualTo(State.RELEASED);
+  }
+
+  @Test
+  public void testSlowSinkDoesNotStallOtherDecodersInAsyncMode() throws InterruptedException {
+    final byte[] testOutputData = CodecTestHelper.generateRandomData(
+        TEST_DECODER_SETTINGS.width * TEST_DECODER_SETTINGS.height * 3 / 2);
+    final CountDownLatch slowSinkCalled = new CountDownLatch(1);
+    final CountDownLatch slowSinkDone = new CountDownLatch(1);
+    final VideoDecoder.Callback slowCallback = (frame, decodeTimeMs, qp) -> {
+      slowSinkCalled.countDown();
+      ThreadUtils.awaitUninterruptibly(slowSinkDone);
+    };
+    final FakeMediaCodecWrapper otherCodec = spy(new FakeMediaCodecWrapper(new MediaFormat()));
+
+    // Set-up.
+    final HardwareVideoDecoderOptions options =
+        HardwareVideoDecoderOptions.builder().setAsyncCallbackModeEnabled(true).createOptions();
+    TestDecoder slowDecoder =
+        new TestDecoderBuilder().setUseSurface(/* useSurface= */ false).setOptions(options).build();
+    TestDecoder otherDecoder = new TestDecoderBuilder()
+                                   .setUseSurface(/* useSurface= */ false)
+                                   .setOptions(options)
+                                   .setMediaCodecFactory((String name) -> otherCodec)
+                                   .build();
+    slowDecoder.initDecode(TEST_DECODER_SETTINGS, slowCallback);
+    otherDecoder.initDecode(TEST_DECODER_SETTINGS, mockDecoderCallback);
+    slowDecoder.decode(createTestEncodedImage(),
+        new DecodeInfo(/* isMissingFrames= */ false, /* renderTimeMs= */ 0));
+    otherDecoder.decode(createTestEncodedImage(),
+        new DecodeInfo(/* isMissingFrames= */ false, /* renderTimeMs= */ 0));
+
+    // Test.
+    fakeMediaCodecWrapper.addOutputData(
+        testOutputData, /* presentationTimestampUs= */ 0, /* flags= */ 0);
+    assertThat(slowSinkCalled.await(1, TimeUnit.SECONDS)).isTrue();
+    otherCodec.addOutputData(testOutputData, /* presentationTimestampUs= */ 0, /* flags= */ 0);
+
+    // Verify.
+    verify(mockDecoderCallback, timeout(1000))
+        .onDecodedFrame(any(VideoFrame.class),
+            /* decodeTimeMs= */ any(Integer.class),
+            /* qp= */ any());
+
+    slowSinkDone.countDown();
+    assertThat(slowDecoder.release()).isEqualTo(VideoCodecStatus.OK);
+    assertThat(otherDecoder.release()).isEqualTo(VideoCodecStatus.OK);
+  }
+
+  @Test
+  public void testZeroCopyOutputReleasesCodecBufferWithFrame() throws InterruptedException {
+    final byte[] testOutputData = CodecTestHelper.generateRandomData(
+        TEST_DECODER_SETTINGS.width * TEST_DECODER_SETTINGS.height * 3 / 2);
+    final VideoFrame[] deliveredFrame = new VideoFrame[1];
+    final VideoDecoder.Callback retainingCallback = (frame, decodeTimeMs, qp) -> {
+      frame.retain();
+      deliveredFrame[0] = frame;
+    };
+
+    // Set-up.
+    TestDecoder decoder =
+        new TestDecoderBuilder()
+            .setUseSurface(/* useSurface = */ false)
+            .setColorFormat(CodecCapabilities.COLOR_FormatYUV420SemiPlanar)
+            .setOptions(HardwareVideoDecoderOptions.builder()
+                            .setZeroCopyOutputFrames(/* maxFramesInFlight= */ 1)
+                            .createOptions())
+            .build();
+    decoder.initDecode(TEST_DECODER_SETTINGS, retainingCallback);
+    decoder.decode(createTestEncodedImage(),
+        new DecodeInfo(/* isMissingFrames= */ false, /* renderTimeMs= */ 0));
+    int bufferIndex = fakeMediaCodecWrapper.addOutputData(
+        testOutputData, /* presentationTimestampUs= */ 0, /* flags= */ 0);
+
+    // Test.
+    decoder.waitDeliverDecodedFrame();
+
+    // Verify.
+    assertThat(deliveredFrame[0]).isNotNull();
+    assertThat(deliveredFrame[0].getBuffer()).isInstanceOf(NV12Buffer.class);
+    verify(fakeMediaCodecWrapper, never()).releaseOutputBuffer(anyInt(), anyBoolean());
+
+    deliveredFrame[0].release();
+    verify(fakeMediaCodecWrapper).releaseOutputBuffer(bufferIndex, /* render= */ false);
+  }
+
+  @Test
+  public void testZeroCopyOutputFrameHeldPastReleaseKeepsCodecAlive()
+      throws InterruptedException {
+    final byte[] testOutputData = CodecTestHelper.generateRandomData(
+        TEST_DECODER_SETTINGS.width * TEST_DECODER_SETTINGS.height * 3 / 2);
+    final VideoFrame[] deliveredFrame = new VideoFrame[1];
+    final VideoDecoder.Callback retainingCallback = (frame, decodeTimeMs, qp) -> {
+      frame.retain();
+      deliveredFrame[0] = frame;
+    };
+
+    // Set-up.
+    TestDecoder decoder =
+        new TestDecoderBuilder()
+            .setUseSurface(/* useSurface = */ false)
+            .setColorFormat(CodecCapabilities.COLOR_FormatYUV420SemiPlanar)
+            .setOptions(HardwareVideoDecoderOptions.builder()
+                            .setZeroCopyOutputFrames(/* maxFramesInFlight= */ 1)
+                            .createOptions())
+            .build();
+    decoder.initDecode(TEST_DECODER_SETTINGS, retainingCallback);
+    decoder.decode(createTestEncodedImage(),
+        new DecodeInfo(/* isMissingFrames= */ false, /* renderTimeMs= */ 0));
+    fakeMediaCodecWrapper.addOutputData(
+        testOutputData, /* presentationTimestampUs= */ 0, /* flags= */ 0);
+    decoder.waitDeliverDecodedFrame();
+    assertThat(deliveredFrame[0]).isNotNull();
+
+    // Test.
+    assertThat(decoder.release()).isEqualTo(VideoCodecStatus.OK);
+
+    // Verify. The frame still wraps codec memory, so the codec is kept alive until it is released.
+    verify(fakeMediaCodecWrapper, never()).stop();
+    verify(fakeMediaCodecWrapper, never()).release();
+    assertThat(fakeMediaCodecWrapper.getState()).isEqualTo(State.EXECUTING_RUNNING);
+
+    deliveredFrame[0].release();
+    verify(fakeMediaCodecWrapper, never()).releaseOutputBuffer(anyInt(), anyBoolean());
+    verify(fakeMediaCodecWrapper).stop();
+    assertThat(fakeMediaCodecWrapper.getState()).isEqualTo(State.RELEASED);
+  }
+
   @Test
   public void testRendersOutputTexture() throws InterruptedException {
     // Set-up.
@@ -16,6 +16,7 @@ import android.media.MediaCodecInfo.CodecCapabilities;
 import android.media.MediaCrypto;
 import android.media.MediaFormat;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.Nullable;
 import android.view.Surface;
 import java.nio.ByteBuffer;
@@ -110,6 +111,8 @@ public class FakeMediaCodecWrapper implements MediaCodecWrapper {
   private final boolean[] inputBufferReserved = new boolean[NUM_INPUT_BUFFERS];
   private final boolean[] outputBufferReserved = new boolean[NUM_OUTPUT_BUFFERS];
   private final List<QueuedOutputBufferInfo> queuedOutputBuffers = new ArrayList<>();
+  private @Nullable Callback callback;
+  private @Nullable Handler callbackHandler;
 
   public FakeMediaCodecWrapper(MediaFormat outputFormat) {
     this.outputFormat = outputFormat;
@@ -138,6 +141,7 @@ public class FakeMediaCodecWrapper implements MediaCodecWrapper {
     int index = getFreeOutputBuffer();
     queuedOutputBuffers.add(QueuedOutputBufferInfo.create(
         index, /* offset= */ 0, /* size= */ 0, presentationTimestampUs, flags));
+    postOutputBuffersIfAsync();
     return index;
   }
 
@@ -155,6 +159,7 @@ public class FakeMediaCodecWrapper implements MediaCodecWrapper {
 
     queuedOutputBuffers.add(QueuedOutputBufferInfo.create(
         index, /* offset= */ 0, data.length, presentationTimestampUs, flags));
+    postOutputBuffersIfAsync();
     return index;
   }
 
@@ -172,6 +177,57 @@ public class FakeMediaCodecWrapper implements MediaCodecWrapper {
     throw new RuntimeException("All output buffers reserved!");
   }
 
+  /** Returns true if setCallback() has been called. */
+  public boolean isAsync() {
+    return callback != null;
+  }
+
+  // In asynchronous mode, hands all queued output buffers to the callback.
+  private void postOutputBuffersIfAsync() {
+    if (callback == null || state.getPrimary() != State.Primary.EXECUTING) {
+      return;
+    }
+    while (!queuedOutputBuffers.isEmpty()) {
+      final QueuedOutputBufferInfo outputBufferInfo = queuedOutputBuffers.remove(/* index= */ 0);
+      final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      info.set(outputBufferInfo.getOffset(), outputBufferInfo.getSize(),
+          outputBufferInfo.getPresentationTimeUs(), outputBufferInfo.getFlags());
+      final Callback callback = this.callback;
+      callbackHandler.post(
+          () -> callback.onOutputBufferAvailable(outputBufferInfo.getIndex(), info));
+    }
+  }
+
+  // In asynchronous mode, hands input buffer |index| to the callback.
+  private void postInputBuffer(int index) {
+    final Callback callback = this.callback;
+    callbackHandler.post(() -> callback.onInputBufferAvailable(index));
+  }
+
+  /**
+   * In asynchronous mode, reports |e| to the callback as a codec error and waits until the
+   * callback has handled it.
+   */
+  public void signalError(Exception e) {
+    final Callback callback = this.callback;
+    ThreadUtils.invokeAtFrontUninterruptibly(callbackHandler, () -> callback.onError(e));
+  }
+
+  private void checkNotAsync() {
+    if (callback != null) {
+      throw new IllegalStateException("Not allowed in asynchronous mode.");
+    }
+  }
+
+  @Override
+  public void setCallback(Callback callback, Handler handler) {
+    if (state != State.STOPPED_UNINITIALIZED) {
+      throw new IllegalStateException("Expected state STOPPED_UNINITIALIZED but was " + state);
+    }
+    this.callback = callback;
+    this.callbackHandler = handler;
+  }
+
   @Override
   public void configure(MediaFormat format, Surface surface, MediaCrypto crypto, int flags) {
     if (state != State.STOPPED_UNINITIALIZED) {
@@ -211,6 +267,16 @@ public class FakeMediaCodecWrapper implements MediaCodecWrapper {
       throw new IllegalStateException("Expected state STOPPED_CONFIGURED but was " + state);
     }
     state = State.EXECUTING_RUNNING;
+
+    if (callback != null) {
+      for (int i = 0; i < NUM_INPUT_BUFFERS; i++) {
+        if (inputBuffers[i].capacity() > 0 && !inputBufferReserved[i]) {
+          inputBufferReserved[i] = true;
+          postInputBuffer(i);
+        }
+      }
+      postOutputBuffersIfAsync();
+    }
   }
 
   @Override
@@ -236,6 +302,7 @@ public class FakeMediaCodecWrapper implements MediaCodecWrapper {
 
   @Override
   public int dequeueInputBuffer(long timeoutUs) {
+    checkNotAsync();
     if (state != State.EXECUTING_FLUSHED && state != State.EXECUTING_RUNNING) {
       throw new IllegalStateException(
           "Expected state EXECUTING_FLUSHED or EXECUTING_RUNNING but was " + state);
@@ -261,10 +328,15 @@ public class FakeMediaCodecWrapper implements MediaCodecWrapper {
       throw new UnsupportedOperationException(
           "Flags are not implemented in FakeMediaCodecWrapper.");
     }
+    if (callback != null) {
+      // The input buffer is consumed immediately and handed back to the callback.
+      postInputBuffer(index);
+    }
   }
 
   @Override
   public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+    checkNotAsync();
     if (state.getPrimary() != State.Primary.EXECUTING) {
       throw new IllegalStateException("Expected state EXECUTING but was " + state);
     }
@@ -299,6 +371,16 @@ public class FakeMediaCodecWrapper implements MediaCodecWrapper {
     return outputBuffers;
   }
 
+  @Override
+  public ByteBuffer getInputBuffer(int index) {
+    return inputBuffers[index];
+  }
+
+  @Override
+  public ByteBuffer getOutputBuffer(int index) {
+    return outputBuffers[index];
+  }
+
   @Override
   public MediaFormat getOutputFormat() {
     return outputFormat;
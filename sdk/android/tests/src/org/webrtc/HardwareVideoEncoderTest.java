@@ -14,13 +14,17 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.robolectric.Shadows.shadowOf;
 
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
@@ -69,9 +73,11 @@ public class HardwareVideoEncoderTest {
     TestEncoder(MediaCodecWrapperFactory mediaCodecWrapperFactory, String codecName,
         VideoCodecType codecType, Integer surfaceColorFormat, Integer yuvColorFormat,
         Map<String, String> params, int keyFrameIntervalSec, int forceKeyFrameIntervalMs,
-        BitrateAdjuster bitrateAdjuster, EglBase14.Context sharedContext) {
+        BitrateAdjuster bitrateAdjuster, EglBase14.Context sharedContext,
+        HardwareVideoEncoderOptions options) {
       super(mediaCodecWrapperFactory, codecName, codecType, surfaceColorFormat, yuvColorFormat,
-          params, keyFrameIntervalSec, forceKeyFrameIntervalMs, bitrateAdjuster, sharedContext);
+          params, keyFrameIntervalSec, forceKeyFrameIntervalMs, bitrateAdjuster, sharedContext,
+          options);
     }
 
     public void waitDeliverEncodedImage() throws InterruptedException {
@@ -118,12 +124,18 @@ public class HardwareVideoEncoderTest {
 
   private class TestEncoderBuilder {
     private VideoCodecType codecType = VideoCodecType.VP8;
+    private HardwareVideoEncoderOptions options = HardwareVideoEncoderOptions.getDefault();
 
     public TestEncoderBuilder setCodecType(VideoCodecType codecType) {
       this.codecType = codecType;
       return this;
     }
 
+    public TestEncoderBuilder setOptions(HardwareVideoEncoderOptions options) {
+      this.options = options;
+      return this;
+    }
+
     public TestEncoder build() {
       return new TestEncoder((String name)
                                  -> fakeMediaCodecWrapper,
@@ -134,7 +146,7 @@ public class HardwareVideoEncoderTest {
           /* keyFrameIntervalSec= */ 0,
           /* forceKeyFrameIntervalMs= */ 0,
           /* bitrateAdjuster= */ new BaseBitrateAdjuster(),
-          /* sharedContext= */ null);
+          /* sharedContext= */ null, options);
     }
   }
 
@@ -175,6 +187,25 @@ public class HardwareVideoEncoderTest {
         .isEqualTo(MediaCodec.CONFIGURE_FLAG_ENCODE);
   }
 
+  @Test
+  public void testInitSetsLowLatencyKeys() {
+    // Set-up.
+    HardwareVideoEncoderOptions options =
+        HardwareVideoEncoderOptions.builder().setLowLatencyModeEnabled(true).createOptions();
+    HardwareVideoEncoder encoder = new TestEncoderBuilder().setOptions(options).build();
+
+    // Test.
+    assertThat(encoder.initEncode(TEST_ENCODER_SETTINGS, mockEncoderCallback))
+        .isEqualTo(VideoCodecStatus.OK);
+
+    // Verify.
+    MediaFormat mediaFormat = fakeMediaCodecWrapper.getConfiguredFormat();
+    assertThat(mediaFormat.containsKey(MediaCodecUtils.KEY_PRIORITY))
+        .isEqualTo(Build.VERSION.SDK_INT >= 23);
+    assertThat(mediaFormat.containsKey(MediaCodecUtils.KEY_LATENCY))
+        .isEqualTo(Build.VERSION.SDK_INT >= 26);
+  }
+
   @Test
   public void testEncodeByteBuffer() {
     // Set-up.
@@ -243,6 +274,142 @@ public class HardwareVideoEncoderTest {
         outputData, videoFrame.buffer, /* offset= */ 0, videoFrame.buffer.capacity());
   }
 
+  @Test
+  public void testRecordsCodecLatency() throws InterruptedException {
+    // Set-up.
+    CodecLatencyHistogram latencyHistogram = new CodecLatencyHistogram();
+    HardwareVideoEncoderOptions options =
+        HardwareVideoEncoderOptions.builder().setLatencyHistogram(latencyHistogram).createOptions();
+    TestEncoder encoder = new TestEncoderBuilder().setOptions(options).build();
+    encoder.initEncode(TEST_ENCODER_SETTINGS, mockEncoderCallback);
+    byte[] i420 = CodecTestHelper.generateRandomData(
+        TEST_ENCODER_SETTINGS.width * TEST_ENCODER_SETTINGS.height * 3 / 2);
+    final VideoFrame.I420Buffer testBuffer =
+        CodecTestHelper.wrapI420(TEST_ENCODER_SETTINGS.width, TEST_ENCODER_SETTINGS.height, i420);
+    final VideoFrame testFrame =
+        new VideoFrame(testBuffer, /* rotation= */ 0, /* timestampNs= */ 42);
+    encoder.encode(testFrame, new EncodeInfo(new FrameType[] {FrameType.VideoFrameKey}));
+
+    // Test.
+    fakeMediaCodecWrapper.addOutputData(CodecTestHelper.generateRandomData(/* length= */ 100),
+        /* presentationTimestampUs= */ 0,
+        /* flags= */ MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+    encoder.waitDeliverEncodedImage();
+
+    // Verify.
+    assertThat(latencyHistogram.getSampleCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testH264KeyFramesReuseOutputBuffer() throws InterruptedException {
+    final byte[] configData = CodecTestHelper.generateRandomData(/* length= */ 10);
+    final byte[] keyFrameData = CodecTestHelper.generateRandomData(/* length= */ 100);
+
+    // Set-up.
+    TestEncoder encoder = new TestEncoderBuilder().setCodecType(VideoCodecType.H264).build();
+    encoder.initEncode(TEST_ENCODER_SETTINGS, mockEncoderCallback);
+    fakeMediaCodecWrapper.addOutputData(configData,
+        /* presentationTimestampUs= */ 0,
+        /* flags= */ MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+    encoder.waitDeliverEncodedImage();
+
+    // Test.
+    for (int i = 0; i < 2; ++i) {
+      byte[] i420 = CodecTestHelper.generateRandomData(
+          TEST_ENCODER_SETTINGS.width * TEST_ENCODER_SETTINGS.height * 3 / 2);
+      final VideoFrame.I420Buffer testBuffer =
+          CodecTestHelper.wrapI420(TEST_ENCODER_SETTINGS.width, TEST_ENCODER_SETTINGS.height, i420);
+      final VideoFrame testFrame =
+          new VideoFrame(testBuffer, /* rotation= */ 0, /* timestampNs= */ i);
+      encoder.encode(testFrame, new EncodeInfo(new FrameType[] {FrameType.VideoFrameKey}));
+      fakeMediaCodecWrapper.addOutputData(keyFrameData,
+          /* presentationTimestampUs= */ i,
+          /* flags= */ MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+      encoder.waitDeliverEncodedImage();
+    }
+
+    // Verify.
+    ArgumentCaptor<EncodedImage> videoFrameCaptor = ArgumentCaptor.forClass(EncodedImage.class);
+    verify(mockEncoderCallback, times(2))
+        .onEncodedFrame(videoFrameCaptor.capture(), any(CodecSpecificInfo.class));
+    EncodedImage videoFrame = videoFrameCaptor.getValue();
+    assertThat(videoFrame.buffer.capacity()).isEqualTo(configData.length + keyFrameData.length);
+    CodecTestHelper.assertEqualContents(
+        configData, videoFrame.buffer, /* offset= */ 0, configData.length);
+    CodecTestHelper.assertEqualContents(
+        keyFrameData, videoFrame.buffer, configData.length, keyFrameData.length);
+    assertThat(encoder.getOutputBufferAllocationCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testDeliversOutputDataInAsyncMode() {
+    final int outputDataLength = 100;
+
+    // Set-up.
+    HardwareVideoEncoderOptions options =
+        HardwareVideoEncoderOptions.builder().setAsyncCallbackModeEnabled(true).createOptions();
+    HardwareVideoEncoder encoder = new TestEncoderBuilder().setOptions(options).build();
+    encoder.initEncode(TEST_ENCODER_SETTINGS, mockEncoderCallback);
+    assertThat(fakeMediaCodecWrapper.isAsync()).isTrue();
+
+    byte[] i420 = CodecTestHelper.generateRandomData(
+        TEST_ENCODER_SETTINGS.width * TEST_ENCODER_SETTINGS.height * 3 / 2);
+    final VideoFrame.I420Buffer testBuffer =
+        CodecTestHelper.wrapI420(TEST_ENCODER_SETTINGS.width, TEST_ENCODER_SETTINGS.height, i420);
+    final VideoFrame testFrame =
+        new VideoFrame(testBuffer, /* rotation= */ 0, /* timestampNs= */ 42);
+    assertThat(encoder.encode(testFrame, new EncodeInfo(new FrameType[] {FrameType.VideoFrameKey})))
+        .isEqualTo(VideoCodecStatus.OK);
+
+    // Test.
+    byte[] outputData = CodecTestHelper.generateRandomData(outputDataLength);
+    int outputIndex = fakeMediaCodecWrapper.addOutputData(outputData,
+        /* presentationTimestampUs= */ 0,
+        /* flags= */ MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+
+    // Verify.
+    ArgumentCaptor<EncodedImage> videoFrameCaptor = ArgumentCaptor.forClass(EncodedImage.class);
+    verify(mockEncoderCallback, timeout(1000))
+        .onEncodedFrame(videoFrameCaptor.capture(), any(CodecSpecificInfo.class));
+    verify(fakeMediaCodecWrapper, timeout(1000)).releaseOutputBuffer(outputIndex, false);
+
+    EncodedImage videoFrame = videoFrameCaptor.getValue();
+    assertThat(videoFrame.captureTimeNs).isEqualTo(42);
+    assertThat(videoFrame.frameType).isEqualTo(FrameType.VideoFrameKey);
+    CodecTestHelper.assertEqualContents(
+        outputData, videoFrame.buffer, /* offset= */ 0, videoFrame.buffer.capacity());
+
+    assertThat(encoder.release()).isEqualTo(VideoCodecStatus.OK);
+    assertThat(fakeMediaCodecWrapper.getState()).isEqualTo(State.RELEASED);
+  }
+
+  @Test
+  public void testCodecErrorInAsyncModeFallsBackToSoftware() {
+    // Set-up.
+    HardwareVideoEncoderOptions options =
+        HardwareVideoEncoderOptions.builder().setAsyncCallbackModeEnabled(true).createOptions();
+    HardwareVideoEncoder encoder = new TestEncoderBuilder().setOptions(options).build();
+    encoder.initEncode(TEST_ENCODER_SETTINGS, mockEncoderCallback);
+
+    byte[] i420 = CodecTestHelper.generateRandomData(
+        TEST_ENCODER_SETTINGS.width * TEST_ENCODER_SETTINGS.height * 3 / 2);
+    final VideoFrame.I420Buffer testBuffer =
+        CodecTestHelper.wrapI420(TEST_ENCODER_SETTINGS.width, TEST_ENCODER_SETTINGS.height, i420);
+    final VideoFrame testFrame =
+        new VideoFrame(testBuffer, /* rotation= */ 0, /* timestampNs= */ 42);
+
+    // Test.
+    fakeMediaCodecWrapper.signalError(new IllegalStateException("Test codec error"));
+
+    // Verify.
+    assertThat(encoder.encode(testFrame, new EncodeInfo(new FrameType[] {FrameType.VideoFrameKey})))
+        .isEqualTo(VideoCodecStatus.FALLBACK_SOFTWARE);
+    verify(fakeMediaCodecWrapper, never()).queueInputBuffer(anyInt(), anyInt(), anyInt(),
+        anyLong(), anyInt());
+    assertThat(encoder.release()).isEqualTo(VideoCodecStatus.ERROR);
+    assertThat(fakeMediaCodecWrapper.getState()).isEqualTo(State.RELEASED);
+  }
+
   @Test
   public void testRelease() {
     // Set-up.
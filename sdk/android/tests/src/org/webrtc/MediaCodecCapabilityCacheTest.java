@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.graphics.Point;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.chromium.testing.local.LocalRobolectricTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+import org.webrtc.MediaCodecCapabilityCache.CodecEntry;
+
+/**
+ * Tests for the persisted format and the statistics of MediaCodecCapabilityCache.
+ */
+@RunWith(LocalRobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MediaCodecCapabilityCacheTest {
+  private static final String CACHE_KEY = "fingerprint|28|OMX.test.encoder|OMX.test.decoder";
+  private static final int COLOR_FORMAT_NV12 = 0x15;
+  private static final int COLOR_FORMAT_I420 = 0x13;
+
+  private static List<CodecEntry> createEntries() {
+    final Map<String, int[]> encoderFormats = new HashMap<>();
+    encoderFormats.put(VideoCodecType.H264.mimeType(), new int[] {COLOR_FORMAT_NV12});
+    final Map<String, int[]> decoderFormats = new HashMap<>();
+    decoderFormats.put(
+        VideoCodecType.VP8.mimeType(), new int[] {COLOR_FORMAT_I420, COLOR_FORMAT_NV12});
+
+    final Map<String, Set<String>> decoderFeatures = new HashMap<>();
+    decoderFeatures.put(VideoCodecType.VP8.mimeType(),
+        Collections.singleton(MediaCodecUtils.FEATURE_ADAPTIVE_PLAYBACK));
+    final Map<String, Point> decoderMaxSizes = new HashMap<>();
+    decoderMaxSizes.put(VideoCodecType.VP8.mimeType(), new Point(/* x= */ 1920, /* y= */ 1088));
+
+    final List<CodecEntry> entries = new ArrayList<>();
+    entries.add(new CodecEntry("OMX.test.encoder", /* isEncoder= */ true, encoderFormats,
+        /* features= */ new HashMap<>(), /* maxSizes= */ new HashMap<>()));
+    entries.add(new CodecEntry("OMX.test.decoder", /* isEncoder= */ false, decoderFormats,
+        decoderFeatures, decoderMaxSizes));
+    return entries;
+  }
+
+  @Test
+  public void testSerializeDeserializeRoundTrip() throws Exception {
+    final String data = MediaCodecCapabilityCache.serialize(CACHE_KEY, createEntries());
+    final List<CodecEntry> entries = MediaCodecCapabilityCache.deserialize(data, CACHE_KEY);
+
+    assertThat(entries).hasSize(2);
+    final CodecEntry encoder = entries.get(0);
+    assertThat(encoder.name).isEqualTo("OMX.test.encoder");
+    assertThat(encoder.isEncoder).isTrue();
+    assertThat(encoder.supportsType(VideoCodecType.H264)).isTrue();
+    assertThat(encoder.supportsType(VideoCodecType.VP8)).isFalse();
+    assertThat(
+        encoder.isFeatureSupported(VideoCodecType.H264, MediaCodecUtils.FEATURE_LOW_LATENCY))
+        .isFalse();
+    assertThat(encoder.getMaxSupportedSize(VideoCodecType.H264)).isNull();
+
+    final CodecEntry decoder = entries.get(1);
+    assertThat(decoder.name).isEqualTo("OMX.test.decoder");
+    assertThat(decoder.isEncoder).isFalse();
+    assertThat(decoder.selectColorFormat(new int[] {COLOR_FORMAT_NV12}, VideoCodecType.VP8))
+        .isEqualTo(COLOR_FORMAT_NV12);
+    assertThat(decoder.selectColorFormat(new int[] {COLOR_FORMAT_NV12}, VideoCodecType.H264))
+        .isNull();
+    assertThat(decoder.isFeatureSupported(
+                   VideoCodecType.VP8, MediaCodecUtils.FEATURE_ADAPTIVE_PLAYBACK))
+        .isTrue();
+    assertThat(
+        decoder.isFeatureSupported(VideoCodecType.VP8, MediaCodecUtils.FEATURE_LOW_LATENCY))
+        .isFalse();
+    assertThat(decoder.getMaxSupportedSize(VideoCodecType.VP8))
+        .isEqualTo(new Point(/* x= */ 1920, /* y= */ 1088));
+  }
+
+  @Test
+  public void testDeserializeRejectsChangedCacheKey() throws Exception {
+    final String data = MediaCodecCapabilityCache.serialize(CACHE_KEY, createEntries());
+
+    assertThat(MediaCodecCapabilityCache.deserialize(data, CACHE_KEY + "|OMX.new.codec")).isNull();
+  }
+
+  @Test
+  public void testDeserializeRejectsInvalidData() {
+    assertThat(MediaCodecCapabilityCache.deserialize("{not json", CACHE_KEY)).isNull();
+  }
+
+  @Test
+  public void testInvalidateResetsStatistics() {
+    MediaCodecCapabilityCache.getCodecs();
+    assertThat(MediaCodecCapabilityCache.getEnumerationTimeMs()).isAtLeast(0L);
+
+    MediaCodecCapabilityCache.invalidate();
+
+    assertThat(MediaCodecCapabilityCache.getEnumerationTimeMs()).isEqualTo(-1L);
+    assertThat(MediaCodecCapabilityCache.isLoadedFromFile()).isFalse();
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.media.MediaFormat;
+import org.chromium.testing.local.LocalRobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+import org.webrtc.FakeMediaCodecWrapper.State;
+import org.webrtc.MediaCodecWarmPool.ResolutionClass;
+
+@RunWith(LocalRobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MediaCodecWarmPoolTest {
+  private static final String ENCODER_NAME = "org.webrtc.testencoder";
+  private static final int COLOR_FORMAT = 0x15;
+
+  private FakeMediaCodecWrapper fakeMediaCodecWrapper;
+  private MediaCodecWarmPool pool;
+
+  @Before
+  public void setUp() {
+    fakeMediaCodecWrapper = new FakeMediaCodecWrapper(new MediaFormat());
+    pool = MediaCodecWarmPool.builder()
+               .addEncoders(VideoCodecType.VP8, ResolutionClass.HD, /* count= */ 1)
+               .setMediaCodecWrapperFactory(name -> fakeMediaCodecWrapper)
+               .createPool();
+    pool.warmUp(/* isEncoder= */ true,
+        type -> new MediaCodecWarmPool.CodecSpec(ENCODER_NAME, COLOR_FORMAT));
+    pool.waitForPendingWork();
+  }
+
+  @After
+  public void tearDown() {
+    pool.release();
+  }
+
+  @Test
+  public void testLeaseReturnsWarmCodec() {
+    MediaCodecWrapper codec = pool.lease(
+        VideoCodecType.VP8, ENCODER_NAME, /* isEncoder= */ true, /* width= */ 1280,
+        /* height= */ 720);
+
+    assertThat(codec).isSameAs(fakeMediaCodecWrapper);
+    // The codec has been configured and started once, and is ready to be configured again.
+    assertThat(fakeMediaCodecWrapper.getState()).isEqualTo(State.STOPPED_UNINITIALIZED);
+    assertThat(fakeMediaCodecWrapper.getConfiguredFormat().getInteger(MediaFormat.KEY_WIDTH))
+        .isEqualTo(1280);
+    assertThat(pool.getStats().hitCount).isEqualTo(1);
+  }
+
+  @Test
+  public void testLeaseMissesForOtherResolutionClass() {
+    MediaCodecWrapper codec = pool.lease(
+        VideoCodecType.VP8, ENCODER_NAME, /* isEncoder= */ true, /* width= */ 640,
+        /* height= */ 480);
+
+    assertThat(codec).isNull();
+    assertThat(pool.getStats().leaseCount).isEqualTo(1);
+    assertThat(pool.getStats().getHitRate()).isEqualTo(0f);
+  }
+
+  @Test
+  public void testLeaseMissesForDecoder() {
+    MediaCodecWrapper codec = pool.lease(
+        VideoCodecType.VP8, ENCODER_NAME, /* isEncoder= */ false, /* width= */ 1280,
+        /* height= */ 720);
+
+    assertThat(codec).isNull();
+  }
+
+  @Test
+  public void testReleaseReleasesIdleCodecs() {
+    pool.release();
+
+    assertThat(fakeMediaCodecWrapper.getState()).isEqualTo(State.RELEASED);
+    assertThat(pool.lease(VideoCodecType.VP8, ENCODER_NAME, /* isEncoder= */ true,
+                   /* width= */ 1280, /* height= */ 720))
+        .isNull();
+  }
+
+  @Test
+  public void testReportsTimeToFirstFrame() {
+    pool.reportTimeToFirstFrame(/* leased= */ true, /* timeMs= */ 10);
+    pool.reportTimeToFirstFrame(/* leased= */ true, /* timeMs= */ 30);
+    pool.reportTimeToFirstFrame(/* leased= */ false, /* timeMs= */ 200);
+
+    MediaCodecWarmPool.Stats stats = pool.getStats();
+    assertThat(stats.averageWarmTimeToFirstFrameMs).isEqualTo(20);
+    assertThat(stats.averageColdTimeToFirstFrameMs).isEqualTo(200);
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc.audio;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.nio.ByteBuffer;
+import org.chromium.testing.local.LocalRobolectricTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+@RunWith(LocalRobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AudioRingBufferTest {
+  private static ByteBuffer createChunk(int size, int firstValue) {
+    final ByteBuffer chunk = ByteBuffer.allocateDirect(size);
+    for (int i = 0; i < size; ++i) {
+      chunk.put((byte) (firstValue + i));
+    }
+    chunk.rewind();
+    return chunk;
+  }
+
+  @Test
+  public void testCapacityIsRoundedUpToPowerOfTwo() {
+    assertThat(new AudioRingBuffer(1).getCapacity()).isEqualTo(1);
+    assertThat(new AudioRingBuffer(16).getCapacity()).isEqualTo(16);
+    assertThat(new AudioRingBuffer(17).getCapacity()).isEqualTo(32);
+  }
+
+  @Test
+  public void testWriteAndReadAcrossWrapAround() {
+    final AudioRingBuffer ringBuffer = new AudioRingBuffer(16);
+    final byte[] data = new byte[16];
+    for (int i = 0; i < 4; ++i) {
+      final ByteBuffer chunk = createChunk(/* size= */ 6, /* firstValue= */ 10 * i);
+      assertThat(ringBuffer.write(chunk, 6)).isTrue();
+      // The position of the source is left unchanged.
+      assertThat(chunk.position()).isEqualTo(0);
+      assertThat(ringBuffer.available()).isEqualTo(6);
+      assertThat(ringBuffer.read(data, /* offset= */ 0, data.length)).isEqualTo(6);
+      for (int j = 0; j < 6; ++j) {
+        assertThat(data[j]).isEqualTo((byte) (10 * i + j));
+      }
+    }
+    assertThat(ringBuffer.getOverflowCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testChunkIsDroppedOnOverflow() {
+    final AudioRingBuffer ringBuffer = new AudioRingBuffer(16);
+    assertThat(ringBuffer.write(createChunk(/* size= */ 10, /* firstValue= */ 0), 10)).isTrue();
+    assertThat(ringBuffer.write(createChunk(/* size= */ 10, /* firstValue= */ 10), 10)).isFalse();
+    assertThat(ringBuffer.getOverflowCount()).isEqualTo(1);
+    assertThat(ringBuffer.getDroppedBytes()).isEqualTo(10);
+
+    // Only the chunk that fit is read back, into a ByteBuffer this time.
+    final ByteBuffer data = ByteBuffer.allocate(16);
+    assertThat(ringBuffer.read(data)).isEqualTo(10);
+    assertThat(data.position()).isEqualTo(10);
+    assertThat(data.get(9)).isEqualTo((byte) 9);
+    assertThat(ringBuffer.available()).isEqualTo(0);
+  }
+}
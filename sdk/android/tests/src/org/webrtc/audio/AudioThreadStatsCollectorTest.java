@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc.audio;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.chromium.testing.local.LocalRobolectricTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioThreadStats;
+import org.webrtc.audio.JavaAudioDeviceModule.LatencyHistogram;
+
+@RunWith(LocalRobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AudioThreadStatsCollectorTest {
+  @Test
+  public void testHistogramBuckets() {
+    assertThat(LatencyHistogram.getBucket(0)).isEqualTo(0);
+    assertThat(LatencyHistogram.getBucket(1)).isEqualTo(0);
+    assertThat(LatencyHistogram.getBucket(2)).isEqualTo(1);
+    assertThat(LatencyHistogram.getBucket(10000)).isEqualTo(13);
+    assertThat(LatencyHistogram.getBucket(Long.MAX_VALUE))
+        .isEqualTo(LatencyHistogram.BUCKET_COUNT - 1);
+    assertThat(LatencyHistogram.getBucketUpperBoundUs(13)).isEqualTo(16384);
+  }
+
+  @Test
+  public void testHistogramPercentiles() {
+    final long[] bucketCounts = new long[LatencyHistogram.BUCKET_COUNT];
+    bucketCounts[13] = 98;
+    bucketCounts[16] = 2;
+    final LatencyHistogram histogram = new LatencyHistogram(bucketCounts);
+    assertThat(histogram.getTotalCount()).isEqualTo(100);
+    assertThat(histogram.getPercentileUs(50)).isEqualTo(16384);
+    assertThat(histogram.getPercentileUs(99)).isEqualTo(131072);
+    assertThat(new LatencyHistogram(new long[LatencyHistogram.BUCKET_COUNT]).getPercentileUs(50))
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void testCollectorCountsTransfers() {
+    final AudioThreadStatsCollector collector = new AudioThreadStatsCollector();
+    collector.onThreadStarted();
+    collector.onTransferCompleted(/* isShort= */ false);
+    collector.onNativeCallCompleted(System.nanoTime());
+    collector.onTransferCompleted(/* isShort= */ true);
+
+    final AudioThreadStats stats = collector.getStats();
+    assertThat(stats.callbackCount).isEqualTo(2);
+    assertThat(stats.shortTransferCount).isEqualTo(1);
+    // The first completion only starts the interval measurement.
+    assertThat(stats.callbackIntervalHistogram.getTotalCount()).isEqualTo(1);
+    assertThat(stats.nativeCallHistogram.getTotalCount()).isEqualTo(1);
+  }
+}
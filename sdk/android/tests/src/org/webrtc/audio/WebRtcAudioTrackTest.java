@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc.audio;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.webrtc.audio.WebRtcAudioTrack.INTERVALS_WITHOUT_UNDERRUN_BEFORE_SHRINK;
+
+import org.chromium.testing.local.LocalRobolectricTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+@RunWith(LocalRobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class WebRtcAudioTrackTest {
+  private static final int FRAMES_PER_BUFFER = 480;
+  private static final int MIN_BUFFER_SIZE_IN_FRAMES = 960;
+  private static final int CAPACITY_IN_FRAMES = 4 * MIN_BUFFER_SIZE_IN_FRAMES;
+
+  private static int getAdaptedBufferSize(
+      boolean hadUnderruns, int intervalsWithoutUnderrun, int bufferSizeInFrames) {
+    return WebRtcAudioTrack.getAdaptedBufferSizeInFrames(hadUnderruns, intervalsWithoutUnderrun,
+        bufferSizeInFrames, FRAMES_PER_BUFFER, MIN_BUFFER_SIZE_IN_FRAMES, CAPACITY_IN_FRAMES);
+  }
+
+  @Test
+  public void testBufferGrowsByOneBufferAfterUnderruns() {
+    assertThat(getAdaptedBufferSize(/* hadUnderruns= */ true, /* intervalsWithoutUnderrun= */ 0,
+                   MIN_BUFFER_SIZE_IN_FRAMES))
+        .isEqualTo(MIN_BUFFER_SIZE_IN_FRAMES + FRAMES_PER_BUFFER);
+  }
+
+  @Test
+  public void testBufferDoesNotGrowBeyondCapacity() {
+    assertThat(getAdaptedBufferSize(/* hadUnderruns= */ true, /* intervalsWithoutUnderrun= */ 0,
+                   CAPACITY_IN_FRAMES - 1))
+        .isEqualTo(CAPACITY_IN_FRAMES);
+    assertThat(getAdaptedBufferSize(/* hadUnderruns= */ true, /* intervalsWithoutUnderrun= */ 0,
+                   CAPACITY_IN_FRAMES))
+        .isEqualTo(CAPACITY_IN_FRAMES);
+  }
+
+  @Test
+  public void testBufferKeepsSizeUntilStable() {
+    final int bufferSizeInFrames = MIN_BUFFER_SIZE_IN_FRAMES + 2 * FRAMES_PER_BUFFER;
+    for (int intervals = 1; intervals < INTERVALS_WITHOUT_UNDERRUN_BEFORE_SHRINK; ++intervals) {
+      assertThat(getAdaptedBufferSize(/* hadUnderruns= */ false, intervals, bufferSizeInFrames))
+          .isEqualTo(bufferSizeInFrames);
+    }
+  }
+
+  @Test
+  public void testBufferShrinksByOneBufferWhenStable() {
+    assertThat(getAdaptedBufferSize(/* hadUnderruns= */ false,
+                   INTERVALS_WITHOUT_UNDERRUN_BEFORE_SHRINK,
+                   MIN_BUFFER_SIZE_IN_FRAMES + 2 * FRAMES_PER_BUFFER))
+        .isEqualTo(MIN_BUFFER_SIZE_IN_FRAMES + FRAMES_PER_BUFFER);
+  }
+
+  @Test
+  public void testBufferDoesNotShrinkBelowMinimum() {
+    assertThat(getAdaptedBufferSize(/* hadUnderruns= */ false,
+                   INTERVALS_WITHOUT_UNDERRUN_BEFORE_SHRINK, MIN_BUFFER_SIZE_IN_FRAMES + 1))
+        .isEqualTo(MIN_BUFFER_SIZE_IN_FRAMES);
+    assertThat(getAdaptedBufferSize(/* hadUnderruns= */ false,
+                   INTERVALS_WITHOUT_UNDERRUN_BEFORE_SHRINK, MIN_BUFFER_SIZE_IN_FRAMES))
+        .isEqualTo(MIN_BUFFER_SIZE_IN_FRAMES);
+  }
+}